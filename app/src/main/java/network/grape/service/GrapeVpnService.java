@@ -3,22 +3,37 @@ package network.grape.service;
 import android.content.Intent;
 import android.net.VpnService;
 import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Base64;
 import dagger.hilt.android.AndroidEntryPoint;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
 import lombok.Setter;
+import network.grape.app.BuildConfig;
+import network.grape.lib.compress.PacketCompressor;
+import network.grape.lib.compress.PacketDecompressor;
+import network.grape.lib.crypto.AeadTunnel;
+import network.grape.lib.crypto.TunnelHandshake;
 import network.grape.lib.util.PacketDumper;
+import network.grape.lib.vpn.DontFragment;
+import network.grape.lib.vpn.FileChannelTunDevice;
+import network.grape.lib.vpn.MtuProbe;
 import network.grape.lib.vpn.ProtectSocket;
 import network.grape.lib.vpn.SocketProtector;
+import network.grape.lib.vpn.TunDevice;
+import network.grape.lib.vpn.TunnelCapabilities;
 import network.grape.lib.vpn.VpnForwardingReader;
 import network.grape.lib.vpn.VpnForwardingWriter;
 import org.slf4j.Logger;
@@ -28,12 +43,18 @@ import org.slf4j.LoggerFactory;
  * The main VPN service of Grape.
  */
 @AndroidEntryPoint
-public class GrapeVpnService extends VpnService implements Runnable, ProtectSocket {
+public class GrapeVpnService extends VpnService implements Runnable, ProtectSocket,
+    DontFragment {
 
   private static final int MAX_PACKET_LEN = 1500;
   private static final String VPN_ADDRESS = "10.0.0.89";
   private static final int VPN_LOCAL_PORT = 8888;
   private static final int VPN_REMOTE_PORT = 19999;
+  // from linux's <netinet/in.h>, which OsConstants doesn't have
+  private static final int IP_MTU_DISCOVER = 10;
+  private static final int IPV6_MTU_DISCOVER = 23;
+  private static final int IP_PMTUDISC_WANT = 1;
+  private static final int IP_PMTUDISC_DO = 2;
 
   // SLF4J
   private final Logger logger;
@@ -118,6 +139,9 @@ public class GrapeVpnService extends VpnService implements Runnable, ProtectSock
     builder.addAddress("10.0.0.2", 24);
     builder.addRoute("0.0.0.0", 0);
     builder.setSession("GrapeVpn");
+    // reads wait in the kernel for the next packet rather than polling, which keeps the phone
+    // asleep while there's no traffic
+    builder.setBlocking(true);
     vpnInterface = builder.establish();
 
     if (vpnInterface != null) {
@@ -148,8 +172,47 @@ public class GrapeVpnService extends VpnService implements Runnable, ProtectSock
 
     packetDumper = new PacketDumper(directory + "/output.dump", PacketDumper.OutputFormat.ASCII_HEXDUMP);
     vpnWriter = new VpnForwardingWriter(clientWriter, vpnPacket, VPN_LOCAL_PORT, new SocketProtector(this), packetDumper);
+    DatagramSocket vpnsocket = vpnWriter.getSocket();
+    vpnsocket.connect(InetAddress.getByName(VPN_ADDRESS), VPN_REMOTE_PORT);
+
+    // with a key shared with the proxy, the tunnel keys are agreed before anything else reads from
+    // the socket, and both directions are sealed with them. The optional features are agreed in
+    // the same hello, or on their own if the tunnel isn't encrypted, and the proxy only compresses
+    // for a client which offered to take compressed frames
+    AeadTunnel tunnel = null;
+    int capabilities;
+    if (!BuildConfig.TUNNEL_KEY.isEmpty()) {
+      TunnelHandshake handshake =
+          new TunnelHandshake(Base64.decode(BuildConfig.TUNNEL_KEY, Base64.DEFAULT));
+      handshake.setCapabilities(TunnelCapabilities.COMPRESSION);
+      tunnel = agreeTunnel(vpnsocket, handshake);
+      capabilities = handshake.getAgreedCapabilities();
+      vpnWriter.setTunnel(tunnel);
+    } else {
+      capabilities = new TunnelCapabilities(vpnsocket).offer(TunnelCapabilities.COMPRESSION);
+    }
+    boolean compression = (capabilities & TunnelCapabilities.COMPRESSION) != 0;
+    if (compression) {
+      vpnWriter.setDecompressor(new PacketDecompressor());
+    }
+
+    // find out how big the tunnelled packets can be before anything else reads from the socket,
+    // the proxy clamps the MSS of new TCP sessions to the result. It takes a few round trips, up
+    // to a few seconds if the proxy doesn't answer, so it runs on its own thread and the apps'
+    // packets start going out meanwhile. Any replies which come back before the writer starts
+    // reading the socket are dropped, and TCP sends them again.
     vpnWriterThread = new Thread(vpnWriter);
-    vpnWriterThread.start();
+    Thread probeThread = new Thread(() -> {
+      MtuProbe mtuProbe = new MtuProbe(vpnsocket);
+      mtuProbe.setDontFragment(this);
+      try {
+        mtuProbe.discover();
+      } catch (IOException e) {
+        logger.error("MTU probe failed: " + e.getMessage());
+      }
+      vpnWriterThread.start();
+    }, "MtuProbeThread");
+    probeThread.start();
     /*
     Map<String, Session> sessionTable = new ConcurrentHashMap<>();
     Selector selector = Selector.open();
@@ -168,11 +231,11 @@ public class GrapeVpnService extends VpnService implements Runnable, ProtectSock
 
     vpnWriterThread.start();
     */
-    // Allocate the buffer for a single packet.
-    ByteBuffer appPacket = ByteBuffer.allocate(MAX_PACKET_LEN);
+    // Allocate the buffer for a single packet, a blocking device reads one at a time.
+    ByteBuffer[] appPackets = {ByteBuffer.allocate(MAX_PACKET_LEN)};
 
-    // Packets to be sent are queued in this input stream.
-    FileInputStream clientReader = new FileInputStream(vpnInterface.getFileDescriptor());
+    // Packets to be sent are read from the tun interface.
+    TunDevice clientReader = FileChannelTunDevice.open(vpnInterface.getFileDescriptor(), true);
 
     //vpnReader = new VpnReader(clientReader, clientWriter, handler, packet,
     // new SocketProtector(this));
@@ -181,14 +244,36 @@ public class GrapeVpnService extends VpnService implements Runnable, ProtectSock
     //filters.add(InetAddress.getByName("138.68.242.6"));
 
 
-    DatagramSocket vpnsocket = vpnWriter.getSocket();
-    vpnsocket.connect(InetAddress.getByName(VPN_ADDRESS), VPN_REMOTE_PORT);
-
-    vpnReader = new VpnForwardingReader(clientReader, appPacket, vpnsocket, filters, packetDumper);
+    vpnReader = new VpnForwardingReader(clientReader, appPackets, vpnsocket, filters, packetDumper);
+    vpnReader.setTunnel(tunnel);
+    if (compression) {
+      vpnReader.setCompressor(new PacketCompressor());
+    }
     vpnReaderThread = new Thread(vpnReader);
     vpnReaderThread.start();
   }
 
+  /**
+   * Runs the client side of the tunnel handshake with the proxy.
+   *
+   * @param socket    the tunnel socket, connected to the proxy
+   * @param handshake the handshake, with the key shared with the proxy
+   * @return the tunnel to seal and open the packets with
+   * @throws IOException if the proxy doesn't answer, or the socket fails
+   */
+  private AeadTunnel agreeTunnel(DatagramSocket socket, TunnelHandshake handshake)
+      throws IOException {
+    try {
+      AeadTunnel tunnel = handshake.connect(socket, AeadTunnel.Algorithm.AES_GCM);
+      if (tunnel == null) {
+        throw new IOException("No reply to the tunnel handshake from the proxy");
+      }
+      return tunnel;
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Couldn't set up the tunnel cipher: " + e.getMessage(), e);
+    }
+  }
+
   @Override
   public boolean stopService(Intent name) {
     logger.info("stopService(...)");
@@ -262,4 +347,22 @@ public class GrapeVpnService extends VpnService implements Runnable, ProtectSock
   public void protectSocket(DatagramSocket socket) {
     this.protect(socket);
   }
+
+  @Override
+  public boolean setDontFragment(DatagramSocket socket, boolean enabled) {
+    boolean ip6 = socket.getInetAddress() instanceof Inet6Address;
+    try (ParcelFileDescriptor descriptor = ParcelFileDescriptor.fromDatagramSocket(socket)) {
+      if (descriptor == null) {
+        return false;
+      }
+      Os.setsockoptInt(descriptor.getFileDescriptor(),
+          ip6 ? OsConstants.IPPROTO_IPV6 : OsConstants.IPPROTO_IP,
+          ip6 ? IPV6_MTU_DISCOVER : IP_MTU_DISCOVER,
+          enabled ? IP_PMTUDISC_DO : IP_PMTUDISC_WANT);
+      return true;
+    } catch (ErrnoException | IOException e) {
+      logger.warn("Couldn't set don't fragment: " + e.getMessage());
+      return false;
+    }
+  }
 }
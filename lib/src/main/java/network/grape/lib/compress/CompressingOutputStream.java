@@ -0,0 +1,65 @@
+package network.grape.lib.compress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import lombok.Setter;
+import network.grape.lib.util.PacketBatchWriter;
+
+/**
+ * Compresses each packet written to it with a {@link PacketCompressor}, if its flow is worth it,
+ * and writes the frame or the packet as it was to the stream underneath (the tunnel socket, or a
+ * SealingOutputStream). Each write is a whole packet, and the frame buffer is reused, so like the
+ * compressor, one instance mustn't be shared between threads. The compressor can be taken away
+ * and given back while it's in use, for when the other end stops or starts taking compressed
+ * frames.
+ */
+public class CompressingOutputStream extends OutputStream implements PacketBatchWriter {
+  private final OutputStream target;
+  // null to write every packet as it is
+  @Setter private volatile PacketCompressor compressor;
+  private final byte[] frame;
+
+  /**
+   * Construct a stream in front of the tunnel.
+   *
+   * @param target        where the packets and frames are written
+   * @param compressor    decides which packets to compress, null not to yet
+   * @param maxPacketSize the largest packet which will be written
+   */
+  public CompressingOutputStream(OutputStream target, PacketCompressor compressor,
+                                 int maxPacketSize) {
+    this.target = target;
+    this.compressor = compressor;
+    frame = new byte[maxPacketSize];
+  }
+
+  @Override
+  public void write(int value) throws IOException {
+    target.write(value);
+  }
+
+  @Override
+  public void write(byte[] data, int off, int len) throws IOException {
+    PacketCompressor current = compressor;
+    int frameLength = current != null ? current.compress(data, off, len, frame) : -1;
+    if (frameLength < 0) {
+      target.write(data, off, len);
+    } else {
+      target.write(frame, 0, frameLength);
+    }
+  }
+
+  @Override
+  public void writePackets(List<byte[]> packets) throws IOException {
+    for (byte[] packet : packets) {
+      write(packet, 0, packet.length);
+    }
+    flush();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    target.flush();
+  }
+}
@@ -0,0 +1,243 @@
+package network.grape.lib.compress;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import network.grape.lib.transport.TransportHeader;
+
+/**
+ * Compresses the packets sent through the tunnel, but only for the flows where it pays. Each
+ * packet is deflated on its own, since the tunnel can lose and reorder packets, with a preset
+ * dictionary of common protocol text so that even a single packet has something to match against.
+ *
+ * <p>Most traffic is already encrypted (TLS, QUIC) and won't compress, so the first few packets of
+ * each flow are sampled, and if they don't shrink enough the flow is sent as is from then on
+ * without spending any more CPU on it. Flows are keyed on the same 5-tuple as their Session, with
+ * the two ends put in order so either direction of a flow has the same key. A flow which was
+ * compressing is switched off if its packets stop shrinking (eg: after STARTTLS), and one which
+ * was bypassed is sampled again every so often.</p>
+ *
+ * <p>The flows are remembered in a fixed size table indexed by a hash of the 5-tuple, where a new
+ * flow replaces whatever was in its slot, so tracking them doesn't allocate per packet or grow
+ * without bound. Not thread safe, it belongs to the one thread writing to the tunnel.</p>
+ *
+ * <p>Compressed frame format:
+ * - type (1 byte, always COMPRESSED_FRAME)
+ * - length of the original packet (2 bytes)
+ * - the packet, raw deflated with the dictionary</p>
+ */
+public class PacketCompressor {
+  public static final byte COMPRESSED_FRAME = 0x20;
+  public static final int HEADER_LEN = 3;
+  // smaller packets are mostly headers (eg: a bare TCP ACK), not worth the trouble
+  public static final int MIN_PACKET_SIZE = 128;
+  // packets sampled before deciding whether to compress a flow
+  static final int SAMPLE_PACKETS = 4;
+  // the sampled packets need to come out at least this much smaller
+  static final double MAX_RATIO = 0.9;
+  // packets in a row that don't shrink before a compressing flow is bypassed
+  static final int MAX_MISSES = 4;
+  // packets a bypassed flow sends before it is sampled again
+  static final int RESAMPLE_PACKETS = 1024;
+  private static final int FLOW_SLOTS = 1024;
+
+  /**
+   * Strings which turn up in plaintext protocols, used as the preset dictionary unless another is
+   * given. The decompressor at the other end must use the same one.
+   */
+  public static final byte[] DEFAULT_DICTIONARY = ("HTTP/1.1 200 OK\r\nGET / HTTP/1.1\r\n"
+      + "POST Host: User-Agent: Mozilla/5.0 Accept: */*\r\nAccept-Encoding: gzip, deflate\r\n"
+      + "Accept-Language: en-US,en;q=0.9\r\nConnection: keep-alive\r\nCache-Control: no-cache\r\n"
+      + "Content-Type: text/html; charset=utf-8\r\nContent-Type: application/json\r\n"
+      + "Content-Length: Transfer-Encoding: chunked\r\nDate: Server: Set-Cookie: Cookie: "
+      + "Location: http://www.com/index.html\r\n\r\n<!DOCTYPE html><html><head><title></title>"
+      + "<meta name=\"viewport\" content=\"width=device-width\"><script src=\"\"></script>"
+      + "</head><body><div class=\"\"></div></body></html>{\"id\":\"name\":\"type\":\"value\":"
+      + "true,false,null}").getBytes(StandardCharsets.US_ASCII);
+
+  private enum Mode { SAMPLING, COMPRESS, BYPASS }
+
+  private static final class Flow {
+    long key;
+    Mode mode = Mode.SAMPLING;
+    int count;
+    long rawBytes;
+    long compressedBytes;
+  }
+
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+  private final byte[] dictionary;
+  private final Flow[] flows = new Flow[FLOW_SLOTS];
+  private final AtomicLong bytesIn = new AtomicLong();
+  private final AtomicLong bytesOut = new AtomicLong();
+  private final AtomicLong bypassed = new AtomicLong();
+
+  public PacketCompressor() {
+    this(DEFAULT_DICTIONARY);
+  }
+
+  /**
+   * Construct a compressor with a dictionary for one client, which it must also have.
+   *
+   * @param dictionary the preset dictionary
+   */
+  public PacketCompressor(byte[] dictionary) {
+    this.dictionary = dictionary.clone();
+  }
+
+  /**
+   * Compresses the packet into a frame, if its flow is worth compressing and it gets smaller.
+   *
+   * @param packet the array holding the packet
+   * @param offset where the packet starts in the array
+   * @param length the length of the packet
+   * @param frame  where to put the frame, at least as long as the packet
+   * @return the length of the frame, or -1 if the packet should be sent as it is
+   */
+  public int compress(byte[] packet, int offset, int length, byte[] frame) {
+    bytesIn.addAndGet(length);
+    if (length < MIN_PACKET_SIZE || length > 0xFFFF) {
+      return passThrough(length);
+    }
+    Flow flow = flow(flowKey(packet, offset, length));
+    if (flow.mode == Mode.BYPASS) {
+      if (++flow.count < RESAMPLE_PACKETS) {
+        bypassed.incrementAndGet();
+        return passThrough(length);
+      }
+      flow.mode = Mode.SAMPLING;
+      flow.count = 0;
+      flow.rawBytes = 0;
+      flow.compressedBytes = 0;
+    }
+
+    int frameLength = deflate(packet, offset, length, frame);
+    boolean smaller = frameLength > 0 && frameLength < length;
+    if (flow.mode == Mode.SAMPLING) {
+      flow.rawBytes += length;
+      flow.compressedBytes += smaller ? frameLength : length;
+      if (++flow.count >= SAMPLE_PACKETS) {
+        flow.mode = flow.compressedBytes <= flow.rawBytes * MAX_RATIO ? Mode.COMPRESS
+            : Mode.BYPASS;
+        flow.count = 0;
+      }
+    } else if (smaller) {
+      flow.count = 0;
+    } else if (++flow.count >= MAX_MISSES) {
+      flow.mode = Mode.BYPASS;
+      flow.count = 0;
+    }
+    if (!smaller) {
+      return passThrough(length);
+    }
+    bytesOut.addAndGet(frameLength);
+    return frameLength;
+  }
+
+  private int passThrough(int length) {
+    bytesOut.addAndGet(length);
+    return -1;
+  }
+
+  private int deflate(byte[] packet, int offset, int length, byte[] frame) {
+    deflater.reset();
+    deflater.setDictionary(dictionary);
+    deflater.setInput(packet, offset, length);
+    deflater.finish();
+    // no room for anything as long as the packet, it would be sent as is anyway
+    int space = Math.min(frame.length, length) - HEADER_LEN;
+    if (space <= 0) {
+      return -1;
+    }
+    int deflated = deflater.deflate(frame, HEADER_LEN, space);
+    if (!deflater.finished()) {
+      return -1;
+    }
+    frame[0] = COMPRESSED_FRAME;
+    frame[1] = (byte) (length >> 8);
+    frame[2] = (byte) length;
+    return HEADER_LEN + deflated;
+  }
+
+  private Flow flow(long key) {
+    int slot = (int) (key ^ (key >>> 32)) & (FLOW_SLOTS - 1);
+    Flow flow = flows[slot];
+    if (flow == null) {
+      flow = new Flow();
+      flows[slot] = flow;
+    } else if (flow.key == key) {
+      return flow;
+    }
+    flow.key = key;
+    flow.mode = Mode.SAMPLING;
+    flow.count = 0;
+    flow.rawBytes = 0;
+    flow.compressedBytes = 0;
+    return flow;
+  }
+
+  /**
+   * Hashes the addresses, ports and protocol of a packet, the same for both directions of a flow.
+   *
+   * @return the key, or 0 for anything which isn't a recognisable IPv4 or IPv6 packet
+   */
+  static long flowKey(byte[] packet, int offset, int length) {
+    int version = (packet[offset] & 0xFF) >> 4;
+    int protocol;
+    long sourceHash = 0;
+    long destinationHash = 0;
+    int transportStart;
+    if (version == 4 && length >= 20) {
+      protocol = packet[offset + 9] & 0xFF;
+      sourceHash = getInt(packet, offset + 12) & 0xFFFFFFFFL;
+      destinationHash = getInt(packet, offset + 16) & 0xFFFFFFFFL;
+      transportStart = offset + (packet[offset] & 0x0F) * 4;
+    } else if (version == 6 && length >= 40) {
+      protocol = packet[offset + 6] & 0xFF;
+      for (int i = 8; i < 24; i += 4) {
+        sourceHash = sourceHash * 31 + getInt(packet, offset + i);
+        destinationHash = destinationHash * 31 + getInt(packet, offset + i + 16);
+      }
+      transportStart = offset + 40;
+    } else {
+      return 0;
+    }
+    if ((protocol == TransportHeader.TCP_PROTOCOL || protocol == TransportHeader.UDP_PROTOCOL)
+        && transportStart + 4 <= offset + length) {
+      sourceHash = sourceHash * 65537 + ((packet[transportStart] & 0xFF) << 8
+          | packet[transportStart + 1] & 0xFF);
+      destinationHash = destinationHash * 65537 + ((packet[transportStart + 2] & 0xFF) << 8
+          | packet[transportStart + 3] & 0xFF);
+    }
+    long low = Math.min(sourceHash, destinationHash);
+    long high = Math.max(sourceHash, destinationHash);
+    long key = (low * 0x9E3779B97F4A7C15L + high) * 31 + protocol;
+    return key ^ (key >>> 29);
+  }
+
+  private static int getInt(byte[] data, int offset) {
+    return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+        | (data[offset + 2] & 0xFF) << 8 | data[offset + 3] & 0xFF;
+  }
+
+  /**
+   * The bytes of packets given to the compressor.
+   */
+  public long getBytesIn() {
+    return bytesIn.get();
+  }
+
+  /**
+   * The bytes sent, compressed or not.
+   */
+  public long getBytesOut() {
+    return bytesOut.get();
+  }
+
+  /**
+   * The packets sent as they were without trying, because their flow didn't compress.
+   */
+  public long getBypassed() {
+    return bypassed.get();
+  }
+}
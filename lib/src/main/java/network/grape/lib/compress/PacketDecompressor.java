@@ -0,0 +1,77 @@
+package network.grape.lib.compress;
+
+import static network.grape.lib.compress.PacketCompressor.COMPRESSED_FRAME;
+import static network.grape.lib.compress.PacketCompressor.HEADER_LEN;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Inflates the frames made by a {@link PacketCompressor} at the other end of the tunnel, back into
+ * the packets. Not thread safe, it belongs to the one thread reading from the tunnel.
+ */
+public class PacketDecompressor {
+  private final Logger logger = LoggerFactory.getLogger(PacketDecompressor.class);
+  private final Inflater inflater = new Inflater(true);
+  private final byte[] dictionary;
+
+  public PacketDecompressor() {
+    this(PacketCompressor.DEFAULT_DICTIONARY);
+  }
+
+  /**
+   * Construct a decompressor with the dictionary the client's compressor uses.
+   *
+   * @param dictionary the preset dictionary
+   */
+  public PacketDecompressor(byte[] dictionary) {
+    this.dictionary = dictionary.clone();
+  }
+
+  /**
+   * Whether the data received on the tunnel is a compressed frame rather than an IP packet.
+   *
+   * @param data   the received data
+   * @param length the length of the received data
+   * @return true if it's a compressed frame
+   */
+  public static boolean isCompressedFrame(byte[] data, int length) {
+    return length > HEADER_LEN && data[0] == COMPRESSED_FRAME;
+  }
+
+  /**
+   * Inflates a frame back into the packet.
+   *
+   * @param frame  the received frame
+   * @param length the length of the frame
+   * @param packet where to put the packet
+   * @return the length of the packet, or -1 if the frame is corrupt or the packet doesn't fit
+   */
+  public int decompress(byte[] frame, int length, byte[] packet) {
+    if (!isCompressedFrame(frame, length)) {
+      return -1;
+    }
+    int packetLength = (frame[1] & 0xFF) << 8 | frame[2] & 0xFF;
+    if (packetLength > packet.length) {
+      logger.warn("Dropped a {} byte compressed packet, too big for the buffer", packetLength);
+      return -1;
+    }
+    inflater.reset();
+    inflater.setDictionary(dictionary);
+    inflater.setInput(frame, HEADER_LEN, length - HEADER_LEN);
+    try {
+      int inflated = inflater.inflate(packet, 0, packetLength);
+      if (inflated != packetLength) {
+        logger.warn("Dropped a compressed packet, {} bytes instead of {}", inflated,
+            packetLength);
+        return -1;
+      }
+    } catch (DataFormatException ex) {
+      logger.warn("Dropped a corrupt compressed packet: " + ex.toString());
+      return -1;
+    }
+    return packetLength;
+  }
+}
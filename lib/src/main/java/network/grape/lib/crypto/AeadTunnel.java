@@ -0,0 +1,273 @@
+package network.grape.lib.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Authenticated encryption of the packets carried between the VPN client and the proxy, with the
+ * keys agreed by a {@link TunnelHandshake}. Each direction has its own key and IV, and each packet
+ * is sealed into a frame with a counter, which makes the nonce (the IV with the counter xored into
+ * the end, as in TLS 1.3) and lets the other side drop replayed frames with a
+ * {@link ReplayWindow}.
+ *
+ * <p>A frame starts with a byte which can't start an IPv4 or IPv6 packet or a control frame, so
+ * sealed frames share the socket with the handshake and the MTU probes.</p>
+ *
+ * <p>Frame format:
+ * - type (1 byte, always SEALED_FRAME)
+ * - counter (8 bytes)
+ * - the encrypted packet
+ * - tag (16 bytes)
+ * The type and counter are authenticated along with the packet.</p>
+ *
+ * <p>The JCA needs a cipher initialised again for every nonce, but each direction keeps one Cipher
+ * and key for the life of the tunnel, so a packet costs the init with the new nonce and not the
+ * provider lookup, and the AES key schedule is only expanded once. Packets are encrypted straight
+ * into the caller's frame buffer and decrypted straight into its packet buffer, so a batch of
+ * packets through one thread doesn't allocate. Sealing and opening each take their own lock, the
+ * egress thread and the receive thread don't get in each other's way.</p>
+ */
+public class AeadTunnel {
+  public static final byte SEALED_FRAME = 0x10;
+  public static final int HEADER_LEN = 9;
+  public static final int TAG_LEN = 16;
+  // what sealing adds to each packet
+  public static final int OVERHEAD = HEADER_LEN + TAG_LEN;
+  public static final int KEY_LEN = 32;
+  public static final int IV_LEN = 12;
+
+  /**
+   * The AEAD ciphers a tunnel can use, both in the JDK since 11. AES-GCM is the quickest where the
+   * CPU has AES instructions, ChaCha20-Poly1305 where it doesn't.
+   */
+  public enum Algorithm {
+    AES_GCM(1, "AES/GCM/NoPadding", "AES"),
+    CHACHA20_POLY1305(2, "ChaCha20-Poly1305", "ChaCha20");
+
+    public final int id;
+    private final String transformation;
+    private final String keyAlgorithm;
+
+    Algorithm(int id, String transformation, String keyAlgorithm) {
+      this.id = id;
+      this.transformation = transformation;
+      this.keyAlgorithm = keyAlgorithm;
+    }
+
+    /**
+     * Looks up an algorithm by the id sent in the handshake.
+     *
+     * @param id the id
+     * @return the algorithm, or null if there isn't one with the id
+     */
+    public static Algorithm fromId(int id) {
+      for (Algorithm algorithm : values()) {
+        if (algorithm.id == id) {
+          return algorithm;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Whether this JVM (or Android version) provides the cipher.
+     */
+    public boolean isAvailable() {
+      try {
+        Cipher.getInstance(transformation);
+        return true;
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException ex) {
+        return false;
+      }
+    }
+
+    Cipher newCipher() throws GeneralSecurityException {
+      return Cipher.getInstance(transformation);
+    }
+
+    AlgorithmParameterSpec parameters(byte[] nonce) {
+      return this == AES_GCM ? new GCMParameterSpec(TAG_LEN * 8, nonce)
+          : new IvParameterSpec(nonce);
+    }
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(AeadTunnel.class);
+  private final Algorithm algorithm;
+  private final Direction sealing;
+  private final Direction opening;
+  private final ReplayWindow replayWindow = new ReplayWindow();
+  private long sendCounter = 0;
+  private final AtomicLong sealed = new AtomicLong();
+  private final AtomicLong opened = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Construct a tunnel from agreed keys, normally done by {@link TunnelHandshake}.
+   *
+   * @param algorithm the cipher to use
+   * @param sealKey   the key for the packets this side sends
+   * @param sealIv    the IV for the packets this side sends
+   * @param openKey   the key for the packets the other side sends
+   * @param openIv    the IV for the packets the other side sends
+   * @throws GeneralSecurityException if the cipher isn't available
+   */
+  public AeadTunnel(Algorithm algorithm, byte[] sealKey, byte[] sealIv, byte[] openKey,
+                    byte[] openIv) throws GeneralSecurityException {
+    this.algorithm = algorithm;
+    sealing = new Direction(algorithm, sealKey, sealIv);
+    opening = new Direction(algorithm, openKey, openIv);
+  }
+
+  /**
+   * Whether the data received on the tunnel is a sealed frame.
+   *
+   * @param data   the received data
+   * @param length the length of the received data
+   * @return true if it's a sealed frame (which may still fail to open)
+   */
+  public static boolean isSealedFrame(byte[] data, int length) {
+    return length >= OVERHEAD && data[0] == SEALED_FRAME;
+  }
+
+  /**
+   * Encrypts a packet into a frame.
+   *
+   * @param packet the array holding the packet
+   * @param offset where the packet starts in the array
+   * @param length the length of the packet
+   * @param frame  where to put the frame, at least length + OVERHEAD bytes long
+   * @return the length of the frame
+   * @throws GeneralSecurityException if the encryption fails
+   */
+  public int seal(byte[] packet, int offset, int length, byte[] frame)
+      throws GeneralSecurityException {
+    synchronized (sealing) {
+      long counter = ++sendCounter;
+      frame[0] = SEALED_FRAME;
+      putLong(frame, 1, counter);
+      Cipher cipher = sealing.init(Cipher.ENCRYPT_MODE, counter);
+      cipher.updateAAD(frame, 0, HEADER_LEN);
+      int length2 = cipher.doFinal(packet, offset, length, frame, HEADER_LEN);
+      sealed.incrementAndGet();
+      return HEADER_LEN + length2;
+    }
+  }
+
+  /**
+   * Decrypts a frame back into the packet. Frames which don't authenticate, or which have been
+   * seen before, are dropped.
+   *
+   * @param frame  the received frame
+   * @param length the length of the frame
+   * @param packet where to put the packet, at least length - OVERHEAD bytes long
+   * @return the length of the packet, or -1 if the frame was dropped
+   */
+  public int open(byte[] frame, int length, byte[] packet) {
+    if (!isSealedFrame(frame, length)) {
+      rejected.incrementAndGet();
+      return -1;
+    }
+    long counter = getLong(frame, 1);
+    synchronized (opening) {
+      if (!replayWindow.check(counter)) {
+        rejected.incrementAndGet();
+        logger.debug("Dropped a replayed or too old frame: {}", counter);
+        return -1;
+      }
+      int packetLength;
+      try {
+        Cipher cipher = opening.init(Cipher.DECRYPT_MODE, counter);
+        cipher.updateAAD(frame, 0, HEADER_LEN);
+        packetLength = cipher.doFinal(frame, HEADER_LEN, length - HEADER_LEN, packet, 0);
+      } catch (AEADBadTagException ex) {
+        rejected.incrementAndGet();
+        logger.debug("Dropped a frame which didn't authenticate: {}", counter);
+        return -1;
+      } catch (GeneralSecurityException ex) {
+        rejected.incrementAndGet();
+        logger.error("Error opening a frame: " + ex.toString());
+        return -1;
+      }
+      // only now it's known to be genuine can it move the window
+      replayWindow.update(counter);
+      opened.incrementAndGet();
+      return packetLength;
+    }
+  }
+
+  public Algorithm getAlgorithm() {
+    return algorithm;
+  }
+
+  public long getSealed() {
+    return sealed.get();
+  }
+
+  public long getOpened() {
+    return opened.get();
+  }
+
+  /**
+   * The number of frames dropped for not authenticating, being replayed or being malformed.
+   */
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  static void putLong(byte[] data, int offset, long value) {
+    for (int i = 7; i >= 0; i--) {
+      data[offset + i] = (byte) value;
+      value >>>= 8;
+    }
+  }
+
+  static long getLong(byte[] data, int offset) {
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      value = (value << 8) | (data[offset + i] & 0xFF);
+    }
+    return value;
+  }
+
+  /**
+   * The key, IV and cipher for one direction of the tunnel.
+   */
+  private static class Direction {
+    private final Algorithm algorithm;
+    private final SecretKeySpec key;
+    private final byte[] iv;
+    private final Cipher cipher;
+    private final byte[] nonce = new byte[IV_LEN];
+
+    Direction(Algorithm algorithm, byte[] key, byte[] iv) throws GeneralSecurityException {
+      if (key.length != KEY_LEN || iv.length != IV_LEN) {
+        throw new IllegalArgumentException("Need a " + KEY_LEN + " byte key and " + IV_LEN
+            + " byte IV");
+      }
+      this.algorithm = algorithm;
+      this.key = new SecretKeySpec(key, algorithm.keyAlgorithm);
+      this.iv = iv.clone();
+      cipher = algorithm.newCipher();
+    }
+
+    Cipher init(int mode, long counter) throws GeneralSecurityException {
+      System.arraycopy(iv, 0, nonce, 0, IV_LEN);
+      for (int i = IV_LEN - 1; i >= IV_LEN - 8; i--) {
+        nonce[i] ^= (byte) counter;
+        counter >>>= 8;
+      }
+      cipher.init(mode, key, algorithm.parameters(nonce));
+      return cipher;
+    }
+  }
+}
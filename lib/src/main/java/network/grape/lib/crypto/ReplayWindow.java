@@ -0,0 +1,73 @@
+package network.grape.lib.crypto;
+
+/**
+ * Remembers which packet counters have been seen recently, so that a packet captured off the
+ * network and sent again is dropped instead of being delivered twice. UDP can reorder packets, so
+ * anything within the window behind the highest counter seen is still accepted once.
+ *
+ * <p>The bitmap is a ring of words, one bit per counter, after RFC 6479: moving the window forward
+ * only clears the words it moves over, rather than shifting the whole bitmap. One word is kept
+ * spare so that the word the top of the window is in can be cleared without losing the bits at
+ * the bottom.</p>
+ *
+ * <p>Not thread safe, it belongs to whichever thread opens the frames.</p>
+ */
+public class ReplayWindow {
+  private static final int WORDS = 32;
+  private static final int BITS = WORDS * Long.SIZE;
+  // how far behind the highest counter a packet can be and still be accepted
+  public static final int SIZE = BITS - Long.SIZE;
+
+  private final long[] bitmap = new long[WORDS];
+  // the highest counter accepted so far, counters start at one
+  private long top = 0;
+
+  /**
+   * Whether a packet with this counter could be accepted. Only a packet which has been
+   * authenticated should then be passed to {@link #update(long)}, or forged packets could move the
+   * window on.
+   *
+   * @param counter the counter from the packet
+   * @return false if the counter has been seen before, or is too old to tell
+   */
+  public boolean check(long counter) {
+    if (counter <= 0) {
+      return false;
+    }
+    if (counter > top) {
+      return true;
+    }
+    if (top - counter >= SIZE) {
+      return false;
+    }
+    int bit = (int) (counter & (BITS - 1));
+    return (bitmap[bit >>> 6] & (1L << (bit & 63))) == 0;
+  }
+
+  /**
+   * Marks a counter as seen, moving the window on if it's the highest yet.
+   *
+   * @param counter the counter from an authenticated packet which passed {@link #check(long)}
+   */
+  public void update(long counter) {
+    if (counter > top) {
+      long word = top >>> 6;
+      long last = counter >>> 6;
+      // clear the words being moved into, all of them if the jump is bigger than the ring
+      for (int i = 0; i < WORDS && word < last; i++) {
+        word++;
+        bitmap[(int) (word & (WORDS - 1))] = 0;
+      }
+      top = counter;
+    }
+    int bit = (int) (counter & (BITS - 1));
+    bitmap[bit >>> 6] |= 1L << (bit & 63);
+  }
+
+  /**
+   * The highest counter accepted so far.
+   */
+  public long getTop() {
+    return top;
+  }
+}
@@ -0,0 +1,113 @@
+package network.grape.lib.crypto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import lombok.Setter;
+import network.grape.lib.util.PacketBatchWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Seals each packet written to it with an {@link AeadTunnel} and sends it as one datagram on a
+ * connected socket, or writes it to another stream of whole packets (eg: a MultipathTunnel). One
+ * frame buffer and one DatagramPacket are reused for every packet, so a batch is sealed and sent
+ * without allocating. Until there is a tunnel the packets are dropped, rather than being sent in
+ * the clear.
+ *
+ * <p>Each write is a whole packet, and like UdpOutputStream, one instance mustn't be shared
+ * between threads.</p>
+ */
+public class SealingOutputStream extends OutputStream implements PacketBatchWriter {
+  private final Logger logger = LoggerFactory.getLogger(SealingOutputStream.class);
+  private final DatagramSocket socket;
+  private final OutputStream target;
+  @Getter @Setter private volatile AeadTunnel tunnel;
+  private final byte[] frame;
+  private final DatagramPacket datagram;
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * Construct a stream which sends on the given socket.
+   *
+   * @param socket        the tunnel socket, already connected
+   * @param tunnel        the tunnel to seal with, or null to drop until one is set
+   * @param maxPacketSize the largest packet which will be written
+   */
+  public SealingOutputStream(DatagramSocket socket, AeadTunnel tunnel, int maxPacketSize) {
+    this.socket = socket;
+    this.target = null;
+    this.tunnel = tunnel;
+    frame = new byte[maxPacketSize + AeadTunnel.OVERHEAD];
+    datagram = new DatagramPacket(frame, frame.length);
+  }
+
+  /**
+   * Construct a stream which writes the frames to another stream, one write per frame.
+   *
+   * @param target        where the frames are written
+   * @param tunnel        the tunnel to seal with, or null to drop until one is set
+   * @param maxPacketSize the largest packet which will be written
+   */
+  public SealingOutputStream(OutputStream target, AeadTunnel tunnel, int maxPacketSize) {
+    this.socket = null;
+    this.target = target;
+    this.tunnel = tunnel;
+    frame = new byte[maxPacketSize + AeadTunnel.OVERHEAD];
+    datagram = null;
+  }
+
+  @Override
+  public void write(int value) throws IOException {
+    write(new byte[] {(byte) value}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] data, int off, int len) throws IOException {
+    AeadTunnel current = tunnel;
+    if (current == null) {
+      dropped.incrementAndGet();
+      logger.debug("Dropped {} byte packet, no tunnel yet", len);
+      return;
+    }
+    int frameLength;
+    try {
+      frameLength = current.seal(data, off, len, frame);
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("Error sealing packet", ex);
+    }
+    if (target != null) {
+      target.write(frame, 0, frameLength);
+      return;
+    }
+    datagram.setData(frame, 0, frameLength);
+    socket.send(datagram);
+  }
+
+  @Override
+  public void writePackets(List<byte[]> packets) throws IOException {
+    for (byte[] packet : packets) {
+      write(packet, 0, packet.length);
+    }
+    flush();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (target != null) {
+      target.flush();
+    }
+  }
+
+  /**
+   * The number of packets dropped because there was no tunnel to seal them with.
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+}
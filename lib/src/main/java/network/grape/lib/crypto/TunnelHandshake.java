@@ -0,0 +1,404 @@
+package network.grape.lib.crypto;
+
+import static network.grape.lib.vpn.MtuProbe.CONTROL_FRAME;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import lombok.Getter;
+import lombok.Setter;
+import network.grape.lib.vpn.MtuProbe;
+import network.grape.lib.vpn.TunnelCapabilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Agrees the keys for an {@link AeadTunnel} between the VPN client and the proxy from a key they
+ * were both given beforehand. Each side sends a fresh random value, authenticated with the shared
+ * key, and the tunnel keys are derived from the shared key and both random values with HKDF, so
+ * every handshake gives new keys and the counters can start again from one.
+ *
+ * <p>The hello and its reply are control frames, like the MTU probes, so the handshake runs on
+ * the tunnel socket before the forwarding threads start. On the proxy the reply is sent as soon as
+ * the hello is checked. The client sends the same hello again if the reply is lost, and the proxy
+ * answers it with the same reply and tunnel, so whichever reply arrives the keys match. The reply's
+ * mac covers the client's random as well, so the client only takes a reply to its own hello, not
+ * a late one to an earlier hello or a replayed one.</p>
+ *
+ * <p>The hello carries the time it was made, under the mac, and the proxy drops a hello more than
+ * {@link #MAX_CLOCK_SKEW_MILLIS} away from its own clock. Within that window it remembers the
+ * randoms of the hellos it accepted, so a captured hello replayed to it only gets the reply and
+ * tunnel it got the first time, never new keys.</p>
+ *
+ * <p>The hello also carries the optional features the client can handle, as in
+ * {@link TunnelCapabilities}, and the reply the ones the proxy will use, so they're agreed under
+ * the mac too.</p>
+ *
+ * <p>Hello frame format:
+ * - marker (1 byte, always 0)
+ * - type (1 byte, HELLO or HELLO_REPLY)
+ * - value (4 bytes, the version (2 bytes), the capabilities (1 byte) and the algorithm id
+ *   (1 byte))
+ * - timestamp (8 bytes, milliseconds since the epoch when it was made)
+ * - random (32 bytes)
+ * - mac (16 bytes, HMAC-SHA256 of the rest under the shared key, truncated, followed for a
+ *   reply by the client's random)</p>
+ */
+public class TunnelHandshake {
+  public static final byte HELLO = 0x04;
+  public static final byte HELLO_REPLY = 0x05;
+  public static final int VERSION = 4;
+  public static final int TIMESTAMP_LEN = 8;
+  public static final int RANDOM_LEN = 32;
+  public static final int MAC_LEN = 16;
+  public static final int HELLO_LEN = MtuProbe.CONTROL_HEADER_LEN + TIMESTAMP_LEN + RANDOM_LEN
+      + MAC_LEN;
+  private static final int RANDOM_OFFSET = MtuProbe.CONTROL_HEADER_LEN + TIMESTAMP_LEN;
+  // how far a hello's time may be from the proxy's clock
+  public static final long MAX_CLOCK_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(2);
+  // the most hellos remembered at once, the oldest is forgotten to make room
+  private static final int MAX_RECENT_HELLOS = 64;
+  private static final byte[] INFO = "grape-tunnel-v1".getBytes();
+
+  private final Logger logger = LoggerFactory.getLogger(TunnelHandshake.class);
+  private final SecretKeySpec sharedKey;
+  private final SecureRandom random = new SecureRandom();
+  private final LongSupplier clock;
+  @Getter @Setter private int timeout = 500;
+  @Getter @Setter private int attempts = 3;
+  // the features the client offers, or the proxy will use if offered, from TunnelCapabilities
+  @Getter @Setter private int capabilities;
+  // the features agreed by the last handshake the client ran
+  @Getter private int agreedCapabilities;
+  // the hellos accepted within the clock skew, by client random, oldest first
+  private final Map<ByteBuffer, Accepted> recentHellos = new LinkedHashMap<>();
+  // hellos made at or before this time were forgotten to make room, so they're dropped
+  private long forgottenUntil = Long.MIN_VALUE;
+
+  /**
+   * Construct a handshake with the key shared by the client and proxy.
+   *
+   * @param sharedKey the shared key, at least 16 bytes of it
+   */
+  public TunnelHandshake(byte[] sharedKey) {
+    this(sharedKey, System::currentTimeMillis);
+  }
+
+  /**
+   * Construct a handshake with the key shared by the client and proxy, and the clock hellos are
+   * stamped and checked with.
+   *
+   * @param sharedKey the shared key, at least 16 bytes of it
+   * @param clock     the time in milliseconds since the epoch
+   */
+  TunnelHandshake(byte[] sharedKey, LongSupplier clock) {
+    this.clock = clock;
+    if (sharedKey.length < 16) {
+      throw new IllegalArgumentException("The shared key needs to be at least 16 bytes");
+    }
+    this.sharedKey = new SecretKeySpec(sharedKey, "HmacSHA256");
+  }
+
+  /**
+   * Runs the client side of the handshake. The socket must already be connected to the proxy, and
+   * nothing else may be reading from it yet.
+   *
+   * @param socket    the tunnel socket connected to the proxy
+   * @param algorithm the cipher to ask for
+   * @return the tunnel, or null if the proxy didn't reply with a valid hello
+   * @throws IOException              if the socket fails
+   * @throws GeneralSecurityException if the cipher isn't available
+   */
+  public AeadTunnel connect(DatagramSocket socket, AeadTunnel.Algorithm algorithm)
+      throws IOException, GeneralSecurityException {
+    byte[] clientRandom = new byte[RANDOM_LEN];
+    random.nextBytes(clientRandom);
+    byte[] hello = createHello(HELLO, algorithm, capabilities, clock.getAsLong(), clientRandom,
+        null);
+    byte[] response = new byte[HELLO_LEN];
+    DatagramPacket reply = new DatagramPacket(response, response.length);
+    int previousTimeout = socket.getSoTimeout();
+    socket.setSoTimeout(timeout);
+    try {
+      for (int attempt = 0; attempt < attempts; attempt++) {
+        socket.send(new DatagramPacket(hello, hello.length));
+        try {
+          while (true) {
+            reply.setLength(response.length);
+            socket.receive(reply);
+            // anything else is a late reply to an earlier probe or hello
+            if (reply.getLength() == HELLO_LEN && response[1] == HELLO_REPLY
+                && verify(response, clientRandom) && getAlgorithm(response) == algorithm) {
+              byte[] serverRandom = Arrays.copyOfRange(response, RANDOM_OFFSET,
+                  RANDOM_OFFSET + RANDOM_LEN);
+              agreedCapabilities = getCapabilities(response) & capabilities;
+              logger.info("Agreed {} tunnel keys and capabilities {} with {}", algorithm,
+                  agreedCapabilities, socket.getRemoteSocketAddress());
+              return createTunnel(algorithm, clientRandom, serverRandom, true);
+            }
+          }
+        } catch (SocketTimeoutException | PortUnreachableException ex) {
+          logger.debug("No reply to hello, attempt {}", attempt + 1);
+        }
+      }
+    } finally {
+      socket.setSoTimeout(previousTimeout);
+    }
+    logger.warn("No valid reply to hello from {}", socket.getRemoteSocketAddress());
+    return null;
+  }
+
+  /**
+   * Runs the proxy side of the handshake on a received hello, sending the reply back.
+   *
+   * @param data   the received control frame
+   * @param length the length of the received control frame
+   * @param socket the tunnel socket connected to the client
+   * @return the tunnel, or null if the frame isn't a valid hello
+   * @throws IOException if the socket fails
+   */
+  public AeadTunnel accept(byte[] data, int length, DatagramSocket socket) throws IOException {
+    return accept(data, length, socket, socket.getRemoteSocketAddress());
+  }
+
+  /**
+   * Runs the proxy side of the handshake on a received hello, sending the reply back to where it
+   * came from, for a socket which isn't connected to one client. The same hello sent again gets
+   * the same reply, and the same tunnel back, while it's remembered. A stale hello, or another
+   * hello with a random already seen, is dropped.
+   *
+   * @param data   the received control frame
+   * @param length the length of the received control frame
+   * @param socket the tunnel socket
+   * @param client where the hello came from
+   * @return the tunnel, or null if the frame isn't a valid hello
+   * @throws IOException if the socket fails
+   */
+  public synchronized AeadTunnel accept(byte[] data, int length, DatagramSocket socket,
+                                        SocketAddress client) throws IOException {
+    if (!isHello(data, length)) {
+      return null;
+    }
+    long now = clock.getAsLong();
+    forgetHellos(now);
+    byte[] hello = Arrays.copyOf(data, HELLO_LEN);
+    byte[] clientRandom = Arrays.copyOfRange(data, RANDOM_OFFSET, RANDOM_OFFSET + RANDOM_LEN);
+    Accepted previous = recentHellos.get(ByteBuffer.wrap(clientRandom));
+    if (previous != null) {
+      if (!Arrays.equals(previous.hello, hello)) {
+        logger.warn("Dropped a hello reusing the random of an earlier one");
+        return null;
+      }
+      logger.debug("Answered a repeated hello with the same reply");
+      socket.send(new DatagramPacket(previous.reply, previous.reply.length, client));
+      return previous.tunnel;
+    }
+    if (!verify(data, null)) {
+      logger.warn("Dropped a hello which didn't authenticate");
+      return null;
+    }
+    long timestamp = ByteBuffer.wrap(data).getLong(MtuProbe.CONTROL_HEADER_LEN);
+    if (Math.abs(now - timestamp) > MAX_CLOCK_SKEW_MILLIS || timestamp <= forgottenUntil) {
+      logger.warn("Dropped a stale hello, made {}ms from now", timestamp - now);
+      return null;
+    }
+    AeadTunnel.Algorithm algorithm = getAlgorithm(data);
+    if (algorithm == null || !algorithm.isAvailable()) {
+      logger.warn("Dropped a hello asking for an unknown cipher");
+      return null;
+    }
+    byte[] serverRandom = new byte[RANDOM_LEN];
+    random.nextBytes(serverRandom);
+    try {
+      AeadTunnel tunnel = createTunnel(algorithm, clientRandom, serverRandom, false);
+      byte[] reply = createHello(HELLO_REPLY, algorithm, getCapabilities(data) & capabilities,
+          now, serverRandom, clientRandom);
+      rememberHello(clientRandom, new Accepted(hello, timestamp, now, reply, tunnel));
+      socket.send(new DatagramPacket(reply, reply.length, client));
+      return tunnel;
+    } catch (GeneralSecurityException ex) {
+      logger.error("Error creating the tunnel: " + ex.toString());
+      return null;
+    }
+  }
+
+  /**
+   * Forgets the hellos accepted so long ago that a copy of them would be stale by now anyway.
+   */
+  private void forgetHellos(long now) {
+    Iterator<Accepted> iterator = recentHellos.values().iterator();
+    while (iterator.hasNext()) {
+      // a hello may have been made up to the skew after it was accepted, by the client's clock
+      if (now - iterator.next().acceptedAt <= 2 * MAX_CLOCK_SKEW_MILLIS) {
+        break;
+      }
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Remembers an accepted hello, and if there are too many, forgets the oldest while still
+   * dropping any hello made before it.
+   */
+  private void rememberHello(byte[] clientRandom, Accepted accepted) {
+    recentHellos.put(ByteBuffer.wrap(clientRandom), accepted);
+    if (recentHellos.size() > MAX_RECENT_HELLOS) {
+      Iterator<Accepted> iterator = recentHellos.values().iterator();
+      forgottenUntil = Math.max(forgottenUntil, iterator.next().timestamp);
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Whether the control frame is a hello from a client.
+   *
+   * @param data   the received data
+   * @param length the length of the received data
+   * @return true if it's a hello (which may still not authenticate)
+   */
+  public static boolean isHello(byte[] data, int length) {
+    return length == HELLO_LEN && MtuProbe.isControlFrame(data, length) && data[1] == HELLO;
+  }
+
+  /**
+   * The features offered in a hello, or agreed in a reply.
+   *
+   * @param frame the hello or reply, which should have been checked already
+   * @return the features, from TunnelCapabilities
+   */
+  public static int getCapabilities(byte[] frame) {
+    return (ByteBuffer.wrap(frame).getInt(2) >>> 8) & 0xFF;
+  }
+
+  /**
+   * Makes a hello, or a reply to one.
+   *
+   * @param clientRandom for a reply, the random from the hello it answers, otherwise null
+   */
+  private byte[] createHello(byte type, AeadTunnel.Algorithm algorithm, int capabilities,
+                             long timestamp, byte[] helloRandom, byte[] clientRandom) {
+    ByteBuffer frame = ByteBuffer.allocate(HELLO_LEN);
+    frame.put(CONTROL_FRAME);
+    frame.put(type);
+    frame.putInt(VERSION << 16 | (capabilities & 0xFF) << 8 | algorithm.id);
+    frame.putLong(timestamp);
+    frame.put(helloRandom);
+    frame.put(mac(frame.array(), frame.position(), clientRandom));
+    return frame.array();
+  }
+
+  /**
+   * Checks the mac of a hello, or of a reply to the hello with the given random.
+   */
+  private boolean verify(byte[] frame, byte[] clientRandom) {
+    int macOffset = HELLO_LEN - MAC_LEN;
+    byte[] expected = mac(frame, macOffset, clientRandom);
+    return MessageDigest.isEqual(expected,
+        Arrays.copyOfRange(frame, macOffset, HELLO_LEN));
+  }
+
+  private static AeadTunnel.Algorithm getAlgorithm(byte[] frame) {
+    int value = ByteBuffer.wrap(frame).getInt(2);
+    if (value >>> 16 != VERSION) {
+      return null;
+    }
+    return AeadTunnel.Algorithm.fromId(value & 0xFF);
+  }
+
+  private byte[] mac(byte[] data, int length, byte[] clientRandom) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(sharedKey);
+      mac.update(data, 0, length);
+      if (clientRandom != null) {
+        mac.update(clientRandom);
+      }
+      return Arrays.copyOf(mac.doFinal(), MAC_LEN);
+    } catch (GeneralSecurityException ex) {
+      // HmacSHA256 is required of every java platform
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private AeadTunnel createTunnel(AeadTunnel.Algorithm algorithm, byte[] clientRandom,
+                                  byte[] serverRandom, boolean client)
+      throws GeneralSecurityException {
+    byte[] salt = new byte[RANDOM_LEN * 2];
+    System.arraycopy(clientRandom, 0, salt, 0, RANDOM_LEN);
+    System.arraycopy(serverRandom, 0, salt, RANDOM_LEN, RANDOM_LEN);
+    byte[] info = Arrays.copyOf(INFO, INFO.length + 1);
+    info[INFO.length] = (byte) algorithm.id;
+    byte[] keys = hkdf(salt, sharedKey.getEncoded(), info,
+        2 * AeadTunnel.KEY_LEN + 2 * AeadTunnel.IV_LEN);
+
+    int offset = 0;
+    byte[] clientKey = Arrays.copyOfRange(keys, offset, offset += AeadTunnel.KEY_LEN);
+    byte[] serverKey = Arrays.copyOfRange(keys, offset, offset += AeadTunnel.KEY_LEN);
+    byte[] clientIv = Arrays.copyOfRange(keys, offset, offset += AeadTunnel.IV_LEN);
+    byte[] serverIv = Arrays.copyOfRange(keys, offset, offset + AeadTunnel.IV_LEN);
+    Arrays.fill(keys, (byte) 0);
+    if (client) {
+      return new AeadTunnel(algorithm, clientKey, clientIv, serverKey, serverIv);
+    }
+    return new AeadTunnel(algorithm, serverKey, serverIv, clientKey, clientIv);
+  }
+
+  /**
+   * HKDF with HMAC-SHA256 (RFC 5869), extract then expand.
+   */
+  static byte[] hkdf(byte[] salt, byte[] ikm, byte[] info, int length)
+      throws GeneralSecurityException {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+    byte[] prk = mac.doFinal(ikm);
+    mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+    byte[] okm = new byte[length];
+    byte[] block = new byte[0];
+    int offset = 0;
+    for (int i = 1; offset < length; i++) {
+      mac.update(block);
+      mac.update(info);
+      mac.update((byte) i);
+      block = mac.doFinal();
+      int copy = Math.min(block.length, length - offset);
+      System.arraycopy(block, 0, okm, offset, copy);
+      offset += copy;
+    }
+    return okm;
+  }
+
+  /**
+   * A hello the proxy accepted, and what it was answered with, for when it's sent again.
+   */
+  private static final class Accepted {
+    private final byte[] hello;
+    private final long timestamp;
+    private final long acceptedAt;
+    private final byte[] reply;
+    private final AeadTunnel tunnel;
+
+    private Accepted(byte[] hello, long timestamp, long acceptedAt, byte[] reply,
+                     AeadTunnel tunnel) {
+      this.hello = hello;
+      this.timestamp = timestamp;
+      this.acceptedAt = acceptedAt;
+      this.reply = reply;
+      this.tunnel = tunnel;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package network.grape.lib.dns;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory cache of DNS answers keyed by question (see {@link DnsMessage#getQuestionKey}).
+ * Answers are kept for the smallest TTL of the records in them, and the TTLs are counted down when
+ * an answer is handed out again. Once full, the least recently used answer is evicted.
+ */
+public class DnsCache {
+  public static final int DEFAULT_MAX_ENTRIES = 1024;
+  // upper bound on how long anything is kept, whatever the upstream resolver says
+  public static final long MAX_TTL = 24 * 60 * 60;
+
+  private final Logger logger = LoggerFactory.getLogger(DnsCache.class);
+  @Getter private final int maxEntries;
+  private final Map<String, CacheEntry> entries;
+
+  private static class CacheEntry {
+    private final byte[] response;
+    private final long storedAt;
+    private final long expiresAt;
+
+    private CacheEntry(byte[] response, long storedAt, long expiresAt) {
+      this.response = response;
+      this.storedAt = storedAt;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  public DnsCache() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * Construct a cache which holds up to maxEntries answers.
+   *
+   * @param maxEntries the most answers to keep
+   */
+  public DnsCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+        return size() > DnsCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Looks up a cached answer for a question.
+   *
+   * @param question the question key
+   * @param id the id of the query being answered, which the answer is rewritten to carry
+   * @return a copy of the answer with its TTLs counted down, or null if there is nothing cached or
+   *     it has expired
+   */
+  public byte[] get(String question, int id) {
+    CacheEntry entry;
+    long now = now();
+    synchronized (entries) {
+      entry = entries.get(question);
+      if (entry == null) {
+        return null;
+      }
+      if (now >= entry.expiresAt) {
+        entries.remove(question);
+        return null;
+      }
+    }
+    byte[] response = entry.response.clone();
+    DnsMessage.setId(response, id);
+    DnsMessage.decrementTtls(response, (now - entry.storedAt) / 1000);
+    return response;
+  }
+
+  /**
+   * Caches an answer from the upstream resolver if it can be cached: it must be a complete
+   * (untruncated) positive or negative answer with at least one record to take a TTL from.
+   *
+   * @param question the question key
+   * @param response the answer
+   * @param length the length of the answer
+   * @return true if the answer was cached
+   */
+  public boolean put(String question, byte[] response, int length) {
+    if (length < DnsMessage.HEADER_LEN || !DnsMessage.isResponse(response)
+        || DnsMessage.isTruncated(response)) {
+      return false;
+    }
+    int rcode = DnsMessage.getRcode(response);
+    if (rcode != DnsMessage.RCODE_NOERROR && rcode != DnsMessage.RCODE_NXDOMAIN) {
+      return false;
+    }
+    long ttl = Math.min(DnsMessage.getMinTtl(response, length), MAX_TTL);
+    if (ttl <= 0) {
+      return false;
+    }
+    byte[] copy = new byte[length];
+    System.arraycopy(response, 0, copy, 0, length);
+    long now = now();
+    synchronized (entries) {
+      entries.put(question, new CacheEntry(copy, now, now + ttl * 1000));
+    }
+    logger.debug("Cached {} for {}s", question, ttl);
+    return true;
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+}
@@ -0,0 +1,263 @@
+package network.grape.lib.dns;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import lombok.Setter;
+import network.grape.lib.network.ip.IpHeader;
+import network.grape.lib.transport.udp.UdpHeader;
+import network.grape.lib.transport.udp.UdpPacketFactory;
+import network.grape.lib.vpn.SocketProtector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers DNS queries from the VPN client without giving each one a UDP session of its own.
+ * Queries are answered straight from a {@link DnsCache} when possible. Otherwise they are sent
+ * upstream through a small fixed pool of sockets, and a query which is already waiting on the
+ * same question upstream just waits for that answer instead of asking again.
+ *
+ * <p>Queries go to the resolver the client addressed them to, unless an upstream resolver is set.
+ * Answers are cached by question only, not by resolver, on the assumption that the client uses one
+ * set of resolvers which all agree.</p>
+ */
+public class DnsForwarder {
+  public static final int DNS_PORT = 53;
+  public static final int DEFAULT_POOL_SIZE = 4;
+  public static final int DEFAULT_TIMEOUT = 2000;
+  // big enough for any answer over udp, EDNS or not
+  private static final int MAX_RESPONSE_SIZE = 4096;
+
+  private final Logger logger = LoggerFactory.getLogger(DnsForwarder.class);
+  @Getter private final DnsCache cache;
+  private final BlockingQueue<DatagramSocket> sockets;
+  private final ExecutorService executor;
+  // queries waiting on an upstream answer, by question key
+  private final Map<String, List<PendingQuery>> inFlight = new HashMap<>();
+  private final Random random = new SecureRandom();
+  // when set, every query goes here instead of to the resolver the client addressed
+  @Getter @Setter private volatile InetSocketAddress upstream;
+  @Getter private final AtomicLong hits = new AtomicLong();
+  @Getter private final AtomicLong misses = new AtomicLong();
+  @Getter private final AtomicLong coalesced = new AtomicLong();
+
+  private static class PendingQuery {
+    private final IpHeader ipHeader;
+    private final UdpHeader udpHeader;
+    private final int id;
+    private final OutputStream outputStream;
+
+    private PendingQuery(IpHeader ipHeader, UdpHeader udpHeader, int id,
+                         OutputStream outputStream) {
+      this.ipHeader = ipHeader;
+      this.udpHeader = udpHeader;
+      this.id = id;
+      this.outputStream = outputStream;
+    }
+  }
+
+  public DnsForwarder(SocketProtector protector) throws SocketException {
+    this(protector, DEFAULT_POOL_SIZE, DEFAULT_TIMEOUT, new DnsCache());
+  }
+
+  /**
+   * Construct a forwarder with its own pool of upstream sockets.
+   *
+   * @param protector the protector which keeps the upstream sockets out of the vpn
+   * @param poolSize  how many upstream queries can be outstanding at once
+   * @param timeout   how long to wait for an upstream answer, in ms
+   * @param cache     the cache to answer from
+   * @throws SocketException if the upstream sockets can't be opened
+   */
+  public DnsForwarder(SocketProtector protector, int poolSize, int timeout, DnsCache cache)
+      throws SocketException {
+    this.cache = cache;
+    this.sockets = new ArrayBlockingQueue<>(poolSize);
+    for (int i = 0; i < poolSize; i++) {
+      DatagramSocket socket = new DatagramSocket();
+      socket.setSoTimeout(timeout);
+      protector.protect(socket);
+      sockets.add(socket);
+    }
+    // one thread per socket, so a task never waits for a socket to come back to the pool
+    this.executor = Executors.newFixedThreadPool(poolSize);
+  }
+
+  /**
+   * Whether a packet from the VPN client should be handed to the forwarder.
+   *
+   * @param udpHeader the UDP header of the packet
+   * @return true if the packet is addressed to the DNS port
+   */
+  public static boolean isDnsQuery(UdpHeader udpHeader) {
+    return udpHeader.getDestinationPort() == DNS_PORT;
+  }
+
+  /**
+   * Answers a query from the cache, or queues it up for an upstream answer. Anything which isn't a
+   * plain single question query is left alone, so it can take the normal UDP path.
+   *
+   * @param ipHeader     the IP header of the query, used as the template for the answer
+   * @param udpHeader    the UDP header of the query
+   * @param payload      the query, positioned at the start of the UDP payload
+   * @param outputStream the stream to write the answer back to the VPN client on
+   * @return true if the forwarder took the query, false if the caller should forward it
+   */
+  public boolean handleQuery(IpHeader ipHeader, UdpHeader udpHeader, ByteBuffer payload,
+                             OutputStream outputStream) {
+    byte[] query = new byte[payload.remaining()];
+    payload.get(query);
+    String question = DnsMessage.getQuestionKey(query, query.length);
+    if (question == null || DnsMessage.isResponse(query)) {
+      payload.position(payload.position() - query.length);
+      return false;
+    }
+    int id = DnsMessage.getId(query);
+    PendingQuery pending = new PendingQuery(ipHeader, udpHeader, id, outputStream);
+
+    byte[] cached = cache.get(question, id);
+    if (cached != null) {
+      hits.incrementAndGet();
+      logger.debug("DNS cache hit for {}", question);
+      reply(pending, cached);
+      return true;
+    }
+
+    boolean first = false;
+    synchronized (inFlight) {
+      List<PendingQuery> waiting = inFlight.get(question);
+      if (waiting == null) {
+        waiting = new ArrayList<>();
+        inFlight.put(question, waiting);
+        first = true;
+      }
+      waiting.add(pending);
+    }
+    if (first) {
+      misses.incrementAndGet();
+      InetSocketAddress resolver = upstream;
+      if (resolver == null) {
+        resolver = new InetSocketAddress(ipHeader.getDestinationAddress(),
+            udpHeader.getDestinationPort());
+      }
+      final InetSocketAddress destination = resolver;
+      executor.execute(() -> resolve(question, query, destination));
+    } else {
+      coalesced.incrementAndGet();
+      logger.debug("DNS query for {} already in flight", question);
+    }
+    return true;
+  }
+
+  /**
+   * Sends the query upstream on a socket from the pool, and answers everyone waiting on the
+   * question with the result. If there is no answer everyone waiting is dropped, the same as if
+   * the query had been lost on the way, and the clients will retry.
+   */
+  protected void resolve(String question, byte[] query, InetSocketAddress resolver) {
+    byte[] response = null;
+    DatagramSocket socket = null;
+    try {
+      socket = sockets.take();
+      response = exchange(socket, query, resolver);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (IOException ex) {
+      logger.warn("DNS query for {} to {} failed: {}", question, resolver, ex.toString());
+    } finally {
+      if (socket != null) {
+        sockets.add(socket);
+      }
+    }
+
+    if (response != null) {
+      cache.put(question, response, response.length);
+    }
+    List<PendingQuery> waiting;
+    synchronized (inFlight) {
+      waiting = inFlight.remove(question);
+    }
+    if (response == null || waiting == null) {
+      return;
+    }
+    for (PendingQuery pending : waiting) {
+      byte[] answer = response.clone();
+      DnsMessage.setId(answer, pending.id);
+      reply(pending, answer);
+    }
+  }
+
+  /**
+   * Sends one query to the resolver under a fresh random id, and waits for the answer to it.
+   *
+   * @return the answer, or null if none came back in time
+   */
+  private byte[] exchange(DatagramSocket socket, byte[] query, InetSocketAddress resolver)
+      throws IOException {
+    // the clients' ids are only unique per client, and are easier to guess
+    int upstreamId = random.nextInt(0x10000);
+    byte[] request = query.clone();
+    DnsMessage.setId(request, upstreamId);
+    String question = DnsMessage.getQuestion(request, request.length);
+    socket.send(new DatagramPacket(request, request.length, resolver));
+
+    byte[] buffer = new byte[MAX_RESPONSE_SIZE];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    try {
+      while (true) {
+        packet.setLength(buffer.length);
+        socket.receive(packet);
+        // anything else is a late answer to an earlier query on this socket, or spoofed
+        if (resolver.equals(packet.getSocketAddress())
+            && packet.getLength() >= DnsMessage.HEADER_LEN
+            && DnsMessage.getId(buffer) == upstreamId && DnsMessage.isResponse(buffer)
+            && question.equals(DnsMessage.getQuestion(buffer, packet.getLength()))) {
+          byte[] response = new byte[packet.getLength()];
+          System.arraycopy(buffer, 0, response, 0, response.length);
+          return response;
+        }
+      }
+    } catch (SocketTimeoutException ex) {
+      logger.warn("No DNS answer for {} from {}", question, resolver);
+      return null;
+    }
+  }
+
+  private void reply(PendingQuery pending, byte[] answer) {
+    byte[] packetData = UdpPacketFactory.createResponsePacket(pending.ipHeader, pending.udpHeader,
+        answer);
+    try {
+      pending.outputStream.write(packetData);
+      pending.outputStream.flush();
+    } catch (IOException ex) {
+      logger.error("Failed to write DNS answer to the VPN client: " + ex.toString());
+    }
+  }
+
+  /**
+   * Stops the upstream queries and closes the sockets.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+    for (DatagramSocket socket : sockets) {
+      socket.close();
+    }
+  }
+}
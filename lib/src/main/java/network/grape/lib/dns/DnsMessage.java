@@ -0,0 +1,247 @@
+package network.grape.lib.dns;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Just enough of the DNS wire format (RFC 1035) to cache and forward messages without decoding
+ * them fully: the header fields, the question, and the offsets of the TTLs in the resource records.
+ *
+ * <p>Header format:
+ * - id (2 bytes)
+ * - flags (2 bytes, QR, opcode, AA, TC, RD, RA, Z, AD, CD, rcode)
+ * - question count (2 bytes)
+ * - answer count (2 bytes)
+ * - authority count (2 bytes)
+ * - additional count (2 bytes)</p>
+ */
+public class DnsMessage {
+  public static final int HEADER_LEN = 12;
+  public static final int RCODE_NOERROR = 0;
+  public static final int RCODE_SERVFAIL = 2;
+  public static final int RCODE_NXDOMAIN = 3;
+  // the EDNS pseudo record, its class and ttl fields mean something else (RFC 6891)
+  public static final int TYPE_OPT = 41;
+
+  private static final int QR_MASK = 0x80;
+  private static final int TC_MASK = 0x02;
+  private static final int RCODE_MASK = 0x0F;
+  private static final int POINTER_MASK = 0xC0;
+  private static final int MAX_NAME_LEN = 255;
+
+  public static int getId(byte[] data) {
+    return ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+  }
+
+  public static void setId(byte[] data, int id) {
+    data[0] = (byte) (id >> 8);
+    data[1] = (byte) id;
+  }
+
+  public static boolean isResponse(byte[] data) {
+    return (data[2] & QR_MASK) != 0;
+  }
+
+  public static boolean isTruncated(byte[] data) {
+    return (data[2] & TC_MASK) != 0;
+  }
+
+  public static int getRcode(byte[] data) {
+    return data[3] & RCODE_MASK;
+  }
+
+  private static int getCount(byte[] data, int offset) {
+    return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+  }
+
+  /**
+   * Gets the question in a message as the lower-cased name, type and class, which is what an
+   * answer has to match for it to be the answer to a query.
+   *
+   * @param data the message
+   * @param length the length of the message
+   * @return the question, or null if the message doesn't have exactly one question or is malformed
+   */
+  public static String getQuestion(byte[] data, int length) {
+    if (length < HEADER_LEN || getCount(data, 4) != 1) {
+      return null;
+    }
+    StringBuilder name = new StringBuilder();
+    int offset = readName(data, HEADER_LEN, length, name);
+    if (offset < 0 || offset + 4 > length) {
+      return null;
+    }
+    return name.toString().toLowerCase(Locale.ROOT) + "/" + getCount(data, offset) + "/"
+        + getCount(data, offset + 2);
+  }
+
+  /**
+   * Builds a key for the question in a query, so that queries asking the same thing can share an
+   * answer. This is the question plus the EDNS payload size the client advertised (if any), so
+   * that a client which can only take 512 bytes is never handed an answer fetched for one which
+   * could take more.
+   *
+   * @param data the query
+   * @param length the length of the query
+   * @return the key, or null if the query doesn't have exactly one question or is malformed
+   */
+  public static String getQuestionKey(byte[] data, int length) {
+    String question = getQuestion(data, length);
+    int[] records = findRecords(data, length);
+    if (question == null || records == null) {
+      return null;
+    }
+    int ednsSize = 0;
+    for (int record : records) {
+      if (getCount(data, record) == TYPE_OPT) {
+        ednsSize = getCount(data, record + 2);
+      }
+    }
+    return question + "/" + ednsSize;
+  }
+
+  /**
+   * Gets the smallest TTL of any record in the message, which is how long the whole message can be
+   * cached for. For negative answers this is the TTL of the SOA in the authority section.
+   *
+   * @param data the message
+   * @param length the length of the message
+   * @return the smallest TTL in seconds, or -1 if there are no records or the message is malformed
+   */
+  public static long getMinTtl(byte[] data, int length) {
+    int[] records = findRecords(data, length);
+    if (records == null) {
+      return -1;
+    }
+    long min = -1;
+    for (int record : records) {
+      if (getCount(data, record) == TYPE_OPT) {
+        continue;
+      }
+      long ttl = getTtl(data, record);
+      if (min < 0 || ttl < min) {
+        min = ttl;
+      }
+    }
+    return min;
+  }
+
+  /**
+   * Counts down the TTL of every record in the message, so that a cached answer doesn't let the
+   * client hold on to it for longer than the upstream resolver said it could.
+   *
+   * @param data the message, changed in place
+   * @param elapsed how many seconds the message has been cached for
+   */
+  public static void decrementTtls(byte[] data, long elapsed) {
+    int[] records = findRecords(data, data.length);
+    if (records == null || elapsed <= 0) {
+      return;
+    }
+    for (int record : records) {
+      if (getCount(data, record) == TYPE_OPT) {
+        continue;
+      }
+      long ttl = Math.max(0, getTtl(data, record) - elapsed);
+      data[record + 4] = (byte) (ttl >> 24);
+      data[record + 5] = (byte) (ttl >> 16);
+      data[record + 6] = (byte) (ttl >> 8);
+      data[record + 7] = (byte) ttl;
+    }
+  }
+
+  private static long getTtl(byte[] data, int record) {
+    return ((long) (data[record + 4] & 0xFF) << 24) | ((data[record + 5] & 0xFF) << 16)
+        | ((data[record + 6] & 0xFF) << 8) | (data[record + 7] & 0xFF);
+  }
+
+  /**
+   * Walks the answer, authority and additional sections of the message.
+   *
+   * @return the offset of the type field of each record, or null if the message is malformed
+   */
+  private static int[] findRecords(byte[] data, int length) {
+    if (length < HEADER_LEN) {
+      return null;
+    }
+    int offset = HEADER_LEN;
+    for (int i = getCount(data, 4); i > 0; i--) {
+      offset = skipName(data, offset, length);
+      if (offset < 0 || offset + 4 > length) {
+        return null;
+      }
+      offset += 4;
+    }
+    int[] records = new int[getCount(data, 6) + getCount(data, 8) + getCount(data, 10)];
+    for (int i = 0; i < records.length; i++) {
+      offset = skipName(data, offset, length);
+      // type, class, ttl and rdlength
+      if (offset < 0 || offset + 10 > length) {
+        return null;
+      }
+      records[i] = offset;
+      offset += 10 + getCount(data, offset + 8);
+      if (offset > length) {
+        return null;
+      }
+    }
+    return records;
+  }
+
+  private static int skipName(byte[] data, int offset, int length) {
+    while (offset < length) {
+      int labelLength = data[offset] & 0xFF;
+      if ((labelLength & POINTER_MASK) == POINTER_MASK) {
+        // a pointer always ends the name
+        return offset + 2 <= length ? offset + 2 : -1;
+      }
+      offset += 1 + labelLength;
+      if (labelLength == 0) {
+        return offset;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Reads a possibly compressed name into the builder.
+   *
+   * @return the offset just past the name where it started, or -1 if it's malformed
+   */
+  private static int readName(byte[] data, int offset, int length, StringBuilder name) {
+    int end = -1;
+    // every pointer has to go backwards, so this can't loop forever
+    int limit = offset;
+    while (offset < length) {
+      int labelLength = data[offset] & 0xFF;
+      if ((labelLength & POINTER_MASK) == POINTER_MASK) {
+        if (offset + 2 > length) {
+          return -1;
+        }
+        int pointer = ((labelLength & ~POINTER_MASK) << 8) | (data[offset + 1] & 0xFF);
+        if (pointer >= limit) {
+          return -1;
+        }
+        if (end < 0) {
+          end = offset + 2;
+        }
+        offset = pointer;
+        limit = pointer;
+        continue;
+      }
+      if ((labelLength & POINTER_MASK) != 0 || offset + 1 + labelLength > length) {
+        return -1;
+      }
+      if (labelLength == 0) {
+        return end < 0 ? offset + 1 : end;
+      }
+      name.append(new String(data, offset + 1, labelLength, StandardCharsets.ISO_8859_1));
+      name.append('.');
+      if (name.length() > MAX_NAME_LEN) {
+        return -1;
+      }
+      offset += 1 + labelLength;
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,38 @@
+package network.grape.lib.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count which only goes up. It's a LongAdder underneath, so threads incrementing it at the same
+ * time each add to a cell of their own instead of fighting over one value, and the cells are only
+ * summed when it's read.
+ */
+public class Counter extends Metric {
+  private final LongAdder value = new LongAdder();
+
+  Counter(String name, String help) {
+    super(name, help);
+  }
+
+  public void increment() {
+    value.increment();
+  }
+
+  public void add(long amount) {
+    value.add(amount);
+  }
+
+  public long get() {
+    return value.sum();
+  }
+
+  @Override
+  public String getType() {
+    return "counter";
+  }
+
+  @Override
+  protected void writeSamples(StringBuilder out) {
+    out.append(getName()).append(' ').append(get()).append('\n');
+  }
+}
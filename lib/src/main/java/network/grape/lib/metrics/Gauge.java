@@ -0,0 +1,40 @@
+package network.grape.lib.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+
+/**
+ * A value which goes up and down, eg: the number of sessions, read when the metrics are scraped
+ * rather than kept up to date. Several sources can be added to one gauge, eg: the session table of
+ * each proxy shard, and the gauge is their sum.
+ */
+public class Gauge extends Metric {
+  private final List<LongSupplier> sources = new CopyOnWriteArrayList<>();
+
+  Gauge(String name, String help) {
+    super(name, help);
+  }
+
+  void addSource(LongSupplier source) {
+    sources.add(source);
+  }
+
+  public long get() {
+    long sum = 0;
+    for (LongSupplier source : sources) {
+      sum += source.getAsLong();
+    }
+    return sum;
+  }
+
+  @Override
+  public String getType() {
+    return "gauge";
+  }
+
+  @Override
+  protected void writeSamples(StringBuilder out) {
+    out.append(getName()).append(' ').append(get()).append('\n');
+  }
+}
@@ -0,0 +1,108 @@
+package network.grape.lib.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies into a fixed set of buckets, so recording one is a search through a short array
+ * and an add, with nothing allocated. The buckets are set when it's made, and each has a LongAdder
+ * of its own, like {@link Counter}. The latencies are recorded in nanoseconds and written out in
+ * seconds, the way Prometheus expects.
+ */
+public class Histogram extends Metric {
+  // 10us up to 1s, enough to tell a packet handled inline from one stuck behind a backlog
+  public static final long[] DEFAULT_BOUNDS_NANOS = {
+      TimeUnit.MICROSECONDS.toNanos(10),
+      TimeUnit.MICROSECONDS.toNanos(50),
+      TimeUnit.MICROSECONDS.toNanos(100),
+      TimeUnit.MICROSECONDS.toNanos(250),
+      TimeUnit.MICROSECONDS.toNanos(500),
+      TimeUnit.MILLISECONDS.toNanos(1),
+      TimeUnit.MICROSECONDS.toNanos(2500),
+      TimeUnit.MILLISECONDS.toNanos(5),
+      TimeUnit.MILLISECONDS.toNanos(10),
+      TimeUnit.MILLISECONDS.toNanos(25),
+      TimeUnit.MILLISECONDS.toNanos(50),
+      TimeUnit.MILLISECONDS.toNanos(100),
+      TimeUnit.MILLISECONDS.toNanos(250),
+      TimeUnit.SECONDS.toNanos(1),
+  };
+
+  private final long[] bounds;
+  // one more than the bounds, the last is for anything over the largest bound
+  private final LongAdder[] buckets;
+  private final LongAdder sum = new LongAdder();
+
+  Histogram(String name, String help, long[] boundsNanos) {
+    super(name, help);
+    for (int i = 1; i < boundsNanos.length; i++) {
+      if (boundsNanos[i] <= boundsNanos[i - 1]) {
+        throw new IllegalArgumentException("Bucket bounds must be increasing");
+      }
+    }
+    bounds = boundsNanos.clone();
+    buckets = new LongAdder[bounds.length + 1];
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Records one latency.
+   *
+   * @param nanos the latency in nanoseconds
+   */
+  public void observe(long nanos) {
+    int bucket = 0;
+    while (bucket < bounds.length && nanos > bounds[bucket]) {
+      bucket++;
+    }
+    buckets[bucket].increment();
+    sum.add(nanos);
+  }
+
+  /**
+   * The number of latencies recorded.
+   */
+  public long getCount() {
+    long count = 0;
+    for (LongAdder bucket : buckets) {
+      count += bucket.sum();
+    }
+    return count;
+  }
+
+  /**
+   * The number of latencies recorded which were no more than the given bucket's bound, or in all
+   * of the buckets for the one past the largest bound.
+   */
+  public long getCumulativeCount(int bucket) {
+    long count = 0;
+    for (int i = 0; i <= bucket; i++) {
+      count += buckets[i].sum();
+    }
+    return count;
+  }
+
+  public long getSumNanos() {
+    return sum.sum();
+  }
+
+  @Override
+  public String getType() {
+    return "histogram";
+  }
+
+  @Override
+  protected void writeSamples(StringBuilder out) {
+    long count = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      count += buckets[i].sum();
+      String bound = i < bounds.length ? Double.toString(bounds[i] / 1e9) : "+Inf";
+      out.append(getName()).append("_bucket{le=\"").append(bound).append("\"} ").append(count)
+          .append('\n');
+    }
+    out.append(getName()).append("_sum ").append(sum.sum() / 1e9).append('\n');
+    out.append(getName()).append("_count ").append(count).append('\n');
+  }
+}
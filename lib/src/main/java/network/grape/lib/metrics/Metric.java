@@ -0,0 +1,35 @@
+package network.grape.lib.metrics;
+
+import lombok.Getter;
+
+/**
+ * One named value, or set of values, in a {@link MetricsRegistry}, which knows how to write itself
+ * out in the Prometheus text format.
+ */
+public abstract class Metric {
+  @Getter private final String name;
+  @Getter private final String help;
+
+  protected Metric(String name, String help) {
+    this.name = name;
+    this.help = help;
+  }
+
+  /**
+   * The Prometheus type, eg: "counter".
+   */
+  public abstract String getType();
+
+  /**
+   * Writes the samples, without the HELP and TYPE lines.
+   *
+   * @param out where to write them
+   */
+  protected abstract void writeSamples(StringBuilder out);
+
+  void write(StringBuilder out) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(getType()).append('\n');
+    writeSamples(out);
+  }
+}
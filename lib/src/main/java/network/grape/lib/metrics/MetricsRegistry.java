@@ -0,0 +1,91 @@
+package network.grape.lib.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Holds the metrics by name and writes them all out in the Prometheus text format. Asking for a
+ * metric which already exists gives back the same one, so several proxy shards sharing a registry
+ * add up into the one set of metrics.
+ *
+ * <p>Nothing here depends on how the metrics are served, the proxy puts them on an http endpoint,
+ * an Android client could log them or send them somewhere.</p>
+ */
+public class MetricsRegistry {
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+  /**
+   * Gets the counter with the given name, making it if there isn't one yet.
+   *
+   * @param name the name, by convention ending in _total
+   * @param help what it counts
+   * @return the counter
+   */
+  public Counter counter(String name, String help) {
+    return get(name, Counter.class, () -> new Counter(name, help));
+  }
+
+  /**
+   * Gets the latency histogram with the given name, with the default buckets, making it if there
+   * isn't one yet.
+   *
+   * @param name the name, by convention ending in _seconds
+   * @param help what it times
+   * @return the histogram
+   */
+  public Histogram histogram(String name, String help) {
+    return histogram(name, help, Histogram.DEFAULT_BOUNDS_NANOS);
+  }
+
+  /**
+   * Gets the latency histogram with the given name, making it with the given buckets if there
+   * isn't one yet.
+   *
+   * @param name        the name, by convention ending in _seconds
+   * @param help        what it times
+   * @param boundsNanos the upper bound of each bucket, in increasing order
+   * @return the histogram
+   */
+  public Histogram histogram(String name, String help, long[] boundsNanos) {
+    return get(name, Histogram.class, () -> new Histogram(name, help, boundsNanos));
+  }
+
+  /**
+   * Adds a source to the gauge with the given name, making the gauge if there isn't one yet.
+   *
+   * @param name   the name
+   * @param help   what it measures
+   * @param source read each time the metrics are scraped, so it must be cheap and thread safe
+   * @return the gauge
+   */
+  public Gauge gauge(String name, String help, LongSupplier source) {
+    Gauge gauge = get(name, Gauge.class, () -> new Gauge(name, help));
+    gauge.addSource(source);
+    return gauge;
+  }
+
+  /**
+   * Writes out every metric in the Prometheus text format, sorted by name.
+   *
+   * @return the exposition text
+   */
+  public String scrape() {
+    StringBuilder out = new StringBuilder();
+    for (Metric metric : metrics.values()) {
+      metric.write(out);
+    }
+    return out.toString();
+  }
+
+  private <T extends Metric> T get(String name, Class<T> type, Supplier<T> factory) {
+    Metric metric = metrics.computeIfAbsent(name, n -> factory.get());
+    if (!type.isInstance(metric)) {
+      throw new IllegalArgumentException(name + " is already a " + metric.getType());
+    }
+    return type.cast(metric);
+  }
+}
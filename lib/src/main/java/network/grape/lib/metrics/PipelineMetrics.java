@@ -0,0 +1,57 @@
+package network.grape.lib.metrics;
+
+import lombok.Getter;
+
+/**
+ * The metrics the packet pipeline records as it goes: the SessionHandler for each packet from the
+ * client, the VpnWriter for each selector wakeup, and the WorkerScheduler for each worker task.
+ * Each of those takes one of these with a setter, and records nothing while it's null, so the
+ * metrics cost nothing unless they're turned on.
+ *
+ * <p>Gauges (sessions, queue depths, pooled buffers) aren't here, they're read from whatever
+ * holds them when the metrics are scraped, see {@link MetricsRegistry#gauge}.</p>
+ */
+@Getter
+public class PipelineMetrics {
+  private final Counter packetsHandled;
+  private final Counter bytesHandled;
+  private final Counter packetErrors;
+  private final Histogram handleLatency;
+  private final Counter sessionsCreated;
+  private final Counter selectorWakeups;
+  private final Counter selectedKeys;
+  private final Histogram selectorDispatchLatency;
+  private final Histogram workerQueueLatency;
+  private final Histogram workerRunLatency;
+  private final Counter workersRejected;
+
+  /**
+   * Makes (or finds, if they're already there) the pipeline metrics in a registry.
+   *
+   * @param registry the registry to put them in
+   */
+  public PipelineMetrics(MetricsRegistry registry) {
+    packetsHandled = registry.counter("grape_packets_handled_total",
+        "Packets from the client handled by the session handler");
+    bytesHandled = registry.counter("grape_packet_bytes_handled_total",
+        "Bytes of the packets from the client handled by the session handler");
+    packetErrors = registry.counter("grape_packet_errors_total",
+        "Packets from the client which couldn't be parsed");
+    handleLatency = registry.histogram("grape_packet_handle_seconds",
+        "Time to handle a packet from the client");
+    sessionsCreated = registry.counter("grape_sessions_created_total",
+        "Sessions created for new flows");
+    selectorWakeups = registry.counter("grape_selector_wakeups_total",
+        "Times the VpnWriter selector woke up");
+    selectedKeys = registry.counter("grape_selector_keys_total",
+        "Ready keys handled by the VpnWriter");
+    selectorDispatchLatency = registry.histogram("grape_selector_dispatch_seconds",
+        "Time to hand the ready keys of one selector wakeup to the workers");
+    workerQueueLatency = registry.histogram("grape_worker_queue_seconds",
+        "Time worker tasks waited before starting");
+    workerRunLatency = registry.histogram("grape_worker_run_seconds",
+        "Time worker tasks took to run");
+    workersRejected = registry.counter("grape_worker_rejected_total",
+        "Worker tasks refused because the scheduler was full");
+  }
+}
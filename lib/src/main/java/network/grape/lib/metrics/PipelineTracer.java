@@ -0,0 +1,79 @@
+package network.grape.lib.metrics;
+
+import java.nio.ByteBuffer;
+import network.grape.lib.session.Session;
+import network.grape.lib.session.TcpSession;
+
+/**
+ * Told about each stage a packet goes through, for tracing where the latency goes between the
+ * tunnel, the handler, the selector, the workers and the write back to the client. The proxy
+ * turns these into JDK Flight Recorder events, which lib can't use itself since it has to run on
+ * Android too.
+ *
+ * <p>The stages only time themselves and call in while {@link #isActive()}, which should be cheap
+ * and false unless something is recording, so a tracer which is set but idle costs a volatile
+ * read per stage. The durations are passed in, each call is made once the stage is over.</p>
+ */
+public interface PipelineTracer {
+
+  /**
+   * Whether anything is recording, checked before each stage is timed.
+   */
+  boolean isActive();
+
+  /**
+   * A packet from the client has been through the SessionHandler.
+   *
+   * @param packet        the packet, positioned anywhere, with its limit at the end of the packet
+   * @param durationNanos how long it took to handle
+   */
+  void packetHandled(ByteBuffer packet, long durationNanos);
+
+  /**
+   * A session has been added for a new flow.
+   */
+  void sessionCreated(Session session);
+
+  /**
+   * The connect to a TCP session's destination has succeeded or failed.
+   *
+   * @param session       the session
+   * @param succeeded     whether it connected
+   * @param durationNanos how long since the connect was started
+   */
+  void connectCompleted(TcpSession session, boolean succeeded, long durationNanos);
+
+  /**
+   * The VpnWriter's selector woke up and handed its ready keys to the workers.
+   *
+   * @param keys          how many keys were ready
+   * @param durationNanos how long it took to hand them over
+   */
+  void selectorWakeup(int keys, long durationNanos);
+
+  /**
+   * A worker task has been queued.
+   *
+   * @param key        the key it's serialised on, eg: the session key, or null
+   * @param queueDepth how many tasks were waiting to start, including this one
+   */
+  void workerQueued(Object key, int queueDepth);
+
+  /**
+   * A worker task has run.
+   *
+   * @param key           the key it was serialised on, or null
+   * @param waitedNanos   how long it waited to start
+   * @param durationNanos how long it ran for
+   */
+  void workerRun(Object key, long waitedNanos, long durationNanos);
+
+  /**
+   * A batch of packets has been written back to the client.
+   *
+   * @param packets       how many packets
+   * @param bytes         how many bytes, in all
+   * @param durationNanos how long the write took
+   */
+  void egressFlushed(int packets, int bytes, long durationNanos);
+}
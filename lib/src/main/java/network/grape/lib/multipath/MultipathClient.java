@@ -0,0 +1,149 @@
+package network.grape.lib.multipath;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import network.grape.lib.crypto.AeadTunnel;
+import network.grape.lib.vpn.SocketProtector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The client end of a {@link MultipathTunnel}: a channel bound to each of the local addresses,
+ * all connected to the proxy. Packets are written to the tunnel, and {@link #read(byte[])} waits
+ * on all of the channels at once and gives back the packets from the proxy in order, answering
+ * and sending the pings on the way.
+ */
+public class MultipathClient implements Closeable {
+  private final Logger logger = LoggerFactory.getLogger(MultipathClient.class);
+  private final MultipathTunnel tunnel;
+  private final Selector selector;
+  private final byte[] received;
+  private final ByteBuffer receiveBuffer;
+
+  /**
+   * Opens a path from each of the local addresses to the proxy.
+   *
+   * @param localAddresses the addresses to bind to, one per interface
+   * @param proxy          the proxy's tunnel address
+   * @param protector      keeps the sockets out of the VPN
+   * @param scheduler      picks the paths for the packets written
+   * @param maxPacketSize  the largest packet which will be written or received
+   * @throws IOException if a socket can't be opened
+   */
+  public MultipathClient(List<InetAddress> localAddresses, SocketAddress proxy,
+                         SocketProtector protector, PathScheduler scheduler, int maxPacketSize)
+      throws IOException {
+    tunnel = new MultipathTunnel(new SecureRandom().nextInt(), scheduler, maxPacketSize);
+    selector = Selector.open();
+    // the packets may come sealed
+    received = new byte[maxPacketSize + AeadTunnel.OVERHEAD + MultipathTunnel.HEADER_LEN];
+    receiveBuffer = ByteBuffer.wrap(received);
+    try {
+      for (int i = 0; i < localAddresses.size(); i++) {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(localAddresses.get(i), 0));
+        if (protector != null) {
+          protector.protect(channel.socket());
+        }
+        channel.connect(proxy);
+        channel.configureBlocking(false);
+        TunnelPath path = new TunnelPath(i, channel);
+        channel.register(selector, SelectionKey.OP_READ, path);
+        tunnel.addPath(path);
+        logger.info("Opened path {} from {} to {}", i, channel.getLocalAddress(), proxy);
+      }
+    } catch (IOException ex) {
+      close();
+      throw ex;
+    }
+  }
+
+  public MultipathTunnel getTunnel() {
+    return tunnel;
+  }
+
+  /**
+   * Waits for the next packet from the proxy, on whichever path it comes.
+   *
+   * @param packet where to put the packet
+   * @return the length of the packet, or -1 if the client has been closed
+   * @throws IOException if receiving fails
+   */
+  public int read(byte[] packet) throws IOException {
+    try {
+      while (selector.isOpen()) {
+        long now = System.nanoTime();
+        int length = tunnel.poll(packet, now);
+        if (length >= 0) {
+          return length;
+        }
+        tunnel.sendPings(now);
+        long waitNanos = tunnel.getReorderBuffer().hasWaiting()
+            ? tunnel.getReorderBuffer().getMaxDelayNanos() : MultipathTunnel.PING_INTERVAL_NANOS;
+        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+        selector.selectedKeys().clear();
+        // few enough paths to just try each of them
+        for (SelectionKey key : selector.keys()) {
+          length = receive((TunnelPath) key.attachment(), packet);
+          if (length >= 0) {
+            return length;
+          }
+        }
+      }
+    } catch (ClosedSelectorException ex) {
+      logger.debug("Multipath client closed");
+    }
+    return -1;
+  }
+
+  private int receive(TunnelPath path, byte[] packet) throws IOException {
+    DatagramChannel channel = path.getChannel();
+    while (true) {
+      receiveBuffer.clear();
+      SocketAddress from;
+      try {
+        from = channel.receive(receiveBuffer);
+      } catch (IOException ex) {
+        // eg: port unreachable on one path, the others carry on
+        logger.debug("Error receiving on path {}: {}", path.getId(), ex.toString());
+        return -1;
+      }
+      if (from == null) {
+        return -1;
+      }
+      int length = receiveBuffer.position();
+      long now = System.nanoTime();
+      if (MultipathTunnel.isPing(received, length)) {
+        tunnel.handlePing(received, length, path, from, now);
+      } else if (MultipathTunnel.isMultipathFrame(received, length)) {
+        int packetLength = tunnel.receive(received, length, path, from, now, packet);
+        if (packetLength < 0) {
+          // it may have filled a gap
+          packetLength = tunnel.poll(packet, now);
+        }
+        if (packetLength >= 0) {
+          return packetLength;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (SelectionKey key : selector.keys()) {
+      key.channel().close();
+    }
+    selector.close();
+  }
+}
@@ -0,0 +1,334 @@
+package network.grape.lib.multipath;
+
+import static network.grape.lib.vpn.MtuProbe.CONTROL_FRAME;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import network.grape.lib.crypto.AeadTunnel;
+import network.grape.lib.util.PacketBatchWriter;
+import network.grape.lib.vpn.MtuProbe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bonds several paths between the VPN client and the proxy into one tunnel, eg: wifi and mobile
+ * data at once. Each packet written is numbered and sent on the path(s) the {@link PathScheduler}
+ * picks, and at the other end a {@link ReorderBuffer} puts them back in order. The same class is
+ * used at both ends: the client has a socket of its own per path (see {@link MultipathClient}),
+ * the proxy learns a client's paths from the addresses its frames come from, and answers on the
+ * same ones.
+ *
+ * <p>Each end pings the other on every path to measure its rtt, and to keep the NAT bindings
+ * along it open. Pings are control frames, like the MTU probes.</p>
+ *
+ * <p>Multipath frame format:
+ * - type (1 byte, always MULTIPATH_FRAME)
+ * - path id (1 byte)
+ * - client id (4 bytes, random per client, so the proxy can tell whose paths are whose)
+ * - sequence number (4 bytes)
+ * - the packet (or sealed or compressed frame)</p>
+ *
+ * <p>Ping frame format:
+ * - marker (1 byte, always 0)
+ * - type (1 byte, PATH_PING or PATH_PONG)
+ * - client id (4 bytes)
+ * - path id (1 byte)
+ * - time sent (8 bytes, the sender's System.nanoTime())</p>
+ *
+ * <p>Writing belongs to one thread and receiving to another, as with the single socket.</p>
+ */
+public class MultipathTunnel extends OutputStream implements PacketBatchWriter {
+  public static final byte MULTIPATH_FRAME = 0x30;
+  public static final int HEADER_LEN = 10;
+  public static final byte PATH_PING = 0x06;
+  public static final byte PATH_PONG = 0x07;
+  public static final int PING_LEN = 15;
+  public static final long PING_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Logger logger = LoggerFactory.getLogger(MultipathTunnel.class);
+  @Getter private final int clientId;
+  private final PathScheduler scheduler;
+  @Getter private final List<TunnelPath> paths = new CopyOnWriteArrayList<>();
+  @Getter private final ReorderBuffer reorderBuffer;
+  private final byte[] frame;
+  private final byte[] ping = new byte[PING_LEN];
+  private int nextSeq = 1;
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * Construct a tunnel, with no paths yet. There's room for the largest packet once it's been
+   * sealed, compressing never makes one bigger.
+   *
+   * @param clientId      identifies the client's frames to the proxy
+   * @param scheduler     picks the paths for the packets written
+   * @param maxPacketSize the largest packet which will be written or received
+   */
+  public MultipathTunnel(int clientId, PathScheduler scheduler, int maxPacketSize) {
+    this.clientId = clientId;
+    this.scheduler = scheduler;
+    reorderBuffer = new ReorderBuffer(maxPacketSize + AeadTunnel.OVERHEAD);
+    frame = new byte[maxPacketSize + AeadTunnel.OVERHEAD + HEADER_LEN];
+  }
+
+  public void addPath(TunnelPath path) {
+    paths.add(path);
+  }
+
+  /**
+   * Finds the path with the given id.
+   *
+   * @param id the path id
+   * @return the path, or null if there isn't one
+   */
+  public TunnelPath getPath(int id) {
+    for (TunnelPath path : paths) {
+      if (path.getId() == id) {
+        return path;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Finds the path with the given id, or adds one to the address it was heard from. This is how
+   * the proxy learns a client's paths.
+   *
+   * @param id     the path id from the frame
+   * @param socket the proxy's socket
+   * @param from   where the frame came from
+   * @return the path
+   */
+  public TunnelPath pathFor(int id, DatagramSocket socket, SocketAddress from) {
+    TunnelPath path = getPath(id);
+    if (path != null) {
+      return path;
+    }
+    path = new TunnelPath(id, socket, from);
+    paths.add(path);
+    logger.info("Client {} added path {} from {}", Integer.toHexString(clientId), id, from);
+    return path;
+  }
+
+  /**
+   * Whether the data received is a multipath frame.
+   *
+   * @param data   the received data
+   * @param length the length of the received data
+   * @return true if it's a multipath frame
+   */
+  public static boolean isMultipathFrame(byte[] data, int length) {
+    return length > HEADER_LEN && data[0] == MULTIPATH_FRAME;
+  }
+
+  /**
+   * Whether the control frame is a path ping or pong.
+   */
+  public static boolean isPing(byte[] data, int length) {
+    return length == PING_LEN && MtuProbe.isControlFrame(data, length)
+        && (data[1] == PATH_PING || data[1] == PATH_PONG);
+  }
+
+  /**
+   * The client id of a multipath frame or ping.
+   */
+  public static int getClientId(byte[] data) {
+    return getInt(data, 2);
+  }
+
+  /**
+   * The path id of a multipath frame, or of a ping.
+   */
+  public static int getPathId(byte[] data) {
+    return data[0] == MULTIPATH_FRAME ? data[1] & 0xFF : data[6] & 0xFF;
+  }
+
+  @Override
+  public void write(int value) throws IOException {
+    write(new byte[] {(byte) value}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] data, int off, int len) throws IOException {
+    if (paths.isEmpty()) {
+      dropped.incrementAndGet();
+      return;
+    }
+    if (len > frame.length - HEADER_LEN) {
+      dropped.incrementAndGet();
+      logger.warn("Dropped a {} byte packet, too big for a multipath frame", len);
+      return;
+    }
+    int seq = nextSeq++;
+    frame[0] = MULTIPATH_FRAME;
+    putInt(frame, 2, clientId);
+    putInt(frame, 6, seq);
+    System.arraycopy(data, off, frame, HEADER_LEN, len);
+    long now = System.nanoTime();
+    int choice = scheduler.select(paths, len, now);
+    if (choice != PathScheduler.ALL_PATHS) {
+      send(paths.get(choice), len);
+      return;
+    }
+    for (TunnelPath path : paths) {
+      if (path.isAlive(now)) {
+        send(path, len);
+      }
+    }
+  }
+
+  private void send(TunnelPath path, int length) throws IOException {
+    frame[1] = (byte) path.getId();
+    try {
+      path.send(frame, 0, HEADER_LEN + length);
+    } catch (IOException ex) {
+      // one path going down (eg: the interface going away) shouldn't take the others with it
+      dropped.incrementAndGet();
+      logger.debug("Error sending on path {}: {}", path.getId(), ex.toString());
+    }
+  }
+
+  @Override
+  public void writePackets(List<byte[]> packets) throws IOException {
+    for (byte[] packet : packets) {
+      write(packet, 0, packet.length);
+    }
+  }
+
+  /**
+   * Takes a received multipath frame. If its packet is the next one due, and nothing is waiting,
+   * it goes straight into the packet buffer, otherwise it waits in the reorder buffer. Either
+   * way, {@link #poll} should be called afterwards until it returns -1.
+   *
+   * @param data   the received frame
+   * @param length the length of the frame
+   * @param path   the path it came on
+   * @param from   where it came from
+   * @param now    the time now, from System.nanoTime()
+   * @param packet where to put the packet
+   * @return the length of the packet, or -1 if it's waiting or was a copy
+   */
+  public int receive(byte[] data, int length, TunnelPath path, SocketAddress from, long now,
+                     byte[] packet) {
+    path.heard(from, now);
+    int seq = getInt(data, 6);
+    int packetLength = length - HEADER_LEN;
+    if (reorderBuffer.isNext(seq) && packetLength <= packet.length) {
+      System.arraycopy(data, HEADER_LEN, packet, 0, packetLength);
+      reorderBuffer.advance();
+      return packetLength;
+    }
+    reorderBuffer.offer(seq, data, HEADER_LEN, packetLength, now);
+    return -1;
+  }
+
+  /**
+   * Takes the next packet which is ready to be delivered.
+   *
+   * @param packet where to put the packet
+   * @param now    the time now, from System.nanoTime()
+   * @return the length of the packet, or -1 if there isn't one ready
+   */
+  public int poll(byte[] packet, long now) {
+    return reorderBuffer.poll(packet, now);
+  }
+
+  /**
+   * Pings each path which is due one.
+   *
+   * @param now the time now, from System.nanoTime()
+   */
+  public void sendPings(long now) {
+    for (TunnelPath path : paths) {
+      if (now - path.lastPing < PING_INTERVAL_NANOS) {
+        continue;
+      }
+      path.lastPing = now;
+      synchronized (ping) {
+        ping[0] = CONTROL_FRAME;
+        ping[1] = PATH_PING;
+        putInt(ping, 2, clientId);
+        ping[6] = (byte) path.getId();
+        putLong(ping, 7, now);
+        try {
+          path.send(ping, 0, PING_LEN);
+        } catch (IOException ex) {
+          logger.debug("Error pinging path {}: {}", path.getId(), ex.toString());
+        }
+      }
+    }
+  }
+
+  /**
+   * Answers a ping from the other end, or takes the rtt from a pong.
+   *
+   * @param data   the received ping or pong, which is reused for the answer
+   * @param length the length of it
+   * @param path   the path it came on
+   * @param from   where it came from
+   * @param now    the time now, from System.nanoTime()
+   * @throws IOException if the answer can't be sent
+   */
+  public void handlePing(byte[] data, int length, TunnelPath path, SocketAddress from, long now)
+      throws IOException {
+    path.heard(from, now);
+    if (data[1] == PATH_PING) {
+      data[1] = PATH_PONG;
+      path.send(data, 0, length);
+    } else if (data[1] == PATH_PONG) {
+      long sample = now - getLong(data, 7);
+      if (sample >= 0) {
+        path.updateRtt(sample);
+      }
+    }
+  }
+
+  /**
+   * When the other end was last heard from, on any of the paths.
+   *
+   * @return the time, from System.nanoTime(), or 0 if there are no paths
+   */
+  public long getLastHeard() {
+    long lastHeard = 0;
+    for (TunnelPath path : paths) {
+      if (lastHeard == 0 || path.getLastHeard() - lastHeard > 0) {
+        lastHeard = path.getLastHeard();
+      }
+    }
+    return lastHeard;
+  }
+
+  /**
+   * The number of packets which couldn't be sent on any path, or were too big to.
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  static void putInt(byte[] data, int offset, int value) {
+    data[offset] = (byte) (value >>> 24);
+    data[offset + 1] = (byte) (value >>> 16);
+    data[offset + 2] = (byte) (value >>> 8);
+    data[offset + 3] = (byte) value;
+  }
+
+  static int getInt(byte[] data, int offset) {
+    return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+        | (data[offset + 2] & 0xFF) << 8 | data[offset + 3] & 0xFF;
+  }
+
+  private static void putLong(byte[] data, int offset, long value) {
+    putInt(data, offset, (int) (value >>> 32));
+    putInt(data, offset + 4, (int) value);
+  }
+
+  private static long getLong(byte[] data, int offset) {
+    return (long) getInt(data, offset) << 32 | getInt(data, offset + 4) & 0xFFFFFFFFL;
+  }
+}
@@ -0,0 +1,143 @@
+package network.grape.lib.multipath;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decides which path each packet of a {@link MultipathTunnel} goes on. Only the thread writing to
+ * the tunnel calls it, so implementations can keep state without locking.
+ */
+public interface PathScheduler {
+  // send the packet on every live path
+  int ALL_PATHS = -1;
+
+  /**
+   * The ways of spreading packets over the paths.
+   */
+  enum Type {
+    // the live path with the lowest smoothed rtt
+    LOWEST_RTT,
+    // the live paths in turn, in proportion to their weights
+    WEIGHTED_ROUND_ROBIN,
+    // small packets (handshakes, ACKs, DNS) on every live path, the rest on the lowest rtt
+    REDUNDANT
+  }
+
+  /**
+   * Picks the path for a packet.
+   *
+   * @param paths  the tunnel's paths, at least one
+   * @param length the length of the packet
+   * @param now    the time now, from System.nanoTime()
+   * @return the index of the path in the list, or ALL_PATHS
+   */
+  int select(List<TunnelPath> paths, int length, long now);
+
+  /**
+   * Parses a scheduler type from a system property, eg: lowest-rtt or redundant.
+   *
+   * @param name the name of the type
+   * @return the type
+   */
+  static Type parseType(String name) {
+    return Type.valueOf(name.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+  }
+
+  /**
+   * Creates a scheduler of the given type.
+   *
+   * @param type the type of scheduler
+   * @return a new scheduler
+   */
+  static PathScheduler create(Type type) {
+    switch (type) {
+      case WEIGHTED_ROUND_ROBIN:
+        return new WeightedRoundRobin();
+      case REDUNDANT:
+        return new Redundant(Redundant.DEFAULT_THRESHOLD);
+      case LOWEST_RTT:
+      default:
+        return new LowestRtt();
+    }
+  }
+
+  /**
+   * Always the live path with the lowest rtt. Paths which haven't been measured yet count as
+   * the quickest, so they get tried.
+   */
+  class LowestRtt implements PathScheduler {
+    @Override
+    public int select(List<TunnelPath> paths, int length, long now) {
+      int best = 0;
+      long bestRtt = Long.MAX_VALUE;
+      boolean bestAlive = false;
+      for (int i = 0; i < paths.size(); i++) {
+        TunnelPath path = paths.get(i);
+        boolean alive = path.isAlive(now);
+        long rtt = path.getRttNanos();
+        // a live path always beats a dead one, then the lowest rtt wins
+        if ((alive && !bestAlive) || (alive == bestAlive && rtt < bestRtt)) {
+          best = i;
+          bestRtt = rtt;
+          bestAlive = alive;
+        }
+      }
+      return best;
+    }
+  }
+
+  /**
+   * Smooth weighted round robin, as nginx does it: each pick adds every live path's weight to its
+   * current weight, takes the highest, and then takes the total off it, which interleaves the
+   * paths rather than sending runs of packets down each.
+   */
+  class WeightedRoundRobin implements PathScheduler {
+    @Override
+    public int select(List<TunnelPath> paths, int length, long now) {
+      int best = -1;
+      int total = 0;
+      boolean anyAlive = false;
+      for (TunnelPath path : paths) {
+        anyAlive |= path.isAlive(now);
+      }
+      for (int i = 0; i < paths.size(); i++) {
+        TunnelPath path = paths.get(i);
+        if (anyAlive && !path.isAlive(now)) {
+          continue;
+        }
+        int weight = Math.max(1, path.getWeight());
+        path.currentWeight += weight;
+        total += weight;
+        if (best < 0 || path.currentWeight > paths.get(best).currentWeight) {
+          best = i;
+        }
+      }
+      paths.get(best).currentWeight -= total;
+      return best;
+    }
+  }
+
+  /**
+   * Sends small packets on every live path, so that losing one on a bad path doesn't stall a
+   * handshake or a DNS lookup, and the rest on the path with the lowest rtt. The receiving end
+   * drops the copies.
+   */
+  class Redundant implements PathScheduler {
+    // covers TCP handshakes and ACKs, and most DNS queries
+    public static final int DEFAULT_THRESHOLD = 200;
+    private final int threshold;
+    private final LowestRtt lowestRtt = new LowestRtt();
+
+    public Redundant(int threshold) {
+      this.threshold = threshold;
+    }
+
+    @Override
+    public int select(List<TunnelPath> paths, int length, long now) {
+      if (length <= threshold && paths.size() > 1) {
+        return ALL_PATHS;
+      }
+      return lowestRtt.select(paths, length, now);
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package network.grape.lib.multipath;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Puts the packets of a {@link MultipathTunnel} back in the order they were sent, since paths with
+ * different delays deliver them out of order, and TCP takes that as loss. Packets are numbered by
+ * the sender from one. A packet which arrives ahead of its turn waits in a ring until the ones
+ * before it arrive, or until it has waited too long and the missing ones are given up on, since
+ * they were most likely lost. Copies of a packet sent on more than one path are dropped.
+ *
+ * <p>After each {@link #offer} the caller takes every packet that is ready with {@link #poll}
+ * until there are none. A packet too far ahead to fit in the ring is parked, and polls then give
+ * up on the missing packets until it fits. A packet more than a few rings ahead is dropped, so a
+ * forged sequence number can't make the buffer give up on billions of packets, unless a run of
+ * them arrives with nothing in between, as after an outage longer than the ring, when the buffer
+ * starts again from the latest. Not thread safe, it belongs to the thread reading from the
+ * tunnel.</p>
+ */
+public class ReorderBuffer {
+  public static final int DEFAULT_SLOTS = 256;
+  public static final long DEFAULT_MAX_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+  // how many rings ahead a packet can be before it's dropped
+  public static final int MAX_AHEAD_RINGS = 4;
+
+  private final int mask;
+  private final long maxDelayNanos;
+  private final byte[][] slots;
+  private final int[] lengths;
+  private final boolean[] present;
+  private final int maxPacketSize;
+  private final int maxAhead;
+  // the sequence number of the packet to deliver next
+  private int next = 1;
+  private int waiting = 0;
+  // whether the packet at the head of the ring is missing, and since when
+  private boolean gap = false;
+  private long gapSince;
+  private byte[] parked;
+  private int parkedSeq;
+  private int parkedLength = -1;
+  // how many packets in a row have been too far ahead
+  private int tooFar = 0;
+  private final AtomicLong duplicates = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  public ReorderBuffer(int maxPacketSize) {
+    this(DEFAULT_SLOTS, DEFAULT_MAX_DELAY_NANOS, maxPacketSize);
+  }
+
+  /**
+   * Construct a reorder buffer.
+   *
+   * @param slots         how many packets can wait, a power of two
+   * @param maxDelayNanos how long to wait for a missing packet
+   * @param maxPacketSize the largest packet
+   */
+  public ReorderBuffer(int slots, long maxDelayNanos, int maxPacketSize) {
+    if (Integer.bitCount(slots) != 1) {
+      throw new IllegalArgumentException("Slots must be a power of two: " + slots);
+    }
+    mask = slots - 1;
+    maxAhead = slots * MAX_AHEAD_RINGS;
+    this.maxDelayNanos = maxDelayNanos;
+    this.maxPacketSize = maxPacketSize;
+    this.slots = new byte[slots][];
+    lengths = new int[slots];
+    present = new boolean[slots];
+  }
+
+  /**
+   * Whether the packet with this sequence number is the one to deliver next, with nothing waiting,
+   * in which case it can be delivered straight away and {@link #advance()} called instead of it
+   * being offered.
+   */
+  public boolean isNext(int seq) {
+    return seq == next && waiting == 0 && parkedLength < 0;
+  }
+
+  /**
+   * Moves on past the next packet, once it has been delivered without being offered.
+   */
+  public void advance() {
+    next++;
+    tooFar = 0;
+  }
+
+  /**
+   * Adds a packet to the buffer, unless it has already been delivered or is already waiting.
+   *
+   * @param seq    the sequence number from the frame
+   * @param data   the array holding the packet
+   * @param offset where the packet starts
+   * @param length the length of the packet
+   * @param now    the time now, from System.nanoTime()
+   */
+  public void offer(int seq, byte[] data, int offset, int length, long now) {
+    int ahead = seq - next;
+    if (ahead < 0 || length > maxPacketSize) {
+      duplicates.incrementAndGet();
+      return;
+    }
+    if (ahead > maxAhead) {
+      if (++tooFar <= mask) {
+        rejected.incrementAndGet();
+        return;
+      }
+      resync(seq);
+      ahead = 0;
+    }
+    tooFar = 0;
+    if (ahead > mask) {
+      if (parked == null) {
+        parked = new byte[maxPacketSize];
+      }
+      System.arraycopy(data, offset, parked, 0, length);
+      parkedSeq = seq;
+      parkedLength = length;
+      return;
+    }
+    store(seq, data, offset, length, now);
+  }
+
+  private void store(int seq, byte[] data, int offset, int length, long now) {
+    int slot = seq & mask;
+    if (present[slot]) {
+      duplicates.incrementAndGet();
+      return;
+    }
+    if (slots[slot] == null) {
+      slots[slot] = new byte[maxPacketSize];
+    }
+    System.arraycopy(data, offset, slots[slot], 0, length);
+    lengths[slot] = length;
+    present[slot] = true;
+    waiting++;
+    if (seq != next && !gap) {
+      gap = true;
+      gapSince = now;
+    }
+  }
+
+  /**
+   * Gives up on everything waiting and starts again from the given packet.
+   */
+  private void resync(int seq) {
+    skipped.addAndGet(seq - next);
+    for (int i = 0; i < present.length; i++) {
+      present[i] = false;
+    }
+    waiting = 0;
+    gap = false;
+    parkedLength = -1;
+    next = seq;
+  }
+
+  /**
+   * Takes the next packet if it's ready: it has arrived, or the ones before it have been waited
+   * for long enough.
+   *
+   * @param packet where to put the packet
+   * @param now    the time now, from System.nanoTime()
+   * @return the length of the packet, or -1 if there isn't one ready
+   */
+  public int poll(byte[] packet, long now) {
+    while (true) {
+      int slot = next & mask;
+      if (present[slot]) {
+        int length = lengths[slot];
+        System.arraycopy(slots[slot], 0, packet, 0, length);
+        present[slot] = false;
+        waiting--;
+        next++;
+        gap = waiting > 0 && !present[next & mask];
+        gapSince = now;
+        return length;
+      }
+      if (parkedLength >= 0 && parkedSeq - next <= mask) {
+        // there's room for the parked packet now
+        int length = parkedLength;
+        parkedLength = -1;
+        store(parkedSeq, parked, 0, length, now);
+        continue;
+      }
+      if (waiting == 0 && parkedLength < 0) {
+        return -1;
+      }
+      boolean expired = gap && now - gapSince >= maxDelayNanos;
+      if (!expired && parkedLength < 0) {
+        return -1;
+      }
+      // give up on the missing packet and move on to the one after it
+      skipped.incrementAndGet();
+      next++;
+    }
+  }
+
+  /**
+   * Whether any packets are waiting for the ones before them, in which case {@link #poll} should
+   * be called again within the max delay even if nothing else arrives.
+   */
+  public boolean hasWaiting() {
+    return waiting > 0 || parkedLength >= 0;
+  }
+
+  public long getMaxDelayNanos() {
+    return maxDelayNanos;
+  }
+
+  /**
+   * The number of packets dropped for having been delivered already.
+   */
+  public long getDuplicates() {
+    return duplicates.get();
+  }
+
+  /**
+   * The number of packets given up on.
+   */
+  public long getSkipped() {
+    return skipped.get();
+  }
+
+  /**
+   * The number of packets dropped for being too far ahead.
+   */
+  public long getRejected() {
+    return rejected.get();
+  }
+}
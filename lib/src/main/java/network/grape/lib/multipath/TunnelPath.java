@@ -0,0 +1,139 @@
+package network.grape.lib.multipath;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * One of the paths a {@link MultipathTunnel} can send on: on the client a socket bound to one of
+ * its local addresses, on the proxy one of the addresses a client's frames arrive from. Keeps the
+ * smoothed round trip time measured by the pings, and when the other end was last heard from, so
+ * the schedulers can pick between the paths and skip the ones which have gone quiet.
+ */
+public class TunnelPath {
+  // a path which hasn't been heard from for this long isn't used while there are others
+  public static final long DEAD_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+  @Getter private final int id;
+  private final DatagramChannel channel;
+  private final DatagramSocket socket;
+  @Getter private volatile SocketAddress remote;
+  private final DatagramPacket datagram;
+  // how much of the traffic weighted round robin sends this way
+  @Getter @Setter private volatile int weight = 1;
+  // smoothed rtt, as in RFC 6298, zero until the first pong
+  @Getter private volatile long rttNanos;
+  @Getter private volatile long lastHeard;
+  volatile long lastPing;
+  // for the smooth weighted round robin
+  int currentWeight;
+  private final AtomicLong packetsSent = new AtomicLong();
+  private final AtomicLong bytesSent = new AtomicLong();
+
+  /**
+   * Construct a path over its own channel, already connected to the other end. This is how the
+   * client's paths are made.
+   *
+   * @param id      the id the path is known by at both ends
+   * @param channel the connected channel
+   */
+  public TunnelPath(int id, DatagramChannel channel) throws IOException {
+    this.id = id;
+    this.channel = channel;
+    this.socket = null;
+    this.remote = channel.getRemoteAddress();
+    datagram = null;
+    lastHeard = System.nanoTime();
+  }
+
+  /**
+   * Construct a path over a shared socket to one remote address. This is how the proxy's paths
+   * back to a client are made.
+   *
+   * @param id     the id the path is known by at both ends
+   * @param socket the socket, which mustn't be connected
+   * @param remote where the other end of the path is
+   */
+  public TunnelPath(int id, DatagramSocket socket, SocketAddress remote) {
+    this.id = id;
+    this.channel = null;
+    this.socket = socket;
+    this.remote = remote;
+    datagram = new DatagramPacket(new byte[0], 0, remote);
+    lastHeard = System.nanoTime();
+  }
+
+  /**
+   * Sends a frame on the path.
+   *
+   * @param data   the array holding the frame
+   * @param offset where the frame starts
+   * @param length the length of the frame
+   * @throws IOException if sending fails
+   */
+  public void send(byte[] data, int offset, int length) throws IOException {
+    if (channel != null) {
+      channel.write(ByteBuffer.wrap(data, offset, length));
+    } else {
+      synchronized (datagram) {
+        datagram.setData(data, offset, length);
+        datagram.setSocketAddress(remote);
+        socket.send(datagram);
+      }
+    }
+    packetsSent.incrementAndGet();
+    bytesSent.addAndGet(length);
+  }
+
+  /**
+   * Notes that a frame arrived on the path, from the given address. The proxy follows the client
+   * to a new address, eg: after a NAT rebinding.
+   *
+   * @param from where the frame came from
+   * @param now  the time now, from System.nanoTime()
+   */
+  public void heard(SocketAddress from, long now) {
+    lastHeard = now;
+    if (socket != null && from != null && !from.equals(remote)) {
+      remote = from;
+    }
+  }
+
+  /**
+   * Adds a round trip time measurement to the smoothed rtt.
+   *
+   * @param sample the round trip time of a ping
+   */
+  public void updateRtt(long sample) {
+    long rtt = rttNanos;
+    rttNanos = rtt == 0 ? sample : rtt - (rtt >> 3) + (sample >> 3);
+  }
+
+  /**
+   * Whether the other end has been heard from recently on this path.
+   *
+   * @param now the time now, from System.nanoTime()
+   */
+  public boolean isAlive(long now) {
+    return now - lastHeard < DEAD_NANOS;
+  }
+
+  DatagramChannel getChannel() {
+    return channel;
+  }
+
+  public long getPacketsSent() {
+    return packetsSent.get();
+  }
+
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+}
@@ -59,6 +59,31 @@ public class IpPacketFactory {
     }
   }
 
+  /**
+   * Creates a fresh IpHeader for a packet between the two addresses: an Ip4Header if they are
+   * Inet4Address, and Ip6Header otherwise. The checksum is left at zero.
+   *
+   * @param source the source IP address of the packet
+   * @param destination the destination IP address of the packet
+   * @param protocol the protocol of the payload
+   * @param payloadLength the length of everything after the IP header
+   * @return the header
+   */
+  public static IpHeader createIpHeader(InetAddress source, InetAddress destination,
+                                        short protocol, int payloadLength) {
+    if (source instanceof Inet4Address) {
+      if (!(destination instanceof Inet4Address)) {
+        throw new IllegalArgumentException("Source is Ip4Address and Dest isn't");
+      }
+      short ihl = 5;
+      return new Ip4Header(IP4_VERSION, ihl, (short)0, (short)0, ihl * TCP_WORD_LEN + payloadLength, PacketUtil.getPacketId(), (short)0, 0, (short)64, protocol, 0, (Inet4Address)source, (Inet4Address)destination, new ArrayList<>());
+    }
+    if (!(destination instanceof Inet6Address)) {
+      throw new IllegalArgumentException("Source is Ip6Address and Dest isn't");
+    }
+    return new Ip6Header(IP6_VERSION, (short)0, PacketUtil.getPacketId(), payloadLength, protocol, (short)64, (Inet6Address)source, (Inet6Address)destination);
+  }
+
   /**
    * Encapsulates the data buffer with an IPHeader header and returns it as a buffer.
    * Will use an Ip4header if the InetAddress is Inet4Address, and Ip6Header otherwise.
@@ -73,26 +98,17 @@ public class IpPacketFactory {
     if (data != null) {
       datalen = data.length;
     }
-    IpHeader ipHeader;
+    IpHeader ipHeader = createIpHeader(source, destination, protocol, datalen);
     byte[] ipData;
     int totalLength;
-    if (source instanceof Inet4Address) {
-      if (!(destination instanceof Inet4Address)) {
-        throw new IllegalArgumentException("Source is Ip4Address and Dest isn't");
-      }
-      short ihl = 5;
-      ipHeader = new Ip4Header(IP4_VERSION, ihl, (short)0, (short)0, ihl * TCP_WORD_LEN + datalen, PacketUtil.getPacketId(), (short)0, 0, (short)64, protocol, 0, (Inet4Address)source, (Inet4Address)destination, new ArrayList<>());
+    if (ipHeader instanceof Ip4Header) {
       ipData = ipHeader.toByteArray();
       byte[] zero = {0x00, 0x00};
       System.arraycopy(zero, 0, ipData, 10, 2);
       byte[] ipChecksum = PacketUtil.calculateChecksum(ipData, 0, ipData.length);
       System.arraycopy(ipChecksum, 0, ipData, 10, 2);
-      totalLength = ihl * TCP_WORD_LEN + ipData.length + datalen;
+      totalLength = ipData.length + datalen;
     } else {
-      if (!(destination instanceof Inet6Address)) {
-        throw new IllegalArgumentException("Source is Ip6Address and Dest isn't");
-      }
-      ipHeader = new Ip6Header(IP6_VERSION, (short)0, PacketUtil.getPacketId(), datalen, protocol, (short)64, (Inet6Address)source, (Inet6Address)destination);
       ipData = ipHeader.toByteArray();
       totalLength = IP6HEADER_LEN + datalen;
     }
@@ -0,0 +1,223 @@
+package network.grape.lib.session;
+
+import java.io.OutputStream;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import network.grape.lib.PacketHeaderException;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.util.SpscQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads the packets read from the tunnel across several threads running the SessionHandler,
+ * the same way RSS does on a network card: the flow is hashed straight from the raw header bytes
+ * and every packet of a flow goes to the same thread, so packets within a flow are still handled
+ * in order while different flows (and their channel open / connect / register) run in parallel.
+ *
+ * <p>Each thread has its own single producer single consumer queue, fed by the one thread reading
+ * the tunnel, so handing over a packet takes no locks. {@link #dispatch} must only ever be called
+ * from that one thread. When a thread's queue is full the packet is dropped (and counted) rather
+ * than holding up every other flow behind it, the client's TCP retransmits it.</p>
+ *
+ * <p>UDP flows are hashed on the client's address and port only, since all the flows from one
+ * client socket can share a channel (see {@link UdpNatBinding}) and so have to be handled by the
+ * same thread. Fragmented IPv4 packets are hashed on the addresses alone, since only the first
+ * fragment carries the ports.</p>
+ */
+public class PacketDispatcher {
+  public static final int DEFAULT_QUEUE_SIZE = 1024;
+  // empty polls before a handler thread parks
+  private static final int SPIN_LIMIT = 64;
+
+  private final Logger logger = LoggerFactory.getLogger(PacketDispatcher.class);
+  private final SessionHandler handler;
+  private final Worker[] workers;
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean running;
+
+  public PacketDispatcher(SessionHandler handler, int threads) {
+    this(handler, threads, DEFAULT_QUEUE_SIZE);
+  }
+
+  /**
+   * Construct a dispatcher which spreads packets over the given number of threads.
+   *
+   * @param handler   the handler to run the packets through
+   * @param threads   how many handler threads to start
+   * @param queueSize how many packets can wait for each thread before packets are dropped
+   */
+  public PacketDispatcher(SessionHandler handler, int threads, int queueSize) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Need at least one handler thread: " + threads);
+    }
+    this.handler = handler;
+    workers = new Worker[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Worker(new SpscQueue<>(queueSize), i);
+    }
+  }
+
+  /**
+   * Starts the handler threads.
+   */
+  public void start() {
+    running = true;
+    for (Worker worker : workers) {
+      worker.thread.start();
+    }
+  }
+
+  /**
+   * Queues a packet for the thread its flow belongs to. The packet is copied, so the buffer can
+   * be reused as soon as this returns.
+   *
+   * @param packet       the packet, from its position to its limit
+   * @param outputStream the stream to write any responses back to the client on
+   * @return false if the packet was dropped because the thread's queue was full
+   */
+  public boolean dispatch(ByteBuffer packet, OutputStream outputStream) {
+    ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+    copy.put(packet.duplicate());
+    copy.flip();
+
+    Worker worker = workers[(flowHash(copy) & 0x7FFFFFFF) % workers.length];
+    if (!worker.queue.offer(new PendingPacket(copy, outputStream))) {
+      dropped.incrementAndGet();
+      return false;
+    }
+    if (worker.parked) {
+      LockSupport.unpark(worker.thread);
+    }
+    return true;
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public int getThreads() {
+    return workers.length;
+  }
+
+  /**
+   * Stops the handler threads. Packets still queued are dropped.
+   */
+  public void shutdown() {
+    running = false;
+    for (Worker worker : workers) {
+      LockSupport.unpark(worker.thread);
+    }
+  }
+
+  /**
+   * Hashes the flow a packet belongs to from its IP and transport headers.
+   *
+   * @param packet the packet, from its position to its limit. The position isn't changed.
+   * @return the hash, or 0 for anything which isn't a recognisable IPv4 or IPv6 packet
+   */
+  static int flowHash(ByteBuffer packet) {
+    int start = packet.position();
+    int length = packet.remaining();
+    if (length < 1) {
+      return 0;
+    }
+    int version = (packet.get(start) & 0xFF) >> 4;
+    int protocol;
+    int sourceHash = 0;
+    int destinationHash = 0;
+    int transportStart;
+    if (version == 4 && length >= 20) {
+      protocol = packet.get(start + 9) & 0xFF;
+      sourceHash = packet.getInt(start + 12);
+      destinationHash = packet.getInt(start + 16);
+      boolean fragment = (packet.getShort(start + 6) & 0x3FFF) != 0;
+      transportStart = fragment ? -1 : start + (packet.get(start) & 0x0F) * 4;
+    } else if (version == 6 && length >= 40) {
+      protocol = packet.get(start + 6) & 0xFF;
+      for (int i = 8; i < 24; i += 4) {
+        sourceHash = sourceHash * 31 + packet.getInt(start + i);
+        destinationHash = destinationHash * 31 + packet.getInt(start + i + 16);
+      }
+      transportStart = start + 40;
+    } else {
+      return 0;
+    }
+
+    boolean hasPorts = (protocol == TransportHeader.TCP_PROTOCOL
+        || protocol == TransportHeader.UDP_PROTOCOL)
+        && transportStart >= 0 && transportStart + 4 <= start + length;
+    int hash;
+    if (hasPorts && protocol == TransportHeader.UDP_PROTOCOL) {
+      int sourcePort = packet.getShort(transportStart) & 0xFFFF;
+      hash = (sourceHash * 31 + protocol) * 31 + sourcePort;
+    } else if (hasPorts) {
+      int ports = packet.getInt(transportStart);
+      hash = ((sourceHash * 31 + destinationHash) * 31 + protocol) * 31 + ports;
+    } else {
+      hash = (sourceHash * 31 + destinationHash) * 31 + protocol;
+    }
+
+    // murmur3 finalizer, so that nearby addresses and ports still spread over all the threads
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+
+  private static final class PendingPacket {
+    private final ByteBuffer packet;
+    private final OutputStream outputStream;
+
+    private PendingPacket(ByteBuffer packet, OutputStream outputStream) {
+      this.packet = packet;
+      this.outputStream = outputStream;
+    }
+  }
+
+  private final class Worker implements Runnable {
+    private final SpscQueue<PendingPacket> queue;
+    private final Thread thread;
+    private volatile boolean parked = false;
+
+    private Worker(SpscQueue<PendingPacket> queue, int index) {
+      this.queue = queue;
+      thread = new Thread(this, "packet-handler-" + index);
+      thread.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      int idle = 0;
+      while (running) {
+        PendingPacket pending = queue.poll();
+        if (pending == null) {
+          if (++idle < SPIN_LIMIT) {
+            Thread.yield();
+            continue;
+          }
+          parked = true;
+          // checked again after setting parked, the dispatcher only unparks threads it sees parked
+          if (queue.isEmpty() && running) {
+            LockSupport.park(this);
+          }
+          parked = false;
+          continue;
+        }
+        idle = 0;
+        try {
+          handler.handlePacket(pending.packet, pending.outputStream);
+        } catch (PacketHeaderException | UnknownHostException ex) {
+          logger.error(ex.toString());
+        } catch (RuntimeException ex) {
+          // one bad packet mustn't take every flow on this thread down with it
+          logger.error("Error handling packet: " + ex.toString());
+        }
+      }
+    }
+  }
+}
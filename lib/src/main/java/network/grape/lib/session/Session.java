@@ -1,90 +1,60 @@
 package network.grape.lib.session;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.ArrayDeque;
+import java.util.function.IntConsumer;
 import lombok.Getter;
 import lombok.Setter;
 import network.grape.lib.network.ip.IpHeader;
 import network.grape.lib.transport.TransportHeader;
-import network.grape.lib.util.Constants;
-import network.grape.lib.util.PacketDumper;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Everything related to an outgoing TCP session from the phone to the destination.
- * <p>
- * Probably can split into:
- * - Generalized session with common stuff
- * - UDP session (with very little)
- * - TCP session (with a bunch of tcp related stuff).
- * </p>
+ * Everything common to a flow from the phone to a destination: who it's between, the channel to
+ * the destination and the data from the client waiting to be written to it. The protocol specific
+ * state is in {@link UdpSession} and {@link TcpSession}.
+ *
+ * <p>There can be tens of thousands of these at once, most of them idle, so a session only holds
+ * what it needs: no logger or files of its own, and buffers which are only allocated once there's
+ * data to put in them.</p>
  */
-public class Session {
-  private final Logger logger = LoggerFactory.getLogger(Session.class);
+public abstract class Session {
+  private static final Logger logger = LoggerFactory.getLogger(Session.class);
 
-  @Getter private InetAddress sourceIp;
-  @Getter private InetAddress destinationIp;
-  @Getter private int sourcePort;
-  @Getter private int destinationPort;
-  @Getter private short protocol;
+  @Getter private final InetAddress sourceIp;
+  @Getter private final InetAddress destinationIp;
+  @Getter private final int sourcePort;
+  @Getter private final int destinationPort;
+  @Getter private final short protocol;
 
-  @Setter @Getter private IpHeader lastIpHeader;
-  @Setter @Getter private TransportHeader lastTransportHeader;
   @Setter @Getter private SelectionKey selectionKey;
+  //told about subscribeKey calls when a SessionEngine serves the channel instead of the selector
+  @Getter @Setter private volatile IntConsumer interestListener;
   @Setter @Getter private AbstractSelectableChannel channel;
   @Getter @Setter private OutputStream outputStream; //outputstream back to the client
+  //shared channel when udp flows use endpoint-independent nat, null for a channel of its own
+  @Getter @Setter private UdpNatBinding udpNatBinding;
 
   @Getter @Setter private boolean connected = false;
   //closing session and aborting connection, will be done by background task
   @Getter @Setter private volatile boolean abortingConnection = false;
-  //indicate that this session is currently being worked on by some SocketDataWorker already
-  @Getter @Setter private volatile boolean busyRead = false;
-  @Getter @Setter private volatile boolean busyWrite = false;
   //indicate data from client is ready for sending to destination
   @Getter @Setter private boolean dataForSendingReady = false;
 
   @Getter @Setter private long connectionStartTime = 0;
 
-  // tcp stuff
-  @Getter @Setter private long recSequence = 0; // the last received seq number
-  @Getter @Setter private boolean closingConnection = false;
-  @Getter @Setter private boolean ackedToFin = false;
-  // in ACK packet from client, if the previous packet was corrupted,
-  // client will send flag in options field
-  @Getter @Setter private boolean packetCorrupted = false;
-  //track ack we sent to client and waiting for ack back from client
-  @Getter @Setter private long sendUnack = 0;
-  @Getter @Setter private boolean acked = false; //last packet was acked yet?
-  @Getter @Setter private long sendNext = 0; // the next sequence number to send
-  @Getter @Setter private int sendWindow = 0; //window = windowsize x windowscale
-  @Getter @Setter private int sendWindowSize = 0;
-  @Getter @Setter private int sendWindowScale = 0;
-  @Getter @Setter private int timestampSender = 0;
-  @Getter @Setter private int timestampReplyTo = 0;
-
-  //sent by client during SYN inside tcp options
-  @Getter @Setter private int maxSegmentSize = 0;
-
-  //track how many byte of data has been sent since last ACK from client
-  private final Object syncSendAmount = new Object();
-  private volatile int sendAmountSinceLastAck = 0;
-
-  private ByteArrayOutputStream sendingStream;
-  private ByteArrayOutputStream receivingStream;
-  @Getter @Setter private boolean hasReceivedLastSegment = false;
-  @Getter @Setter private byte[] unackData = null;
-
-  //track how many time a packet has been retransmitted => avoid loop
-  @Getter @Setter private int resendPacketCounter = 0;
-  @Getter @Setter private PacketDumper packetDumper;
+  // data from the client waiting to be written to the destination. Each entry is a slice of a
+  // packet payload, so a partial write just leaves the position advanced on the head slice.
+  // Created with the first slice.
+  private ArrayDeque<ByteBuffer> sendingQueue;
+  private volatile int sendingQueueSize = 0;
 
   /**
    * Construct a session with the given identifying properties which are used to form the key in the
@@ -101,28 +71,35 @@ public class Session {
    *                        FileOutputStream given from the VPN. Otherwise its the Socket
    *                        outputstream if running as a VPN server on the cloud.
    */
-  public Session(InetAddress sourceIp, int sourcePort, InetAddress destinationIp,
-                 int destinationPort, short protocol, OutputStream outputstream) {
+  protected Session(InetAddress sourceIp, int sourcePort, InetAddress destinationIp,
+                    int destinationPort, short protocol, OutputStream outputstream) {
     this.sourceIp = sourceIp;
     this.destinationIp = destinationIp;
     this.sourcePort = sourcePort;
     this.destinationPort = destinationPort;
     this.protocol = protocol;
     this.outputStream = outputstream;
-
-    sendingStream = new ByteArrayOutputStream();
-    receivingStream = new ByteArrayOutputStream();
-    String filename = "/tmp/output-" + sourceIp.getHostAddress() + "-" + sourcePort + "-" + destinationIp.getHostAddress() + "-" + destinationPort + ".dump";
-    try {
-      packetDumper = new PacketDumper(filename, PacketDumper.OutputFormat.ASCII_HEXDUMP);
-    } catch (FileNotFoundException ex) {
-      logger.warn("Packet dumper can't open file: " + filename);
-    }
   }
 
-  public void setSendNext(long next) {
-    logger.debug("SETTING SEND NEXT FROM: {} TO: {}", sendNext, next);
-    sendNext = next;
+  /**
+   * The IP header to build packets back to the client from. Taken from the client's packets, so
+   * the source and destination are still the client's way around.
+   */
+  public abstract IpHeader getLastIpHeader();
+
+  /**
+   * The transport header to build packets back to the client from, the client's way around.
+   */
+  public abstract TransportHeader getLastTransportHeader();
+
+  /**
+   * Whether the client can't take any more data from the destination right now, in which case
+   * reading from the destination waits. Only TCP has a window, UDP is never full.
+   *
+   * @return true if reading from the destination should wait
+   */
+  public boolean isClientWindowFull() {
+    return false;
   }
 
   public String getKey() {
@@ -133,10 +110,18 @@ public class Session {
   synchronized int appendOutboundData(ByteBuffer data) {
     final int remaining = data.remaining();
     logger.info("POS: {} REMAINING: {}", data.position(), data.remaining());
-    sendingStream.write(data.array(), data.position(), data.remaining());
+    // copy out since the packet buffer is re-used for the next packet read from the VPN
+    ByteBuffer slice = ByteBuffer.allocate(remaining);
+    slice.put(data.duplicate());
+    slice.flip();
+    if (sendingQueue == null) {
+      sendingQueue = new ArrayDeque<>(4);
+    }
+    sendingQueue.addLast(slice);
+    sendingQueueSize += remaining;
     logger.info(
         "Enqueued: " + remaining + " bytes in the outbound queue for " + this + " total size: "
-            + sendingStream.size());
+            + sendingQueueSize);
     return remaining;
   }
 
@@ -146,7 +131,7 @@ public class Session {
    * @return boolean true if there is data to be sent, false otherwise.
    */
   public boolean hasDataToSend() {
-    return sendingStream.size() > 0;
+    return sendingQueueSize > 0;
   }
 
   /**
@@ -155,104 +140,134 @@ public class Session {
    * @return the size of the sending buffer.
    */
   public int getSendingDataSize() {
-    return sendingStream.size();
+    return sendingQueueSize;
   }
 
   /**
-   * Dequeue data for sending to server.
+   * Dequeue all data for sending to server.
    *
    * @return byte[] a byte array of data to be sent
    */
   public synchronized byte[] getSendingData() {
-    byte[] data = sendingStream.toByteArray();
-    sendingStream.reset();
+    byte[] data = new byte[sendingQueueSize];
+    if (sendingQueue == null) {
+      return data;
+    }
+    int offset = 0;
+    for (ByteBuffer slice : sendingQueue) {
+      int len = slice.remaining();
+      slice.get(data, offset, len);
+      offset += len;
+    }
+    // an idle session doesn't keep the queue around
+    sendingQueue = null;
+    sendingQueueSize = 0;
     return data;
   }
 
-  @Override
-  public String toString() {
-    return "Session (" + getKey() + ")";
-  }
-
-  ///// tcp only stuff:
-  void setSendWindowSizeAndScale(int sendWindowSize, int sendWindowScale) {
-    this.sendWindowSize = sendWindowSize;
-    this.sendWindowScale = sendWindowScale;
-    this.sendWindow = sendWindowSize * sendWindowScale;
-  }
-
   /**
-   * Increase the value of sendAmountSinceLastAck to keep track of when the client TCP window is
-   * becoming full.
+   * Returns the queued outbound slices without removing them so they can be handed to a gathering
+   * write. Once the write is done, {@link #consumeSendingData(long)} should be called with the
+   * number of bytes actually written.
    *
-   * @param amount the amount to increase by
+   * @return the queued outbound slices, in order
    */
-  public void trackAmountSentSinceLastAck(int amount) {
-    synchronized (syncSendAmount) {
-      sendAmountSinceLastAck += amount;
+  public synchronized ByteBuffer[] getSendingBuffers() {
+    if (sendingQueue == null) {
+      return new ByteBuffer[0];
     }
+    return sendingQueue.toArray(new ByteBuffer[0]);
   }
 
   /**
-   * Decrease value of sendAmountSinceLastAck so that client's window is not full.
+   * Returns the slice at the head of the outbound queue without removing it, or null if there is
+   * nothing queued. Useful for UDP where each slice is sent as its own datagram.
    *
-   * @param amount the amount to decrease by
+   * @return the slice at the head of the outbound queue
    */
-  synchronized void decreaseAmountSentSinceLastAck(long amount) {
-    sendAmountSinceLastAck -= amount;
-    if (sendAmountSinceLastAck < 0) {
-      logger.error("Amount data to be decreased is over than its window.");
-      sendAmountSinceLastAck = 0;
-    }
+  public synchronized ByteBuffer peekSendingBuffer() {
+    return sendingQueue == null ? null : sendingQueue.peekFirst();
   }
 
   /**
-   * Determine if client's receiving window is full or not.
+   * Drops the slices which have been fully written from the head of the outbound queue. A slice
+   * which was only partially written stays at the head with its position advanced.
    *
-   * @return boolean
+   * @param amount the number of bytes which were written out of the queued slices
    */
-  public boolean isClientWindowFull() {
-    return (sendWindow > 0 && sendAmountSinceLastAck >= sendWindow)
-        || (sendWindow == 0 && sendAmountSinceLastAck > Constants.MAX_RECEIVE_BUFFER_SIZE);
+  public synchronized void consumeSendingData(long amount) {
+    sendingQueueSize -= amount;
+    if (sendingQueue == null) {
+      sendingQueueSize = 0;
+      return;
+    }
+    while (!sendingQueue.isEmpty() && !sendingQueue.peekFirst().hasRemaining()) {
+      sendingQueue.pollFirst();
+    }
+    if (sendingQueue.isEmpty()) {
+      sendingQueue = null;
+      sendingQueueSize = 0;
+    }
   }
 
   /**
-   * Buffer has more data for vpn client.
+   * Adds the given operations to the interest set of the selection key for this session and wakes
+   * up the selector so that the change is picked up by the next select. This should be called
+   * whenever there is something new to do, ie) outbound data has been queued (OP_WRITE), or the
+   * client window has opened up again (OP_READ).
    *
-   * @return boolean
+   * @param ops the SelectionKey operations to add to the interest set
    */
-  public boolean hasReceivedData() {
-    return receivingStream.size() > 0;
+  public void subscribeKey(int ops) {
+    final IntConsumer listener = interestListener;
+    if (listener != null) {
+      listener.accept(ops);
+    }
+    final SelectionKey key = selectionKey;
+    if (key == null) {
+      return;
+    }
+    try {
+      // guards the read-modify-write from the worker threads. Lock on the key itself since it can
+      // be shared by several sessions (see UdpNatBinding)
+      synchronized (key) {
+        int interestOps = key.interestOps();
+        if ((interestOps & ops) == ops) {
+          return;
+        }
+        key.interestOps(interestOps | ops);
+      }
+      key.selector().wakeup();
+    } catch (CancelledKeyException ex) {
+      logger.debug("Tried to subscribe to a cancelled key for session: " + this);
+    }
   }
 
   /**
-   * Append more data.
+   * Removes the given operations from the interest set of the selection key for this session. No
+   * need to wake the selector here, at worst it returns once more with the stale readiness.
    *
-   * @param data Data
+   * @param ops the SelectionKey operations to remove from the interest set
    */
-  public synchronized void addReceivedData(byte[] data) {
+  public void unsubscribeKey(int ops) {
+    final SelectionKey key = selectionKey;
+    if (key == null) {
+      return;
+    }
     try {
-      receivingStream.write(data);
-    } catch (IOException e) {
-      logger.error("Error writing to the receiving stream: " + e.toString());
+      synchronized (key) {
+        int interestOps = key.interestOps();
+        if ((interestOps & ops) != 0) {
+          key.interestOps(interestOps & ~ops);
+        }
+      }
+    } catch (CancelledKeyException ex) {
+      logger.debug("Tried to unsubscribe from a cancelled key for session: " + this);
     }
   }
 
-  /**
-   * Get all data received in the buffer and empty it.
-   *
-   * @return byte[]
-   */
-  public synchronized byte[] getReceivedData(int maxSize) {
-    byte[] data = receivingStream.toByteArray();
-    receivingStream.reset();
-    if (data.length > maxSize) {
-      byte[] small = new byte[maxSize];
-      System.arraycopy(data, 0, small, 0, maxSize);
-      int len = data.length - maxSize;
-      receivingStream.write(data, maxSize, len);
-      data = small;
-    }
-    return data;
+  @Override
+  public String toString() {
+    return "Session (" + getKey() + ")";
   }
 }
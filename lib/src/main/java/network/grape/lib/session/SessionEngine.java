@@ -0,0 +1,35 @@
+package network.grape.lib.session;
+
+import java.io.IOException;
+
+/**
+ * Serves the channels of the sessions instead of the VpnWriter's selector. With an engine set on
+ * the SessionHandler the channels it opens are never registered with the selector, they are handed
+ * to the engine once the session has been added to the SessionManager. The engine reports connect
+ * results the same way the VpnWriter does, and wants to know about {@link Session#subscribeKey}
+ * calls through {@link Session#setInterestListener}.
+ */
+public interface SessionEngine {
+  /**
+   * Starts serving a new session. The channel is already open, and for TCP may still be connecting.
+   * For a session on a shared UDP channel only the writes are the session's, the reads are done
+   * for the whole channel (see {@link #attachUdpNatBinding}).
+   *
+   * @param session the session, already in the SessionManager
+   * @throws IOException if the channel can't be served
+   */
+  void attach(Session session) throws IOException;
+
+  /**
+   * Starts reading from a shared UDP channel for all of the sessions on it.
+   *
+   * @param binding the binding, already in the SessionManager
+   * @throws IOException if the channel can't be served
+   */
+  void attachUdpNatBinding(UdpNatBinding binding) throws IOException;
+
+  /**
+   * Stops serving every session.
+   */
+  void shutdown();
+}
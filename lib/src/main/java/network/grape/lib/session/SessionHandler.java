@@ -8,7 +8,11 @@ import static network.grape.lib.transport.tcp.TcpPacketFactory.createAckData;
 import static network.grape.lib.transport.tcp.TcpPacketFactory.createPacketData;
 import static network.grape.lib.transport.tcp.TcpPacketFactory.createResponseAckData;
 import static network.grape.lib.transport.tcp.TcpPacketFactory.createRstData;
+import static network.grape.lib.util.Constants.DEFAULT_MSS_IP4;
+import static network.grape.lib.util.Constants.DEFAULT_MSS_IP6;
+import static network.grape.lib.util.Constants.DEFAULT_TUNNEL_MTU;
 import static network.grape.lib.util.Constants.MAX_RECEIVE_BUFFER_SIZE;
+import static network.grape.lib.util.Constants.TUNNEL_OVERHEAD_NONE;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -26,11 +30,20 @@ import java.nio.channels.SocketChannel;
 import java.util.List;
 import java.util.Random;
 
+import lombok.Getter;
+import lombok.Setter;
 import network.grape.lib.PacketHeaderException;
+import network.grape.lib.dns.DnsForwarder;
+import network.grape.lib.metrics.PipelineMetrics;
+import network.grape.lib.metrics.PipelineTracer;
 import network.grape.lib.network.ip.Ip4Header;
 import network.grape.lib.network.ip.Ip6Header;
 import network.grape.lib.network.ip.IpHeader;
 import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.icmp.IcmpEchoProxy;
+import network.grape.lib.transport.icmp.IcmpHeader;
+import network.grape.lib.transport.icmp.IcmpPacketFactory;
+import network.grape.lib.transport.tcp.SynCookies;
 import network.grape.lib.transport.tcp.TcpHeader;
 import network.grape.lib.transport.udp.UdpHeader;
 import network.grape.lib.util.BufferUtil;
@@ -45,12 +58,42 @@ import org.slf4j.LoggerFactory;
  * established for the given (src IP, src port, dest IP, dest port, protocol) tuple.
  */
 public class SessionHandler {
+  // how long the connect to the destination gets before the client is sent an RST
+  public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+  public static final int DEFAULT_MAX_HALF_OPEN = 256;
+
   private final Logger logger = LoggerFactory.getLogger(SessionHandler.class);
   private final SocketProtector protector;
   private final Selector selector;
   private final SessionManager sessionManager;
   private final List<InetAddress> filterTo;
   private final VpnWriter vpnWriter;
+  // mtu of the path between the vpn client and this handler, and how much of it is taken up by
+  // encapsulation (ie: the outer ip + udp headers when the packets are tunnelled to a proxy)
+  @Getter @Setter private volatile int tunnelMtu = DEFAULT_TUNNEL_MTU;
+  @Getter @Setter private volatile int tunnelOverhead = TUNNEL_OVERHEAD_NONE;
+  // udp flows from the same client socket share one unconnected channel, see UdpNatBinding
+  @Getter @Setter private volatile boolean udpNatEnabled = false;
+  // when set, dns queries are answered from a cache or forwarded without a session of their own
+  @Getter @Setter private volatile DnsForwarder dnsForwarder;
+  // when set, echo requests (ping) are answered through this, otherwise they are dropped
+  @Getter @Setter private volatile IcmpEchoProxy icmpEchoProxy;
+  // when set, the SYN-ACK is only sent once the destination has accepted the connection, so the
+  // client's handshake fails the same way the real one did
+  @Getter @Setter private volatile boolean deferSynAck = false;
+  @Getter @Setter private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+  // sessions connecting to the destination at once, beyond this new connections are turned away
+  @Getter @Setter private volatile int maxHalfOpen = DEFAULT_MAX_HALF_OPEN;
+  // when set, SYNs are answered with a cookie and the session is only created on the final ACK.
+  // This takes precedence over deferSynAck, since nothing is left to send the SYN-ACK from.
+  @Getter @Setter private volatile SynCookies synCookies;
+  // when set, serves the sessions' channels (eg: with a thread per flow) instead of the selector
+  @Getter @Setter private volatile SessionEngine engine;
+  @Getter private final SessionTimer timer = new SessionTimer();
+  // when set, each packet handled and session created is counted and timed
+  @Getter @Setter private volatile PipelineMetrics metrics;
+  // when set, each packet handled, session created and connect is traced, see PipelineTracer
+  @Getter @Setter private volatile PipelineTracer tracer;
 
   /**
    * Construct a SessionHandler with a SessionManager to keep track of sessions and SocketProtector
@@ -77,6 +120,39 @@ public class SessionHandler {
    * @param outputstream the outputstream to write responses back to
    */
   public void handlePacket(ByteBuffer stream, OutputStream outputstream) throws PacketHeaderException, UnknownHostException {
+    PipelineMetrics current = metrics;
+    PipelineTracer currentTracer = activeTracer();
+    if (current == null && currentTracer == null) {
+      parsePacket(stream, outputstream);
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      parsePacket(stream, outputstream);
+    } catch (PacketHeaderException | RuntimeException ex) {
+      if (current != null) {
+        current.getPacketErrors().increment();
+      }
+      throw ex;
+    } finally {
+      long duration = System.nanoTime() - start;
+      if (current != null) {
+        current.getPacketsHandled().increment();
+        current.getBytesHandled().add(stream.limit());
+        current.getHandleLatency().observe(duration);
+      }
+      if (currentTracer != null) {
+        currentTracer.packetHandled(stream, duration);
+      }
+    }
+  }
+
+  private PipelineTracer activeTracer() {
+    PipelineTracer current = tracer;
+    return current != null && current.isActive() ? current : null;
+  }
+
+  private void parsePacket(ByteBuffer stream, OutputStream outputstream) throws PacketHeaderException, UnknownHostException {
     stream.rewind();
     if (stream.remaining() < 1) {
       throw new PacketHeaderException("Need at least a single byte to determine the packet type");
@@ -115,6 +191,8 @@ public class SessionHandler {
       transportHeader = TcpHeader.parseBuffer(stream);
       logger.info("TCP from port: {} to {} \n {}", transportHeader.getSourcePort(), transportHeader.getDestinationPort(), transportHeader);
       handleTcpPacket(stream, ipHeader, (TcpHeader) transportHeader, outputstream);
+    } else if (IcmpHeader.isIcmp(ipHeader)) {
+      handleIcmpPacket(stream, ipHeader, IcmpHeader.parseBuffer(stream), outputstream);
     } else {
       String protocol = "00 00";
       if (version == IP4_VERSION) {
@@ -128,7 +206,53 @@ public class SessionHandler {
     }
   }
 
+  protected void handleIcmpPacket(ByteBuffer payload, IpHeader ipHeader, IcmpHeader icmpHeader,
+                                  OutputStream outputStream) {
+    if (!icmpHeader.isEchoRequest()) {
+      // errors from the client's own stack and ipv6 neighbour discovery have nowhere to go
+      logger.debug("Dropping ICMP type {} code {} to {}", icmpHeader.getType(),
+          icmpHeader.getCode(), ipHeader.getDestinationAddress());
+      return;
+    }
+    IcmpEchoProxy echoProxy = icmpEchoProxy;
+    if (echoProxy == null) {
+      logger.debug("Dropping echo request to {}", ipHeader.getDestinationAddress());
+      return;
+    }
+    byte[] data = new byte[payload.remaining()];
+    payload.get(data);
+    echoProxy.handleEchoRequest(ipHeader, icmpHeader, data, outputStream);
+  }
+
+  /**
+   * Tells the client straight away that a packet it sent can't be delivered, so the application
+   * can give up (or try another address) instead of waiting on its own timeouts.
+   *
+   * @param ipHeader        the IP header of the packet which couldn't be delivered
+   * @param transportHeader the transport header of the packet which couldn't be delivered
+   * @param outputStream    the stream to write the error back to the VPN client on
+   * @param portUnreachable true if nothing is listening on the port, false if the host itself
+   *                        couldn't be reached
+   */
+  protected void sendUnreachable(IpHeader ipHeader, TransportHeader transportHeader,
+                                 OutputStream outputStream, boolean portUnreachable) {
+    byte[] data = IcmpPacketFactory.createUnreachableData(ipHeader, transportHeader,
+        portUnreachable);
+    try {
+      outputStream.write(data);
+      outputStream.flush();
+    } catch (IOException ex) {
+      logger.error("Failed to write ICMP unreachable to the VPN client: " + ex.toString());
+    }
+  }
+
   protected void handleUdpPacket(ByteBuffer payload, IpHeader ipHeader, UdpHeader udpHeader, OutputStream outputStream) {
+    DnsForwarder forwarder = dnsForwarder;
+    if (forwarder != null && DnsForwarder.isDnsQuery(udpHeader)
+        && forwarder.handleQuery(ipHeader, udpHeader, payload, outputStream)) {
+      return;
+    }
+
     // try to find an existing session
     Session session = sessionManager.getSession(ipHeader.getSourceAddress(),
         udpHeader.getSourcePort(),
@@ -137,77 +261,172 @@ public class SessionHandler {
 
     // otherwise create a new one
     if (session == null) {
-      session = new Session(ipHeader.getSourceAddress(), udpHeader.getSourcePort(),
-          ipHeader.getDestinationAddress(),
-          udpHeader.getDestinationPort(), TransportHeader.UDP_PROTOCOL, outputStream);
+      session = new UdpSession(ipHeader.getSourceAddress(), udpHeader.getSourcePort(),
+          ipHeader.getDestinationAddress(), udpHeader.getDestinationPort(), outputStream);
 
-      DatagramChannel channel;
-      try {
-        channel = prepareDatagramChannel();
-      } catch (IOException ex) {
-        logger.error("Error creating datagram channel for session: " + session);
-        return;
-      }
+      if (udpNatEnabled) {
+        if (!attachUdpNatBinding(session)) {
+          return;
+        }
+      } else {
+        DatagramChannel channel;
+        try {
+          channel = prepareDatagramChannel();
+        } catch (IOException ex) {
+          logger.error("Error creating datagram channel for session: " + session);
+          return;
+        }
 
-      // apparently making a proper connection lowers latency with UDP - might want to verify this
-      SocketAddress socketAddress =
-          new InetSocketAddress(ipHeader.getDestinationAddress(), udpHeader.getDestinationPort());
-      try {
-        channel.connect(socketAddress);
-        session.setConnected(channel.isConnected());
-      } catch (IOException ex) {
-        logger.error("Error connection on UDP channel " + session + ":" + ex.toString());
-        ex.printStackTrace();
-        return;
-      }
+        // apparently making a proper connection lowers latency with UDP - might want to verify
+        // this
+        SocketAddress socketAddress =
+            new InetSocketAddress(ipHeader.getDestinationAddress(), udpHeader.getDestinationPort());
+        try {
+          channel.connect(socketAddress);
+          session.setConnected(channel.isConnected());
+        } catch (IOException ex) {
+          logger.error("Error connection on UDP channel " + session + ":" + ex.toString());
+          ex.printStackTrace();
+          sendUnreachable(ipHeader, udpHeader, outputStream, false);
+          return;
+        }
 
-      try {
-        // we sync on this so that we don't add to the selection set while its been used
-        Object selectionLock = vpnWriter.getSyncSelector2();
-        synchronized (selectionLock) {
-          selector.wakeup();
-          // we sync on this so that the other thread doesn't call select() while we are doing this
-          Object readWriteLock = vpnWriter.getSyncSelector();
-          synchronized (readWriteLock) {
-            SelectionKey selectionKey;
-            if (channel.isConnected()) {
-              selectionKey =
-                  channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-            } else {
-              selectionKey = channel.register(selector,
-                  SelectionKey.OP_CONNECT | SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        // with an engine the channel is handed over once the session is in the session manager
+        if (engine == null) {
+          try {
+            // we sync on this so that we don't add to the selection set while its been used
+            Object selectionLock = vpnWriter.getSyncSelector2();
+            synchronized (selectionLock) {
+              selector.wakeup();
+              // we sync on this so that the other thread doesn't call select() while we are doing
+              // this
+              Object readWriteLock = vpnWriter.getSyncSelector();
+              synchronized (readWriteLock) {
+                // OP_WRITE is only added once there is data queued, otherwise the selector returns
+                // immediately on every select since the socket is almost always writable
+                SelectionKey selectionKey;
+                if (channel.isConnected()) {
+                  selectionKey = channel.register(selector, SelectionKey.OP_READ);
+                } else {
+                  selectionKey = channel.register(selector,
+                      SelectionKey.OP_CONNECT | SelectionKey.OP_READ);
+                }
+                session.setSelectionKey(selectionKey);
+                logger.info("Registered UDP selector successfully for sesion: " + session);
+              }
             }
-            session.setSelectionKey(selectionKey);
-            logger.info("Registered UDP selector successfully for sesion: " + session);
+          } catch (ClosedChannelException ex) {
+            ex.printStackTrace();
+            logger.error("Failed to register udp channel with selector: " + ex.getMessage());
+            return;
           }
         }
-      } catch (ClosedChannelException ex) {
-        ex.printStackTrace();
-        logger.error("Failed to register udp channel with selector: " + ex.getMessage());
-        return;
+        session.setChannel(channel);
       }
-      session.setChannel(channel);
 
       if (!sessionManager.putSession(session)) {
         // just in case we fail to add it (we should hopefully never get here)
         logger.error("Unable to create a new session in the session manager for " + session);
         return;
       }
+      sessionCreated(session);
+      if (!attachToEngine(session)) {
+        return;
+      }
     }
 
-    session.setLastIpHeader(ipHeader);
-    session.setLastTransportHeader(udpHeader);
 
     int payloadSize = payload.limit() - payload.position();
     if (payloadSize > 0) {
       session.appendOutboundData(payload);
       session.setDataForSendingReady(true);
+      session.subscribeKey(SelectionKey.OP_WRITE);
       logger.info("added UDP data for bg worker to send: " + payloadSize);
     }
 
     // todo: keep-alive?
   }
 
+  /**
+   * Puts a new UDP session on the shared channel for its client source address and port, opening
+   * and registering the channel if this is the first flow from that client socket.
+   *
+   * @param session the new session
+   * @return true if the session was attached, false if the channel couldn't be set up
+   */
+  protected boolean attachUdpNatBinding(Session session) {
+    UdpNatBinding binding = sessionManager.getUdpNatBinding(session.getSourceIp(),
+        session.getSourcePort());
+    if (binding == null) {
+      DatagramChannel channel;
+      try {
+        channel = prepareDatagramChannel();
+        channel.bind(null);
+      } catch (IOException ex) {
+        logger.error("Error creating shared datagram channel for session: " + session);
+        return false;
+      }
+      binding = new UdpNatBinding(session.getSourceIp(), session.getSourcePort(), channel);
+      if (engine == null) {
+        try {
+          // we sync on this so that we don't add to the selection set while its been used
+          Object selectionLock = vpnWriter.getSyncSelector2();
+          synchronized (selectionLock) {
+            selector.wakeup();
+            // we sync on this so that the other thread doesn't call select() while we are doing
+            // this
+            Object readWriteLock = vpnWriter.getSyncSelector();
+            synchronized (readWriteLock) {
+              // the binding is attached so the VpnWriter can tell the shared channels apart
+              binding.setSelectionKey(channel.register(selector, SelectionKey.OP_READ, binding));
+            }
+          }
+        } catch (ClosedChannelException ex) {
+          logger.error("Failed to register shared udp channel with selector: " + ex.getMessage());
+          return false;
+        }
+      } else {
+        // if another handler thread wins the race below the channel is closed, which also stops
+        // the engine reading it
+        try {
+          engine.attachUdpNatBinding(binding);
+        } catch (IOException ex) {
+          logger.error("Engine failed to take the shared udp channel: " + ex.toString());
+          try {
+            channel.close();
+          } catch (IOException e) {
+            logger.error("Error closing datagram channel: " + e.toString());
+          }
+          return false;
+        }
+      }
+      if (!sessionManager.putUdpNatBinding(binding)) {
+        // another handler thread opened one for the same client socket first, use that instead
+        if (binding.getSelectionKey() != null) {
+          binding.getSelectionKey().cancel();
+        }
+        try {
+          channel.close();
+        } catch (IOException ex) {
+          logger.error("Error closing duplicate datagram channel: " + ex.toString());
+        }
+        binding = sessionManager.getUdpNatBinding(session.getSourceIp(), session.getSourcePort());
+        if (binding == null) {
+          return false;
+        }
+      } else {
+        logger.info("Opened shared UDP channel for " + binding.getKey());
+      }
+    }
+    session.setChannel(binding.getChannel());
+    session.setSelectionKey(binding.getSelectionKey());
+    session.setUdpNatBinding(binding);
+    // there is nothing to connect, datagrams are addressed when they're sent
+    session.setConnected(true);
+    binding.addSession(session);
+    return true;
+  }
+
   protected DatagramChannel prepareDatagramChannel() throws IOException {
     DatagramChannel channel = DatagramChannel.open();
     channel.socket().setSoTimeout(0);
@@ -229,10 +448,13 @@ public class SessionHandler {
       replySynAck(ipHeader, tcpHeader, outputStream);
     } else if (tcpHeader.isAck()) {
       logger.info("ACK!"); // \n" + BufferUtil.hexDump(buffer, 0, buffer.length, true, true));
-      Session session =
+      TcpSession session = (TcpSession)
           sessionManager.getSession(ipHeader.getSourceAddress(), tcpHeader.getSourcePort(),
               ipHeader.getDestinationAddress(), tcpHeader.getDestinationPort(),
               TransportHeader.TCP_PROTOCOL);
+      if (session == null && synCookies != null) {
+        session = acceptSynCookie(ipHeader, tcpHeader, outputStream);
+      }
 
       if (session == null) {
         logger.info("CAN'T FIND SESSION: " + ipHeader.getSourceAddress().toString() + ":"
@@ -255,6 +477,8 @@ public class SessionHandler {
 
       // is there data?
       if (payload.remaining() > 0) {
+        // the client's window and ack may have moved even though it's piggybacked on data
+        updateClientWindow(tcpHeader, session);
         if (session.getRecSequence() == 0
             || tcpHeader.getSequenceNumber() >= session.getRecSequence()) {
           int addedLength = session.appendOutboundData(payload);
@@ -290,7 +514,7 @@ public class SessionHandler {
 
     } else if (tcpHeader.isFin()) {
       logger.info("FIN");
-      Session session =
+      TcpSession session = (TcpSession)
           sessionManager.getSession(ipHeader.getSourceAddress(), tcpHeader.getSourcePort(),
               ipHeader.getDestinationAddress(), tcpHeader.getDestinationPort(),
               TransportHeader.TCP_PROTOCOL);
@@ -352,13 +576,31 @@ public class SessionHandler {
   }
 
   /**
-   * Initiate a new TCP connection with the start of a session and replying with SYN-ACK.
+   * Initiate a new TCP connection with the start of a session and replying with SYN-ACK. With SYN
+   * cookies on, only the SYN-ACK is sent and the session is left until the client's final ACK,
+   * see {@link #acceptSynCookie}.
    *
    * @param ip the IpHeader of the source packet
    * @param tcp the TcpHeader of the source packet
    * @param outputstream the Outputstream to respond back to
    */
   protected void replySynAck(IpHeader ip, TcpHeader tcp, OutputStream outputstream) {
+    if (sessionManager.getSession(ip.getSourceAddress(), tcp.getSourcePort(),
+        ip.getDestinationAddress(), tcp.getDestinationPort(), TransportHeader.TCP_PROTOCOL)
+        != null) {
+      logger.warn("Already have a connection active for: " + ip.getSourceAddress() + ":"
+          + tcp.getSourcePort() + "," + ip.getDestinationAddress() + ":"
+          + tcp.getDestinationPort());
+      return;
+    }
+    SynCookies cookies = synCookies;
+    if (cookies == null && !sessionManager.tryHalfOpen(maxHalfOpen)) {
+      // dropped rather than refused, the client retries the SYN once some connects complete
+      logger.warn("Too many half-open connections, dropping SYN to " + ip.getDestinationAddress()
+          + ":" + tcp.getDestinationPort());
+      return;
+    }
+
     IpHeader ipHeader = copyIpHeader(ip);
     TcpHeader tcpHeader = copyTcpHeader(tcp);
 
@@ -366,10 +608,19 @@ public class SessionHandler {
     ipHeader.swapAddresses();
     tcpHeader.swapSourceDestination();
 
-    Random random = new Random();
-    long seqNumber = random.nextInt();
-    if (seqNumber < 0) {
-      seqNumber = seqNumber * -1;
+    // clamp the mss so that a full segment in either direction still fits in the tunnel once
+    // encapsulated, otherwise every full sized packet gets fragmented (or dropped)
+    int maxSegmentSize = clampMaxSegmentSize(ip, tcp.getMaxSegmentSize());
+    long seqNumber;
+    if (cookies != null) {
+      maxSegmentSize = SynCookies.tableMaxSegmentSize(maxSegmentSize);
+      seqNumber = cookies.createCookie(ip, tcp, maxSegmentSize, tcp.getWindowScale());
+    } else {
+      Random random = new Random();
+      seqNumber = random.nextInt();
+      if (seqNumber < 0) {
+        seqNumber = seqNumber * -1;
+      }
     }
     logger.info("Initial seq #" + seqNumber);
     tcpHeader.setSequenceNumber(seqNumber);
@@ -377,48 +628,204 @@ public class SessionHandler {
     tcpHeader.setAckNumber(ackNumber);
     tcpHeader.setSyn(true);
     tcpHeader.setAck(true);
+    // the window in a SYN-ACK is never scaled
+    tcpHeader.setWindowSize(Math.min(MAX_RECEIVE_BUFFER_SIZE, 0xFFFF));
+    // only the window scale is echoed back, we don't do SACK or timestamps
+    tcpHeader.retainHandshakeOptions();
+    tcpHeader.setMaxSegmentSize(maxSegmentSize);
+    ipHeader.setPayloadLength(tcpHeader.getHeaderLength());
+    byte[] synAck = createPacketData(ipHeader, tcpHeader, null);
+
+    if (cookies != null) {
+      // nothing is kept, everything needed later comes back in the ack of the client's final ACK
+      try {
+        outputstream.write(synAck);
+        outputstream.flush();
+      } catch (IOException e) {
+        logger.error("Failed to write SYN-ACK with cookie: " + e.toString());
+      }
+      return;
+    }
 
     // note: we use the ip and tcp here rather than the new ones because the one new ones are
     // already swapped for the response
-    Session session = new Session(ip.getSourceAddress(), tcp.getSourcePort(),
-        ip.getDestinationAddress(), tcp.getDestinationPort(),
-        TransportHeader.TCP_PROTOCOL, outputstream);
+    TcpSession session = new TcpSession(ip.getSourceAddress(), tcp.getSourcePort(),
+        ip.getDestinationAddress(), tcp.getDestinationPort(), outputstream);
 
-    // todo (jason): may need to set session values from tcp options here
-    if (sessionManager.getSessionByKey(session.getKey()) != null) {
-      logger.warn("Already have a connection active for session: " + session.getKey());
+    // the SYN is kept so that the client can be sent an RST if the connect fails
+    session.setLastIpHeader(ip);
+    session.setLastTransportHeader(tcp);
+    if (deferSynAck) {
+      // set before the channel is registered, VpnWriter may finish the connect at any point after
+      session.setPendingSynAck(synAck);
+    }
+
+    // the state is all set up before the session is added, VpnWriter may finish the connect and
+    // the reader start on it at any point after
+    // the window in the SYN itself is never scaled, the scale applies from the next segment on
+    session.setSendWindowSizeAndScale(tcp.getWindowSize(), 1);
+    if (tcp.getWindowScale() > 0) {
+      session.setSendWindowScale(1 << Math.min(tcp.getWindowScale(), 14));
+    }
+    session.setMaxSegmentSize(maxSegmentSize);
+    // we echo the client's window scale option back in the SYN-ACK, so our receive window is
+    // scaled by the same amount
+    if (tcpHeader.getWindowScale() > 0) {
+      session.setReceiveWindowScale(tcpHeader.getWindowScale());
+    }
+    session.setSendUnack(tcpHeader.getSequenceNumber());
+    session.setSendNext(tcpHeader.getSequenceNumber() + 1);
+    session.setRecSequence(tcpHeader.getAckNumber());
+    logger.info("send next: " + (tcpHeader.getSequenceNumber() + 1));
+
+    if (!connectSession(session, ip, tcp, outputstream)) {
       return;
     }
 
+    startConnectTimer(session);
+    if (deferSynAck) {
+      if (!session.isConnected()) {
+        // VpnWriter sends it when the connect completes
+        return;
+      }
+      // connected straight away, unless VpnWriter got to it first
+      synAck = session.takePendingSynAck();
+      if (synAck == null) {
+        return;
+      }
+    }
+
+    try {
+      // logger.info("WRITING: " + BufferUtil.hexDump(synAck, 0, synAck.length, true, true));
+      session.getOutputStream().write(synAck);
+      session.getOutputStream().flush();
+      logger.info("Wrote SYN-ACK for session: " + session.getKey());
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Checks whether an ACK for a connection without a session completes a handshake which was
+   * answered with a SYN cookie, and if so creates the session and starts connecting it now.
+   *
+   * @param ip the IpHeader of the ACK
+   * @param tcp the TcpHeader of the ACK
+   * @param outputstream the Outputstream to respond back to
+   * @return the new session, or null if the ACK didn't carry a valid cookie or the session
+   *         couldn't be created
+   */
+  protected TcpSession acceptSynCookie(IpHeader ip, TcpHeader tcp, OutputStream outputstream) {
+    SynCookies cookies = synCookies;
+    if (cookies == null || tcp.isRst()) {
+      return null;
+    }
+    int cookie = cookies.checkCookie(ip, tcp);
+    if (cookie < 0) {
+      return null;
+    }
+    if (!sessionManager.tryHalfOpen(maxHalfOpen)) {
+      // the client thinks it's connected already, so it can't just be ignored
+      logger.warn("Too many half-open connections, resetting connection to "
+          + ip.getDestinationAddress() + ":" + tcp.getDestinationPort());
+      try {
+        outputstream.write(createRstData(ip, tcp, 0));
+        outputstream.flush();
+      } catch (IOException e) {
+        logger.error("Failed to write RST: " + e.toString());
+      }
+      return null;
+    }
+
+    TcpSession session = new TcpSession(ip.getSourceAddress(), tcp.getSourcePort(),
+        ip.getDestinationAddress(), tcp.getDestinationPort(), outputstream);
+    session.setLastIpHeader(ip);
+    session.setLastTransportHeader(tcp);
+    // the state is all set up before the session is added, the handshake is already complete
+    int windowScale = SynCookies.getWindowScale(cookie);
+    if (windowScale > 0) {
+      session.setSendWindowSizeAndScale(tcp.getWindowSize(), 1 << Math.min(windowScale, 14));
+      session.setReceiveWindowScale(windowScale);
+    } else {
+      session.setSendWindowSizeAndScale(tcp.getWindowSize(), 1);
+    }
+    session.setMaxSegmentSize(SynCookies.getMaxSegmentSize(cookie));
+    session.setSendUnack(tcp.getAckNumber());
+    session.setSendNext(tcp.getAckNumber());
+    session.setRecSequence(tcp.getSequenceNumber());
+
+    if (!connectSession(session, ip, tcp, outputstream)) {
+      return null;
+    }
+    startConnectTimer(session);
+    logger.info("Accepted SYN cookie for session: " + session.getKey());
+    return session;
+  }
+
+  /**
+   * Opens the socket to the destination for a new TCP session, registers it with the selector and
+   * adds the session to the session manager. The session has already been counted as half-open,
+   * and stops counting once the connect has completed (or right away if it couldn't be added).
+   *
+   * @param session the new session
+   * @param ip the IpHeader of the packet which opened the session
+   * @param tcp the TcpHeader of the packet which opened the session
+   * @param outputstream the Outputstream to respond back to
+   * @return true if the session was added
+   */
+  protected boolean connectSession(TcpSession session, IpHeader ip, TcpHeader tcp,
+                                   OutputStream outputstream) {
     // note: again we use the ip and tcp here otherwise we try to connect to ourselves!
+    session.setConnectStartNanos(System.nanoTime());
     SocketChannel channel = initAndConnectSocket(session, ip.getDestinationAddress(),
         tcp.getDestinationPort());
 
     if (channel == null) {
       logger.warn("Problem connecting for " + ip.getDestinationAddress() + ":"
           + tcp.getDestinationPort());
-      return;
+      if (tcp.isSyn()) {
+        sendUnreachable(ip, tcp, outputstream, false);
+        releaseHalfOpen(session);
+      } else {
+        // the client already had a SYN-ACK (from a cookie), so it's reset instead
+        vpnWriter.connectFailed(session, "unable to open socket");
+      }
+      return false;
+    }
+    if (session.isConnected()) {
+      // connected straight away, there was never anything half-open
+      releaseHalfOpen(session);
+      PipelineTracer currentTracer = activeTracer();
+      if (currentTracer != null) {
+        currentTracer.connectCompleted(session, true,
+            System.nanoTime() - session.getConnectStartNanos());
+      }
     }
 
-    // register for non-blocking operation
-    try {
-      // we sync on this so that we don't add to the selection set while its been used
-      Object selectionLock = vpnWriter.getSyncSelector2();
-      synchronized (selectionLock) {
-        selector.wakeup();
-        // we sync on this so that the other thread doesn't call select() while we are doing this
-        Object readWriteLock = vpnWriter.getSyncSelector();
-        synchronized (readWriteLock) {
-          SelectionKey selectionKey = channel.register(selector,
-              SelectionKey.OP_CONNECT | SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-          session.setSelectionKey(selectionKey);
-          logger.info("Registered tcp selector successfully");
+    // register for non-blocking operation, unless an engine takes the channel over once the
+    // session is in the session manager
+    if (engine == null) {
+      try {
+        // we sync on this so that we don't add to the selection set while its been used
+        Object selectionLock = vpnWriter.getSyncSelector2();
+        synchronized (selectionLock) {
+          selector.wakeup();
+          // we sync on this so that the other thread doesn't call select() while we are doing
+          // this
+          Object readWriteLock = vpnWriter.getSyncSelector();
+          synchronized (readWriteLock) {
+            SelectionKey selectionKey = channel.register(selector,
+                SelectionKey.OP_CONNECT | SelectionKey.OP_READ);
+            session.setSelectionKey(selectionKey);
+            logger.info("Registered tcp selector successfully");
+          }
         }
+      } catch (ClosedChannelException e) {
+        e.printStackTrace();
+        logger.error("failed to register tcp channel with selector: " + e.getMessage());
+        releaseHalfOpen(session);
+        return false;
       }
-    } catch (ClosedChannelException e) {
-      e.printStackTrace();
-      logger.error("failed to register tcp channel with selector: " + e.getMessage());
-      return;
     }
 
     session.setChannel(channel);
@@ -429,38 +836,103 @@ public class SessionHandler {
       } catch (IOException e) {
         e.printStackTrace();
       }
-      return;
+      releaseHalfOpen(session);
+      return false;
     } else {
       if (!sessionManager.putSession(session)) {
         // just in case we fail to add it (we should hopefully never get here)
         logger.error("Unable to create a new session in the session manager for " + session);
-        return;
+        releaseHalfOpen(session);
+        return false;
       } else {
         logger.info("Added TCP session: " + session.getKey());
+        sessionCreated(session);
       }
     }
+    return attachToEngine(session);
+  }
 
-    //int windowScaleFactor = (int) Math.pow(2, tcpHeader.getWindowScale());
-    //session.setSendWindowSizeAndScale(tcpHeader.getWindowSize(), windowScaleFactor);
-    //session.setMaxSegmentSize(tcpHeader.getMaxSegmentSize());
-    session.setSendUnack(tcpHeader.getSequenceNumber());
-    session.setSendNext(tcpHeader.getSequenceNumber() + 1);
-    session.setRecSequence(tcpHeader.getAckNumber());
-    logger.info("send next: " + (tcpHeader.getSequenceNumber() + 1));
-
-    byte[] synAck = createPacketData(ipHeader, tcpHeader, null);
+  private void sessionCreated(Session session) {
+    PipelineMetrics current = metrics;
+    if (current != null) {
+      current.getSessionsCreated().increment();
+    }
+    PipelineTracer currentTracer = activeTracer();
+    if (currentTracer != null) {
+      currentTracer.sessionCreated(session);
+    }
+  }
 
+  /**
+   * Hands a session which has just been added to the session manager to the engine, if there is
+   * one. If the engine can't take it the session is closed again.
+   *
+   * @param session the new session
+   * @return false if the engine couldn't take the session
+   */
+  protected boolean attachToEngine(Session session) {
+    SessionEngine sessionEngine = engine;
+    if (sessionEngine == null) {
+      return true;
+    }
     try {
-      // logger.info("WRITING: " + BufferUtil.hexDump(synAck, 0, synAck.length, true, true));
-      session.getOutputStream().write(synAck);
-      session.getOutputStream().flush();
-      logger.info("Wrote SYN-ACK for session: " + session.getKey());
-    } catch (IOException e) {
-      e.printStackTrace();
+      sessionEngine.attach(session);
+      return true;
+    } catch (IOException ex) {
+      logger.error("Engine failed to take session " + session.getKey() + ": " + ex.toString());
+      if (session instanceof TcpSession) {
+        releaseHalfOpen((TcpSession) session);
+      }
+      sessionManager.closeSession(session);
+      return false;
     }
   }
 
-  protected void sendLastAck(IpHeader ipHeader, TcpHeader tcpHeader, Session session) {
+  private void startConnectTimer(TcpSession session) {
+    if (!session.isConnected() && connectTimeout > 0) {
+      session.setConnectTimer(timer.schedule(() -> {
+        vpnWriter.connectFailed(session, "timed out");
+      }, connectTimeout));
+    }
+  }
+
+  private void releaseHalfOpen(TcpSession session) {
+    if (session.settleConnect()) {
+      sessionManager.halfOpenSettled();
+    }
+  }
+
+  public void shutdown() {
+    timer.shutdown();
+  }
+
+  /**
+   * Computes the MSS to use for a session: the smaller of what the client asked for and the
+   * largest segment which fits in the tunnel after the tunnel overhead and the inner IP and TCP
+   * headers are accounted for.
+   *
+   * @param ip the IpHeader of the SYN packet
+   * @param clientMaxSegmentSize the MSS option from the SYN, or -1 if it wasn't present
+   * @return the MSS to advertise to the client and to size segments to it with
+   */
+  protected int clampMaxSegmentSize(IpHeader ip, int clientMaxSegmentSize) {
+    int ipHeaderLength = IpHeader.IP4HEADER_LEN;
+    int defaultMaxSegmentSize = DEFAULT_MSS_IP4;
+    if (ip instanceof Ip6Header) {
+      ipHeaderLength = IpHeader.IP6HEADER_LEN;
+      defaultMaxSegmentSize = DEFAULT_MSS_IP6;
+    }
+    if (clientMaxSegmentSize <= 0) {
+      clientMaxSegmentSize = defaultMaxSegmentSize;
+    }
+    int tunnelMaxSegmentSize = tunnelMtu - tunnelOverhead - ipHeaderLength
+        - TransportHeader.TCP_HEADER_LEN_NO_OPTIONS;
+    int maxSegmentSize = Math.min(clientMaxSegmentSize, tunnelMaxSegmentSize);
+    // never go below the protocol minimum, with a tiny mtu it's better to fragment than stall
+    return Math.max(maxSegmentSize, Math.min(clientMaxSegmentSize, defaultMaxSegmentSize));
+  }
+
+  protected void sendLastAck(IpHeader ipHeader, TcpHeader tcpHeader, TcpSession session) {
     byte[] data = createResponseAckData(ipHeader, tcpHeader, tcpHeader.getSequenceNumber() + 1);
     try {
       if (session != null) {
@@ -481,7 +953,7 @@ public class SessionHandler {
   }
 
   protected void sendRstPacket(IpHeader ipHeader, TcpHeader tcpHeader, int dataLength,
-                               Session session) {
+                               TcpSession session) {
     byte[] data = createRstData(ipHeader, tcpHeader, dataLength);
     try {
       if (session != null) {
@@ -502,12 +974,13 @@ public class SessionHandler {
   }
 
   protected void sendAck(IpHeader ipHeader, TcpHeader tcpHeader, int acceptedDataLength,
-                         Session session) {
+                         TcpSession session) {
     long ackNumber = session.getRecSequence() + acceptedDataLength;
     logger.info("sending: ACK# " + session.getRecSequence() + " + " + acceptedDataLength
         + " = " + ackNumber);
     session.setRecSequence(ackNumber);
-    byte[] data = createResponseAckData(ipHeader, tcpHeader, ackNumber);
+    byte[] data = session.getResponseTemplate().createPacket(tcpHeader.getAckNumber(), ackNumber,
+        false, session.advertiseReceiveWindow(), null);
     try {
       session.getOutputStream().write(data);
       session.getOutputStream().flush();
@@ -518,9 +991,10 @@ public class SessionHandler {
   }
 
   protected void sendAckForDisorder(IpHeader ipHeader, TcpHeader tcpHeader,
-                                    int acceptedDataLength, Session session) {
+                                    int acceptedDataLength, TcpSession session) {
     long ackNumber = tcpHeader.getSequenceNumber() + acceptedDataLength;
-    byte[] data = createResponseAckData(ipHeader, tcpHeader, ackNumber);
+    byte[] data = session.getResponseTemplate().createPacket(tcpHeader.getAckNumber(), ackNumber,
+        false, session.advertiseReceiveWindow(), null);
     String protocol = "00 00";
     if (ipHeader instanceof Ip4Header) {
       protocol = "08 00";
@@ -539,21 +1013,15 @@ public class SessionHandler {
     }
   }
 
-  protected void acceptAck(TcpHeader tcpHeader, Session session) {
+  protected void acceptAck(TcpHeader tcpHeader, TcpSession session) {
     boolean isCorrupted = PacketUtil.isPacketCorrupted(tcpHeader);
     session.setPacketCorrupted(isCorrupted);
     if (isCorrupted) {
       logger.error("Previous packet was corrupted, last ack# " + tcpHeader.getAckNumber()
           + " for session: " + session.getKey());
     }
-    if (tcpHeader.getAckNumber() > session.getSendUnack()
-        || tcpHeader.getAckNumber() == session.getSendNext()) {
+    if (session.isAckAcceptable(tcpHeader.getAckNumber())) {
       session.setAcked(true);
-
-      if (tcpHeader.getWindowSize() > 0) {
-        session.setSendWindowSizeAndScale(tcpHeader.getWindowSize(), session.getSendWindowScale());
-      }
-      session.setSendUnack(tcpHeader.getAckNumber());
       session.setRecSequence(tcpHeader.getSequenceNumber());
       session.setTimestampReplyTo(tcpHeader.getTimestampSender());
       session.setTimestampSender((int) System.currentTimeMillis());
@@ -563,17 +1031,44 @@ public class SessionHandler {
       logger.debug("Previous sendUnack: " + session.getSendUnack());
       session.setAcked(false);
     }
+    updateClientWindow(tcpHeader, session);
   }
 
-  protected void pushDataToDestination(Session session, TcpHeader tcpHeader) {
+  /**
+   * Takes the ack number and window from a segment from the client and uses them to work out how
+   * much more the client can take. If reading from the destination was paused because the client
+   * window was full, and there's room again, the session is re-armed for OP_READ so the selector
+   * picks it back up.
+   *
+   * @param tcpHeader the tcp header of the segment from the client
+   * @param session the session the segment belongs to
+   */
+  protected void updateClientWindow(TcpHeader tcpHeader, TcpSession session) {
+    if (!tcpHeader.isAck()) {
+      return;
+    }
+    final long ackNumber = tcpHeader.getAckNumber();
+    if (session.isAckAcceptable(ackNumber)) {
+      session.setSendUnack(ackNumber);
+    }
+    // a zero window is legit here, it means the client wants us to stop sending for now
+    session.setSendWindowSizeAndScale(tcpHeader.getWindowSize(), session.getSendWindowScale());
+
+    if (!session.isClientWindowFull()) {
+      session.subscribeKey(SelectionKey.OP_READ);
+    }
+  }
+
+  protected void pushDataToDestination(TcpSession session, TcpHeader tcpHeader) {
     session.setDataForSendingReady(true);
     session.setTimestampReplyTo(tcpHeader.getTimestampSender());
     session.setTimestampSender((int) System.currentTimeMillis());
+    session.subscribeKey(SelectionKey.OP_WRITE);
     logger.info("set data ready for sending data to dest, bg will do it. data size: "
         + session.getSendingDataSize());
   }
 
-  protected void sendFinAck(IpHeader ipHeader, TcpHeader tcpHeader, Session session) {
+  protected void sendFinAck(IpHeader ipHeader, TcpHeader tcpHeader, TcpSession session) {
     logger.debug("IN SEND FIN ACK");
     final long ack = tcpHeader.getSequenceNumber();
     final long seq = tcpHeader.getAckNumber();
@@ -591,7 +1086,7 @@ public class SessionHandler {
     session.setClosingConnection(false);
   }
 
-  protected void ackFinAck(IpHeader ipHeader, TcpHeader tcpHeader, Session session) {
+  protected void ackFinAck(IpHeader ipHeader, TcpHeader tcpHeader, TcpSession session) {
     logger.debug("IN ACK FIN ACK");
     long ack = tcpHeader.getSequenceNumber() + 1;
     long seq = tcpHeader.getAckNumber();
@@ -599,7 +1094,7 @@ public class SessionHandler {
     try {
       session.getOutputStream().write(data);
       session.getOutputStream().flush();
-      if (session != null) {
+      if (session != null && session.getSelectionKey() != null) {
         session.getSelectionKey().cancel();
         //sessionManager.closeSession(session);
         logger.info("ACK to client's FIN and close session: " + session.getKey());
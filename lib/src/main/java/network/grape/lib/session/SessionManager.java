@@ -6,7 +6,12 @@ import java.nio.channels.Selector;
 import java.nio.channels.spi.AbstractSelectableChannel;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 import lombok.Getter;
+import lombok.Setter;
+import network.grape.lib.util.PacketDumper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,7 +27,12 @@ public class SessionManager {
 
   private final Logger logger;
   private final Map<String, Session> table;
+  private final Map<String, UdpNatBinding> udpNatBindings = new ConcurrentHashMap<>();
+  // tcp sessions still connecting to the destination, each one holds a socket
+  private final AtomicInteger halfOpenCount = new AtomicInteger();
   @Getter private Selector selector;
+  // one dump of the packets the workers make for every session, null (the default) for none
+  @Getter @Setter private volatile PacketDumper packetDumper;
 
   /**
    * Dep injected constructor which provides the map and selector to make testing easier.
@@ -100,6 +110,23 @@ public class SessionManager {
    */
   public void closeSession(Session session) {
     table.remove(session.getKey());
+    IntConsumer listener = session.getInterestListener();
+    if (listener != null) {
+      // wakes any SessionEngine threads waiting on the session so they see it's gone
+      listener.accept(0);
+    }
+    UdpNatBinding binding = session.getUdpNatBinding();
+    if (binding != null) {
+      // the channel is shared with the client's other udp flows, only close it with the last one
+      if (!binding.removeSession(session)) {
+        logger.info("Closed session: " + session.getKey());
+        return;
+      }
+      udpNatBindings.remove(binding.getKey(), binding);
+      if (binding.getSelectionKey() != null) {
+        binding.getSelectionKey().cancel();
+      }
+    }
     try {
       AbstractSelectableChannel channel = session.getChannel();
       if (channel != null) {
@@ -111,6 +138,55 @@ public class SessionManager {
     logger.info("Closed session: " + session.getKey());
   }
 
+  /**
+   * The number of sessions in the table.
+   */
+  public int getSessionCount() {
+    return table.size();
+  }
+
+  public int getHalfOpenCount() {
+    return halfOpenCount.get();
+  }
+
+  /**
+   * Counts a session which has started connecting to the destination, if there's room.
+   *
+   * @param maxHalfOpen how many sessions can be connecting at once
+   * @return true if it was counted, false if there are already too many
+   */
+  public boolean tryHalfOpen(int maxHalfOpen) {
+    int count;
+    do {
+      count = halfOpenCount.get();
+      if (count >= maxHalfOpen) {
+        return false;
+      }
+    } while (!halfOpenCount.compareAndSet(count, count + 1));
+    return true;
+  }
+
+  /**
+   * Stops counting a session once its connect has succeeded, failed or timed out.
+   */
+  public void halfOpenSettled() {
+    halfOpenCount.decrementAndGet();
+  }
+
+  public UdpNatBinding getUdpNatBinding(InetAddress sourceIp, int sourcePort) {
+    return udpNatBindings.get(UdpNatBinding.createKey(sourceIp, sourcePort));
+  }
+
+  /**
+   * Stores the shared UDP channel for a client source address and port.
+   *
+   * @param binding the binding to store
+   * @return true if the binding was added, false if there already is one for the source
+   */
+  public boolean putUdpNatBinding(UdpNatBinding binding) {
+    return udpNatBindings.putIfAbsent(binding.getKey(), binding) == null;
+  }
+
   /**
    * Create session key based on sourceIp:sourcePort,destinationIp:destinationPort::protocol.
    *
@@ -1,7 +1,8 @@
 package network.grape.lib.session;
 
 import static network.grape.lib.transport.tcp.TcpPacketFactory.createFinData;
-import static network.grape.lib.transport.tcp.TcpPacketFactory.createResponsePacketData;
+import static network.grape.lib.util.Constants.DEFAULT_MSS_IP4;
+import static network.grape.lib.util.Constants.DEFAULT_MSS_IP6;
 import static network.grape.lib.util.Constants.MAX_RECEIVE_BUFFER_SIZE;
 
 import java.io.IOException;
@@ -9,19 +10,26 @@ import java.io.OutputStream;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import network.grape.lib.PacketHeaderException;
 import network.grape.lib.network.ip.Ip4Header;
+import network.grape.lib.network.ip.Ip6Header;
 import network.grape.lib.network.ip.IpHeader;
 import network.grape.lib.transport.TransportHeader;
 import network.grape.lib.transport.tcp.TcpHeader;
 import network.grape.lib.transport.udp.UdpHeader;
-import network.grape.lib.transport.udp.UdpPacketFactory;
+import network.grape.lib.util.BufferPool;
 import network.grape.lib.util.BufferUtil;
+import network.grape.lib.util.PacketBatchWriter;
+import network.grape.lib.util.PacketDumper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +41,11 @@ import org.slf4j.LoggerFactory;
 public class SessionOutputStreamReaderWorker extends SessionWorker implements Runnable {
   private final Logger logger;
   private final OutputStream outputStream;
+  // re-parses every packet before it goes back to the vpn client, only useful when debugging the
+  // packet factories: -Dnetwork.grape.verifyPackets=true
+  static boolean verifyPackets = Boolean.getBoolean("network.grape.verifyPackets");
+  // what the tcp sessions read from the destinations into, only held for the length of a read
+  private static final BufferPool TCP_RECEIVE_BUFFERS = new BufferPool(MAX_RECEIVE_BUFFER_SIZE, 32);
 
   /**
    * Construct a new read worker.
@@ -48,6 +61,13 @@ public class SessionOutputStreamReaderWorker extends SessionWorker implements Ru
     this.logger = LoggerFactory.getLogger(SessionOutputStreamReaderWorker.class);
   }
 
+  /**
+   * The pool the tcp sessions read from the destinations into, shared by all of the workers.
+   */
+  public static BufferPool getTcpReceiveBuffers() {
+    return TCP_RECEIVE_BUFFERS;
+  }
+
   @Override
   public void run() {
     Session session = sessionManager.getSessionByKey(sessionKey);
@@ -59,9 +79,9 @@ public class SessionOutputStreamReaderWorker extends SessionWorker implements Ru
     AbstractSelectableChannel channel = session.getChannel();
 
     if (channel instanceof SocketChannel) {
-      readTcp(session);
+      readTcp((TcpSession) session);
     } else if (channel instanceof DatagramChannel) {
-      readUdp(session);
+      readUdp((UdpSession) session);
     } else {
       return;
     }
@@ -70,7 +90,9 @@ public class SessionOutputStreamReaderWorker extends SessionWorker implements Ru
       logger.debug("Session is aborting connection in session worker");
       abortSession(session);
     } else {
-      session.setBusyRead(false);
+      if (!session.isClientWindowFull()) {
+        session.subscribeKey(SelectionKey.OP_READ);
+      }
     }
   }
 
@@ -91,7 +113,7 @@ public class SessionOutputStreamReaderWorker extends SessionWorker implements Ru
     return true;
   }
 
-  protected void readUdp(Session session) {
+  protected void readUdp(UdpSession session) {
     DatagramChannel channel = (DatagramChannel) session.getChannel();
     ByteBuffer buffer = ByteBuffer.allocate(MAX_RECEIVE_BUFFER_SIZE);
     int len;
@@ -110,16 +132,10 @@ public class SessionOutputStreamReaderWorker extends SessionWorker implements Ru
           buffer.limit(len);
           buffer.flip();
 
-          //create a UDP packet
-          byte[] data = new byte[len];
-          System.arraycopy(buffer.array(), 0, data, 0, len);
-
-          // make the assumption we have a UDP packet. Perhaps we should put a getType on the
-          // session to dummy check.
-          byte[] packetData = UdpPacketFactory.createResponsePacket(session.getLastIpHeader(),
-              (UdpHeader) session.getLastTransportHeader(), data);
+          // the reply goes straight from the read buffer into the packet
+          byte[] packetData = session.getResponseTemplate().createPacket(buffer.array(), 0, len);
 
-          if (verifyPacketData(packetData)) {
+          if (!verifyPackets || verifyPacketData(packetData)) {
             outputStream.write(packetData);
             outputStream.flush();
             logger.info("Wrote {} bytes to outputstream", packetData.length);
@@ -129,6 +145,9 @@ public class SessionOutputStreamReaderWorker extends SessionWorker implements Ru
           buffer.clear();
         }
       } while (len > 0);
+    } catch (ClosedChannelException ex) {
+      // closed while a SessionEngine thread was blocked reading, the session is already gone
+      logger.debug("UDP channel closed while reading: " + sessionKey);
     } catch (NotYetConnectedException ex) {
       logger.error("Failed to read from unconnected UDP socket");
       // todo: not sure if we should abort here or not.
@@ -136,22 +155,30 @@ public class SessionOutputStreamReaderWorker extends SessionWorker implements Ru
       ex.printStackTrace();
       logger.error("Failed to read from UDP socket, aborting connection: " + sessionKey + ":"
           + ex.toString());
+      // a connected udp socket reports an ICMP error from the remote end on the next read
+      sendUnreachable(session, outputStream, ex);
       session.setAbortingConnection(true);
     }
   }
 
-  protected void readTcp(Session session) {
+  protected void readTcp(TcpSession session) {
     if (session.isAbortingConnection()) {
       return;
     }
 
     SocketChannel channel = (SocketChannel) session.getChannel();
-    ByteBuffer buffer = ByteBuffer.allocate(MAX_RECEIVE_BUFFER_SIZE);
+    // a direct buffer, so the data goes from the socket straight into it and from there straight
+    // into the packets back to the client
+    ByteBuffer buffer = TCP_RECEIVE_BUFFERS.acquire();
     int len;
 
     try {
       do {
-        if (!session.isClientWindowFull()) {
+        long available = session.getClientWindowAvailable();
+        if (available > 0) {
+          // only take as much from the destination as the client can currently accept, the rest
+          // stays in the socket receive buffer so TCP pushes back on the destination
+          buffer.limit((int) Math.min(buffer.capacity(), available));
           len = channel.read(buffer);
           if (len > 0) {
             logger.info("GOT {} bytes from TCP endpoint", len);
@@ -163,6 +190,7 @@ public class SessionOutputStreamReaderWorker extends SessionWorker implements Ru
             session.setAbortingConnection(true);
           }
         } else {
+          // OP_READ is left off until the client acks enough to open the window back up
           logger.info("client window full, now pause for " + sessionKey);
           break;
         }
@@ -177,10 +205,12 @@ public class SessionOutputStreamReaderWorker extends SessionWorker implements Ru
       logger.error(
           "Error reading data from SocketChannel for session " + sessionKey + " " + e.toString());
       session.setAbortingConnection(true);
+    } finally {
+      TCP_RECEIVE_BUFFERS.release(buffer);
     }
   }
 
-  private void sendToRequester(ByteBuffer buffer, int dataSize, Session session) {
+  private void sendToRequester(ByteBuffer buffer, int dataSize, TcpSession session) {
     // last piece of data is usually smaller than MAX_RECEIVE_BUFFER_SIZE
     if (dataSize < MAX_RECEIVE_BUFFER_SIZE) {
       session.setHasReceivedLastSegment(true);
@@ -188,81 +218,101 @@ public class SessionOutputStreamReaderWorker extends SessionWorker implements Ru
       session.setHasReceivedLastSegment(false);
     }
 
-    buffer.limit(dataSize);
     buffer.flip();
 
-    // todo: should allocate a new byte array?
-    byte[] data = new byte[dataSize];
-    System.arraycopy(buffer.array(), 0, data, 0, dataSize);
-    session.addReceivedData(data);
-    while (session.hasReceivedData()) {
-      pushDataToClient(session);
+    // build every segment from this read first and hand them to the stream together, rather than
+    // a write + flush (ie: a datagram send through the tunnel) per segment
+    List<byte[]> segments = new ArrayList<>();
+    while (buffer.hasRemaining()) {
+      segments.add(createSegment(session, buffer));
     }
+    writeToClient(segments);
   }
 
-  private void pushDataToClient(Session session) {
-    if (!session.hasReceivedData()) {
-      logger.info("No data for VPN");
-    }
+  /**
+   * Takes up to one MSS worth of the data received from the destination and wraps it in a TCP
+   * segment for the client, advancing the session's send sequence. The data is copied straight
+   * from the buffer into the packet, with the headers filled in in front of it.
+   *
+   * @param session the session the data was received on
+   * @param data    the data from the destination, from its position to its limit. The position
+   *                is moved past the data put in the segment
+   * @return the IP packet to send to the client
+   */
+  protected byte[] createSegment(TcpSession session, ByteBuffer data) {
+    IpHeader ipHeader = session.getLastIpHeader();
 
-    // likely 60 to leave room for TCP and IP headers
-    int max = session.getMaxSegmentSize() - 60;
+    // the mss is clamped to the tunnel when the session is set up. It already excludes the IP and
+    // TCP header, the segments back to the client don't carry any options
+    int max = session.getMaxSegmentSize();
     if (max < 1) {
-      max = 1024;
+      max = ipHeader instanceof Ip6Header ? DEFAULT_MSS_IP6 : DEFAULT_MSS_IP4;
     }
 
-    IpHeader ipHeader = session.getLastIpHeader();
-    TcpHeader tcpHeader = (TcpHeader) session.getLastTransportHeader();
-
-    byte[] packetBody = session.getReceivedData(max);
-    if (packetBody != null && packetBody.length > 0) {
-      logger.debug("Received {} bytes from destination, preparing for VPN", packetBody.length);
-      long unAck = session.getSendNext();
-      long nextUnAck = session.getSendNext() + packetBody.length;
-      logger.debug("Send next: {} ", nextUnAck);
-      session.setSendNext(nextUnAck);
-      session.setUnackData(packetBody);
-      session.setResendPacketCounter(0);
-
-      byte[] data = createResponsePacketData(ipHeader, tcpHeader, packetBody,
-          session.isHasReceivedLastSegment(), session.getRecSequence(), unAck,
-          session.getTimestampSender(), session.getTimestampReplyTo());
+    int length = Math.min(max, data.remaining());
+    logger.debug("Received {} bytes from destination, preparing for VPN", length);
+    long unAck = session.getSendNext();
+    long nextUnAck = session.getSendNext() + length;
+    logger.debug("Send next: {} ", nextUnAck);
+    session.setSendNext(nextUnAck);
+    session.setResendPacketCounter(0);
+
+    // only the segment which empties what we have so far gets the PSH flag
+    boolean isPsh = session.isHasReceivedLastSegment() && length == data.remaining();
+    byte[] packet = session.getResponseTemplate().createPacket(unAck, session.getRecSequence(),
+        isPsh, session.advertiseReceiveWindow(), data, length);
+
+    if (verifyPackets) {
+      verifyTcpPacketData(packet, ipHeader);
+    }
+    return packet;
+  }
 
-      try {
-        ByteBuffer temp = ByteBuffer.allocate(data.length);
-        temp.put(data);
-        temp.rewind();
-        Ip4Header ip4Header = Ip4Header.parseBuffer(temp);
-        TransportHeader transportHeader = TcpHeader.parseBuffer(temp);
-        logger.info("SENDING TO VPN CLIENT: \n  {}\n  {}", ip4Header, transportHeader);
-        //logger.info(BufferUtil.hexDump(data, 0, data.length, true, true));
-      } catch (PacketHeaderException e) {
-        e.printStackTrace();
-        String protocol = "00 00";
-        if (ipHeader instanceof Ip4Header) {
-          protocol = "08 00";
-        } else {
-          protocol = "86 DD";
+  /**
+   * Writes a batch of packets back to the VPN client, flushing once at the end.
+   *
+   * @param packets the packets to write
+   */
+  protected void writeToClient(List<byte[]> packets) {
+    if (packets.isEmpty()) {
+      return;
+    }
+    try {
+      if (outputStream instanceof PacketBatchWriter) {
+        ((PacketBatchWriter) outputStream).writePackets(packets);
+      } else {
+        // a tun device takes one packet per write, so only the flush needs to be batched
+        for (byte[] packet : packets) {
+          outputStream.write(packet);
         }
-        logger.warn("PACKET EXECEPTION!!!!!\n{}", BufferUtil.hexDump(data, 0, data.length, true, true, protocol));
-      } catch (UnknownHostException e) {
-        e.printStackTrace();
-      }
-
-      try {
-        outputStream.write(data);
         outputStream.flush();
-        logger.info("Wrote {} bytes to VPN from {}", data.length, ipHeader.getDestinationAddress());
-//        logger.info("Wrote " + data.length + " to VPN \n "
-//            + BufferUtil.hexDump(data, 0, data.length, true, true));
-      } catch (IOException ex) {
-        logger.error(
-            "Failed to send ACK + Data packet for session " + sessionKey + " " + ex.toString());
       }
+      logger.info("Wrote {} packets to VPN for session {}", packets.size(), sessionKey);
+    } catch (IOException ex) {
+      logger.error(
+          "Failed to send ACK + Data packet for session " + sessionKey + " " + ex.toString());
     }
   }
 
-  private void sendFin(Session session) {
+  /**
+   * Parses a packet we built back into headers and logs them, to catch problems in the packet
+   * factories. Only done when verifyPackets is on.
+   */
+  private void verifyTcpPacketData(byte[] data, IpHeader ipHeader) {
+    String protocol = ipHeader instanceof Ip4Header ? "08 00" : "86 DD";
+    try {
+      ByteBuffer temp = ByteBuffer.wrap(data);
+      IpHeader parsedIpHeader = ipHeader instanceof Ip4Header
+          ? Ip4Header.parseBuffer(temp) : Ip6Header.parseBuffer(temp);
+      TransportHeader transportHeader = TcpHeader.parseBuffer(temp);
+      logger.info("SENDING TO VPN CLIENT: \n  {}\n  {}", parsedIpHeader, transportHeader);
+    } catch (PacketHeaderException | UnknownHostException e) {
+      logger.warn("PACKET EXECEPTION!!!!!\n{}",
+          BufferUtil.hexDump(data, 0, data.length, true, true, protocol));
+    }
+  }
+
+  private void sendFin(TcpSession session) {
     logger.info("SENDING FIN FROM SESSION OUTPUTSTREAM READER WORKER");
     final IpHeader ipHeader = session.getLastIpHeader();
     final TcpHeader tcpHeader = (TcpHeader) session.getLastTransportHeader();
@@ -283,14 +333,14 @@ public class SessionOutputStreamReaderWorker extends SessionWorker implements Ru
         createFinData(ipHeader, tcpHeader, ackNumber, seqNumber,
             session.getTimestampSender(), session.getTimestampReplyTo());
 
-    try {
-      if (ipHeader instanceof Ip4Header) {
-        session.getPacketDumper().dumpBuffer(data, data.length, "08 00");
-      } else {
-        session.getPacketDumper().dumpBuffer(data, data.length, "86 DD");
+    PacketDumper packetDumper = sessionManager.getPacketDumper();
+    if (packetDumper != null) {
+      try {
+        packetDumper.dumpBuffer(data, data.length,
+            ipHeader instanceof Ip4Header ? "08 00" : "86 DD");
+      } catch (IOException ex) {
+        logger.error("Failed to write to the packet dumper: " + ex.toString());
       }
-    } catch (IOException ex) {
-      logger.error("Failed to write to the packet dumper: " + ex.toString());
     }
 
     try {
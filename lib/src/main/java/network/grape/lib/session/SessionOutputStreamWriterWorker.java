@@ -4,9 +4,12 @@ import static network.grape.lib.transport.tcp.TcpPacketFactory.createRstData;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
 import java.util.Date;
@@ -37,34 +40,42 @@ public class SessionOutputStreamWriterWorker extends SessionWorker implements Ru
       logger.error("No session related to " + sessionKey + "for write");
       return;
     }
-    session.setBusyWrite(true);
     AbstractSelectableChannel channel = session.getChannel();
     if (channel instanceof SocketChannel) {
-      writeTcp(session);
+      writeTcp((TcpSession) session);
     } else if (channel instanceof DatagramChannel) {
       writeUdp(session);
     } else {
       return;
     }
-    session.setBusyWrite(false);
 
     if (session.isAbortingConnection()) {
       abortSession(session);
+    } else if (session.hasDataToSend() && session.isDataForSendingReady()) {
+      // more was queued while we were writing, stay interested in OP_WRITE
+      session.subscribeKey(SelectionKey.OP_WRITE);
     }
   }
 
-  protected void writeTcp(Session session) {
+  protected void writeTcp(TcpSession session) {
     SocketChannel channel = (SocketChannel) session.getChannel();
 
-    byte[] data = session.getSendingData();
-    ByteBuffer buffer = ByteBuffer.allocate(data.length);
-    buffer.put(data);
-    buffer.flip();
-
     try {
       logger.debug("writing TCP data to: " + sessionKey);
-      System.out.println("WRITE TCP TO " + sessionKey + " SIZE: " + data.length);
-      channel.write(buffer);
+      // keep going until the queue is empty, or the socket send buffer is full in which case the
+      // rest stays queued and we get another go when the selector says it's writable again
+      while (session.hasDataToSend()) {
+        long written = channel.write(session.getSendingBuffers());
+        session.consumeSendingData(written);
+        logger.debug("Wrote {} bytes to {}, {} still queued", written, sessionKey,
+            session.getSendingDataSize());
+        if (written == 0) {
+          break;
+        }
+      }
+      if (session.isReceiveWindowUpdateNeeded()) {
+        sendWindowUpdate(session);
+      }
     } catch (NotYetConnectedException ex) {
       logger.error("writing to unconnected socket for key: " + sessionKey + " :" + ex.toString());
       session.setAbortingConnection(true);
@@ -86,26 +97,52 @@ public class SessionOutputStreamWriterWorker extends SessionWorker implements Ru
     }
   }
 
+  /**
+   * Lets the client know the receive window has opened up again after the outbound queue drained,
+   * otherwise it would sit on the (nearly) closed window until its persist timer fires.
+   *
+   * @param session the session to send the window update for
+   */
+  protected void sendWindowUpdate(TcpSession session) {
+    final TcpHeader tcpHeader = (TcpHeader) session.getLastTransportHeader();
+    if (tcpHeader == null) {
+      return;
+    }
+    byte[] data = session.getResponseTemplate().createPacket(tcpHeader.getAckNumber(),
+        session.getRecSequence(), false, session.advertiseReceiveWindow(), null);
+    try {
+      outputStream.write(data);
+      outputStream.flush();
+    } catch (IOException ex) {
+      logger.error("Failed to send window update for session " + sessionKey + " " + ex.toString());
+    }
+  }
+
   protected void writeUdp(Session session) {
     if (!session.hasDataToSend()) {
       logger.info("No data to send for UDP session: " + sessionKey);
       return;
     }
     DatagramChannel channel = (DatagramChannel) session.getChannel();
-    byte[] data = session.getSendingData();
-    ByteBuffer buffer = ByteBuffer.allocate(data.length);
-    buffer.put(data);
-    buffer.flip();
+    // a shared nat channel isn't connected, so each datagram carries its destination
+    SocketAddress destination = null;
+    if (session.getUdpNatBinding() != null) {
+      destination = new InetSocketAddress(session.getDestinationIp(), session.getDestinationPort());
+    }
 
     try {
-      /*
-      logger.info("********* data write to remote **********");
-      logger.info(new String(data));
-      logger.info("******** end data write to remote ********");
-      logger.info("Writing to remote UDP: " + sessionKey);
-       */
-      int bytes = channel.write(buffer);
-      logger.info("Wrote: " + bytes + " to remote UDP: " + sessionKey);
+      // each queued slice is the payload of one packet from the client, so one datagram each
+      ByteBuffer datagram;
+      while ((datagram = session.peekSendingBuffer()) != null) {
+        int bytes = destination == null ? channel.write(datagram)
+            : channel.send(datagram, destination);
+        if (bytes == 0) {
+          // socket buffer is full, try again on the next OP_WRITE
+          break;
+        }
+        session.consumeSendingData(bytes);
+        logger.info("Wrote: " + bytes + " to remote UDP: " + sessionKey);
+      }
       Date now = new Date();
       session.setConnectionStartTime(now.getTime());
     } catch (NotYetConnectedException ex) {
@@ -118,6 +155,7 @@ public class SessionOutputStreamWriterWorker extends SessionWorker implements Ru
       ex.printStackTrace();
       logger.error("Error writing to UDP server, will abort connection: " + sessionKey + ":"
           + ex.toString());
+      sendUnreachable(session, outputStream, ex);
     }
   }
 }
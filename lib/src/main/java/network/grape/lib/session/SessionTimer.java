@@ -0,0 +1,45 @@
+package network.grape.lib.session;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the timeouts which keep sessions from hanging around forever (ie: a connect to the
+ * destination that never completes). A single thread is plenty since the tasks only decide what
+ * to do with a session and hand off, they never block.
+ *
+ * <p>Cancelled tasks are removed straight away, since almost every timeout is cancelled well
+ * before it's due and would otherwise sit in the queue until then.</p>
+ */
+public class SessionTimer {
+  private final ScheduledThreadPoolExecutor executor;
+
+  /**
+   * Construct a timer. The thread is only started when the first task is scheduled.
+   */
+  public SessionTimer() {
+    executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "session-timer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.setRemoveOnCancelPolicy(true);
+    executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+  }
+
+  /**
+   * Runs the task once the delay has passed, unless it's cancelled first.
+   *
+   * @param task    the task to run
+   * @param delayMs how long to wait in milliseconds
+   * @return the future to cancel the task with
+   */
+  public ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+    return executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
@@ -1,9 +1,14 @@
 package network.grape.lib.session;
 
+import network.grape.lib.network.ip.IpHeader;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.icmp.IcmpPacketFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.PortUnreachableException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
@@ -24,9 +29,43 @@ public class SessionWorker {
         this.sessionManager = sessionManager;
     }
 
+    /**
+     * Lets the client know the remote end of a UDP session can't be reached, so the application
+     * finds out straight away instead of waiting on its own timeouts.
+     *
+     * @param session the session which failed
+     * @param outputStream the stream to write the error back to the VPN client on
+     * @param cause the exception the send or receive failed with
+     */
+    protected void sendUnreachable(Session session, OutputStream outputStream, IOException cause) {
+        IpHeader ipHeader = session.getLastIpHeader();
+        TransportHeader transportHeader = session.getLastTransportHeader();
+        if (ipHeader == null || transportHeader == null) {
+            return;
+        }
+        // the remote host answered with an ICMP port unreachable of its own, anything else means
+        // we couldn't get there at all
+        boolean portUnreachable = cause instanceof PortUnreachableException;
+        byte[] data = IcmpPacketFactory.createUnreachableData(ipHeader, transportHeader,
+                portUnreachable);
+        try {
+            outputStream.write(data);
+            outputStream.flush();
+        } catch (IOException ex) {
+            logger.error("Failed to write ICMP unreachable for " + sessionKey + ": " + ex.toString());
+        }
+    }
+
     protected void abortSession(Session session) {
         logger.info("Removing aborted connection -> " + sessionKey);
-        session.getSelectionKey().cancel();
+        if (session.getUdpNatBinding() != null) {
+            // the key and channel are shared with the other flows from the same client socket
+            sessionManager.closeSession(session);
+            return;
+        }
+        if (session.getSelectionKey() != null) {
+            session.getSelectionKey().cancel();
+        }
         AbstractSelectableChannel channel =  session.getChannel();
 
         if (channel instanceof SocketChannel) {
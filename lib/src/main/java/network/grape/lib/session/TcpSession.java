@@ -0,0 +1,208 @@
+package network.grape.lib.session;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import lombok.Getter;
+import lombok.Setter;
+import network.grape.lib.network.ip.IpHeader;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.tcp.TcpResponseTemplate;
+import network.grape.lib.util.Constants;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A TCP flow: the sequence numbers and windows in both directions and the handshake. Data from the
+ * destination goes straight from the read buffer into segments for the client, so none of it is
+ * held here.
+ */
+public class TcpSession extends Session {
+  private static final Logger logger = LoggerFactory.getLogger(TcpSession.class);
+  private static final AtomicIntegerFieldUpdater<TcpSession> CONNECT_SETTLED =
+      AtomicIntegerFieldUpdater.newUpdater(TcpSession.class, "connectSettled");
+
+  //the SYN (and later the latest segment) from the client, replies are built from these
+  @Setter @Getter private IpHeader lastIpHeader;
+  @Setter @Getter private TransportHeader lastTransportHeader;
+  //the ACKs and data back to the client are made from this, made with the first one
+  private volatile TcpResponseTemplate responseTemplate;
+
+  //SYN-ACK held back until the connect to the destination succeeds, null once it's been sent
+  private byte[] pendingSynAck;
+  //fails the connect if it hasn't completed in time, cancelled once it has
+  @Getter @Setter private volatile ScheduledFuture<?> connectTimer;
+  //the connect can finish, fail or time out on different threads, only the first one counts
+  private volatile int connectSettled = 0;
+  //when the connect to the destination started, from System.nanoTime()
+  @Getter @Setter private volatile long connectStartNanos = 0;
+
+  @Getter @Setter private long recSequence = 0; // the last received seq number
+  @Getter @Setter private boolean closingConnection = false;
+  @Getter @Setter private boolean ackedToFin = false;
+  // in ACK packet from client, if the previous packet was corrupted,
+  // client will send flag in options field
+  @Getter @Setter private boolean packetCorrupted = false;
+  //track ack we sent to client and waiting for ack back from client
+  @Getter private volatile long sendUnack = 0;
+  @Getter @Setter private boolean acked = false; //last packet was acked yet?
+  @Getter private volatile long sendNext = 0; // the next sequence number to send
+  @Getter @Setter private volatile int sendWindow = 0; //window = windowsize x windowscale
+  @Getter @Setter private int sendWindowSize = 0;
+  @Getter @Setter private int sendWindowScale = 0;
+  @Getter @Setter private int timestampSender = 0;
+  @Getter @Setter private int timestampReplyTo = 0;
+
+  //sent by client during SYN inside tcp options
+  @Getter @Setter private int maxSegmentSize = 0;
+
+  //window scale (shift count) we advertised to the client in the SYN-ACK
+  @Getter @Setter private int receiveWindowScale = 0;
+  //last receive window (in bytes) we advertised to the client
+  @Getter private volatile int lastAdvertisedWindow = Constants.MAX_RECEIVE_BUFFER_SIZE;
+  @Getter @Setter private boolean hasReceivedLastSegment = false;
+
+  //track how many time a packet has been retransmitted => avoid loop
+  @Getter @Setter private int resendPacketCounter = 0;
+
+  public TcpSession(InetAddress sourceIp, int sourcePort, InetAddress destinationIp,
+                    int destinationPort, OutputStream outputstream) {
+    super(sourceIp, sourcePort, destinationIp, destinationPort, TransportHeader.TCP_PROTOCOL,
+        outputstream);
+  }
+
+  /**
+   * The template for ACKs and data segments back to the client, made the first time it's needed.
+   *
+   * @return the response template for this session
+   */
+  public TcpResponseTemplate getResponseTemplate() {
+    TcpResponseTemplate template = responseTemplate;
+    if (template == null) {
+      // two threads racing here just make the same template twice
+      template = new TcpResponseTemplate(getSourceIp(), getSourcePort(), getDestinationIp(),
+          getDestinationPort());
+      responseTemplate = template;
+    }
+    return template;
+  }
+
+  /**
+   * Sets the next sequence number to send, wrapped to 32 bits like the sequence numbers on the
+   * wire.
+   */
+  public void setSendNext(long next) {
+    logger.debug("SETTING SEND NEXT FROM: {} TO: {}", sendNext, next);
+    sendNext = next & 0xFFFFFFFFL;
+  }
+
+  public void setSendUnack(long unack) {
+    sendUnack = unack & 0xFFFFFFFFL;
+  }
+
+  /**
+   * Whether an ack number from the client acknowledges data we've sent: it's past sendUnack (or
+   * it's sendNext, eg: a window update once everything is acked), and not past sendNext. Sequence
+   * numbers wrap at 32 bits, so they're compared by the sign of their 32 bit difference.
+   *
+   * @param ack the ack number from the client
+   * @return true if the ack is for data in flight
+   */
+  public boolean isAckAcceptable(long ack) {
+    long unack = sendUnack;
+    long next = sendNext;
+    return ((int) (ack - unack) > 0 || ack == next) && (int) (ack - next) <= 0;
+  }
+
+  public synchronized void setPendingSynAck(byte[] synAck) {
+    pendingSynAck = synAck;
+  }
+
+  /**
+   * Takes the SYN-ACK held back while connecting, so that only one thread ends up sending it.
+   *
+   * @return the pending SYN-ACK, or null if there isn't one (or it's already been taken)
+   */
+  public synchronized byte[] takePendingSynAck() {
+    byte[] synAck = pendingSynAck;
+    pendingSynAck = null;
+    return synAck;
+  }
+
+  /**
+   * Marks the outcome of the connect to the destination as decided.
+   *
+   * @return true for the first caller only, who gets to act on the outcome
+   */
+  public boolean settleConnect() {
+    ScheduledFuture<?> timer = connectTimer;
+    if (timer != null) {
+      timer.cancel(false);
+    }
+    return CONNECT_SETTLED.compareAndSet(this, 0, 1);
+  }
+
+  /**
+   * Computes the receive window to advertise to the client based on how much data is still
+   * waiting in the outbound queue, and remembers it so we know whether a window update is needed
+   * once the queue drains.
+   *
+   * @return the window field value (ie: already shifted by the receive window scale)
+   */
+  public int advertiseReceiveWindow() {
+    int available = Math.max(0, Constants.MAX_RECEIVE_BUFFER_SIZE - getSendingDataSize());
+    int window = Math.min(available >> receiveWindowScale, 0xFFFF);
+    lastAdvertisedWindow = window << receiveWindowScale;
+    return window;
+  }
+
+  /**
+   * Determines if the receive window has opened up enough since we last advertised it to the client
+   * that the client should be told about it, rather than waiting on its persist timer.
+   *
+   * @return true if a window update should be sent to the client
+   */
+  public boolean isReceiveWindowUpdateNeeded() {
+    int available = Math.max(0, Constants.MAX_RECEIVE_BUFFER_SIZE - getSendingDataSize());
+    return available - lastAdvertisedWindow >= Constants.MAX_RECEIVE_BUFFER_SIZE / 2;
+  }
+
+  void setSendWindowSizeAndScale(int sendWindowSize, int sendWindowScale) {
+    this.sendWindowSize = sendWindowSize;
+    this.sendWindowScale = sendWindowScale;
+    this.sendWindow = sendWindowSize * sendWindowScale;
+  }
+
+  /**
+   * The number of bytes we have sent to the client which it hasn't acknowledged yet. Sequence
+   * numbers wrap at 32 bits, so the difference is taken modulo 2^32.
+   *
+   * @return the number of unacknowledged bytes in flight to the client
+   */
+  public long getBytesInFlight() {
+    return (sendNext - sendUnack) & 0xFFFFFFFFL;
+  }
+
+  /**
+   * How many more bytes the client is willing to accept right now, based on its last advertised
+   * (scaled) window minus what is still in flight.
+   *
+   * @return the number of bytes which can still be sent to the client, may be negative if the
+   *     client shrunk its window
+   */
+  public long getClientWindowAvailable() {
+    return sendWindow - getBytesInFlight();
+  }
+
+  /**
+   * Determine if client's receiving window is full or not.
+   *
+   * @return boolean
+   */
+  @Override
+  public boolean isClientWindowFull() {
+    return getClientWindowAvailable() <= 0;
+  }
+}
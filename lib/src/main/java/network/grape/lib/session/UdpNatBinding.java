@@ -0,0 +1,87 @@
+package network.grape.lib.session;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * An endpoint-independent NAT mapping for UDP: every flow from the same client source IP and port
+ * goes out through a single unconnected channel, whatever the destination. Replies are matched back
+ * to the flow's session by the remote address they came from, so only destinations the client has
+ * already sent to can get through (address and port dependent filtering).
+ *
+ * <p>Compared to a connected channel per flow this uses one file descriptor and one selection key
+ * per client socket instead of one per destination, which matters for things like DNS and QUIC
+ * where a single client socket talks to many servers.</p>
+ */
+public class UdpNatBinding {
+  @Getter private final InetAddress sourceIp;
+  @Getter private final int sourcePort;
+  @Getter private final DatagramChannel channel;
+  @Getter @Setter private SelectionKey selectionKey;
+  private final Map<SocketAddress, Session> sessions = new ConcurrentHashMap<>();
+
+  /**
+   * Construct a binding for the given client source address and port.
+   *
+   * @param sourceIp   the source IP of the client socket
+   * @param sourcePort the source port of the client socket
+   * @param channel    the unconnected channel all of the flows are sent from
+   */
+  public UdpNatBinding(InetAddress sourceIp, int sourcePort, DatagramChannel channel) {
+    this.sourceIp = sourceIp;
+    this.sourcePort = sourcePort;
+    this.channel = channel;
+  }
+
+  public String getKey() {
+    return createKey(sourceIp, sourcePort);
+  }
+
+  public static String createKey(InetAddress sourceIp, int sourcePort) {
+    return sourceIp.getHostAddress() + ":" + sourcePort + "::nat";
+  }
+
+  /**
+   * Adds the session to the binding so replies from its destination are delivered to it.
+   *
+   * @param session the session to add
+   */
+  public void addSession(Session session) {
+    sessions.put(new InetSocketAddress(session.getDestinationIp(), session.getDestinationPort()),
+        session);
+  }
+
+  /**
+   * Removes the session from the binding.
+   *
+   * @param session the session to remove
+   * @return true if there are no sessions left using the binding
+   */
+  public boolean removeSession(Session session) {
+    sessions.remove(new InetSocketAddress(session.getDestinationIp(),
+        session.getDestinationPort()), session);
+    return sessions.isEmpty();
+  }
+
+  /**
+   * Finds the session a reply belongs to.
+   *
+   * @param remoteAddress the address the reply was received from
+   * @return the session, or null if the client hasn't sent anything to that address
+   */
+  public Session getSession(SocketAddress remoteAddress) {
+    return sessions.get(remoteAddress);
+  }
+
+  public Collection<Session> getSessions() {
+    return sessions.values();
+  }
+}
@@ -0,0 +1,78 @@
+package network.grape.lib.session;
+
+import static network.grape.lib.util.Constants.MAX_RECEIVE_BUFFER_SIZE;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background task which drains a shared UDP NAT channel, and hands each datagram back to the VPN
+ * client on the session for the remote address it came from.
+ */
+public class UdpNatReaderWorker implements Runnable {
+  private final Logger logger = LoggerFactory.getLogger(UdpNatReaderWorker.class);
+  private final UdpNatBinding binding;
+
+  public UdpNatReaderWorker(UdpNatBinding binding) {
+    this.binding = binding;
+  }
+
+  @Override
+  public void run() {
+    DatagramChannel channel = binding.getChannel();
+    ByteBuffer buffer = ByteBuffer.allocate(MAX_RECEIVE_BUFFER_SIZE);
+    try {
+      SocketAddress remoteAddress;
+      while ((remoteAddress = channel.receive(buffer)) != null) {
+        buffer.flip();
+        Session session = binding.getSession(remoteAddress);
+        if (session == null) {
+          // the client never sent anything to this address, so nothing should come back from it
+          logger.info("Dropping {} bytes from {} to {}, no session", buffer.remaining(),
+              remoteAddress, binding.getKey());
+        } else {
+          deliver((UdpSession) session, buffer);
+        }
+        buffer.clear();
+      }
+    } catch (IOException ex) {
+      logger.error("Failed to read from shared UDP channel " + binding.getKey() + ": "
+          + ex.toString());
+    }
+
+    SelectionKey key = binding.getSelectionKey();
+    if (key == null) {
+      // served by a SessionEngine thread rather than the selector, nothing to re-arm
+      return;
+    }
+    try {
+      // same lock as Session.subscribeKey, the sessions on the binding share this key
+      synchronized (key) {
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+      }
+      key.selector().wakeup();
+    } catch (CancelledKeyException ex) {
+      logger.debug("Shared UDP channel was closed while reading: " + binding.getKey());
+    }
+  }
+
+  private void deliver(UdpSession session, ByteBuffer buffer) {
+    byte[] packetData = session.getResponseTemplate().createPacket(buffer.array(),
+        buffer.position(), buffer.remaining());
+    OutputStream outputStream = session.getOutputStream();
+    try {
+      outputStream.write(packetData);
+      outputStream.flush();
+      logger.debug("Wrote {} bytes to outputstream for {}", packetData.length, session.getKey());
+    } catch (IOException ex) {
+      logger.error("Failed to write UDP reply for " + session.getKey() + ": " + ex.toString());
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package network.grape.lib.session;
+
+import static network.grape.lib.transport.TransportHeader.UDP_HEADER_LEN;
+import static network.grape.lib.transport.TransportHeader.UDP_PROTOCOL;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import network.grape.lib.network.ip.IpHeader;
+import network.grape.lib.network.ip.IpPacketFactory;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.udp.UdpHeader;
+import network.grape.lib.transport.udp.UdpResponseTemplate;
+
+/**
+ * A UDP flow. Apart from what every session has there's little to keep: the headers of the last
+ * packet from the client are made from the addresses and ports when they're needed rather than
+ * held on to, since most UDP sessions sit idle (eg: a DNS lookup) until they expire. The template
+ * for replies is only made once there's a reply.
+ */
+public class UdpSession extends Session {
+  private volatile UdpResponseTemplate responseTemplate;
+
+  public UdpSession(InetAddress sourceIp, int sourcePort, InetAddress destinationIp,
+                    int destinationPort, OutputStream outputstream) {
+    super(sourceIp, sourcePort, destinationIp, destinationPort, UDP_PROTOCOL, outputstream);
+  }
+
+  /**
+   * The template for datagrams back to the client, made the first time it's needed.
+   *
+   * @return the response template for this session
+   */
+  public UdpResponseTemplate getResponseTemplate() {
+    UdpResponseTemplate template = responseTemplate;
+    if (template == null) {
+      // two threads racing here just make the same template twice
+      template = new UdpResponseTemplate(getSourceIp(), getSourcePort(), getDestinationIp(),
+          getDestinationPort());
+      responseTemplate = template;
+    }
+    return template;
+  }
+
+  @Override
+  public IpHeader getLastIpHeader() {
+    return IpPacketFactory.createIpHeader(getSourceIp(), getDestinationIp(), UDP_PROTOCOL,
+        UDP_HEADER_LEN);
+  }
+
+  @Override
+  public TransportHeader getLastTransportHeader() {
+    return new UdpHeader(getSourcePort(), getDestinationPort(), UDP_HEADER_LEN, 0);
+  }
+}
@@ -0,0 +1,93 @@
+package network.grape.lib.transport;
+
+import java.net.InetAddress;
+import network.grape.lib.network.ip.Ip4Header;
+import network.grape.lib.network.ip.IpHeader;
+import network.grape.lib.network.ip.IpPacketFactory;
+import network.grape.lib.util.BufferUtil;
+import network.grape.lib.util.PacketUtil;
+
+/**
+ * The headers for packets going back to the client on a session, serialized once. Every packet
+ * back to the client on a session has the same addresses, ports and protocol, so rather than
+ * copying and swapping the client's headers for each packet, the template holds the headers
+ * already the right way around and each packet only fills in the fields which change. The
+ * checksums start from sums of the parts which don't change, worked out when the template is made.
+ */
+public abstract class ResponseTemplate {
+  // the ip header then the transport header, with the fields which change per packet left zero
+  protected final byte[] header;
+  protected final int ipHeaderLength;
+  private final boolean ip4;
+  // the ip4 header without the length, id and checksum
+  private final long ipHeaderSum;
+  // the addresses and protocol of the pseudo header, the length is added per packet
+  private final long pseudoHeaderSum;
+
+  /**
+   * Builds the template for packets from the destination back to the client.
+   *
+   * @param clientIp        the address of the client, which the packets go to
+   * @param destinationIp   the address of the destination, which the packets come from
+   * @param protocol        the transport protocol
+   * @param transportHeader the serialized transport header, the right way around and with the
+   *                        fields which change per packet (and the checksum) zero
+   */
+  protected ResponseTemplate(InetAddress clientIp, InetAddress destinationIp, short protocol,
+                             byte[] transportHeader) {
+    IpHeader ipHeader = IpPacketFactory.createIpHeader(destinationIp, clientIp, protocol, 0);
+    byte[] ipData = ipHeader.toByteArray();
+    ip4 = ipHeader instanceof Ip4Header;
+    ipHeaderLength = ipData.length;
+    header = new byte[ipHeaderLength + transportHeader.length];
+    System.arraycopy(ipData, 0, header, 0, ipHeaderLength);
+    System.arraycopy(transportHeader, 0, header, ipHeaderLength, transportHeader.length);
+
+    if (ip4) {
+      BufferUtil.putUnsignedShort(header, 2, 0);
+      BufferUtil.putUnsignedShort(header, 4, 0);
+      BufferUtil.putUnsignedShort(header, 10, 0);
+      ipHeaderSum = PacketUtil.sumWords(header, 0, ipHeaderLength);
+    } else {
+      ipHeaderSum = 0;
+    }
+    // the ip4 and ip6 pseudo headers have the same sum, they only lay out the length and protocol
+    // differently
+    byte[] source = destinationIp.getAddress();
+    byte[] destination = clientIp.getAddress();
+    pseudoHeaderSum = PacketUtil.sumWords(source, 0, source.length)
+        + PacketUtil.sumWords(destination, 0, destination.length) + protocol;
+  }
+
+  /**
+   * Makes a new packet from the template with the IP header filled in. The transport header is
+   * copied from the template as is, the caller fills in the rest of it and puts the payload after.
+   *
+   * @param transportLength the length of the transport header and payload
+   * @return the packet
+   */
+  protected byte[] newPacket(int transportLength) {
+    byte[] packet = new byte[ipHeaderLength + transportLength];
+    System.arraycopy(header, 0, packet, 0, header.length);
+    if (ip4) {
+      int length = ipHeaderLength + transportLength;
+      int id = PacketUtil.getPacketId() & 0xFFFF;
+      BufferUtil.putUnsignedShort(packet, 2, length);
+      BufferUtil.putUnsignedShort(packet, 4, id);
+      BufferUtil.putUnsignedShort(packet, 10, PacketUtil.finishChecksum(ipHeaderSum + length + id));
+    } else {
+      BufferUtil.putUnsignedShort(packet, 4, transportLength);
+    }
+    return packet;
+  }
+
+  /**
+   * The sum of the pseudo header for the transport checksum of a packet.
+   *
+   * @param transportLength the length of the transport header and payload
+   * @return the sum of the pseudo header words
+   */
+  protected long pseudoHeaderSum(int transportLength) {
+    return pseudoHeaderSum + transportLength;
+  }
+}
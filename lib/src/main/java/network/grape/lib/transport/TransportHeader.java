@@ -14,7 +14,10 @@ public interface TransportHeader {
 
   byte UDP_PROTOCOL = 17;
   byte TCP_PROTOCOL = 6;
+  byte ICMP_PROTOCOL = 1;
+  byte ICMP6_PROTOCOL = 58;
   int TCP_WORD_LEN = 4;
   int TCP_HEADER_LEN_NO_OPTIONS = 20;
   int UDP_HEADER_LEN = 8;
+  int ICMP_HEADER_LEN = 8;
 }
@@ -0,0 +1,99 @@
+package network.grape.lib.transport.icmp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+import lombok.Setter;
+import network.grape.lib.network.ip.IpHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers echo requests (ping) from the VPN client. Java has no raw sockets, so the echo can't be
+ * relayed as is. Instead the destination is checked with {@link InetAddress#isReachable}, which
+ * sends a real ICMP echo where the OS allows it (root, or an unprivileged ICMP socket) and falls
+ * back to a TCP connection to the echo port otherwise. A reply is only sent back if the
+ * destination answered, so a ping to a dead host still times out.
+ *
+ * <p>When emulating, every echo request is answered straight away without checking anything.
+ * This is for setups where isReachable would itself loop back into the VPN, and lets applications
+ * which ping to check connectivity carry on.</p>
+ */
+public class IcmpEchoProxy {
+  public static final int DEFAULT_POOL_SIZE = 4;
+  public static final int DEFAULT_TIMEOUT = 1000;
+  // requests beyond this are dropped rather than piling up behind slow destinations
+  private static final int MAX_QUEUED = 64;
+
+  private final Logger logger = LoggerFactory.getLogger(IcmpEchoProxy.class);
+  private final ThreadPoolExecutor executor;
+  @Getter @Setter private volatile boolean emulate = false;
+  @Getter @Setter private volatile int timeout = DEFAULT_TIMEOUT;
+
+  public IcmpEchoProxy() {
+    this(DEFAULT_POOL_SIZE);
+  }
+
+  /**
+   * Construct an echo proxy with up to poolSize outstanding checks.
+   *
+   * @param poolSize how many destinations can be checked at once
+   */
+  public IcmpEchoProxy(int poolSize) {
+    executor = new ThreadPoolExecutor(poolSize, poolSize, 10, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(MAX_QUEUED), new ThreadPoolExecutor.DiscardPolicy());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Answers an echo request, either straight away when emulating or once the destination is
+   * found to be reachable.
+   *
+   * @param ipHeader     the IP header of the echo request
+   * @param icmpHeader   the ICMP header of the echo request
+   * @param data         the data of the echo request
+   * @param outputStream the stream to write the reply back to the VPN client on
+   */
+  public void handleEchoRequest(IpHeader ipHeader, IcmpHeader icmpHeader, byte[] data,
+                                OutputStream outputStream) {
+    if (emulate) {
+      reply(ipHeader, icmpHeader, data, outputStream);
+      return;
+    }
+    executor.execute(() -> {
+      InetAddress destination = ipHeader.getDestinationAddress();
+      try {
+        if (isReachable(destination)) {
+          reply(ipHeader, icmpHeader, data, outputStream);
+        } else {
+          logger.debug("No echo reply from {}", destination);
+        }
+      } catch (IOException ex) {
+        logger.debug("Failed to check if {} is reachable: {}", destination, ex.toString());
+      }
+    });
+  }
+
+  protected boolean isReachable(InetAddress destination) throws IOException {
+    return destination.isReachable(timeout);
+  }
+
+  private void reply(IpHeader ipHeader, IcmpHeader icmpHeader, byte[] data,
+                     OutputStream outputStream) {
+    byte[] packetData = IcmpPacketFactory.createEchoReplyData(ipHeader, icmpHeader, data);
+    try {
+      outputStream.write(packetData);
+      outputStream.flush();
+    } catch (IOException ex) {
+      logger.error("Failed to write echo reply to the VPN client: " + ex.toString());
+    }
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,113 @@
+package network.grape.lib.transport.icmp;
+
+import java.nio.ByteBuffer;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import network.grape.lib.PacketHeaderException;
+import network.grape.lib.network.ip.Ip6Header;
+import network.grape.lib.network.ip.IpHeader;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.util.BufferUtil;
+
+/**
+ * https://en.wikipedia.org/wiki/Internet_Control_Message_Protocol
+ * https://en.wikipedia.org/wiki/ICMPv6
+ *
+ * <p>ICMP and ICMPv6 share the same header layout, only the type and code numbers differ. The last
+ * four bytes depend on the type, for echo requests and replies they're the identifier and sequence
+ * number. The identifier is what a NAT uses in place of a port for echo, so it's returned as both
+ * the source and destination port.</p>
+ */
+@Data
+@AllArgsConstructor
+public class IcmpHeader implements TransportHeader {
+  // ICMP (RFC 792)
+  public static final short ECHO_REPLY = 0;
+  public static final short DESTINATION_UNREACHABLE = 3;
+  public static final short ECHO_REQUEST = 8;
+  public static final short HOST_UNREACHABLE = 1;
+  public static final short PORT_UNREACHABLE = 3;
+
+  // ICMPv6 (RFC 4443)
+  public static final short DESTINATION_UNREACHABLE_V6 = 1;
+  public static final short ECHO_REQUEST_V6 = 128;
+  public static final short ECHO_REPLY_V6 = 129;
+  public static final short ADDRESS_UNREACHABLE_V6 = 3;
+  public static final short PORT_UNREACHABLE_V6 = 4;
+
+  private short type;
+  private short code;
+  private int checksum;
+  private long restOfHeader;
+
+  /**
+   * Parse an ICMP or ICMPv6 header out of a byte stream.
+   *
+   * @param stream the raw byte stream of the ICMP header
+   * @return a new ICMP header parsed from the stream
+   * @throws PacketHeaderException if there is a problem parsing
+   */
+  public static IcmpHeader parseBuffer(ByteBuffer stream) throws PacketHeaderException {
+    if (stream.remaining() < ICMP_HEADER_LEN) {
+      throw new PacketHeaderException("Minimum Icmp header length is " + ICMP_HEADER_LEN
+          + " bytes. There are only " + stream.remaining() + " bytes remaining");
+    }
+
+    short type = BufferUtil.getUnsignedByte(stream);
+    short code = BufferUtil.getUnsignedByte(stream);
+    int checksum = BufferUtil.getUnsignedShort(stream);
+    long restOfHeader = BufferUtil.getUnsignedInt(stream);
+
+    return new IcmpHeader(type, code, checksum, restOfHeader);
+  }
+
+  /**
+   * Whether the IP packet carries ICMP for its version (ICMP over IPv4, ICMPv6 over IPv6).
+   *
+   * @param ipHeader the IP header of the packet
+   * @return true if the payload is ICMP
+   */
+  public static boolean isIcmp(IpHeader ipHeader) {
+    if (ipHeader instanceof Ip6Header) {
+      return ipHeader.getProtocol() == ICMP6_PROTOCOL;
+    }
+    return ipHeader.getProtocol() == ICMP_PROTOCOL;
+  }
+
+  public boolean isEchoRequest() {
+    return type == ECHO_REQUEST || type == ECHO_REQUEST_V6;
+  }
+
+  public int getIdentifier() {
+    return (int) (restOfHeader >> 16);
+  }
+
+  public int getSequenceNumber() {
+    return (int) (restOfHeader & 0xFFFF);
+  }
+
+  @Override
+  public int getSourcePort() {
+    return getIdentifier();
+  }
+
+  @Override
+  public int getDestinationPort() {
+    return getIdentifier();
+  }
+
+  @Override
+  public byte[] toByteArray() {
+    ByteBuffer buffer = ByteBuffer.allocate(ICMP_HEADER_LEN);
+    BufferUtil.putUnsignedByte(buffer, type);
+    BufferUtil.putUnsignedByte(buffer, code);
+    BufferUtil.putUnsignedShort(buffer, checksum);
+    BufferUtil.putUnsignedInt(buffer, restOfHeader);
+    return buffer.array();
+  }
+
+  @Override
+  public int getHeaderLength() {
+    return ICMP_HEADER_LEN;
+  }
+}
@@ -0,0 +1,112 @@
+package network.grape.lib.transport.icmp;
+
+import static network.grape.lib.transport.TransportHeader.ICMP6_PROTOCOL;
+import static network.grape.lib.transport.TransportHeader.ICMP_HEADER_LEN;
+import static network.grape.lib.transport.TransportHeader.ICMP_PROTOCOL;
+
+import java.nio.ByteBuffer;
+import network.grape.lib.network.ip.Ip6Header;
+import network.grape.lib.network.ip.IpHeader;
+import network.grape.lib.network.ip.IpPacketFactory;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.util.PacketUtil;
+
+/**
+ * Helper class to construct the ICMP and ICMPv6 packets sent back to the VPN client.
+ */
+public class IcmpPacketFactory {
+  // an ICMPv6 error must fit in the minimum IPv6 MTU (RFC 4443 2.4)
+  private static final int IP6_MIN_MTU = 1280;
+
+  /**
+   * Creates the echo reply to an echo request from the VPN client.
+   *
+   * @param ip   IpHeader of the echo request
+   * @param icmp IcmpHeader of the echo request
+   * @param data the data of the echo request, which is echoed back
+   * @return the echo reply packet
+   */
+  public static byte[] createEchoReplyData(IpHeader ip, IcmpHeader icmp, byte[] data) {
+    boolean ip6 = ip instanceof Ip6Header;
+    IcmpHeader reply = new IcmpHeader(ip6 ? IcmpHeader.ECHO_REPLY_V6 : IcmpHeader.ECHO_REPLY,
+        (short) 0, 0, icmp.getRestOfHeader());
+    return createPacketData(ip, reply, data);
+  }
+
+  /**
+   * Creates a destination unreachable error about a packet the VPN client sent, so that the
+   * application finds out straight away rather than waiting for its own timeouts. It appears to
+   * come from the destination the packet was sent to.
+   *
+   * @param ip              IpHeader of the packet which couldn't be delivered
+   * @param transport       transport header of the packet which couldn't be delivered
+   * @param portUnreachable true if the host was reached but nothing is listening on the port,
+   *                        false if the host itself couldn't be reached
+   * @return the destination unreachable packet
+   */
+  public static byte[] createUnreachableData(IpHeader ip, TransportHeader transport,
+                                             boolean portUnreachable) {
+    boolean ip6 = ip instanceof Ip6Header;
+    short type;
+    short code;
+    if (ip6) {
+      type = IcmpHeader.DESTINATION_UNREACHABLE_V6;
+      code = portUnreachable ? IcmpHeader.PORT_UNREACHABLE_V6 : IcmpHeader.ADDRESS_UNREACHABLE_V6;
+    } else {
+      type = IcmpHeader.DESTINATION_UNREACHABLE;
+      code = portUnreachable ? IcmpHeader.PORT_UNREACHABLE : IcmpHeader.HOST_UNREACHABLE;
+    }
+    IcmpHeader error = new IcmpHeader(type, code, 0, 0);
+
+    // quote the start of the offending packet so the client's stack can match the error to the
+    // socket which sent it. The transport header carries the ports, which is all it needs.
+    byte[] ipData = ip.toByteArray();
+    byte[] transportData = transport.toByteArray();
+    int quoteLength = ipData.length + transportData.length;
+    if (ip6) {
+      quoteLength = Math.min(quoteLength,
+          IP6_MIN_MTU - IpHeader.IP6HEADER_LEN - ICMP_HEADER_LEN);
+    }
+    byte[] quote = new byte[quoteLength];
+    System.arraycopy(ipData, 0, quote, 0, Math.min(ipData.length, quoteLength));
+    if (quoteLength > ipData.length) {
+      System.arraycopy(transportData, 0, quote, ipData.length, quoteLength - ipData.length);
+    }
+    return createPacketData(ip, error, quote);
+  }
+
+  /**
+   * Wraps the ICMP message in an IP packet going back to the client, and fills in the checksum.
+   */
+  private static byte[] createPacketData(IpHeader ip, IcmpHeader icmp, byte[] data) {
+    int dataLength = data == null ? 0 : data.length;
+    byte[] icmpData = new byte[ICMP_HEADER_LEN + dataLength];
+    System.arraycopy(icmp.toByteArray(), 0, icmpData, 0, ICMP_HEADER_LEN);
+    if (dataLength > 0) {
+      System.arraycopy(data, 0, icmpData, ICMP_HEADER_LEN, dataLength);
+    }
+    icmpData[2] = 0;
+    icmpData[3] = 0;
+
+    byte[] checksum;
+    if (ip instanceof Ip6Header) {
+      // ICMPv6 covers a pseudo header as well, the same as udp and tcp over ipv6
+      ByteBuffer pseudoHeader = ByteBuffer.allocate(40 + icmpData.length);
+      pseudoHeader.put(ip.getDestinationAddress().getAddress());
+      pseudoHeader.put(ip.getSourceAddress().getAddress());
+      pseudoHeader.putInt(icmpData.length);
+      pseudoHeader.putInt(ICMP6_PROTOCOL);
+      pseudoHeader.put(icmpData);
+      byte[] pseudoHeaderData = pseudoHeader.array();
+      checksum = PacketUtil.calculateChecksum(pseudoHeaderData, 0, pseudoHeaderData.length);
+    } else {
+      checksum = PacketUtil.calculateChecksum(icmpData, 0, icmpData.length);
+    }
+    System.arraycopy(checksum, 0, icmpData, 2, 2);
+
+    // the reply goes from the original destination back to the client
+    short protocol = ip instanceof Ip6Header ? ICMP6_PROTOCOL : ICMP_PROTOCOL;
+    return IpPacketFactory.encapsulate(ip.getDestinationAddress(), ip.getSourceAddress(), protocol,
+        icmpData);
+  }
+}
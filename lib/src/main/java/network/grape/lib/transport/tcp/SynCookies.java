@@ -0,0 +1,198 @@
+package network.grape.lib.transport.tcp;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import network.grape.lib.network.ip.IpHeader;
+
+/**
+ * SYN cookies (https://cr.yp.to/syncookies.html), following the layout Linux uses. Instead of
+ * keeping anything for a SYN, what's needed to set the connection up later is encoded into the
+ * initial sequence number of the SYN-ACK. The client hands it back in the ack of its final ACK,
+ * which is when the session is actually created.
+ *
+ * <p>The cookie is: hash1(addresses, ports) + the client's ISN + (counter &lt;&lt; 24) +
+ * ((hash2(addresses, ports, counter) + data) &amp; 0xFFFFFF), where the counter goes up once a
+ * minute and data holds the MSS (as an index into {@link #MSS_TABLE}) and the client's window
+ * scale. Anything else the client sent in its SYN options is lost. The hashes are SipHash-2-4 with
+ * a random key, so cookies can't be forged without seeing a SYN-ACK first.</p>
+ */
+public class SynCookies {
+  // the mss is rounded down to one of these, anything over the largest entry is wasted
+  public static final int[] MSS_TABLE = {536, 1220, 1300, 1440};
+  // a cookie is good for this many minutes (counter ticks)
+  public static final int MAX_AGE = 2;
+
+  private static final int COOKIE_BITS = 24;
+  private static final long COOKIE_MASK = (1L << COOKIE_BITS) - 1;
+  private static final int MSS_BITS = 2;
+  // 2 bits of mss index + 4 bits of window scale
+  private static final int DATA_LIMIT = 1 << (MSS_BITS + 4);
+  private static final long COUNTER_PERIOD = 60 * 1000;
+
+  private final long key0;
+  private final long key1;
+
+  /**
+   * Construct with a random key.
+   */
+  public SynCookies() {
+    SecureRandom random = new SecureRandom();
+    key0 = random.nextLong();
+    key1 = random.nextLong();
+  }
+
+  /**
+   * Creates the initial sequence number for the SYN-ACK in reply to a SYN.
+   *
+   * @param ip             the IpHeader of the SYN
+   * @param syn            the TcpHeader of the SYN
+   * @param maxSegmentSize the mss to encode, which should come from {@link #MSS_TABLE}
+   * @param windowScale    the window scale from the SYN, or -1 if there wasn't one
+   * @return the sequence number to use in the SYN-ACK
+   */
+  public long createCookie(IpHeader ip, TcpHeader syn, int maxSegmentSize, int windowScale) {
+    int mssIndex = 0;
+    while (mssIndex + 1 < MSS_TABLE.length && MSS_TABLE[mssIndex + 1] <= maxSegmentSize) {
+      mssIndex++;
+    }
+    int windowScaleField = windowScale < 0 ? 0 : Math.min(windowScale, 14) + 1;
+    long data = mssIndex | (windowScaleField << MSS_BITS);
+
+    long count = counter();
+    long cookie = hash(ip, syn.getSourcePort(), syn.getDestinationPort(), 0, 1)
+        + syn.getSequenceNumber()
+        + (count << COOKIE_BITS)
+        + ((hash(ip, syn.getSourcePort(), syn.getDestinationPort(), count, 2) + data)
+            & COOKIE_MASK);
+    return cookie & 0xFFFFFFFFL;
+  }
+
+  /**
+   * Checks whether the ack of a segment from the client is a cookie from a recent SYN-ACK.
+   *
+   * @param ip  the IpHeader of the segment
+   * @param ack the TcpHeader of the segment, the client's final ACK of the handshake
+   * @return the data from the cookie, to decode with {@link #getMaxSegmentSize(int)} and
+   *         {@link #getWindowScale(int)}, or -1 if it isn't a valid cookie
+   */
+  public int checkCookie(IpHeader ip, TcpHeader ack) {
+    long cookie = (ack.getAckNumber() - 1) & 0xFFFFFFFFL;
+    long clientSequence = (ack.getSequenceNumber() - 1) & 0xFFFFFFFFL;
+    cookie -= hash(ip, ack.getSourcePort(), ack.getDestinationPort(), 0, 1) + clientSequence;
+    cookie &= 0xFFFFFFFFL;
+
+    long count = counter();
+    long age = (count - (cookie >>> COOKIE_BITS)) & 0xFF;
+    if (age >= MAX_AGE) {
+      return -1;
+    }
+    long data = (cookie
+        - hash(ip, ack.getSourcePort(), ack.getDestinationPort(), count - age, 2)) & COOKIE_MASK;
+    return data < DATA_LIMIT ? (int) data : -1;
+  }
+
+  /**
+   * Rounds an MSS down to the nearest one a cookie can carry.
+   *
+   * @param maxSegmentSize the mss to round down
+   * @return the largest entry of {@link #MSS_TABLE} which isn't bigger, or the smallest entry
+   */
+  public static int tableMaxSegmentSize(int maxSegmentSize) {
+    for (int i = MSS_TABLE.length - 1; i > 0; i--) {
+      if (MSS_TABLE[i] <= maxSegmentSize) {
+        return MSS_TABLE[i];
+      }
+    }
+    return MSS_TABLE[0];
+  }
+
+  public static int getMaxSegmentSize(int data) {
+    return MSS_TABLE[data & ((1 << MSS_BITS) - 1)];
+  }
+
+  /**
+   * The window scale the client sent in its SYN.
+   *
+   * @param data the data from a valid cookie
+   * @return the window scale, or -1 if the SYN didn't have the option
+   */
+  public static int getWindowScale(int data) {
+    return (data >> MSS_BITS) - 1;
+  }
+
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  private long counter() {
+    return now() / COUNTER_PERIOD;
+  }
+
+  /**
+   * Hashes the connection (from the client's point of view) along with the counter.
+   */
+  private long hash(IpHeader ip, int sourcePort, int destinationPort, long count, int which) {
+    byte[] source = ip.getSourceAddress().getAddress();
+    byte[] destination = ip.getDestinationAddress().getAddress();
+    ByteBuffer buffer = ByteBuffer.allocate(source.length + destination.length + 13);
+    buffer.put(source);
+    buffer.put(destination);
+    buffer.putShort((short) sourcePort);
+    buffer.putShort((short) destinationPort);
+    buffer.putLong(count);
+    buffer.put((byte) which);
+    return sipHash24(buffer.array()) & 0xFFFFFFFFL;
+  }
+
+  /**
+   * SipHash-2-4 (https://www.aumasson.jp/siphash/siphash.pdf).
+   */
+  private long sipHash24(byte[] data) {
+    long[] v = {
+        0x736f6d6570736575L ^ key0,
+        0x646f72616e646f6dL ^ key1,
+        0x6c7967656e657261L ^ key0,
+        0x7465646279746573L ^ key1
+    };
+
+    int blocks = data.length / 8;
+    for (int i = 0; i < blocks; i++) {
+      long m = 0;
+      for (int j = 7; j >= 0; j--) {
+        m = (m << 8) | (data[i * 8 + j] & 0xFF);
+      }
+      compress(v, m);
+    }
+    long last = ((long) data.length & 0xFF) << 56;
+    for (int j = blocks * 8; j < data.length; j++) {
+      last |= (long) (data[j] & 0xFF) << (8 * (j - blocks * 8));
+    }
+    compress(v, last);
+
+    v[2] ^= 0xFF;
+    for (int round = 0; round < 4; round++) {
+      sipRound(v);
+    }
+    return v[0] ^ v[1] ^ v[2] ^ v[3];
+  }
+
+  private static void compress(long[] v, long m) {
+    v[3] ^= m;
+    sipRound(v);
+    sipRound(v);
+    v[0] ^= m;
+  }
+
+  private static void sipRound(long[] v) {
+    v[0] += v[1];
+    v[1] = Long.rotateLeft(v[1], 13) ^ v[0];
+    v[0] = Long.rotateLeft(v[0], 32);
+    v[2] += v[3];
+    v[3] = Long.rotateLeft(v[3], 16) ^ v[2];
+    v[0] += v[3];
+    v[3] = Long.rotateLeft(v[3], 21) ^ v[0];
+    v[2] += v[1];
+    v[1] = Long.rotateLeft(v[1], 17) ^ v[2];
+    v[2] = Long.rotateLeft(v[2], 32);
+  }
+}
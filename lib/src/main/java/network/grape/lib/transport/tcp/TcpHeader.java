@@ -1,7 +1,7 @@
 package network.grape.lib.transport.tcp;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.util.Arrays;
 import lombok.Data;
 import network.grape.lib.PacketHeaderException;
 import network.grape.lib.transport.TransportHeader;
@@ -24,12 +24,20 @@ public class TcpHeader implements TransportHeader {
   private int windowSize;
   private int checksum;
   private int urgentPointer;
-  private ArrayList<TcpOption> options;
-  //private byte[] options;
 
-  // need to use setter when copying these fields
+  // the options are parsed straight into these rather than kept as a list, an option which isn't
+  // in the header is -1 (or false, or null)
+  private int maxSegmentSize = -1;
+  private int windowScale = -1;
+  private boolean sackPermitted = false;
+  // with the values in timestampSender (TSval) and timestampReplyTo (TSecr)
+  private boolean timestamps = false;
   private int timestampSender = 0;
   private int timestampReplyTo = 0;
+  // the left and right edge of each SACK block. Never changed in place, so copies share it
+  private int[] sackBlocks;
+  // any other options, as they were on the wire. Never changed in place, so copies share it
+  private byte[] otherOptions;
 
   /**
    * Constructs a new TcpHeader with the given parametes.
@@ -43,11 +51,9 @@ public class TcpHeader implements TransportHeader {
    * @param windowSize      how many bytes can be outstanding at once
    * @param checksum        checksum for the parameters
    * @param urgentPointer   urgent? (not really implemented yet)
-   * @param options         tcp options
    */
   public TcpHeader(int sourcePort, int destinationPort, long sequenceNumber, long ackNumber,
-                   short offset, int flags, int windowSize, int checksum, int urgentPointer,
-                   ArrayList<TcpOption> options) {
+                   short offset, int flags, int windowSize, int checksum, int urgentPointer) {
     this.sourcePort = sourcePort;
     this.destinationPort = destinationPort;
     this.sequenceNumber = sequenceNumber;
@@ -56,7 +62,6 @@ public class TcpHeader implements TransportHeader {
     this.flags = flags;
     this.windowSize = windowSize;
     this.urgentPointer = urgentPointer;
-    this.options = options;
   }
 
   /**
@@ -94,33 +99,59 @@ public class TcpHeader implements TransportHeader {
           + " but there is only " + stream.remaining() + " bytes left");
     }
 
-    ArrayList<TcpOption> options = parseOptions(stream, optionsLength);
-//    byte[] options = new byte[optionsLength];
-//    for (int i = 0; i < optionsLength; i++) {
-//      stream.get();
-//    }
-    //stream.get(options);
-
-    return new TcpHeader(sourcePort, destinationPort, sequenceNumber, ackNumber, offset, flags,
-        windowSize, checksum, urgentPointer, options);
+    TcpHeader header = new TcpHeader(sourcePort, destinationPort, sequenceNumber, ackNumber,
+        offset, flags, windowSize, checksum, urgentPointer);
+    header.parseOptions(stream, optionsLength);
+    return header;
   }
 
-  /*
+  /**
+   * Removes all of the options, leaving a header of the minimum length.
+   */
   public void clearOptions() {
-    options = new ArrayList<>();
+    maxSegmentSize = -1;
+    windowScale = -1;
+    sackPermitted = false;
+    timestamps = false;
+    sackBlocks = null;
+    otherOptions = null;
     offset = TCP_HEADER_LEN_NO_OPTIONS / TCP_WORD_LEN;
-  } */
+  }
 
-  public void setOptions(ArrayList<TcpOption> options) {
-    this.options = options;
-    int len = optionLength();
-    len = (int)Math.round(len / 4.0) * 4;
-    offset = (short) ((TCP_HEADER_LEN_NO_OPTIONS + len) / 4);
-    //System.out.println("OPTION LEN: " + len + " OFFSET: " + offset);
+  /**
+   * Removes all of the options except the maximum segment size and window scale, which are the
+   * only ones we take part in. Used when answering a SYN with the client's options.
+   */
+  public void retainHandshakeOptions() {
+    sackPermitted = false;
+    timestamps = false;
+    sackBlocks = null;
+    otherOptions = null;
+    updateOffset();
+  }
+
+  /**
+   * Copies the options of another header into this one, leaving the offset alone.
+   *
+   * @param other the header to copy the options from
+   */
+  public void copyOptions(TcpHeader other) {
+    maxSegmentSize = other.maxSegmentSize;
+    windowScale = other.windowScale;
+    sackPermitted = other.sackPermitted;
+    timestamps = other.timestamps;
+    timestampSender = other.timestampSender;
+    timestampReplyTo = other.timestampReplyTo;
+    sackBlocks = other.sackBlocks;
+    otherOptions = other.otherOptions;
   }
 
   @Override
   public byte[] toByteArray() {
+    if (TCP_HEADER_LEN_NO_OPTIONS + optionLength() > offset * TCP_WORD_LEN) {
+      // parsed options are laid out our way when written back, which can take more room
+      updateOffset();
+    }
     ByteBuffer buffer = ByteBuffer.allocate(offset * TCP_WORD_LEN);
     BufferUtil.putUnsignedShort(buffer, sourcePort);
     BufferUtil.putUnsignedShort(buffer, destinationPort);
@@ -139,13 +170,7 @@ public class TcpHeader implements TransportHeader {
     BufferUtil.putUnsignedShort(buffer, checksum);
     BufferUtil.putUnsignedShort(buffer, urgentPointer);
 
-    //System.out.println("POSITION: " + buffer.position() + " LIMIT: " + buffer.limit());
-
-    // todo: output options
     putOptions(buffer);
-//    if (options != null) {
-//      buffer.put(options);
-//    }
 
     return buffer.array();
   }
@@ -315,256 +340,205 @@ public class TcpHeader implements TransportHeader {
     destinationPort = temp;
   }
 
-  protected static TcpOption parseMSS(ByteBuffer stream) {
-    //System.out.println("MSS");
-    int optionLength = stream.get();
-    TcpOption option = TcpOption.MSS;
-    option.setSize(optionLength);
-    if (optionLength != 4) {
-      System.out.println("MSS SHOULD BE LEN 4 but got " + optionLength);
-      int i = optionLength - 2;
-      option.value = ByteBuffer.allocate(i);
-      while (i > 0 && stream.hasRemaining()) {
-        byte value = stream.get();
-        option.value.put(value);
-        i--;
-      }
-    } else {
-      // get a short because we have 2 spare bytes
-      short value = stream.getShort();
-      option.value = ByteBuffer.allocate(2);
-      option.value.putShort(value);
-    }
-    return option;
-  }
-
-  protected static TcpOption parseWindowScale(ByteBuffer stream) {
-    //System.out.println("WINDOW SCALE");
-    int optionLength = stream.get();
-    TcpOption option = TcpOption.WINDOW_SCALE;
-    option.setSize(optionLength);
-    if (optionLength != 3) {
-      System.out.println("WINDOW_SCALE SHOULD BE LEN 3 but got " + optionLength);
-      int i = optionLength - 2;
-      option.value = ByteBuffer.allocate(i);
-      while (i > 0 && stream.hasRemaining()) {
-        byte value = stream.get();
-        option.value.put(value);
-        i--;
-      }
-    } else {
-      // get a byte because we have one spare byte
-      byte value = stream.get();
-      option.value = ByteBuffer.allocate(1);
-      option.value.put(value);
-    }
-    return option;
-  }
-
-  protected static TcpOption parseSackPermitted(ByteBuffer stream) throws Exception {
-    //System.out.println("SACK PERMITTED");
-    int optionLength = stream.get();
-    TcpOption option = TcpOption.SACK_PERMITTED;
-    option.setSize(optionLength);
-    if (optionLength != 2) {
-      System.out.println("SACK_PERMITTED SHOULD BE LEN 2 byte got " + optionLength);
-      int i = optionLength - 2;
-      option.value = ByteBuffer.allocate(i);
-      while (i > 0 && stream.hasRemaining()) {
-        byte value = stream.get();
-        option.value.put(value);
-        i--;
-      }
-    } else {
-      // don't get any bytes because len is only 2
-      //System.out.println("IGNORING SACK_PERMITTED");
-    }
-    throw new Exception("Ignoring SACK PERMITTED");
-    //return option;
-  }
-
-  protected static TcpOption parseSack(ByteBuffer stream) throws Exception {
-    //System.out.println("SACK");
-    int optionLength = stream.get();
-    TcpOption option = TcpOption.SACK;
-    option.setSize(optionLength);
-    //System.out.println("SACK len: " + optionLength);
-    int i = optionLength - 2;
-    if (i >= 0) {
-      option.value = ByteBuffer.allocate(i);
-      while (i > 0 && stream.hasRemaining()) {
-        //System.out.println("i: " + i);
-        byte value = stream.get();
-        option.value.put(value);
-        i--;
-      }
-    } else {
-      //System.out.println("SACK has negative size, can't continue");
-    }
-    throw new Exception("Ignoring SACK");
-    //return option;
-  }
-
-  protected static TcpOption parseEcho(ByteBuffer stream) {
-    //System.out.println("ECHO");
-    int optionLength = stream.get();
-    TcpOption option = TcpOption.ECHO;
-    option.setSize(optionLength);
-    if (optionLength != 6) {
-      System.out.println("ECHO SHOULD BE LEN 6 got " + optionLength);
-      int i = optionLength - 2;
-      option.value = ByteBuffer.allocate(i);
-      while (i > 0 && stream.hasRemaining()) {
-        byte value = stream.get();
-        option.value.put(value);
-        i--;
-      }
-    } else {
-      // get an int because we have 4 spare bytes
-      int value = stream.getInt();
-      option.value = ByteBuffer.allocate(4);
-      option.value.putInt(value);
-    }
-    return option;
-  }
-
-  protected static TcpOption parseEchoReply(ByteBuffer stream) {
-    //System.out.println("ECHO REPLY");
-    int optionLength = stream.get();
-    TcpOption option = TcpOption.ECHO_REPLY;
-    option.setSize(optionLength);
-    if (optionLength != 6) {
-      System.out.println("ECHO REPLY SHOULD BE LEN 6 got " + optionLength);
-      int i = optionLength - 2;
-      option.value = ByteBuffer.allocate(i);
-      while (i > 0 && stream.hasRemaining()) {
-        byte value = stream.get();
-        option.value.put(value);
-        i--;
-      }
-    } else {
-      // get an int because we have 4 spare bytes
-      int value = stream.getInt();
-      option.value = ByteBuffer.allocate(4);
-      option.value.putInt(value);
-    }
-    return option;
-  }
-
-  protected static TcpOption parseTimestamp(ByteBuffer stream) throws Exception {
-    //System.out.println("TIMESTAMP");
-    // https://tools.ietf.org/html/rfc7323#page-12
-    // https://tools.ietf.org/id/draft-scheffenegger-tcpm-timestamp-negotiation-05.html#:~:text=A%20TCP%20may%20send%20the,%3E%20segment%20for%20the%20connection.%22
-    int optionLength = stream.get();
-    TcpOption option = TcpOption.TIMESTAMPS;
-    option.setSize(optionLength);
-    if (optionLength != 10) {
-      System.out.println("TIMESTAMP SHOULD BE LEN 10");
-      int i = optionLength - 2;
-      option.value = ByteBuffer.allocate(i);
-      while (i > 0 && stream.hasRemaining()) {
-        byte value = stream.get();
-        option.value.put(value);
-        i--;
-      }
-    } else {
-      // get two ints = 8 + type + len
-      int tsval = stream.getInt();
-      int tsecr = stream.getInt();
-      //System.out.println("GOT TIMESTAMP: " + tsval + " " + tsecr);
-      tsecr = (int) (System.currentTimeMillis() / 1000L);
-      //System.out.println("Updated: " + tsval + " " + tsecr + " options: " + option.size);
-      option.value = ByteBuffer.allocate(8);
-      // swap the order to tsval and tsecr (we want tsval to be set with out own timestamp
-      option.value.putInt(tsecr);
-      option.value.putInt(tsval);
-    }
-    throw new Exception("Skipping Timestamp option");
-    //return option;
+  /**
+   * Sets the maximum segment size option of this header, adding the option if it isn't already
+   * present. Adding the option grows the header, so the IP payload length needs to be updated by
+   * the caller.
+   *
+   * @param maxSegmentSize the maximum segment size to advertise, -1 to remove the option
+   */
+  public void setMaxSegmentSize(int maxSegmentSize) {
+    this.maxSegmentSize = maxSegmentSize;
+    updateOffset();
+  }
+
+  /**
+   * Sets the window scale option of this header, see {@link #setMaxSegmentSize(int)}.
+   *
+   * @param windowScale the shift count to advertise, -1 to remove the option
+   */
+  public void setWindowScale(int windowScale) {
+    this.windowScale = windowScale;
+    updateOffset();
+  }
+
+  /**
+   * Sets whether this header has the SACK permitted option, see {@link #setMaxSegmentSize(int)}.
+   *
+   * @param sackPermitted true to add the option
+   */
+  public void setSackPermitted(boolean sackPermitted) {
+    this.sackPermitted = sackPermitted;
+    updateOffset();
+  }
+
+  /**
+   * Sets whether this header has the timestamps option, with the values from timestampSender and
+   * timestampReplyTo. See {@link #setMaxSegmentSize(int)}.
+   *
+   * @param timestamps true to add the option
+   */
+  public void setTimestamps(boolean timestamps) {
+    this.timestamps = timestamps;
+    updateOffset();
+  }
+
+  /**
+   * Sets the SACK blocks of this header, see {@link #setMaxSegmentSize(int)}.
+   *
+   * @param sackBlocks the left and right edge of each block, null to remove the option
+   */
+  public void setSackBlocks(int[] sackBlocks) {
+    this.sackBlocks = sackBlocks;
+    updateOffset();
+  }
+
+  /**
+   * Sets the options of this header which aren't parsed, see {@link #setMaxSegmentSize(int)}.
+   *
+   * @param otherOptions the options as they go on the wire, null for none
+   */
+  public void setOtherOptions(byte[] otherOptions) {
+    this.otherOptions = otherOptions;
+    updateOffset();
+  }
+
+  private void updateOffset() {
+    offset = (short) ((TCP_HEADER_LEN_NO_OPTIONS + optionLength() + TCP_WORD_LEN - 1)
+        / TCP_WORD_LEN);
   }
 
   /**
-   * Parse the options from the stream. Assumes the stream is pointed to the start of the options.
+   * Parse the options from the stream into the fields of this header. Assumes the stream is
+   * pointed to the start of the options, and leaves it at the end of them.
 
    * <p>Options have the following format:
    * - option type (1 byte)
    * - option length (1 byte) [ including the type & length fields)
    * - option value (option-length bytes)</p>
    *
+   * <p>An option which isn't one we parse, or doesn't have the length it should, is kept as is in
+   * otherOptions. A malformed length ends the parsing, since there's no telling where the next
+   * option would start.</p>
+   *
    * @param stream        the stream to parse
    * @param optionsLength the length of the options (should be pre-parsed from TcpHeader
-   * @return an ArrayList of filled in Options.
    */
   // https://www.iana.org/assignments/tcp-parameters/tcp-parameters.xhtml
   // https://tools.ietf.org/html/rfc793
   // https://tools.ietf.org/html/rfc2018
-  protected static ArrayList<TcpOption> parseOptions(ByteBuffer stream, int optionsLength) {
-    int startingPos = stream.position();
-    //System.out.println("PARSING LEN: " + optionsLength);
-    ArrayList<TcpOption> options = new ArrayList<>();
-    while (stream.position() - startingPos < optionsLength) {
-      int optionNumber = stream.get();
-      try {
-        if (optionNumber == TcpOption.END_OF_OPTION_LIST.type) {
-          //System.out.println("EOL");
-          options.add(TcpOption.END_OF_OPTION_LIST);
+  // https://tools.ietf.org/html/rfc7323
+  protected void parseOptions(ByteBuffer stream, int optionsLength) {
+    if (optionsLength <= 0) {
+      return;
+    }
+    int position = stream.position();
+    int end = position + optionsLength;
+    while (position < end) {
+      int kind = stream.get(position) & 0xFF;
+      if (kind == TcpOption.END_OF_OPTION_LIST.type) {
+        break;
+      }
+      if (kind == TcpOption.NOP.type) {
+        position++;
+        continue;
+      }
+      if (position + 1 >= end) {
+        break;
+      }
+      int length = stream.get(position + 1) & 0xFF;
+      if (length < 2 || position + length > end) {
+        break;
+      }
+      TcpOption option = TcpOption.fromType(kind);
+      if (option == null || (option.size != 0 && option.size != length)) {
+        addOtherOption(stream, position, length);
+        position += length;
+        continue;
+      }
+      switch (option) {
+        case MSS:
+          maxSegmentSize = stream.getShort(position + 2) & 0xFFFF;
+          break;
+        case WINDOW_SCALE:
+          windowScale = stream.get(position + 2) & 0xFF;
+          break;
+        case SACK_PERMITTED:
+          sackPermitted = true;
+          break;
+        case TIMESTAMPS:
+          timestamps = true;
+          timestampSender = stream.getInt(position + 2);
+          timestampReplyTo = stream.getInt(position + 6);
+          break;
+        case SACK:
+          if ((length - 2) % 8 != 0) {
+            addOtherOption(stream, position, length);
+            break;
+          }
+          sackBlocks = new int[(length - 2) / 4];
+          for (int i = 0; i < sackBlocks.length; i++) {
+            sackBlocks[i] = stream.getInt(position + 2 + i * 4);
+          }
+          break;
+        default:
+          addOtherOption(stream, position, length);
           break;
-        } else if (optionNumber == TcpOption.NOP.type) {
-          //System.out.println("NOP");
-          options.add(TcpOption.NOP);
-        } else if (optionNumber == TcpOption.MSS.type) {
-          options.add(parseMSS(stream));
-        } else if (optionNumber == TcpOption.WINDOW_SCALE.type) {
-          options.add(parseWindowScale(stream));
-        } else if (optionNumber == TcpOption.SACK_PERMITTED.type) {
-          options.add(parseSackPermitted(stream));
-        } else if (optionNumber == TcpOption.SACK.type) {
-          options.add(parseSack(stream));
-        } else if (optionNumber == TcpOption.ECHO.type) {
-          options.add(parseEcho(stream));
-        } else if (optionNumber == TcpOption.ECHO_REPLY.type) {
-          options.add(parseEchoReply(stream));
-        } else if (optionNumber == TcpOption.TIMESTAMPS.type) {
-          options.add(parseTimestamp(stream));
-        } else {
-          System.out.println("UNKNOWN OPTION: " + optionNumber);
-        }
-      } catch (Exception ex) {
-        //System.out.println("Error parsing option: " + ex.toString());
       }
+      position += length;
     }
-    return options;
+    stream.position(end);
   }
 
-  protected void putOptions(ByteBuffer buffer) {
-    for (TcpOption option : options) {
-      //System.out.println("Putting option: " + option + " POSITION: " + buffer.position());
-      BufferUtil.putUnsignedByte(buffer, option.type);
-      if (option.type == TcpOption.END_OF_OPTION_LIST.type || option.type == TcpOption.NOP.type) {
-        continue;
-      }
-      BufferUtil.putUnsignedByte(buffer, option.size);
+  private void addOtherOption(ByteBuffer stream, int position, int length) {
+    int start = otherOptions == null ? 0 : otherOptions.length;
+    byte[] options = otherOptions == null ? new byte[length] : Arrays.copyOf(otherOptions,
+        start + length);
+    for (int i = 0; i < length; i++) {
+      options[start + i] = stream.get(position + i);
+    }
+    otherOptions = options;
+  }
 
-      if (option.size > 2) {
-        option.value.rewind();
-        buffer.put(option.value);
+  /**
+   * Writes the options out, laid out the way most stacks do: each option aligned to its natural
+   * boundary with NOPs, and SACK permitted in the two bytes in front of the timestamps if both are
+   * there. Whatever is left of the header after them is zero (ie: end of option list).
+   *
+   * @param buffer the buffer to write the options into
+   */
+  protected void putOptions(ByteBuffer buffer) {
+    if (maxSegmentSize >= 0) {
+      buffer.putInt(0x02040000 | (maxSegmentSize & 0xFFFF));
+    }
+    if (timestamps) {
+      buffer.putShort(sackPermitted ? (short) 0x0402 : (short) 0x0101);
+      buffer.putShort((short) 0x080A);
+      buffer.putInt(timestampSender);
+      buffer.putInt(timestampReplyTo);
+    } else if (sackPermitted) {
+      buffer.putInt(0x01010402);
+    }
+    if (windowScale >= 0) {
+      buffer.putInt(0x01030300 | (windowScale & 0xFF));
+    }
+    if (sackBlocks != null) {
+      buffer.putInt(0x01010500 | (2 + sackBlocks.length * 4));
+      for (int edge : sackBlocks) {
+        buffer.putInt(edge);
       }
     }
+    if (otherOptions != null) {
+      buffer.put(otherOptions);
+    }
   }
 
   protected int optionLength() {
-    int length = 0;
-    for (TcpOption option : options) {
-      if (option == TcpOption.END_OF_OPTION_LIST || option == TcpOption.NOP) {
-        length++;
-        //System.out.println("Adding option : " + option + " +1=" + length);
-      } else {
-        length += 2 + option.size;
-        //System.out.println("Adding option : " + option + " +" + (2 + option.size) + " =" + length);
-      }
-    }
-    //System.out.println("OPTION LEN: " + length);
-    return length;
+    return (maxSegmentSize >= 0 ? 4 : 0)
+        + (timestamps ? 12 : sackPermitted ? 4 : 0)
+        + (windowScale >= 0 ? 4 : 0)
+        + (sackBlocks != null ? 4 + sackBlocks.length * 4 : 0)
+        + (otherOptions != null ? otherOptions.length : 0);
   }
 
   @Override public String toString() {
@@ -572,7 +546,10 @@ public class TcpHeader implements TransportHeader {
             + ", sequenceNumber=" + sequenceNumber + ", ackNumber=" + ackNumber + ", offset=" + offset
             + ", windowSize=" + windowSize + ", checksum=" + checksum + ", urgentPointer=" + urgentPointer + "\n"
             + "   timeStampSender=" + timestampSender + ", timeStampReplyTo=" + timestampReplyTo
-            + ", options=" + options.toString() + ", headerLength: " + getHeaderLength() + "\n"
+            + ", mss=" + maxSegmentSize + ", windowScale=" + windowScale + ", sackPermitted="
+            + sackPermitted + ", timestamps=" + timestamps + ", sackBlocks="
+            + Arrays.toString(sackBlocks) + ", otherOptions=" + Arrays.toString(otherOptions)
+            + ", headerLength: " + getHeaderLength() + "\n"
             + "   isECN: " + isEcn() + ", isACK: " + isAck() + ", isCWR: " + isCwr() + ", isECE: " + isEce()
             + ", isFIN: " + isFin() + ", isPSH: " + isPsh() + ", isSYN: " + isSyn() + ", isRST: " + isRst()
             + ", isURG: " + isUrg() + ")";
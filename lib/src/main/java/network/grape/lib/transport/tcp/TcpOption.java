@@ -1,18 +1,14 @@
 package network.grape.lib.transport.tcp;
 
-import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.Optional;
-
-import lombok.Getter;
-import lombok.Setter;
-
 /**
- * All of the TCP options that we handle or may handle in the future.
+ * All of the TCP option kinds that we handle or may handle in the future, with the length of the
+ * option (including the kind and length bytes) where it's fixed. The values of the options in a
+ * header are kept in the {@link TcpHeader} itself, so these are constants and safe to share.
+ * https://www.iana.org/assignments/tcp-parameters/tcp-parameters.xhtml
  */
 public enum TcpOption {
-  END_OF_OPTION_LIST(0, 0),
-  NOP(1, 0),
+  END_OF_OPTION_LIST(0, 1),
+  NOP(1, 1),
   MSS(2, 4),
   WINDOW_SCALE(3, 3),
   SACK_PERMITTED(4, 2),
@@ -36,34 +32,51 @@ public enum TcpOption {
   RECORD_BOUNDARIES(22, 0),
   CORRUPTION(23, 0),
   SNAP(24, 0),
-  UNASSIGNED(25,0 ),
+  UNASSIGNED(25, 0),
   COMPRESSION(26, 0),
   QUICK_START_RESP(27, 8),
   USER_TIMEOUT(28, 4),
   TCP_AO(29, 0);
 
+  private static final TcpOption[] BY_TYPE = new TcpOption[256];
+
+  static {
+    for (TcpOption option : values()) {
+      BY_TYPE[option.type] = option;
+    }
+  }
+
   public final int type;
-  @Getter @Setter public int size;
-  @Getter @Setter public ByteBuffer value;
-  @Getter @Setter public boolean valid;
+  // 0 if the length varies
+  public final int size;
 
-  private TcpOption(int type, int size) {
+  TcpOption(int type, int size) {
     this.type = type;
     this.size = size;
-    if (size > 1) {
-      this.value = ByteBuffer.allocate(size - 2);
-    } else {
-      this.value = ByteBuffer.allocate(0);
-    }
-    this.valid = true;
   }
 
+  /**
+   * Looks up an option by its kind.
+   *
+   * @param type the option kind
+   * @return the option
+   * @throws IllegalArgumentException if the kind isn't one we know
+   */
   public static TcpOption getType(int type) {
-    for (TcpOption option : TcpOption.values()) {
-      if (option.type == type) {
-        return option;
-      }
+    TcpOption option = fromType(type);
+    if (option == null) {
+      throw new IllegalArgumentException("Couldn't find TcpOption: " + type);
     }
-    throw new IllegalArgumentException("Couldn't find TcpOption: " + type);
+    return option;
+  }
+
+  /**
+   * Looks up an option by its kind, without allocating or throwing.
+   *
+   * @param type the option kind
+   * @return the option, or null if the kind isn't one we know
+   */
+  public static TcpOption fromType(int type) {
+    return type >= 0 && type < BY_TYPE.length ? BY_TYPE[type] : null;
   }
 }
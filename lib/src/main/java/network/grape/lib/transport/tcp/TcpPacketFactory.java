@@ -9,7 +9,6 @@ import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.Random;
 import network.grape.lib.network.ip.Ip4Header;
@@ -34,10 +33,12 @@ public class TcpPacketFactory {
    * @return a new instance of the TcpHeader copied from the original
    */
   public static TcpHeader copyTcpHeader(TcpHeader tcpHeader) {
-    return new TcpHeader(tcpHeader.getSourcePort(), tcpHeader.getDestinationPort(),
+    TcpHeader copy = new TcpHeader(tcpHeader.getSourcePort(), tcpHeader.getDestinationPort(),
         tcpHeader.getSequenceNumber(), tcpHeader.getAckNumber(), tcpHeader.getOffset(),
         tcpHeader.getFlags(), tcpHeader.getWindowSize(), tcpHeader.getChecksum(),
-        tcpHeader.getUrgentPointer(), tcpHeader.getOptions());
+        tcpHeader.getUrgentPointer());
+    copy.copyOptions(tcpHeader);
+    return copy;
   }
 
   /**
@@ -63,7 +64,6 @@ public class TcpPacketFactory {
 
     ByteBuffer pseudoHeader;
     if (ip instanceof Ip4Header) {
-      System.out.println("IP4 header");
       pseudoHeader = ByteBuffer.allocate(12 + tcpBuffer.length + dataLength);
       pseudoHeader.put(ip.getSourceAddress().getAddress());
       pseudoHeader.put(ip.getDestinationAddress().getAddress());
@@ -71,7 +71,6 @@ public class TcpPacketFactory {
       pseudoHeader.put(TCP_PROTOCOL);
       pseudoHeader.putShort((short) (tcpBuffer.length + dataLength));
     } else if (ip instanceof Ip6Header) {
-      System.out.println("IP6 header");
       pseudoHeader = ByteBuffer.allocate(40 + tcpBuffer.length + dataLength);
       pseudoHeader.put(ip.getSourceAddress().getAddress());
       pseudoHeader.put(ip.getDestinationAddress().getAddress());
@@ -132,6 +131,8 @@ public class TcpPacketFactory {
     tcpHeader.setAckNumber(ackNumber);
     tcpHeader.setSyn(true);
     tcpHeader.setAck(true);
+    tcpHeader.retainHandshakeOptions();
+    ipHeader.setPayloadLength(tcpHeader.getHeaderLength());
 
     return createPacketData(ipHeader, tcpHeader, null);
   }
@@ -145,6 +146,21 @@ public class TcpPacketFactory {
    * @return a byte buffer with both the IP and TCP header filled in for an ACK packet.
    */
   public static byte[] createResponseAckData(IpHeader ip, TcpHeader tcp, long ackToClient) {
+    return createResponseAckData(ip, tcp, ackToClient, tcp.getWindowSize());
+  }
+
+  /**
+   * Prepare an ACK packet given the original ip and tcp header (and the ACK # that should be sent),
+   * advertising the given receive window back to the client.
+   *
+   * @param ip the original IP header of the data packet
+   * @param tcp the original TCP header of the data packet
+   * @param ackToClient the ACK# to send.
+   * @param windowSize the window field to advertise (already scaled)
+   * @return a byte buffer with both the IP and TCP header filled in for an ACK packet.
+   */
+  public static byte[] createResponseAckData(IpHeader ip, TcpHeader tcp, long ackToClient,
+                                             int windowSize) {
     IpHeader ipHeader = copyIpHeader(ip);
     TcpHeader tcpHeader = copyTcpHeader(tcp);
 
@@ -167,6 +183,9 @@ public class TcpPacketFactory {
     tcpHeader.setSyn(false);
     tcpHeader.setPsh(false);
     tcpHeader.setFin(false);
+    tcpHeader.setWindowSize(windowSize);
+    // the client's options only mean anything in the handshake
+    tcpHeader.clearOptions();
 
     // set response timestamps in options fields
     tcpHeader.setTimestampReplyTo(tcp.getTimestampSender());
@@ -196,6 +215,28 @@ public class TcpPacketFactory {
   public static byte[] createResponsePacketData(IpHeader ip, TcpHeader tcp, byte[] packetData,
                                                 boolean isPsh, long ackNumber, long seqNumber,
                                                 int timeSender, int timeReplyTo) {
+    return createResponsePacketData(ip, tcp, packetData, isPsh, ackNumber, seqNumber, timeSender,
+        timeReplyTo, tcp.getWindowSize());
+  }
+
+  /**
+   * Same as {@link #createResponsePacketData(IpHeader, TcpHeader, byte[], boolean, long, long,
+   * int, int)} but advertises the given receive window back to the client.
+   *
+   * @param ip the IP header received at the edge of the VPN from the Internet host
+   * @param tcp the TPC header received at the edge of the VPN from the Internet host
+   * @param packetData the packet data received
+   * @param isPsh true if the packet should be a PSH packet
+   * @param ackNumber the acknowledgement number to attach to the packet
+   * @param seqNumber the sequence number to attach to the packet
+   * @param timeSender the timestamp of the sender (need to understand better)
+   * @param timeReplyTo the timestamp of the replying side (need to understand better)
+   * @param windowSize the window field to advertise (already scaled)
+   * @return a buffer filled with the IP and TCP header + data payload for the internal recipient
+   */
+  public static byte[] createResponsePacketData(IpHeader ip, TcpHeader tcp, byte[] packetData,
+                                                boolean isPsh, long ackNumber, long seqNumber,
+                                                int timeSender, int timeReplyTo, int windowSize) {
     IpHeader ipHeader = copyIpHeader(ip);
     TcpHeader tcpHeader = copyTcpHeader(tcp);
 
@@ -217,6 +258,9 @@ public class TcpPacketFactory {
     tcpHeader.setSyn(false);
     tcpHeader.setPsh(isPsh);
     tcpHeader.setFin(false);
+    tcpHeader.setWindowSize(windowSize);
+    // the client's options only mean anything in the handshake
+    tcpHeader.clearOptions();
 
     tcpHeader.setTimestampSender(timeSender);
     tcpHeader.setTimestampReplyTo(timeReplyTo);
@@ -248,11 +292,15 @@ public class TcpPacketFactory {
 
     long ackNumber = 0;
     long seqNumber = 0;
+    boolean ack = false;
 
     if (tcpHeader.getAckNumber() > 0) {
       seqNumber = tcpHeader.getAckNumber();
     } else {
+      // the segment being reset carried no ack (ie: a SYN), so the reset has to ack it instead
+      // for the other side to accept it (RFC 793 3.4)
       ackNumber = tcpHeader.getSequenceNumber() + dataLength;
+      ack = true;
     }
 
     tcpHeader.setAckNumber(ackNumber);
@@ -267,7 +315,7 @@ public class TcpPacketFactory {
     }
 
     tcpHeader.setRst(true);
-    tcpHeader.setAck(false);
+    tcpHeader.setAck(ack);
     tcpHeader.setSyn(false);
     tcpHeader.setPsh(false);
     tcpHeader.setCwr(false);
@@ -276,7 +324,7 @@ public class TcpPacketFactory {
     //tcpHeader.setNS(false);
     tcpHeader.setUrg(false);
 
-    tcpHeader.setOptions(new ArrayList<>());
+    tcpHeader.clearOptions();
     tcpHeader.setWindowSize(0);
 
     ipHeader.setPayloadLength(tcpHeader.getHeaderLength());
@@ -325,7 +373,7 @@ public class TcpPacketFactory {
     //tcpHeader.setNS(false);
     tcpHeader.setUrg(false);
 
-    tcpHeader.setOptions(new ArrayList<>());
+    tcpHeader.clearOptions();
     tcpHeader.setWindowSize(0);
 
     ipHeader.setPayloadLength(tcpHeader.getHeaderLength());
@@ -370,6 +418,8 @@ public class TcpPacketFactory {
     tcpHeader.setSyn(isSyn);
     tcpHeader.setPsh(isPsh);
     tcpHeader.setFin(isFin);
+    // the client's options only mean anything in the handshake
+    tcpHeader.clearOptions();
 
     // set response timestamps in options fields
     tcpHeader.setTimestampReplyTo(tcp.getTimestampSender());
@@ -377,14 +427,14 @@ public class TcpPacketFactory {
     int sendertimestamp = (int) currentdate.getTime();
     tcpHeader.setTimestampSender(sendertimestamp);
 
-    ipHeader.setPayloadLength(tcp.getHeaderLength());
+    ipHeader.setPayloadLength(tcpHeader.getHeaderLength());
 
     return createPacketData(ipHeader, tcpHeader, null);
   }
 
   public static byte[] createSynPacket(InetAddress sourceAddress, InetAddress destinationAddress,
                                        int sourcePort, int destinationPort, int starting_seq) {
-    TcpHeader tcpHeader = new TcpHeader(sourcePort, destinationPort, starting_seq, 0, (short) 5, 0, 0, 0, 0, new ArrayList<>());
+    TcpHeader tcpHeader = new TcpHeader(sourcePort, destinationPort, starting_seq, 0, (short) 5, 0, 0, 0, 0);
     tcpHeader.setSyn(true);
     int tcpLen = tcpHeader.getHeaderLength();
     byte[] buffer = new byte[tcpLen];
@@ -430,7 +480,7 @@ public class TcpPacketFactory {
   public static byte[] encapsulate(InetAddress sourceAddress, InetAddress destinationAddress,
                                    int sourcePort, int destinationPort, int seq_num, int ack_num,
                                    short offset, byte[] data) {
-    TcpHeader tcpHeader = new TcpHeader(sourcePort, destinationPort, seq_num, ack_num, offset, 0, 0, 0, 0, new ArrayList<>());
+    TcpHeader tcpHeader = new TcpHeader(sourcePort, destinationPort, seq_num, ack_num, offset, 0, 0, 0, 0);
     int tcpLen = tcpHeader.getHeaderLength();
     if (data != null) {
       tcpLen += data.length;
@@ -0,0 +1,121 @@
+package network.grape.lib.transport.tcp;
+
+import static network.grape.lib.transport.TransportHeader.TCP_HEADER_LEN_NO_OPTIONS;
+import static network.grape.lib.transport.TransportHeader.TCP_PROTOCOL;
+import static network.grape.lib.transport.TransportHeader.TCP_WORD_LEN;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import network.grape.lib.transport.ResponseTemplate;
+import network.grape.lib.util.BufferUtil;
+import network.grape.lib.util.PacketUtil;
+
+/**
+ * Makes the ACKs and data segments going back to the client on a TCP session. Only the sequence
+ * and ack numbers, the flags and the window change between them, and the header has no options:
+ * the ones the client sends are only meaningful in the handshake, which still goes through
+ * {@link TcpPacketFactory}.
+ */
+public class TcpResponseTemplate extends ResponseTemplate {
+  private static final int ACK = 0x10;
+  private static final int PSH = 0x08;
+  // the data offset which goes in front of the flags, for a header without options
+  private static final int OFFSET = (TCP_HEADER_LEN_NO_OPTIONS / TCP_WORD_LEN) << 12;
+
+  private final long portSum;
+
+  /**
+   * Builds the template for a session.
+   *
+   * @param clientIp        the address of the client
+   * @param clientPort      the port of the client
+   * @param destinationIp   the address of the destination
+   * @param destinationPort the port of the destination
+   */
+  public TcpResponseTemplate(InetAddress clientIp, int clientPort, InetAddress destinationIp,
+                             int destinationPort) {
+    super(clientIp, destinationIp, TCP_PROTOCOL,
+        new TcpHeader(destinationPort, clientPort, 0, 0,
+            (short) (TCP_HEADER_LEN_NO_OPTIONS / TCP_WORD_LEN), 0, 0, 0, 0)
+            .toByteArray());
+    portSum = destinationPort + clientPort;
+  }
+
+  /**
+   * Makes an ACK, with data if there is any.
+   *
+   * @param sequenceNumber the sequence number of the segment
+   * @param ackNumber      the ack number of the segment
+   * @param psh            true to set the PSH flag
+   * @param windowSize     the window field to advertise (already scaled)
+   * @param data           the payload, may be null if there isn't one
+   * @return the IP packet to send to the client
+   */
+  public byte[] createPacket(long sequenceNumber, long ackNumber, boolean psh, int windowSize,
+                             byte[] data) {
+    return createPacket(sequenceNumber, ackNumber, psh, windowSize, data, 0,
+        data == null ? 0 : data.length);
+  }
+
+  /**
+   * Makes an ACK, with data if there is any.
+   *
+   * @param sequenceNumber the sequence number of the segment
+   * @param ackNumber      the ack number of the segment
+   * @param psh            true to set the PSH flag
+   * @param windowSize     the window field to advertise (already scaled)
+   * @param data           the array holding the payload, may be null if length is zero
+   * @param offset         where the payload starts in the array
+   * @param length         the length of the payload
+   * @return the IP packet to send to the client
+   */
+  public byte[] createPacket(long sequenceNumber, long ackNumber, boolean psh, int windowSize,
+                             byte[] data, int offset, int length) {
+    byte[] packet = newPacket(TCP_HEADER_LEN_NO_OPTIONS + length);
+    if (length > 0) {
+      System.arraycopy(data, offset, packet, ipHeaderLength + TCP_HEADER_LEN_NO_OPTIONS, length);
+    }
+    return fillHeader(packet, sequenceNumber, ackNumber, psh, windowSize, length);
+  }
+
+  /**
+   * Makes a data segment with the payload taken straight from a buffer (eg: the one the data was
+   * read from the destination into), so the payload is only copied the once into the packet.
+   *
+   * @param sequenceNumber the sequence number of the segment
+   * @param ackNumber      the ack number of the segment
+   * @param psh            true to set the PSH flag
+   * @param windowSize     the window field to advertise (already scaled)
+   * @param data           the buffer holding the payload at its position, which is moved past it
+   * @param length         the length of the payload
+   * @return the IP packet to send to the client
+   */
+  public byte[] createPacket(long sequenceNumber, long ackNumber, boolean psh, int windowSize,
+                             ByteBuffer data, int length) {
+    byte[] packet = newPacket(TCP_HEADER_LEN_NO_OPTIONS + length);
+    data.get(packet, ipHeaderLength + TCP_HEADER_LEN_NO_OPTIONS, length);
+    return fillHeader(packet, sequenceNumber, ackNumber, psh, windowSize, length);
+  }
+
+  /**
+   * Fills in the TCP header in front of a payload which is already in the packet.
+   */
+  private byte[] fillHeader(byte[] packet, long sequenceNumber, long ackNumber, boolean psh,
+                            int windowSize, int length) {
+    int start = ipHeaderLength;
+    long seq = sequenceNumber & 0xFFFFFFFFL;
+    long ack = ackNumber & 0xFFFFFFFFL;
+    int flags = OFFSET | ACK | (psh ? PSH : 0);
+    int window = windowSize & 0xFFFF;
+    PacketUtil.writeIntToBytes((int) seq, packet, start + 4);
+    PacketUtil.writeIntToBytes((int) ack, packet, start + 8);
+    BufferUtil.putUnsignedShort(packet, start + 12, flags);
+    BufferUtil.putUnsignedShort(packet, start + 14, window);
+    // the payload was only just copied in, so it's summed while it's still in the cache
+    long sum = pseudoHeaderSum(TCP_HEADER_LEN_NO_OPTIONS + length) + portSum + (seq >>> 16)
+        + (seq & 0xFFFF) + (ack >>> 16) + (ack & 0xFFFF) + flags + window
+        + PacketUtil.sumWords(packet, start + TCP_HEADER_LEN_NO_OPTIONS, length);
+    BufferUtil.putUnsignedShort(packet, start + 16, PacketUtil.finishChecksum(sum));
+    return packet;
+  }
+}
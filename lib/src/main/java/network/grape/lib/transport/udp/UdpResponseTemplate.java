@@ -0,0 +1,55 @@
+package network.grape.lib.transport.udp;
+
+import static network.grape.lib.transport.TransportHeader.UDP_HEADER_LEN;
+import static network.grape.lib.transport.TransportHeader.UDP_PROTOCOL;
+
+import java.net.InetAddress;
+import network.grape.lib.transport.ResponseTemplate;
+import network.grape.lib.util.BufferUtil;
+import network.grape.lib.util.PacketUtil;
+
+/**
+ * Makes the datagrams going back to the client on a UDP session, where only the length and the
+ * payload change from one to the next.
+ */
+public class UdpResponseTemplate extends ResponseTemplate {
+  private final long portSum;
+
+  /**
+   * Builds the template for a session.
+   *
+   * @param clientIp        the address of the client
+   * @param clientPort      the port of the client
+   * @param destinationIp   the address of the destination
+   * @param destinationPort the port of the destination
+   */
+  public UdpResponseTemplate(InetAddress clientIp, int clientPort, InetAddress destinationIp,
+                             int destinationPort) {
+    super(clientIp, destinationIp, UDP_PROTOCOL,
+        new UdpHeader(destinationPort, clientPort, 0, 0).toByteArray());
+    portSum = destinationPort + clientPort;
+  }
+
+  /**
+   * Makes a datagram back to the client.
+   *
+   * @param data   the array holding the payload
+   * @param offset where the payload starts in the array
+   * @param length the length of the payload
+   * @return the IP packet to send to the client
+   */
+  public byte[] createPacket(byte[] data, int offset, int length) {
+    int udpLength = UDP_HEADER_LEN + length;
+    byte[] packet = newPacket(udpLength);
+    int start = ipHeaderLength;
+    BufferUtil.putUnsignedShort(packet, start + 4, udpLength);
+    System.arraycopy(data, offset, packet, start + UDP_HEADER_LEN, length);
+    // the length is in both the pseudo header and the udp header
+    long sum = pseudoHeaderSum(udpLength) + portSum + udpLength
+        + PacketUtil.sumWords(data, offset, length);
+    int checksum = PacketUtil.finishChecksum(sum);
+    // a checksum of zero means there isn't one, so a zero result goes out as all ones (RFC 768)
+    BufferUtil.putUnsignedShort(packet, start + 6, checksum == 0 ? 0xFFFF : checksum);
+    return packet;
+  }
+}
@@ -0,0 +1,76 @@
+package network.grape.lib.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of same sized direct buffers for reading from sockets. A read into a heap buffer goes
+ * through a temporary direct buffer inside the JDK and is then copied, so reading into a direct
+ * one saves that copy, but direct buffers are slow to allocate and free. The pool hands them out
+ * again instead, so a worker only takes one for as long as it's reading.
+ *
+ * <p>Buffers are made when the pool is empty and dropped when it's full, so there are never more
+ * pooled than the limit, however many are handed out at once.</p>
+ */
+public class BufferPool {
+  private final int bufferSize;
+  private final BlockingQueue<ByteBuffer> free;
+  private final AtomicLong allocated = new AtomicLong();
+
+  /**
+   * Construct a pool.
+   *
+   * @param bufferSize the capacity of each buffer
+   * @param maxPooled  the most buffers kept for reuse
+   */
+  public BufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    free = new ArrayBlockingQueue<>(maxPooled);
+  }
+
+  /**
+   * Takes a buffer from the pool, or makes a new one if there are none free.
+   *
+   * @return a cleared buffer of the pool's size
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = free.poll();
+    if (buffer == null) {
+      allocated.incrementAndGet();
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Gives a buffer back to the pool. It mustn't be used again after this.
+   *
+   * @param buffer a buffer from {@link #acquire()}
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer.capacity() == bufferSize) {
+      free.offer(buffer);
+    }
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * The number of buffers which are in the pool waiting to be reused.
+   */
+  public int getPooled() {
+    return free.size();
+  }
+
+  /**
+   * The number of buffers the pool has had to make.
+   */
+  public long getAllocated() {
+    return allocated.get();
+  }
+}
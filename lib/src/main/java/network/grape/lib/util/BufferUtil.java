@@ -112,7 +112,7 @@ public class BufferUtil {
    * @param value the value to place
    */
   public static void putUnsignedShort(byte[] buffer, int position, int value) {
-    byte highbyte = (byte) (value & 0xFF00 >> 8);
+    byte highbyte = (byte) ((value & 0xFF00) >> 8);
     byte lowbyte = (byte) (value & 0x00FF);
     buffer[position] = highbyte;
     buffer[position + 1] = lowbyte;
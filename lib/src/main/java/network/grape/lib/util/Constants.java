@@ -5,4 +5,16 @@ package network.grape.lib.util;
  */
 public class Constants {
   public static final int MAX_RECEIVE_BUFFER_SIZE = 65535;
+
+  // mtu of the path packets take between the vpn client and the internet (or the proxy)
+  public static final int DEFAULT_TUNNEL_MTU = 1500;
+  // packets written straight to the tun interface aren't encapsulated at all
+  public static final int TUNNEL_OVERHEAD_NONE = 0;
+  // outer ip + udp headers added when a packet is carried between the vpn client and the proxy
+  public static final int TUNNEL_OVERHEAD_UDP_IP4 = 20 + 8;
+  public static final int TUNNEL_OVERHEAD_UDP_IP6 = 40 + 8;
+
+  // mss to assume when a SYN doesn't carry the option (RFC 879 / RFC 8200)
+  public static final int DEFAULT_MSS_IP4 = 536;
+  public static final int DEFAULT_MSS_IP6 = 1220;
 }
@@ -0,0 +1,103 @@
+package network.grape.lib.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue for any number of producer threads and exactly one consumer thread,
+ * after Dmitry Vyukov's bounded queue
+ * (https://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue).
+ *
+ * <p>Every slot has a sequence number which says whose turn it is: a producer may fill the slot
+ * when it equals the tail position it claimed, and the consumer may empty it when it's one past
+ * its head position. Producers claim positions with a compare-and-set on the tail, which also
+ * makes adding an element a full fence, so a consumer which sets a flag and then checks the queue
+ * is empty before parking can't miss an element.</p>
+ *
+ * @param <E> the type of element held in the queue
+ */
+public class MpscQueue<E> {
+  private final AtomicReferenceArray<E> buffer;
+  private final AtomicLongArray sequence;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * Construct a queue which holds at least capacity elements.
+   *
+   * @param capacity the minimum capacity, rounded up to a power of two
+   */
+  public MpscQueue(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    buffer = new AtomicReferenceArray<>(size);
+    sequence = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequence.set(i, i);
+    }
+    mask = size - 1;
+  }
+
+  /**
+   * Adds an element to the tail of the queue. Can be called from any thread.
+   *
+   * @param element the element to add, not null
+   * @return false if the queue was full and the element wasn't added
+   */
+  public boolean offer(E element) {
+    while (true) {
+      long currentTail = tail.get();
+      int index = (int) currentTail & mask;
+      long difference = sequence.get(index) - currentTail;
+      if (difference == 0) {
+        if (tail.compareAndSet(currentTail, currentTail + 1)) {
+          buffer.lazySet(index, element);
+          sequence.lazySet(index, currentTail + 1);
+          return true;
+        }
+      } else if (difference < 0) {
+        // the slot still holds an element from a lap ago
+        return false;
+      }
+      // otherwise another producer got this position first, try the next one
+    }
+  }
+
+  /**
+   * Removes the element at the head of the queue. Must only be called from the consumer thread.
+   *
+   * @return the element, or null if the queue is empty (or the producer which claimed the head
+   *         position hasn't finished adding its element yet)
+   */
+  public E poll() {
+    long currentHead = head.get();
+    int index = (int) currentHead & mask;
+    if (sequence.get(index) != currentHead + 1) {
+      return null;
+    }
+    E element = buffer.get(index);
+    buffer.lazySet(index, null);
+    sequence.lazySet(index, currentHead + buffer.length());
+    head.lazySet(currentHead + 1);
+    return element;
+  }
+
+  public boolean isEmpty() {
+    return head.get() >= tail.get();
+  }
+
+  public int size() {
+    return (int) Math.max(0, tail.get() - head.get());
+  }
+
+  public int capacity() {
+    return buffer.length();
+  }
+}
@@ -0,0 +1,18 @@
+package network.grape.lib.util;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Implemented by output streams which can hand several whole packets to the underlying device or
+ * socket at once, rather than needing a write + flush per packet to keep the packet boundaries.
+ */
+public interface PacketBatchWriter {
+  /**
+   * Writes each of the packets, keeping the boundaries between them, and flushes once at the end.
+   *
+   * @param packets the packets to write, in order
+   * @throws IOException if writing fails
+   */
+  void writePackets(List<byte[]> packets) throws IOException;
+}
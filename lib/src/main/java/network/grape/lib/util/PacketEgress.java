@@ -0,0 +1,215 @@
+package network.grape.lib.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import lombok.Getter;
+import lombok.Setter;
+import network.grape.lib.metrics.PipelineTracer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The single way out to the tunnel for every thread which writes packets back to the client. The
+ * SessionHandler, the output stream reader workers and the ICMP and DNS proxies all produce whole
+ * packets concurrently, and the TUN device or UdpOutputStream underneath isn't safe to write from
+ * several threads at once (two writers can interleave, or one flushes the other's half written
+ * packet). Instead each write is queued on a lock-free multi producer queue and one writer thread
+ * drains it, handing everything which has built up to the tunnel in one batch.
+ *
+ * <p>Each write (or each entry of {@link #writePackets}) is one whole packet, the same as the
+ * write + flush contract of the streams this wraps, and {@link #flush()} does nothing. When the
+ * queue is full the packet is dropped and counted, TCP will retransmit it and UDP may drop it
+ * anyway.</p>
+ */
+public class PacketEgress extends OutputStream implements PacketBatchWriter {
+  public static final int DEFAULT_QUEUE_SIZE = 4096;
+  // the most packets handed to the tunnel at once
+  public static final int MAX_BATCH = 64;
+  // empty polls before the writer thread parks
+  private static final int SPIN_LIMIT = 64;
+
+  private final Logger logger = LoggerFactory.getLogger(PacketEgress.class);
+  private final OutputStream target;
+  private final MpscQueue<byte[]> queue;
+  private final Thread thread;
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  // when set, each batch written to the tunnel is traced
+  @Getter @Setter private volatile PipelineTracer tracer;
+  private volatile boolean parked = false;
+  private volatile boolean running;
+
+  public PacketEgress(OutputStream target) {
+    this(target, DEFAULT_QUEUE_SIZE);
+  }
+
+  /**
+   * Construct an egress stage in front of the tunnel.
+   *
+   * @param target    the stream to the tunnel, only ever written from the writer thread
+   * @param queueSize how many packets can wait before packets are dropped
+   */
+  public PacketEgress(OutputStream target, int queueSize) {
+    this.target = target;
+    queue = new MpscQueue<>(queueSize);
+    thread = new Thread(this::drain, "packet-egress");
+    thread.setDaemon(true);
+  }
+
+  /**
+   * Starts the writer thread.
+   */
+  public void start() {
+    running = true;
+    thread.start();
+  }
+
+  /**
+   * Stops the writer thread once it has written what's already queued.
+   */
+  public void shutdown() {
+    running = false;
+    LockSupport.unpark(thread);
+  }
+
+  /**
+   * Queues a packet. The array is queued as it is rather than copied, so the caller must not
+   * change it afterwards.
+   *
+   * @param packet the whole packet
+   */
+  @Override
+  public void write(byte[] packet) {
+    enqueue(packet);
+  }
+
+  @Override
+  public void write(byte[] data, int offset, int length) {
+    enqueue(Arrays.copyOfRange(data, offset, offset + length));
+  }
+
+  @Override
+  public void write(int b) {
+    enqueue(new byte[] {(byte) b});
+  }
+
+  @Override
+  public void writePackets(List<byte[]> packets) {
+    for (byte[] packet : packets) {
+      enqueue(packet);
+    }
+  }
+
+  /**
+   * Does nothing, every write is already a whole packet.
+   */
+  @Override
+  public void flush() {
+  }
+
+  @Override
+  public void close() {
+    shutdown();
+  }
+
+  /**
+   * The number of packets waiting for the writer thread.
+   */
+  public int getDepth() {
+    return queue.size();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getWritten() {
+    return written.get();
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  private void enqueue(byte[] packet) {
+    if (!queue.offer(packet)) {
+      dropped.incrementAndGet();
+      logger.warn("Egress queue full, dropped a packet of {} bytes", packet.length);
+      return;
+    }
+    if (parked) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private void drain() {
+    List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+    int idle = 0;
+    while (true) {
+      byte[] packet = queue.poll();
+      while (packet != null) {
+        batch.add(packet);
+        if (batch.size() == MAX_BATCH) {
+          break;
+        }
+        packet = queue.poll();
+      }
+      if (!batch.isEmpty()) {
+        idle = 0;
+        writeBatch(batch);
+        batch.clear();
+        continue;
+      }
+      if (!running) {
+        return;
+      }
+      if (++idle < SPIN_LIMIT) {
+        Thread.yield();
+        continue;
+      }
+      parked = true;
+      // checked again after setting parked, producers only unpark the thread if they see it parked
+      if (queue.isEmpty() && running) {
+        LockSupport.park(this);
+      }
+      parked = false;
+    }
+  }
+
+  private void writeBatch(List<byte[]> batch) {
+    PipelineTracer current = tracer;
+    if (current != null && !current.isActive()) {
+      current = null;
+    }
+    long start = current != null ? System.nanoTime() : 0;
+    try {
+      if (target instanceof PacketBatchWriter) {
+        ((PacketBatchWriter) target).writePackets(batch);
+      } else {
+        // streams which buffer until flush would otherwise merge the packets
+        for (byte[] packet : batch) {
+          target.write(packet);
+          target.flush();
+        }
+      }
+      written.addAndGet(batch.size());
+      batches.incrementAndGet();
+      if (current != null) {
+        int bytes = 0;
+        for (byte[] packet : batch) {
+          bytes += packet.length;
+        }
+        current.egressFlushed(batch.size(), bytes, System.nanoTime() - start);
+      }
+    } catch (IOException ex) {
+      dropped.addAndGet(batch.size());
+      logger.error("Error writing to the tunnel: " + ex.toString());
+    }
+  }
+}
@@ -107,6 +107,45 @@ public class PacketUtil {
     return checksum;
   }
 
+  /**
+   * Adds up the data as 16 bit words for an internet checksum (RFC 1071) without folding or
+   * complementing the result, so sums over different parts of a packet (eg: a pseudo header worked
+   * out once, and the payload) can be added together and finished with
+   * {@link #finishChecksum(long)}. An odd length is summed as if padded with a zero byte, so only
+   * the last part of a packet may have one.
+   *
+   * @param data   the raw byte array to sum
+   * @param offset where to start in the array
+   * @param length how many bytes to sum
+   * @return the sum of the words
+   */
+  public static long sumWords(byte[] data, int offset, int length) {
+    long sum = 0;
+    int end = offset + length - 1;
+    int i = offset;
+    for (; i < end; i += 2) {
+      sum += ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+    }
+    if (i == end) {
+      sum += (data[i] & 0xFF) << 8;
+    }
+    return sum;
+  }
+
+  /**
+   * Folds the carries of a sum of words back in and takes the one's complement, giving the value
+   * for the checksum field.
+   *
+   * @param sum the sum of the words, see {@link #sumWords(byte[], int, int)}
+   * @return the checksum in the low 16 bits
+   */
+  public static int finishChecksum(long sum) {
+    while ((sum >> 16) != 0) {
+      sum = (sum & 0xFFFF) + (sum >> 16);
+    }
+    return (int) ~sum & 0xFFFF;
+  }
+
   /**
    * Detect packet corruption flag in tcp options sent from client ACK.
    *
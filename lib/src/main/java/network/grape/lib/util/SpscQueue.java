@@ -0,0 +1,97 @@
+package network.grape.lib.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue for exactly one producer thread and one consumer thread. The producer
+ * only ever writes the tail and the consumer only ever writes the head, so neither needs a lock
+ * or a compare-and-set. The consumer publishes its progress with an ordered (lazySet) write. The
+ * producer uses a full volatile write, so that a consumer which sets a flag and then checks the
+ * queue is empty before parking can't miss an element the producer added (and the producer,
+ * reading the flag after adding, can't miss that the consumer is parking).
+ *
+ * <p>Each side also keeps a cached copy of the other side's index and only re-reads the shared
+ * one when the cache says the queue is full (or empty), which keeps the two threads from
+ * bouncing the same cache lines back and forth on every element.</p>
+ *
+ * @param <E> the type of element held in the queue
+ */
+public class SpscQueue<E> {
+  private final AtomicReferenceArray<E> buffer;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  // only touched by the producer
+  private long cachedHead = 0;
+  // only touched by the consumer
+  private long cachedTail = 0;
+
+  /**
+   * Construct a queue which holds at least capacity elements.
+   *
+   * @param capacity the minimum capacity, rounded up to a power of two
+   */
+  public SpscQueue(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    buffer = new AtomicReferenceArray<>(size);
+    mask = size - 1;
+  }
+
+  /**
+   * Adds an element to the tail of the queue. Must only be called from the producer thread.
+   *
+   * @param element the element to add, not null
+   * @return false if the queue was full and the element wasn't added
+   */
+  public boolean offer(E element) {
+    long currentTail = tail.get();
+    if (currentTail - cachedHead >= buffer.length()) {
+      cachedHead = head.get();
+      if (currentTail - cachedHead >= buffer.length()) {
+        return false;
+      }
+    }
+    buffer.lazySet((int) currentTail & mask, element);
+    tail.set(currentTail + 1);
+    return true;
+  }
+
+  /**
+   * Removes the element at the head of the queue. Must only be called from the consumer thread.
+   *
+   * @return the element, or null if the queue is empty
+   */
+  public E poll() {
+    long currentHead = head.get();
+    if (currentHead >= cachedTail) {
+      cachedTail = tail.get();
+      if (currentHead >= cachedTail) {
+        return null;
+      }
+    }
+    int index = (int) currentHead & mask;
+    E element = buffer.get(index);
+    buffer.lazySet(index, null);
+    head.lazySet(currentHead + 1);
+    return element;
+  }
+
+  public boolean isEmpty() {
+    return head.get() >= tail.get();
+  }
+
+  public int size() {
+    return (int) (tail.get() - head.get());
+  }
+
+  public int capacity() {
+    return buffer.length();
+  }
+}
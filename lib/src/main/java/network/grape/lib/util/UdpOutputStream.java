@@ -48,11 +48,12 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.List;
 
 import network.grape.lib.session.SessionOutputStreamReaderWorker;
 import network.grape.lib.vpn.SocketProtector;
 
-public class UdpOutputStream extends OutputStream {
+public class UdpOutputStream extends OutputStream implements PacketBatchWriter {
 
     private final Logger logger;
     public static final int DEFAULT_BUFFER_SIZE = 1024;
@@ -142,6 +143,29 @@ public class UdpOutputStream extends OutputStream {
         idx = 0;
     }
 
+    /**
+     * Sends each packet as its own datagram, without copying it into the buffer first. Anything
+     * already in the buffer is flushed ahead of the packets.
+     *
+     * @param packets the packets to send, in order
+     * @throws IOException if sending fails
+     */
+    @Override
+    public void writePackets(List<byte[]> packets) throws IOException {
+        flush();
+        if (packets.isEmpty()) {
+            return;
+        }
+        // one DatagramPacket is reused for the whole batch, only the data changes between sends
+        DatagramPacket packet = new DatagramPacket(packets.get(0), packets.get(0).length,
+                dsock.getInetAddress(), dsock.getPort());
+        for (byte[] data : packets) {
+            packet.setData(data);
+            dsock.send(packet);
+        }
+        logger.debug("WROTE {} packets to {}:{}", packets.size(), dsock.getInetAddress().getHostAddress(), dsock.getPort());
+    }
+
     /*
      *****************************************************************
      ***                ***
@@ -211,6 +235,13 @@ public class UdpOutputStream extends OutputStream {
      */
     public void write(byte[] data, int off, int len) throws IOException {
         logger.debug("WRITING {} bytes to {}:{}", len, dsock.getInetAddress().getHostName(), dsock.getPort());
+        if (idx == 0 && len >= buffer.length) {
+            // each write carries a whole tunnelled packet, splitting it across datagrams would
+            // corrupt it, so anything that doesn't fit in the buffer goes out as one datagram
+            dpack = new DatagramPacket(data, off, len, dsock.getInetAddress(), dsock.getPort());
+            dsock.send(dpack);
+            return;
+        }
         int lenRemaining = len;
 
         try {
@@ -0,0 +1,66 @@
+package network.grape.lib.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads (JDK 21+) for a library which is built for JDK 11 and Android.
+ *
+ * <p>The lib jar is a multi-release jar: on JDK 21 and later the copy of this class in
+ * META-INF/versions/21 (src/main/java21) is loaded instead, which calls the API directly. This
+ * version is what Android and older JDKs get, and it still finds the API by reflection, so running
+ * from a classes directory rather than the jar on a new enough JDK works too.</p>
+ */
+public final class VirtualThreads {
+  private VirtualThreads() {
+  }
+
+  /**
+   * Whether virtual threads can be used, ie: whether this is JDK 21 or later.
+   */
+  public static boolean isAvailable() {
+    try {
+      Thread.class.getMethod("ofVirtual");
+      return true;
+    } catch (NoSuchMethodException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Creates a factory for virtual threads named prefix0, prefix1, etc.
+   *
+   * @param prefix the start of the name of each thread
+   * @return the factory
+   * @throws UnsupportedOperationException before JDK 21
+   */
+  public static ThreadFactory factory(String prefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      // the builder interfaces are public, the classes behind them aren't
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Method name = builderClass.getMethod("name", String.class, long.class);
+      builder = name.invoke(builder, prefix, 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException ex) {
+      throw new UnsupportedOperationException("Virtual threads need JDK 21 or later", ex);
+    }
+  }
+
+  /**
+   * Creates an executor which starts a new virtual thread for each task.
+   *
+   * @return the executor
+   * @throws UnsupportedOperationException before JDK 21
+   */
+  public static ExecutorService newExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException ex) {
+      throw new UnsupportedOperationException("Virtual threads need JDK 21 or later", ex);
+    }
+  }
+}
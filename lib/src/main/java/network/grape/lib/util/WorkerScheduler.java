@@ -0,0 +1,348 @@
+package network.grape.lib.util;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import lombok.Setter;
+import network.grape.lib.metrics.PipelineMetrics;
+import network.grape.lib.metrics.PipelineTracer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the reader and writer workers for the sessions. On top of whichever executor actually runs
+ * them it adds three things a plain ThreadPoolExecutor doesn't:
+ *
+ * <ul>
+ *   <li>A bound on how many tasks can be waiting or running. A task which doesn't fit is refused
+ *   (or the caller waits for room), rather than the queue growing without limit under load.</li>
+ *   <li>Serial execution per key. Tasks submitted with the same key (a session) run one after
+ *   another in the order they were submitted, never at the same time, so workers don't need busy
+ *   flags to keep off each other. Tasks with different keys run in parallel.</li>
+ *   <li>Metrics on how many tasks are queued and how long they wait before they start.</li>
+ * </ul>
+ *
+ * <p>The tasks for a key are held in a lane which only exists while it has work. The lane is
+ * handed to the executor as a single task and runs up to {@link #LANE_BATCH} of its tasks before
+ * going to the back of the executor's queue, so one busy session can't hold a thread forever.</p>
+ */
+public class WorkerScheduler {
+  public static final int DEFAULT_CAPACITY = 4096;
+  // tasks a lane runs before giving its thread up to other lanes
+  public static final int LANE_BATCH = 16;
+  private static final long KEEP_ALIVE_SECONDS = 10;
+
+  /**
+   * The executors a scheduler can run on.
+   */
+  public enum Type {
+    // a pool of platform threads, which retire when idle
+    FIXED,
+    // a work-stealing ForkJoinPool
+    FORK_JOIN,
+    // a new virtual thread per task, JDK 21+ only
+    VIRTUAL
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(WorkerScheduler.class);
+  private final ExecutorService executor;
+  private final int capacity;
+  private final Semaphore permits;
+  private final ConcurrentHashMap<Object, Lane> lanes = new ConcurrentHashMap<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicLong started = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong totalQueueLatency = new AtomicLong();
+  private final AtomicLong maxQueueLatency = new AtomicLong();
+  // when set, how long each task waited and ran is recorded there too
+  @Getter @Setter private volatile PipelineMetrics metrics;
+  // when set, each task queued and run is traced
+  @Getter @Setter private volatile PipelineTracer tracer;
+  private volatile boolean running = true;
+
+  /**
+   * Construct a scheduler on top of an executor.
+   *
+   * @param executor the executor to run the tasks on, shut down along with the scheduler
+   * @param capacity how many tasks can be waiting or running at once
+   */
+  public WorkerScheduler(ExecutorService executor, int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    this.executor = executor;
+    this.capacity = capacity;
+    permits = new Semaphore(capacity);
+  }
+
+  /**
+   * Creates a scheduler of the given type.
+   *
+   * @param type     the kind of executor to run on
+   * @param threads  the number of threads for FIXED and FORK_JOIN, ignored for VIRTUAL
+   * @param capacity how many tasks can be waiting or running at once
+   * @return the scheduler
+   * @throws UnsupportedOperationException if VIRTUAL is asked for before JDK 21
+   */
+  public static WorkerScheduler create(Type type, int threads, int capacity) {
+    switch (type) {
+      case FORK_JOIN:
+        return new WorkerScheduler(new ForkJoinPool(threads), capacity);
+      case VIRTUAL:
+        return new WorkerScheduler(VirtualThreads.newExecutor(), capacity);
+      case FIXED:
+      default:
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+              Thread thread = new Thread(runnable, "session-worker");
+              thread.setDaemon(true);
+              return thread;
+            });
+        // the queue in front of the pool is already bounded by the permits, so the pool itself
+        // can't grow past its core size, instead idle threads are let go
+        pool.allowCoreThreadTimeOut(true);
+        return new WorkerScheduler(pool, capacity);
+    }
+  }
+
+  /**
+   * Parses a scheduler type from configuration, eg: "fixed", "fork_join" or "virtual".
+   *
+   * @param name the name of the type, in any case
+   * @return the type
+   * @throws IllegalArgumentException if there's no such type
+   */
+  public static Type parseType(String name) {
+    return Type.valueOf(name.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+  }
+
+  /**
+   * Queues a task if there's room, without waiting.
+   *
+   * @param key  tasks with the same key run one at a time in order, null for a task which can run
+   *             alongside anything
+   * @param task the task
+   * @return false if the scheduler is full (or shut down) and the task was refused
+   */
+  public boolean trySubmit(Object key, Runnable task) {
+    if (!running || !permits.tryAcquire()) {
+      countRejected();
+      return false;
+    }
+    enqueue(key, task);
+    return true;
+  }
+
+  /**
+   * Queues a task, waiting up to the timeout for room. Waiting here is the backpressure: the
+   * thread submitting (eg: the selector thread) is held up while the workers catch up.
+   *
+   * @param key       tasks with the same key run one at a time in order, null for a task which can
+   *                  run alongside anything
+   * @param task      the task
+   * @param timeoutMs how long to wait for room
+   * @return false if there was no room in time (or the scheduler is shut down, or the thread was
+   *         interrupted) and the task was refused
+   */
+  public boolean submit(Object key, Runnable task, long timeoutMs) {
+    boolean acquired = false;
+    try {
+      acquired = running && permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    if (!acquired) {
+      countRejected();
+      return false;
+    }
+    enqueue(key, task);
+    return true;
+  }
+
+  private void enqueue(Object key, Runnable runnable) {
+    Task task = new Task(key, runnable);
+    int depth = queued.incrementAndGet();
+    PipelineTracer currentTracer = activeTracer();
+    if (currentTracer != null) {
+      currentTracer.workerQueued(key, depth);
+    }
+    try {
+      if (key == null) {
+        executor.execute(() -> runTask(task));
+        return;
+      }
+      boolean[] created = new boolean[1];
+      Lane lane = lanes.compute(key, (k, existing) -> {
+        Lane result = existing;
+        if (result == null) {
+          result = new Lane(k);
+          created[0] = true;
+        }
+        result.tasks.add(task);
+        return result;
+      });
+      // a lane which already existed is already with the executor, and will get to this task
+      if (created[0]) {
+        executor.execute(lane);
+      }
+    } catch (RejectedExecutionException ex) {
+      // only happens once the executor is shut down, at which point nothing more will run anyway
+      logger.warn("Executor refused a task, shutting down? " + ex.toString());
+    }
+  }
+
+  private void countRejected() {
+    rejected.incrementAndGet();
+    PipelineMetrics current = metrics;
+    if (current != null) {
+      current.getWorkersRejected().increment();
+    }
+  }
+
+  private void runTask(Task task) {
+    long startedAt = System.nanoTime();
+    long waited = startedAt - task.queuedAt;
+    queued.decrementAndGet();
+    started.incrementAndGet();
+    totalQueueLatency.addAndGet(waited);
+    maxQueueLatency.accumulateAndGet(waited, Math::max);
+    PipelineMetrics current = metrics;
+    PipelineTracer currentTracer = activeTracer();
+    try {
+      task.runnable.run();
+    } catch (RuntimeException ex) {
+      // the lane has to keep going for the other tasks of the session
+      logger.error("Error in worker task: " + ex.toString());
+    } finally {
+      completed.incrementAndGet();
+      permits.release();
+      if (current != null || currentTracer != null) {
+        long ran = System.nanoTime() - startedAt;
+        if (current != null) {
+          current.getWorkerQueueLatency().observe(waited);
+          current.getWorkerRunLatency().observe(ran);
+        }
+        if (currentTracer != null) {
+          currentTracer.workerRun(task.key, waited, ran);
+        }
+      }
+    }
+  }
+
+  private PipelineTracer activeTracer() {
+    PipelineTracer current = tracer;
+    return current != null && current.isActive() ? current : null;
+  }
+
+  /**
+   * The number of tasks waiting to start.
+   */
+  public int getQueueDepth() {
+    return queued.get();
+  }
+
+  /**
+   * The number of tasks waiting or running.
+   */
+  public int getInFlight() {
+    return capacity - permits.availablePermits();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  /**
+   * The mean time tasks waited between being submitted and starting.
+   */
+  public long getAverageQueueLatencyNanos() {
+    long count = started.get();
+    return count == 0 ? 0 : totalQueueLatency.get() / count;
+  }
+
+  /**
+   * The longest time any task waited between being submitted and starting.
+   */
+  public long getMaxQueueLatencyNanos() {
+    return maxQueueLatency.get();
+  }
+
+  /**
+   * Refuses any more tasks and stops the executor. Tasks already queued may not run.
+   */
+  public void shutdown() {
+    running = false;
+    executor.shutdownNow();
+  }
+
+  private static final class Task {
+    private final Object key;
+    private final Runnable runnable;
+    private final long queuedAt = System.nanoTime();
+
+    private Task(Object key, Runnable runnable) {
+      this.key = key;
+      this.runnable = runnable;
+    }
+  }
+
+  private final class Lane implements Runnable {
+    private final Object key;
+    // only touched inside lanes.compute for this key
+    private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+    private Task polled;
+
+    private Lane(Object key) {
+      this.key = key;
+    }
+
+    @Override
+    public void run() {
+      for (int i = 0; i < LANE_BATCH; i++) {
+        Task task = next();
+        if (task == null) {
+          return;
+        }
+        runTask(task);
+      }
+      // still work to do, let the lanes waiting behind this one have a go first
+      try {
+        executor.execute(this);
+      } catch (RejectedExecutionException ex) {
+        logger.warn("Executor refused a task, shutting down? " + ex.toString());
+      }
+    }
+
+    /**
+     * Takes the next task, removing the lane from the map if there isn't one. Both happen under
+     * the map's lock for the key, so a task submitted at the same time either lands in this lane
+     * before it's removed or starts a new lane afterwards.
+     */
+    private Task next() {
+      lanes.compute(key, (k, lane) -> {
+        polled = tasks.poll();
+        return polled == null ? null : lane;
+      });
+      return polled;
+    }
+  }
+}
@@ -0,0 +1,20 @@
+package network.grape.lib.vpn;
+
+import java.net.DatagramSocket;
+
+/**
+ * Sets the don't fragment bit on the packets a socket sends, so that one too big for the path is
+ * dropped, or refused by the kernel, rather than split up. How is up to the platform: Android sets
+ * IP_MTU_DISCOVER on the socket's file descriptor, and JDK 19 and later have a socket option.
+ */
+public interface DontFragment {
+
+  /**
+   * Turns the don't fragment bit on or off for a socket.
+   *
+   * @param socket  the socket
+   * @param enabled whether to set it on the packets the socket sends
+   * @return true if it was changed, false if the platform can't
+   */
+  boolean setDontFragment(DatagramSocket socket, boolean enabled);
+}
@@ -0,0 +1,109 @@
+package network.grape.lib.vpn;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link TunDevice} over the channels of a TUN file descriptor, normally the FileChannels from
+ * {@link #open(FileDescriptor, boolean)}. A read on a TUN file descriptor gives exactly one packet
+ * and a write sends exactly one, so the channel calls map one to one onto packets.
+ *
+ * <p>Reading into direct buffers lets the channel read straight into them, heap buffers go through
+ * the JDK's cached per thread direct buffer first.</p>
+ *
+ * <p>A blocking file descriptor (eg: from VpnService.Builder.setBlocking(true)) waits in the
+ * kernel for the next packet, and gives one packet per read since another read would block with
+ * the first one still waiting to be handled. A non-blocking one (the default on Android) is
+ * drained of everything waiting on each read, and polled with a short backoff when it's empty.</p>
+ */
+public class FileChannelTunDevice implements TunDevice {
+  private final ReadableByteChannel in;
+  private final WritableByteChannel out;
+  private final boolean blocking;
+  private final IdleBackoff backoff = new IdleBackoff();
+
+  /**
+   * Construct a device over the channels of a TUN file descriptor.
+   *
+   * @param in       the channel to read packets from
+   * @param out      the channel to write packets to
+   * @param blocking true if reads from the channel wait for a packet, false if they return zero
+   *                 when there isn't one
+   */
+  public FileChannelTunDevice(ReadableByteChannel in, WritableByteChannel out, boolean blocking) {
+    this.in = in;
+    this.out = out;
+    this.blocking = blocking;
+  }
+
+  /**
+   * Opens a device over a TUN file descriptor (eg: ParcelFileDescriptor.getFileDescriptor() on
+   * Android).
+   *
+   * @param fd       the file descriptor of the TUN interface
+   * @param blocking whether the file descriptor is in blocking mode
+   * @return the device
+   */
+  public static FileChannelTunDevice open(FileDescriptor fd, boolean blocking) {
+    return new FileChannelTunDevice(new FileInputStream(fd).getChannel(),
+        new FileOutputStream(fd).getChannel(), blocking);
+  }
+
+  @Override
+  public int read(ByteBuffer[] packets) throws IOException {
+    if (blocking) {
+      packets[0].clear();
+      int length = in.read(packets[0]);
+      if (length < 0) {
+        return -1;
+      }
+      packets[0].flip();
+      return length > 0 ? 1 : 0;
+    }
+
+    int count = 0;
+    while (count < packets.length) {
+      ByteBuffer packet = packets[count];
+      packet.clear();
+      int length = in.read(packet);
+      if (length < 0) {
+        return count > 0 ? count : -1;
+      }
+      if (length == 0) {
+        break;
+      }
+      packet.flip();
+      count++;
+    }
+    if (count > 0) {
+      backoff.reset();
+    } else {
+      backoff.idle();
+    }
+    return count;
+  }
+
+  @Override
+  public void write(ByteBuffer packet) throws IOException {
+    while (packet.hasRemaining()) {
+      if (out.write(packet) == 0) {
+        // a non-blocking descriptor with its queue full
+        Thread.yield();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      in.close();
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package network.grape.lib.vpn;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import network.grape.lib.session.Session;
+import network.grape.lib.session.SessionEngine;
+import network.grape.lib.session.SessionManager;
+import network.grape.lib.session.SessionOutputStreamReaderWorker;
+import network.grape.lib.session.SessionOutputStreamWriterWorker;
+import network.grape.lib.session.TcpSession;
+import network.grape.lib.session.UdpNatBinding;
+import network.grape.lib.session.UdpNatReaderWorker;
+import network.grape.lib.util.VirtualThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An alternative to the VpnWriter's selector and worker pool, where each session gets threads of
+ * its own doing blocking reads and writes on its channel: one reading from the destination and
+ * one writing to it (a session on a shared UDP channel only gets the writer, the channel gets one
+ * reader for all of them). On JDK 21+ these are virtual threads, so a thread per flow costs a
+ * couple of KB rather than a platform thread's stack, and the JDK does the selecting underneath.
+ * Before that (or on Android) platform threads are used, which is only sensible for a handful of
+ * flows.
+ *
+ * <p>The threads run the same SessionOutputStreamReaderWorker and WriterWorker as the selector,
+ * the workers just block where they'd otherwise have returned. A reader with the client's window
+ * full and a writer with nothing queued park until the SessionHandler subscribes the session to
+ * OP_READ / OP_WRITE, or the session is closed. Connect results are reported through the
+ * VpnWriter, the same as with the selector.</p>
+ */
+public class FlowThreadEngine implements SessionEngine {
+  private final Logger logger = LoggerFactory.getLogger(FlowThreadEngine.class);
+  private final SessionManager sessionManager;
+  private final VpnWriter vpnWriter;
+  private final ThreadFactory threadFactory;
+  private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+  private volatile boolean running = true;
+
+  public FlowThreadEngine(SessionManager sessionManager, VpnWriter vpnWriter) {
+    this(sessionManager, vpnWriter, defaultThreadFactory());
+  }
+
+  /**
+   * Construct an engine which starts its threads from the given factory.
+   *
+   * @param sessionManager the session manager the sessions are in
+   * @param vpnWriter      reports the result of the connect for new TCP sessions
+   * @param threadFactory  makes the threads for each flow
+   */
+  public FlowThreadEngine(SessionManager sessionManager, VpnWriter vpnWriter,
+                          ThreadFactory threadFactory) {
+    this.sessionManager = sessionManager;
+    this.vpnWriter = vpnWriter;
+    this.threadFactory = threadFactory;
+  }
+
+  /**
+   * Virtual threads when they're available, daemon platform threads otherwise.
+   */
+  public static ThreadFactory defaultThreadFactory() {
+    if (VirtualThreads.isAvailable()) {
+      return VirtualThreads.factory("flow-");
+    }
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, "flow-" + count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  @Override
+  public void attach(Session session) throws IOException {
+    Flow flow = new Flow(session);
+    if (session.getUdpNatBinding() == null) {
+      // the channel isn't registered with a selector, so it's free to block
+      session.getChannel().configureBlocking(true);
+    }
+    session.setInterestListener(flow::signal);
+    start(flow::run);
+  }
+
+  @Override
+  public void attachUdpNatBinding(UdpNatBinding binding) throws IOException {
+    binding.getChannel().configureBlocking(true);
+    // receives until the channel is closed along with the binding's last session
+    start(new UdpNatReaderWorker(binding));
+  }
+
+  /**
+   * The number of threads currently running flows.
+   */
+  public int getThreadCount() {
+    return threads.size();
+  }
+
+  @Override
+  public void shutdown() {
+    running = false;
+    // parked threads notice, threads blocked on a channel stop when the session is closed
+    for (Thread thread : threads) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private void start(Runnable task) {
+    Thread thread = threadFactory.newThread(() -> {
+      try {
+        task.run();
+      } catch (RuntimeException ex) {
+        logger.error("Error in flow thread: " + ex.toString());
+      } finally {
+        threads.remove(Thread.currentThread());
+      }
+    });
+    threads.add(thread);
+    thread.start();
+  }
+
+  private final class Flow {
+    private final Session session;
+    private final String key;
+    private volatile Thread reader;
+    private volatile Thread writer;
+
+    private Flow(Session session) {
+      this.session = session;
+      this.key = session.getKey();
+    }
+
+    /**
+     * Wakes the flow's threads to re-check whether they have anything to do.
+     *
+     * @param ops the selection key operations the session was subscribed to, 0 when it's closed
+     */
+    private void signal(int ops) {
+      if (ops == 0 || (ops & SelectionKey.OP_READ) != 0) {
+        unpark(reader);
+      }
+      if (ops == 0 || (ops & SelectionKey.OP_WRITE) != 0) {
+        unpark(writer);
+      }
+    }
+
+    private void unpark(Thread thread) {
+      if (thread != null) {
+        LockSupport.unpark(thread);
+      }
+    }
+
+    private boolean isOpen() {
+      AbstractSelectableChannel channel = session.getChannel();
+      return running && channel.isOpen() && sessionManager.getSessionByKey(key) == session;
+    }
+
+    private void run() {
+      if (!connect()) {
+        return;
+      }
+      if (session.getUdpNatBinding() != null) {
+        writer = Thread.currentThread();
+        write();
+        return;
+      }
+      start(() -> {
+        writer = Thread.currentThread();
+        write();
+      });
+      reader = Thread.currentThread();
+      read();
+    }
+
+    /**
+     * Waits for a TCP connect which was started by the SessionHandler to complete.
+     *
+     * @return false if it failed, in which case the session has been reset and closed
+     */
+    private boolean connect() {
+      if (!(session.getChannel() instanceof SocketChannel)) {
+        return true;
+      }
+      SocketChannel channel = (SocketChannel) session.getChannel();
+      TcpSession tcpSession = (TcpSession) session;
+      if (!channel.isConnected()) {
+        try {
+          // blocks, since the channel is in blocking mode now
+          channel.finishConnect();
+        } catch (IOException ex) {
+          // refused, unreachable, or closed by the connect timer
+          vpnWriter.connectFailed(tcpSession, ex.toString());
+          return false;
+        }
+        session.setConnected(true);
+        logger.info("Connected to remote tcp server: " + key);
+      }
+      vpnWriter.connectSucceeded(tcpSession);
+      return true;
+    }
+
+    private void read() {
+      SessionOutputStreamReaderWorker worker =
+          new SessionOutputStreamReaderWorker(session.getOutputStream(), key, sessionManager);
+      while (isOpen() && !session.isAbortingConnection()) {
+        if (session.isClientWindowFull()) {
+          // the SessionHandler subscribes to OP_READ once the client acks and opens it up again
+          LockSupport.park(this);
+          continue;
+        }
+        // returns once the window fills up, the destination closes, or the channel is closed
+        worker.run();
+      }
+    }
+
+    private void write() {
+      SessionOutputStreamWriterWorker worker =
+          new SessionOutputStreamWriterWorker(session.getOutputStream(), key, sessionManager);
+      while (isOpen() && !session.isAbortingConnection()) {
+        if (session.hasDataToSend() && session.isDataForSendingReady()) {
+          worker.run();
+        } else {
+          // the SessionHandler subscribes to OP_WRITE when the client sends more
+          LockSupport.park(this);
+        }
+      }
+    }
+  }
+}
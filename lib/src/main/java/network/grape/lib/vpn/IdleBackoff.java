@@ -0,0 +1,40 @@
+package network.grape.lib.vpn;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread polling a non-blocking device waits when there's nothing to read: it yields for a
+ * while, since more packets usually follow close behind, and then parks for longer and longer up to
+ * a millisecond, rather than sleeping a fixed 100ms which holds up the next packet by as much.
+ */
+class IdleBackoff {
+  // empty polls which only yield before parking
+  private static final int SPIN_LIMIT = 64;
+  private static final long MIN_PARK_NANOS = 16_000;
+  private static final long MAX_PARK_NANOS = 1_000_000;
+
+  private int idle = 0;
+
+  /**
+   * Waits a little after a poll which found nothing.
+   */
+  void idle() {
+    if (idle < SPIN_LIMIT) {
+      idle++;
+      Thread.yield();
+      return;
+    }
+    long park = Math.min(MIN_PARK_NANOS << (idle - SPIN_LIMIT), MAX_PARK_NANOS);
+    if (park < MAX_PARK_NANOS) {
+      idle++;
+    }
+    LockSupport.parkNanos(this, park);
+  }
+
+  /**
+   * Starts over with yielding, after a poll which found something.
+   */
+  void reset() {
+    idle = 0;
+  }
+}
@@ -0,0 +1,105 @@
+package network.grape.lib.vpn;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link TunDevice} which is an in memory pipe, for running the stack without a real TUN
+ * interface (eg: in tests, or on a machine without permission to make one). The apps' side of the
+ * pipe puts packets in with {@link #inject(byte[])} and takes what the stack wrote back with
+ * {@link #poll(long, TimeUnit)}.
+ */
+public class MemoryTunDevice implements TunDevice {
+  // how long a read waits for a packet before giving the caller a chance to stop
+  private static final long READ_WAIT_MS = 100;
+  // put on the queue to wake a waiting reader when the device is closed
+  private static final byte[] CLOSED = new byte[0];
+
+  private final Logger logger = LoggerFactory.getLogger(MemoryTunDevice.class);
+  private final BlockingQueue<byte[]> toStack = new LinkedBlockingQueue<>();
+  private final BlockingQueue<byte[]> fromStack = new LinkedBlockingQueue<>();
+  private volatile boolean closed = false;
+  private final AtomicLong truncated = new AtomicLong();
+
+  /**
+   * Sends a packet into the device, as if an app on the device had sent it.
+   *
+   * @param packet the whole IP packet
+   */
+  public void inject(byte[] packet) {
+    toStack.add(packet);
+  }
+
+  /**
+   * Takes the next packet the stack wrote to the device.
+   *
+   * @param timeout how long to wait for one
+   * @param unit    the unit of the timeout
+   * @return the packet, or null if none came in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public byte[] poll(long timeout, TimeUnit unit) throws InterruptedException {
+    return fromStack.poll(timeout, unit);
+  }
+
+  @Override
+  public int read(ByteBuffer[] packets) throws IOException {
+    byte[] packet;
+    try {
+      packet = toStack.poll(READ_WAIT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for a packet");
+    }
+    int count = 0;
+    while (packet != null && packet != CLOSED) {
+      ByteBuffer buffer = packets[count++];
+      buffer.clear();
+      if (packet.length > buffer.remaining()) {
+        truncated.incrementAndGet();
+        logger.warn("Truncated a {} byte packet to {} bytes", packet.length, buffer.remaining());
+      }
+      buffer.put(packet, 0, Math.min(packet.length, buffer.remaining()));
+      buffer.flip();
+      if (count == packets.length) {
+        break;
+      }
+      packet = toStack.poll();
+    }
+    // the packets already taken are handed over, the next read reports the close
+    if (count == 0 && closed) {
+      return -1;
+    }
+    return count;
+  }
+
+  @Override
+  public void write(ByteBuffer packet) throws IOException {
+    if (closed) {
+      throw new IOException("The device is closed");
+    }
+    byte[] data = new byte[packet.remaining()];
+    packet.get(data);
+    fromStack.add(data);
+  }
+
+  /**
+   * The number of packets cut short by a read, for not fitting in their buffer.
+   */
+  public long getTruncated() {
+    return truncated.get();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    toStack.add(CLOSED);
+  }
+}
@@ -0,0 +1,254 @@
+package network.grape.lib.vpn;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.PortUnreachableException;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import lombok.Getter;
+import lombok.Setter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Discovers the largest packet which can be carried between the VPN client and the proxy without
+ * being fragmented or dropped along the way. The client sends probes of different sizes over the
+ * tunnel socket, the proxy echoes each one back, and the largest probe which makes the round trip
+ * is reported to the proxy so that it can clamp the MSS of new TCP sessions to it.
+ *
+ * <p>Probes are control frames which start with a zero byte. This can never be the first byte of
+ * an IPv4 or IPv6 packet, so control frames can share the socket with the tunnelled traffic. The
+ * probe has to run before the forwarding threads start reading from the socket.</p>
+ *
+ * <p>The probes are sent with the don't fragment bit set where the platform allows it. Otherwise
+ * the kernel splits up a probe too big for the path once an ICMP error has told it the path MTU,
+ * and the pieces make it through, so only a probe answered the first time it's sent counts. If
+ * not even that can be trusted the result stays at the safe minimum.</p>
+ *
+ * <p>Control frame format:
+ * - marker (1 byte, always 0)
+ * - type (1 byte, PROBE, PROBE_REPLY or MTU_REPORT)
+ * - value (4 bytes, the probe id or the reported size)
+ * - padding up to the size being probed</p>
+ */
+public class MtuProbe {
+  public static final byte CONTROL_FRAME = 0x00;
+  public static final byte PROBE = 0x01;
+  public static final byte PROBE_REPLY = 0x02;
+  public static final byte MTU_REPORT = 0x03;
+  public static final int CONTROL_HEADER_LEN = 6;
+
+  // largest udp payload that fits in the smallest ipv4 packet every host must accept (576 - 28)
+  public static final int MIN_PROBE_SIZE = 548;
+  // largest udp payload that fits in a 1500 byte ethernet frame over ipv4 (1500 - 28)
+  public static final int MAX_PROBE_SIZE = 1472;
+
+  private final Logger logger = LoggerFactory.getLogger(MtuProbe.class);
+  private final DatagramSocket socket;
+  @Getter @Setter private int timeout = 500;
+  @Getter @Setter private int attempts = 3;
+  // how to set the don't fragment bit, the JDK 19+ socket option unless the platform has a better
+  // way, eg: on Android
+  @Getter @Setter private DontFragment dontFragment = MtuProbe::setDontFragmentOption;
+  // whether the probes being sent have the don't fragment bit set
+  private boolean fragmentsBlocked;
+  private int nextId = 0;
+
+  /**
+   * Construct a probe which uses the given socket. The socket must already be connected to the
+   * proxy.
+   *
+   * @param socket the tunnel socket connected to the proxy
+   */
+  public MtuProbe(DatagramSocket socket) {
+    this.socket = socket;
+  }
+
+  /**
+   * Binary searches for the largest probe which makes it to the proxy and back, and then reports
+   * it to the proxy.
+   *
+   * @return the largest packet that can be sent through the tunnel, not including the outer
+   *     IP and UDP headers
+   * @throws IOException if the socket fails
+   */
+  public int discover() throws IOException {
+    return discover(MIN_PROBE_SIZE, MAX_PROBE_SIZE);
+  }
+
+  /**
+   * Binary searches between minSize and maxSize for the largest probe which makes it to the proxy
+   * and back, and then reports it to the proxy. If not even minSize makes it back, minSize is
+   * returned without reporting anything.
+   *
+   * @param minSize the smallest packet size to consider
+   * @param maxSize the largest packet size to consider
+   * @return the largest packet that can be sent through the tunnel, not including the outer
+   *     IP and UDP headers
+   * @throws IOException if the socket fails
+   */
+  public int discover(int minSize, int maxSize) throws IOException {
+    int previousTimeout = socket.getSoTimeout();
+    socket.setSoTimeout(timeout);
+    fragmentsBlocked = dontFragment != null && dontFragment.setDontFragment(socket, true);
+    if (!fragmentsBlocked) {
+      logger.info("Can't set don't fragment, only probes answered first time will count");
+    }
+    try {
+      int low = minSize;
+      int high = maxSize;
+      // try the top of the range first, on most paths it just works
+      if (probe(high)) {
+        low = high;
+      } else if (!probe(low)) {
+        // the proxy isn't answering probes at all, so there is nothing to search for
+        logger.warn("No reply to MTU probes from {}", socket.getRemoteSocketAddress());
+        return low;
+      }
+      while (low < high) {
+        int mid = (low + high + 1) / 2;
+        if (probe(mid)) {
+          low = mid;
+        } else {
+          high = mid - 1;
+        }
+      }
+      logger.info("Path MTU to {} allows {} byte packets", socket.getRemoteSocketAddress(), low);
+      report(low);
+      return low;
+    } finally {
+      if (fragmentsBlocked) {
+        dontFragment.setDontFragment(socket, false);
+      }
+      socket.setSoTimeout(previousTimeout);
+    }
+  }
+
+  /**
+   * Sends a probe of the given size and waits for it to be echoed back. Without the don't
+   * fragment bit a resent probe could have been fragmented, so it's only sent the once, unless
+   * it's small enough to get through any path whole.
+   *
+   * @param size the size of the probe in bytes
+   * @return true if the probe made the round trip within the attempts which count
+   * @throws IOException if the socket fails
+   */
+  protected boolean probe(int size) throws IOException {
+    byte[] request = createFrame(PROBE, nextId++, size);
+    int id = ByteBuffer.wrap(request).getInt(2);
+    byte[] response = new byte[size];
+    DatagramPacket reply = new DatagramPacket(response, response.length);
+    int tries = fragmentsBlocked || size <= MIN_PROBE_SIZE ? attempts : 1;
+    for (int attempt = 0; attempt < tries; attempt++) {
+      try {
+        socket.send(new DatagramPacket(request, request.length));
+      } catch (IOException ex) {
+        if (!fragmentsBlocked || ex instanceof PortUnreachableException) {
+          throw ex;
+        }
+        // the kernel already knows the path MTU is smaller than this
+        logger.debug("{} byte probe refused: {}", size, ex.toString());
+        return false;
+      }
+      try {
+        while (true) {
+          reply.setLength(response.length);
+          socket.receive(reply);
+          // anything else is either tunnelled traffic or a late reply to an earlier probe
+          if (reply.getLength() == size && isControlFrame(response, reply.getLength())
+              && response[1] == PROBE_REPLY && ByteBuffer.wrap(response).getInt(2) == id) {
+            return true;
+          }
+        }
+      } catch (SocketTimeoutException | PortUnreachableException ex) {
+        logger.debug("No reply to {} byte probe, attempt {}", size, attempt + 1);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Tells the proxy the largest packet size which made it through.
+   *
+   * @param size the size in bytes
+   * @throws IOException if the socket fails
+   */
+  public void report(int size) throws IOException {
+    byte[] frame = createFrame(MTU_REPORT, size, CONTROL_HEADER_LEN);
+    socket.send(new DatagramPacket(frame, frame.length));
+  }
+
+  /**
+   * Whether the data received on the tunnel is a control frame rather than an IP packet.
+   *
+   * @param data the received data
+   * @param length the length of the received data
+   * @return true if this is a control frame
+   */
+  public static boolean isControlFrame(byte[] data, int length) {
+    return length >= CONTROL_HEADER_LEN && data[0] == CONTROL_FRAME;
+  }
+
+  /**
+   * Creates the reply to a probe, which is the probe itself with the type changed, so that it is
+   * the same size on the way back.
+   *
+   * @param data the received control frame
+   * @param length the length of the received control frame
+   * @return the reply to send back, or null if the frame isn't a probe
+   */
+  public static byte[] createProbeReply(byte[] data, int length) {
+    if (!isControlFrame(data, length) || data[1] != PROBE) {
+      return null;
+    }
+    byte[] reply = new byte[length];
+    System.arraycopy(data, 0, reply, 0, length);
+    reply[1] = PROBE_REPLY;
+    return reply;
+  }
+
+  /**
+   * Gets the size reported by the client at the end of a probe.
+   *
+   * @param data the received control frame
+   * @param length the length of the received control frame
+   * @return the reported size, or -1 if the frame isn't a report
+   */
+  public static int getReportedSize(byte[] data, int length) {
+    if (!isControlFrame(data, length) || data[1] != MTU_REPORT) {
+      return -1;
+    }
+    return ByteBuffer.wrap(data, 0, length).getInt(2);
+  }
+
+  /**
+   * Sets the don't fragment bit with the IP_DONTFRAGMENT socket option, which JDK 19 and later
+   * have. It's found by reflection since lib is built for JDK 11 and Android.
+   *
+   * @param socket  the socket
+   * @param enabled whether to set the bit
+   * @return true if it was changed, false if the JDK doesn't have the option
+   */
+  @SuppressWarnings("unchecked")
+  static boolean setDontFragmentOption(DatagramSocket socket, boolean enabled) {
+    try {
+      SocketOption<Boolean> option = (SocketOption<Boolean>) Class
+          .forName("jdk.net.ExtendedSocketOptions").getField("IP_DONTFRAGMENT").get(null);
+      DatagramSocket.class.getMethod("setOption", SocketOption.class, Object.class)
+          .invoke(socket, option, enabled);
+      return true;
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      return false;
+    }
+  }
+
+  protected static byte[] createFrame(byte type, int value, int size) {
+    ByteBuffer frame = ByteBuffer.allocate(Math.max(size, CONTROL_HEADER_LEN));
+    frame.put(CONTROL_FRAME);
+    frame.put(type);
+    frame.putInt(value);
+    return frame.array();
+  }
+}
@@ -0,0 +1,68 @@
+package network.grape.lib.vpn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link TunDevice} over the input and output streams the readers used to take, so they still
+ * work with a FileInputStream on the TUN file descriptor (one packet per read) or a test stream.
+ * Each read gives at most one packet since a stream doesn't say whether there's another waiting,
+ * and a read which gets nothing backs off the same way a non-blocking FileChannelTunDevice does.
+ * The buffers read into need a backing array.
+ */
+class StreamTunDevice implements TunDevice {
+  private final InputStream inputStream;
+  private final OutputStream outputStream;
+  private final IdleBackoff backoff = new IdleBackoff();
+
+  StreamTunDevice(InputStream inputStream, OutputStream outputStream) {
+    this.inputStream = inputStream;
+    this.outputStream = outputStream;
+  }
+
+  @Override
+  public int read(ByteBuffer[] packets) throws IOException {
+    ByteBuffer packet = packets[0];
+    packet.clear();
+    int length = inputStream.read(packet.array(), packet.arrayOffset(), packet.remaining());
+    if (length < 0) {
+      return -1;
+    }
+    if (length == 0) {
+      backoff.idle();
+      return 0;
+    }
+    backoff.reset();
+    packet.limit(length);
+    return 1;
+  }
+
+  @Override
+  public void write(ByteBuffer packet) throws IOException {
+    outputStream.write(packet.array(), packet.arrayOffset() + packet.position(),
+        packet.remaining());
+    outputStream.flush();
+    packet.position(packet.limit());
+  }
+
+  /**
+   * The stream itself, so writes go to it exactly as they did before.
+   */
+  @Override
+  public OutputStream asOutputStream() {
+    return outputStream;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      inputStream.close();
+    } finally {
+      if (outputStream != null) {
+        outputStream.close();
+      }
+    }
+  }
+}
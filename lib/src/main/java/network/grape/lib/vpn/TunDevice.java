@@ -0,0 +1,48 @@
+package network.grape.lib.vpn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The packet side of a TUN interface: every read gives one whole IP packet from the apps on the
+ * device, and every write sends one whole packet back to them.
+ *
+ * <p>Reads wait for packets without sleeping a fixed amount of time: a blocking device waits in
+ * the kernel, a non-blocking one polls and backs off. Once there is a packet, a read takes as many
+ * as are already waiting (up to the number of buffers given), so a burst is handled in one
+ * wakeup.</p>
+ */
+public interface TunDevice extends Closeable {
+  /**
+   * Reads the packets which are waiting, at least one unless the wait runs out first. Each buffer
+   * which gets a packet is flipped ready for parsing (position zero and limit at the end of the
+   * packet). A packet which doesn't fit in its buffer is truncated, the same as a read from a TUN
+   * file descriptor.
+   *
+   * @param packets the buffers to read into, cleared before use
+   * @return the number of packets read, zero if the wait ran out so the caller can check if it
+   *     should stop, or -1 if the device has been closed
+   * @throws IOException if reading from the device fails
+   */
+  int read(ByteBuffer[] packets) throws IOException;
+
+  /**
+   * Writes one whole packet to the device, from the position to the limit of the buffer.
+   *
+   * @param packet the packet to write
+   * @throws IOException if writing to the device fails
+   */
+  void write(ByteBuffer packet) throws IOException;
+
+  /**
+   * Wraps the device as an output stream for the code which writes packets as byte arrays (eg:
+   * {@link network.grape.lib.session.SessionHandler}), where each write is one whole packet.
+   *
+   * @return the output stream
+   */
+  default OutputStream asOutputStream() {
+    return new TunOutputStream(this);
+  }
+}
@@ -0,0 +1,41 @@
+package network.grape.lib.vpn;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import network.grape.lib.util.PacketBatchWriter;
+
+/**
+ * An output stream over a {@link TunDevice}, where every write is one whole packet so there is
+ * nothing to flush.
+ */
+public class TunOutputStream extends OutputStream implements PacketBatchWriter {
+  private final TunDevice device;
+
+  public TunOutputStream(TunDevice device) {
+    this.device = device;
+  }
+
+  @Override
+  public void write(byte[] packet, int offset, int length) throws IOException {
+    device.write(ByteBuffer.wrap(packet, offset, length));
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void writePackets(List<byte[]> packets) throws IOException {
+    for (byte[] packet : packets) {
+      device.write(ByteBuffer.wrap(packet));
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    device.close();
+  }
+}
@@ -0,0 +1,132 @@
+package network.grape.lib.vpn;
+
+import static network.grape.lib.vpn.MtuProbe.CONTROL_FRAME;
+import static network.grape.lib.vpn.MtuProbe.CONTROL_HEADER_LEN;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import lombok.Getter;
+import lombok.Setter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Agrees the optional features of a plaintext tunnel between the VPN client and the proxy. The
+ * client offers the features it can handle, and the proxy answers with the ones it will use, which
+ * are then turned on at both ends. A proxy which doesn't know the frame doesn't answer, and
+ * nothing is turned on. Like the MTU probe, this runs on the tunnel socket before the forwarding
+ * threads start.
+ *
+ * <p>An encrypted tunnel agrees its features in the hello instead, where the mac covers them, and
+ * the proxy ignores these frames.</p>
+ *
+ * <p>Capabilities frame format:
+ * - marker (1 byte, always 0)
+ * - type (1 byte, CAPABILITIES or CAPABILITIES_REPLY)
+ * - value (4 bytes, the features offered or agreed)</p>
+ */
+public class TunnelCapabilities {
+  public static final byte CAPABILITIES = 0x08;
+  public static final byte CAPABILITIES_REPLY = 0x09;
+  // the packets of the flows which compress are sent as compressed frames, both ways
+  public static final int COMPRESSION = 0x01;
+
+  private final Logger logger = LoggerFactory.getLogger(TunnelCapabilities.class);
+  private final DatagramSocket socket;
+  @Getter @Setter private int timeout = 500;
+  @Getter @Setter private int attempts = 3;
+
+  /**
+   * Construct an offer which uses the given socket. The socket must already be connected to the
+   * proxy.
+   *
+   * @param socket the tunnel socket connected to the proxy
+   */
+  public TunnelCapabilities(DatagramSocket socket) {
+    this.socket = socket;
+  }
+
+  /**
+   * Offers the features to the proxy and waits for its answer.
+   *
+   * @param offered the features the client can handle
+   * @return the features agreed, none if the proxy didn't answer
+   * @throws IOException if the socket fails
+   */
+  public int offer(int offered) throws IOException {
+    byte[] request = createFrame(CAPABILITIES, offered);
+    byte[] response = new byte[CONTROL_HEADER_LEN];
+    DatagramPacket reply = new DatagramPacket(response, response.length);
+    int previousTimeout = socket.getSoTimeout();
+    socket.setSoTimeout(timeout);
+    try {
+      for (int attempt = 0; attempt < attempts; attempt++) {
+        socket.send(new DatagramPacket(request, request.length));
+        try {
+          while (true) {
+            reply.setLength(response.length);
+            socket.receive(reply);
+            // anything else is a late reply to a probe, never more than was offered though
+            if (reply.getLength() == CONTROL_HEADER_LEN && response[1] == CAPABILITIES_REPLY
+                && MtuProbe.isControlFrame(response, reply.getLength())) {
+              int agreed = ByteBuffer.wrap(response).getInt(2) & offered;
+              logger.info("Agreed tunnel capabilities {} with {}", agreed,
+                  socket.getRemoteSocketAddress());
+              return agreed;
+            }
+          }
+        } catch (SocketTimeoutException | PortUnreachableException ex) {
+          logger.debug("No reply to capabilities, attempt {}", attempt + 1);
+        }
+      }
+    } finally {
+      socket.setSoTimeout(previousTimeout);
+    }
+    logger.warn("No reply to capabilities from {}", socket.getRemoteSocketAddress());
+    return 0;
+  }
+
+  /**
+   * Whether the control frame is a client offering its capabilities.
+   *
+   * @param data   the received data
+   * @param length the length of the received data
+   * @return true if it's an offer
+   */
+  public static boolean isOffer(byte[] data, int length) {
+    return length == CONTROL_HEADER_LEN && MtuProbe.isControlFrame(data, length)
+        && data[1] == CAPABILITIES;
+  }
+
+  /**
+   * The features a client offered.
+   *
+   * @param data the received offer
+   * @return the features offered
+   */
+  public static int getOffered(byte[] data) {
+    return ByteBuffer.wrap(data).getInt(2);
+  }
+
+  /**
+   * Creates the proxy's answer to an offer.
+   *
+   * @param agreed the features offered which the proxy will use
+   * @return the reply to send back
+   */
+  public static byte[] createReply(int agreed) {
+    return createFrame(CAPABILITIES_REPLY, agreed);
+  }
+
+  private static byte[] createFrame(byte type, int value) {
+    ByteBuffer frame = ByteBuffer.allocate(CONTROL_HEADER_LEN);
+    frame.put(CONTROL_FRAME);
+    frame.put(type);
+    frame.putInt(value);
+    return frame.array();
+  }
+}
@@ -8,6 +8,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
@@ -15,6 +16,11 @@ import java.util.List;
 
 import lombok.Setter;
 import network.grape.lib.PacketHeaderException;
+import network.grape.lib.compress.CompressingOutputStream;
+import network.grape.lib.compress.PacketCompressor;
+import network.grape.lib.crypto.AeadTunnel;
+import network.grape.lib.crypto.SealingOutputStream;
+import network.grape.lib.multipath.MultipathClient;
 import network.grape.lib.network.ip.Ip4Header;
 import network.grape.lib.network.ip.Ip6Header;
 import network.grape.lib.network.ip.IpHeader;
@@ -27,24 +33,46 @@ import network.grape.lib.util.UdpOutputStream;
 
 /**
  * Reads from the VPN inputstream (ie: the phone OS), and writes to the UDP outputstream to the
- * VPN server.
- *
- * TODO: initiate a secure connection before writing data.
+ * VPN server. If a tunnel has been agreed with the server, the packets are sealed with it before
+ * they are sent, and if there is a compressor, the flows which compress are compressed first. With
+ * a multipath client, the packets are spread over its paths instead of going on the one socket.
  */
 public class VpnForwardingReader implements Runnable {
     private final Logger logger;
     @Setter private volatile boolean running;
-    private final InputStream inputStream;
-    private final ByteBuffer packet;
+    private final TunDevice device;
+    private final ByteBuffer[] packets;
     private final DatagramSocket socket;
     private final List<InetAddress> filterTo;
     private final PacketDumper packetDumper;
+    // seals the packets sent to the server, set before the reader starts, null to send them as is
+    @Setter private volatile AeadTunnel tunnel;
+    // compresses the packets sent to the server, set before the reader starts, null not to
+    @Setter private volatile PacketCompressor compressor;
+    // sends on several paths instead of the socket, set before the reader starts
+    @Setter private volatile MultipathClient multipath;
 
     public VpnForwardingReader(InputStream inputStream, ByteBuffer packet,
                                DatagramSocket socket, List<InetAddress> filterTo, PacketDumper packetDumper) {
+        this(new StreamTunDevice(inputStream, null), new ByteBuffer[] {packet}, socket, filterTo,
+                packetDumper);
+    }
+
+    /**
+     * Construct a forwarding reader over a TUN device.
+     *
+     * @param device the device with all of the traffic from the apps
+     * @param packets the buffers to read a batch of packets into, heap buffers since they are
+     *                parsed and written out by array
+     * @param socket the socket to the VPN server
+     * @param filterTo if not empty, only packets to or from these addresses are forwarded
+     * @param packetDumper where packets are dumped for debugging
+     */
+    public VpnForwardingReader(TunDevice device, ByteBuffer[] packets,
+                               DatagramSocket socket, List<InetAddress> filterTo, PacketDumper packetDumper) {
         logger = LoggerFactory.getLogger(VpnForwardingReader.class);
-        this.inputStream = inputStream;
-        this.packet = packet;
+        this.device = device;
+        this.packets = packets;
         this.running = false;
         this.socket = socket;
         this.filterTo = filterTo;
@@ -58,82 +86,33 @@ public class VpnForwardingReader implements Runnable {
     @Override
     public void run() {
         running = true;
-        byte[] data;
-        int length;
 
         try {
-            UdpOutputStream outputStream = new UdpOutputStream(socket);
+            int maxPacketSize = packets[0].capacity();
+            OutputStream outputStream;
+            if (multipath != null) {
+                outputStream = multipath.getTunnel();
+                if (tunnel != null) {
+                    outputStream = new SealingOutputStream(outputStream, tunnel, maxPacketSize);
+                }
+            } else if (tunnel != null) {
+                outputStream = new SealingOutputStream(socket, tunnel, maxPacketSize);
+            } else {
+                outputStream = new UdpOutputStream(socket);
+            }
+            if (compressor != null) {
+                outputStream = new CompressingOutputStream(outputStream, compressor,
+                        maxPacketSize);
+            }
             while (isRunning()) {
-                data = packet.array();
-                length = inputStream.read(data);
-                if (length > 0) {
-                    logger.info("received packet from vpn client with length " + length + " bytes");
-                    packet.limit(length);
-                    packet.rewind();
-
-                    try {
-                        if (packet.remaining() < 1) {
-                            logger.error("Need at least a single byte to determine the packet type");
-                            continue;
-                        }
-                        byte version_byte = (byte)(packet.get() & 0xff);
-                        byte version = (byte) (version_byte >> 4);
-                        logger.info("VESION_BYTE: " + version_byte + " VERSION BYTE HEX: " + String.format("%02X", version_byte) + " VERSION: " + version);
-                        packet.rewind();
-
-                        final IpHeader ipHeader;
-                        if (version == IP4_VERSION) {
-                            packetDumper.dumpBuffer(packet.array(), length, "08 00");
-                            packet.rewind();
-                            logger.info("Good IPv4 packet: \n" + BufferUtil.hexDump(packet.array(), 0, length, true, true, "08 00"));
-                            packet.rewind();
-                            ipHeader = Ip4Header.parseBuffer(packet);
-                        } else if (version == IP6_VERSION) {
-                            packetDumper.dumpBuffer(packet.array(), length, "86 DD");
-                            packet.rewind();
-                            logger.info("Good IPv6 packet: \n" + BufferUtil.hexDump(packet.array(), 0, length, true, true, "86 DD"));
-                            packet.rewind();
-                            ipHeader = Ip6Header.parseBuffer(packet);
-                        } else {
-                            packetDumper.dumpBuffer(packet.array(), length, "00 00");
-                            packet.rewind();
-                            logger.error("Got a packet which isn't Ip4 or Ip6 in VPNForwardingReader: " + version + "\n" + BufferUtil.hexDump(packet.array(), 0, length, true, false, ""));
-                            continue;
-                        }
-
-                        if (ipHeader.getProtocol() == TransportHeader.UDP_PROTOCOL) {
-                            UdpHeader udpHeader = UdpHeader.parseBuffer(packet);
-                            logger.info("Got a UDP Packet: {}", udpHeader);
-                        } else if (ipHeader.getProtocol() == TransportHeader.TCP_PROTOCOL) {
-                            TcpHeader tcpHeader = TcpHeader.parseBuffer(packet);
-                            logger.info("Got a TCP packet: {}", tcpHeader);
-                        } else {
-                            packet.rewind();
-                            String protocol = "00 00";
-                            if (version == IP4_VERSION) {
-                                protocol = "08 00";
-                            } else {
-                                protocol = "86 DD";
-                            }
-                            logger.error("Got an unsupported transport protocol in VPNForwardingReader: {}\n{}", ipHeader.getProtocol(),
-                                    BufferUtil.hexDump(packet.array(), 0, packet.limit(), true, false, protocol));
-                        }
-
-                        if (!filterTo.isEmpty()) {
-                            if (!filterTo.contains(ipHeader.getDestinationAddress()) && !filterTo.contains(ipHeader.getSourceAddress())) {
-                                logger.info("Skipping {} to {}", ipHeader.getSourceAddress(), ipHeader.getDestinationAddress());
-                                continue;
-                            }
-                        }
-                        logger.info("Sending packet from {} to {}", ipHeader.getSourceAddress(), ipHeader.getDestinationAddress());
-                    } catch(PacketHeaderException ex) {
-                        logger.debug("Error parsing packet: " + ex);
-                    }
-
-                    packet.rewind();
-                    outputStream.write(packet.array(), 0, length);
-                    outputStream.flush();
-                    packet.clear();
+                // waits for packets itself, either in the kernel or with a short backoff
+                int count = device.read(packets);
+                if (count < 0) {
+                    logger.info("TUN device closed");
+                    break;
+                }
+                for (int i = 0; i < count; i++) {
+                    forward(packets[i], outputStream);
                 }
             }
         } catch (IOException ex) {
@@ -141,6 +120,73 @@ public class VpnForwardingReader implements Runnable {
         }
     }
 
+    private void forward(ByteBuffer packet, OutputStream outputStream) throws IOException {
+        int length = packet.limit();
+        logger.info("received packet from vpn client with length " + length + " bytes");
+
+        try {
+            if (packet.remaining() < 1) {
+                logger.error("Need at least a single byte to determine the packet type");
+                return;
+            }
+            byte version_byte = (byte)(packet.get() & 0xff);
+            byte version = (byte) (version_byte >> 4);
+            logger.info("VESION_BYTE: " + version_byte + " VERSION BYTE HEX: " + String.format("%02X", version_byte) + " VERSION: " + version);
+            packet.rewind();
+
+            final IpHeader ipHeader;
+            if (version == IP4_VERSION) {
+                packetDumper.dumpBuffer(packet.array(), length, "08 00");
+                packet.rewind();
+                logger.info("Good IPv4 packet: \n" + BufferUtil.hexDump(packet.array(), 0, length, true, true, "08 00"));
+                packet.rewind();
+                ipHeader = Ip4Header.parseBuffer(packet);
+            } else if (version == IP6_VERSION) {
+                packetDumper.dumpBuffer(packet.array(), length, "86 DD");
+                packet.rewind();
+                logger.info("Good IPv6 packet: \n" + BufferUtil.hexDump(packet.array(), 0, length, true, true, "86 DD"));
+                packet.rewind();
+                ipHeader = Ip6Header.parseBuffer(packet);
+            } else {
+                packetDumper.dumpBuffer(packet.array(), length, "00 00");
+                packet.rewind();
+                logger.error("Got a packet which isn't Ip4 or Ip6 in VPNForwardingReader: " + version + "\n" + BufferUtil.hexDump(packet.array(), 0, length, true, false, ""));
+                return;
+            }
+
+            if (ipHeader.getProtocol() == TransportHeader.UDP_PROTOCOL) {
+                UdpHeader udpHeader = UdpHeader.parseBuffer(packet);
+                logger.info("Got a UDP Packet: {}", udpHeader);
+            } else if (ipHeader.getProtocol() == TransportHeader.TCP_PROTOCOL) {
+                TcpHeader tcpHeader = TcpHeader.parseBuffer(packet);
+                logger.info("Got a TCP packet: {}", tcpHeader);
+            } else {
+                packet.rewind();
+                String protocol = "00 00";
+                if (version == IP4_VERSION) {
+                    protocol = "08 00";
+                } else {
+                    protocol = "86 DD";
+                }
+                logger.error("Got an unsupported transport protocol in VPNForwardingReader: {}\n{}", ipHeader.getProtocol(),
+                        BufferUtil.hexDump(packet.array(), 0, packet.limit(), true, false, protocol));
+            }
+
+            if (!filterTo.isEmpty()) {
+                if (!filterTo.contains(ipHeader.getDestinationAddress()) && !filterTo.contains(ipHeader.getSourceAddress())) {
+                    logger.info("Skipping {} to {}", ipHeader.getSourceAddress(), ipHeader.getDestinationAddress());
+                    return;
+                }
+            }
+            logger.info("Sending packet from {} to {}", ipHeader.getSourceAddress(), ipHeader.getDestinationAddress());
+        } catch(PacketHeaderException ex) {
+            logger.debug("Error parsing packet: " + ex);
+        }
+
+        outputStream.write(packet.array(), 0, length);
+        outputStream.flush();
+    }
+
     public void shutdown() {
         running = false;
     }
@@ -1,6 +1,9 @@
 package network.grape.lib.vpn;
 
 import network.grape.lib.PacketHeaderException;
+import network.grape.lib.compress.PacketDecompressor;
+import network.grape.lib.multipath.MultipathClient;
+import network.grape.lib.crypto.AeadTunnel;
 import network.grape.lib.network.ip.Ip4Header;
 import network.grape.lib.network.ip.Ip6Header;
 import network.grape.lib.network.ip.IpHeader;
@@ -29,7 +32,9 @@ import static network.grape.lib.network.ip.IpHeader.IP6_VERSION;
 
 /**
  * Receives data on the UDP inputstream stream from the VPN server, and writes the packets to the
- * VPN outputStream (ie: back to the phone OS)
+ * VPN outputStream (ie: back to the phone OS). If a tunnel has been agreed with the server, only
+ * frames which open with it are written back. Compressed packets are decompressed if there is a
+ * decompressor. With a multipath client, the packets are read from all of its paths, in order.
  */
 public class VpnForwardingWriter implements Runnable {
     private final Logger logger;
@@ -40,6 +45,12 @@ public class VpnForwardingWriter implements Runnable {
     @Getter private DatagramSocket socket;
     private final UdpInputStream inputStream;
     private final PacketDumper packetDumper;
+    // opens the frames from the server, set before the writer starts, null if they aren't sealed
+    @Setter private volatile AeadTunnel tunnel;
+    // inflates compressed packets from the server, set before the writer starts
+    @Setter private volatile PacketDecompressor decompressor;
+    // receives on several paths instead of the socket, set before the writer starts
+    @Setter private volatile MultipathClient multipath;
 
     public VpnForwardingWriter(OutputStream outputStream, ByteBuffer packet, int localPort, SocketProtector protector,
                                PacketDumper packetDumper) throws SocketException, UnknownHostException {
@@ -63,11 +74,25 @@ public class VpnForwardingWriter implements Runnable {
         running = true;
         byte[] data;
         int length;
+        // sealed frames are received here and opened into the packet
+        byte[] frame = tunnel != null ? new byte[packet.capacity() + AeadTunnel.OVERHEAD] : null;
+        // compressed packets are inflated into here and copied back into the packet
+        byte[] inflated = decompressor != null ? new byte[packet.capacity()] : null;
 
         try {
             while (isRunning()) {
                 data = packet.array();
-                length = inputStream.read(data);
+                if (frame != null) {
+                    length = tunnel.open(frame, receive(frame), data);
+                } else {
+                    length = receive(data);
+                }
+                if (inflated != null && PacketDecompressor.isCompressedFrame(data, length)) {
+                    length = decompressor.decompress(data, length, inflated);
+                    if (length > 0) {
+                        System.arraycopy(inflated, 0, data, 0, length);
+                    }
+                }
                 if (length > 0) {
                     logger.debug("Received " + length + " bytes from VPN server, about to write it back to the application");
                     packet.rewind();
@@ -137,6 +162,11 @@ public class VpnForwardingWriter implements Runnable {
         }
     }
 
+    private int receive(byte[] buffer) throws IOException {
+        MultipathClient paths = multipath;
+        return paths != null ? paths.read(buffer) : inputStream.read(buffer);
+    }
+
     public void shutdown() {
         running = false;
     }
@@ -1,11 +1,8 @@
 package network.grape.lib.vpn;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
@@ -13,23 +10,27 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import lombok.Setter;
 import network.grape.lib.PacketHeaderException;
+import network.grape.lib.session.PacketDispatcher;
 import network.grape.lib.session.SessionHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * This class is used to read from the VPNService socket and begin the processing into the network
- * stack.
+ * stack. Packets are read from a {@link TunDevice}, a batch at a time when the device has several
+ * waiting.
  */
 public class VpnReader implements Runnable {
 
   private final Logger logger;
   @Setter private volatile boolean running;
-  private final InputStream inputStream;
+  private final TunDevice device;
   private final OutputStream outputStream;
   private final SessionHandler handler;
-  private final ByteBuffer packet;
+  private final ByteBuffer[] packets;
   private final SocketProtector protector;
+  // when set, packets are spread over its handler threads instead of handled on this one
+  @Setter private volatile PacketDispatcher dispatcher;
 
   /**
    * Construt a VPN reader to handle traffic coming from the apps connected to the VPN.
@@ -42,11 +43,28 @@ public class VpnReader implements Runnable {
    */
   public VpnReader(InputStream inputStream, OutputStream outputStream, SessionHandler handler, ByteBuffer packet,
                    SocketProtector protector) {
+    this(new StreamTunDevice(inputStream, outputStream), handler, new ByteBuffer[] {packet},
+        protector);
+  }
+
+  /**
+   * Construct a VPN reader over a TUN device.
+   *
+   * @param device the device with all of the traffic from the VPN, which replies are written back
+   *               to as well
+   * @param handler a session handler which should have been instantiates outside of this class
+   * @param packets the buffers to read a batch of packets into, the most packets handled per
+   *                wakeup is the number of buffers. The parsing needs a backing array, so these
+   *                are heap buffers.
+   * @param protector used to protect the outgoing sockets
+   */
+  public VpnReader(TunDevice device, SessionHandler handler, ByteBuffer[] packets,
+                   SocketProtector protector) {
     logger = LoggerFactory.getLogger(VpnReader.class);
-    this.inputStream = inputStream;
-    this.outputStream = outputStream;
+    this.device = device;
+    this.outputStream = device.asOutputStream();
     this.handler = handler;
-    this.packet = packet;
+    this.packets = packets;
     this.running = false;
     this.protector = protector;
   }
@@ -58,8 +76,6 @@ public class VpnReader implements Runnable {
   @Override
   public void run() {
     running = true;
-    byte[] data;
-    int length;
     DatagramSocket outgoing;
     try {
       outgoing = new DatagramSocket();
@@ -71,22 +87,17 @@ public class VpnReader implements Runnable {
     }
     while (isRunning()) {
       try {
-        data = packet.array();
-        length = inputStream.read(data);
-        if (length > 0) {
-          // logger.info("received packet from vpn client: " + length);
-          try {
-            packet.limit(length);
-            handler.handlePacket(packet, outputStream);
-          } catch (PacketHeaderException | UnknownHostException ex) {
-            logger.error(ex.toString());
-          }
-          packet.clear();
-        } else {
-          // todo: remove this and just let it spin on the read I guess?
-          Thread.sleep(100);
+        // waits for packets itself, either in the kernel or with a short backoff
+        int count = device.read(packets);
+        if (count < 0) {
+          logger.info("TUN device closed");
+          running = false;
+          break;
+        }
+        for (int i = 0; i < count; i++) {
+          handle(packets[i]);
         }
-      } catch (IOException | InterruptedException ex) {
+      } catch (IOException ex) {
         logger.info("IOException reading from VPN input stream: " + ex.toString());
         running = false;
       }
@@ -94,6 +105,20 @@ public class VpnReader implements Runnable {
     logger.info("VpnReader thread stopped");
   }
 
+  private void handle(ByteBuffer packet) {
+    // logger.info("received packet from vpn client: " + packet.limit());
+    try {
+      PacketDispatcher packetDispatcher = dispatcher;
+      if (packetDispatcher != null) {
+        packetDispatcher.dispatch(packet, outputStream);
+      } else {
+        handler.handlePacket(packet, outputStream);
+      }
+    } catch (PacketHeaderException | UnknownHostException ex) {
+      logger.error(ex.toString());
+    }
+  }
+
   public void shutdown() {
     running = false;
   }
@@ -1,5 +1,8 @@
 package network.grape.lib.vpn;
 
+import static network.grape.lib.transport.tcp.TcpPacketFactory.copyTcpHeader;
+import static network.grape.lib.transport.tcp.TcpPacketFactory.createRstData;
+
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -13,12 +16,21 @@ import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.nio.channels.UnsupportedAddressTypeException;
 import java.util.Iterator;
-import java.util.concurrent.ThreadPoolExecutor;
 import lombok.Getter;
+import lombok.Setter;
+import network.grape.lib.metrics.PipelineMetrics;
+import network.grape.lib.metrics.PipelineTracer;
+import network.grape.lib.network.ip.IpHeader;
 import network.grape.lib.session.Session;
 import network.grape.lib.session.SessionManager;
 import network.grape.lib.session.SessionOutputStreamReaderWorker;
 import network.grape.lib.session.SessionOutputStreamWriterWorker;
+import network.grape.lib.session.TcpSession;
+import network.grape.lib.session.UdpNatBinding;
+import network.grape.lib.session.UdpNatReaderWorker;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.tcp.TcpHeader;
+import network.grape.lib.util.WorkerScheduler;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,25 +42,30 @@ import org.slf4j.LoggerFactory;
  * to handle all of the outgoing connections rather than having one thread for each.
  */
 public class VpnWriter implements Runnable {
+  // how long the selector thread waits for room in the scheduler before giving up on a key
+  public static final long BACKPRESSURE_TIMEOUT_MS = 100;
 
   private final Logger logger;
   @Getter private final Object syncSelector = new Object();
   @Getter private final Object syncSelector2 = new Object();
   private final SessionManager sessionManager;
-  // create thread pool for reading/writing data to socket
-  private final ThreadPoolExecutor workerPool;
+  // runs the reader and writer workers, one at a time per session
+  @Getter private final WorkerScheduler scheduler;
+  // when set, each wakeup of the selector is counted and timed
+  @Getter @Setter private volatile PipelineMetrics metrics;
+  // when set, each wakeup of the selector and each connect completing is traced
+  @Getter @Setter private volatile PipelineTracer tracer;
   private volatile boolean running;
 
   /**
-   * Construct a new VpnWriter with the workerpool provided.
+   * Construct a new VpnWriter with the scheduler provided.
    *
-   * @param workerPool   the worker pool to execute reader and writer threads in.
+   * @param scheduler the scheduler to run the reader and writer workers on.
    */
-  public VpnWriter(SessionManager sessionManager,
-                   ThreadPoolExecutor workerPool) {
+  public VpnWriter(SessionManager sessionManager, WorkerScheduler scheduler) {
     this.logger = LoggerFactory.getLogger(VpnWriter.class);
     this.sessionManager = sessionManager;
-    this.workerPool = workerPool;
+    this.scheduler = scheduler;
   }
 
   public boolean isRunning() {
@@ -88,6 +105,18 @@ public class VpnWriter implements Runnable {
         break;
       }
 
+      PipelineMetrics current = metrics;
+      PipelineTracer currentTracer = activeTracer();
+      int ready = selector.selectedKeys().size();
+      long start = 0;
+      if (current != null || currentTracer != null) {
+        start = System.nanoTime();
+      }
+      if (current != null) {
+        current.getSelectorWakeups().increment();
+        current.getSelectedKeys().add(ready);
+      }
+
       // next try to take action on all of the ready selectors
       synchronized (syncSelector2) {
         Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
@@ -109,6 +138,28 @@ public class VpnWriter implements Runnable {
           }
         }
       }
+      if (current != null || currentTracer != null) {
+        long duration = System.nanoTime() - start;
+        if (current != null) {
+          current.getSelectorDispatchLatency().observe(duration);
+        }
+        if (currentTracer != null) {
+          currentTracer.selectorWakeup(ready, duration);
+        }
+      }
+    }
+  }
+
+  private PipelineTracer activeTracer() {
+    PipelineTracer current = tracer;
+    return current != null && current.isActive() ? current : null;
+  }
+
+  private void traceConnect(TcpSession session, boolean succeeded) {
+    PipelineTracer current = activeTracer();
+    if (current != null) {
+      current.connectCompleted(session, succeeded,
+          System.nanoTime() - session.getConnectStartNanos());
     }
   }
 
@@ -117,6 +168,10 @@ public class VpnWriter implements Runnable {
       logger.error("Invalid SelectionKey for UDP");
       return;
     }
+    if (key.attachment() instanceof UdpNatBinding) {
+      processUdpNatSelectionKey(key, (UdpNatBinding) key.attachment());
+      return;
+    }
     DatagramChannel channel = (DatagramChannel) key.channel();
     Session session = sessionManager.getSessionByChannel(channel);
     String keyString = channel.socket().getLocalAddress().toString() + ":"
@@ -149,6 +204,40 @@ public class VpnWriter implements Runnable {
     }
   }
 
+  /**
+   * Selector handling for a UDP channel shared by all of the flows from one client socket. Writes
+   * are still done per session since each has its own queue and destination, but reads are done
+   * for the whole channel and sorted into sessions by the address they came from.
+   *
+   * @param key     the key in the selection set which is marked for reading or writing.
+   * @param binding the shared channel the key belongs to.
+   */
+  protected void processUdpNatSelectionKey(SelectionKey key, UdpNatBinding binding) {
+    if (key.isValid() && key.isWritable()) {
+      synchronized (key) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      }
+      for (Session session : binding.getSessions()) {
+        if (session.hasDataToSend() && session.isDataForSendingReady()) {
+          schedule(session, new SessionOutputStreamWriterWorker(session.getOutputStream(),
+              session.getKey(), sessionManager), SelectionKey.OP_WRITE);
+        }
+      }
+    }
+    if (key.isValid() && key.isReadable()) {
+      synchronized (key) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      }
+      // keyed on the binding, the reads for all of its sessions come off the one channel
+      if (!scheduler.submit(binding, new UdpNatReaderWorker(binding), BACKPRESSURE_TIMEOUT_MS)) {
+        logger.warn("Workers backed up, retrying read for " + binding.getKey());
+        synchronized (key) {
+          key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+      }
+    }
+  }
+
   protected void processTcpSelectionKey(SelectionKey key) throws IOException {
     if (!key.isValid()) {
       logger.warn("Invalid selection key for TCP");
@@ -159,7 +248,7 @@ public class VpnWriter implements Runnable {
       logger.error("CHANNEL NULL");
       return;
     }
-    Session session = sessionManager.getSessionByChannel(channel);
+    TcpSession session = (TcpSession) sessionManager.getSessionByChannel(channel);
 
     if (session == null) {
       logger.error("Can't find session");
@@ -179,35 +268,117 @@ public class VpnWriter implements Runnable {
         } catch (ClosedChannelException | UnresolvedAddressException
             | UnsupportedAddressTypeException | SecurityException e) {
           logger.error("Error connecting to remote TCP: " + session.getKey());
-          session.setAbortingConnection(true);
+          connectFailed(session, e.toString());
+          return;
         } catch (IOException ex) {
           logger.error("IO Error connecting to remote TCP: " + session.getKey());
-          session.setAbortingConnection(true);
+          connectFailed(session, ex.toString());
+          return;
         }
       }
 
       if (connected) {
         session.setConnected(connected);
         logger.info("Connected immediately to remote tcp server: " + session.getKey());
+        connectSucceeded(session);
       } else {
         logger.info("WAITING FOR CONNECTION TO FINISH");
         if (channel.isConnectionPending()) {
           logger.info("CONNECTION PENDING");
           logger.info("BLOCKING? {}", channel.isBlocking());
-          connected = channel.finishConnect();
+          try {
+            connected = channel.finishConnect();
+          } catch (IOException ex) {
+            // refused, unreachable, etc
+            connectFailed(session, ex.toString());
+            return;
+          }
           logger.info("CONNECTED? {}", connected);
           session.setConnected(connected);
-          logger.info("Connected to remote tcp server: " + session.getKey());
+          if (connected) {
+            logger.info("Connected to remote tcp server: " + session.getKey());
+            connectSucceeded(session);
+          }
         } else {
           logger.info("CONNECTION NOT PENDING");
         }
       }
     }
     if (channel.isConnected()) {
+      if ((key.interestOps() & SelectionKey.OP_CONNECT) != 0) {
+        // a connected channel stays connectable, so leaving this in the set makes select() spin
+        session.unsubscribeKey(SelectionKey.OP_CONNECT);
+        if (session.hasDataToSend() && session.isDataForSendingReady()) {
+          session.subscribeKey(SelectionKey.OP_WRITE);
+        }
+      }
       processSelector(key, session);
     }
   }
 
+  /**
+   * Called once the connect to the destination has completed. Sends the SYN-ACK to the client if
+   * it was held back until now.
+   *
+   * @param session the session which is now connected
+   */
+  public void connectSucceeded(TcpSession session) {
+    if (!session.settleConnect()) {
+      return;
+    }
+    sessionManager.halfOpenSettled();
+    traceConnect(session, true);
+    byte[] synAck = session.takePendingSynAck();
+    if (synAck == null) {
+      return;
+    }
+    try {
+      session.getOutputStream().write(synAck);
+      session.getOutputStream().flush();
+      logger.info("Wrote deferred SYN-ACK for session: " + session.getKey());
+    } catch (IOException ex) {
+      logger.error("Failed to write deferred SYN-ACK: " + ex.toString());
+    }
+  }
+
+  /**
+   * Called when the connect to the destination failed or timed out. Rather than leaving the
+   * client to send data into a session which will never go anywhere, it is sent an RST straight
+   * away and the session is freed.
+   *
+   * @param session the session which couldn't connect
+   * @param reason  why, for the log
+   */
+  public void connectFailed(TcpSession session, String reason) {
+    if (!session.settleConnect()) {
+      return;
+    }
+    sessionManager.halfOpenSettled();
+    traceConnect(session, false);
+    logger.warn("Connect failed for session: " + session.getKey() + " " + reason);
+    IpHeader ipHeader = session.getLastIpHeader();
+    TransportHeader transportHeader = session.getLastTransportHeader();
+    if (ipHeader != null && transportHeader instanceof TcpHeader) {
+      byte[] rstData;
+      if (session.takePendingSynAck() != null) {
+        // the client never got a SYN-ACK, so the SYN is refused the same way a closed port would
+        rstData = createRstData(ipHeader, (TcpHeader) transportHeader, 1);
+      } else {
+        // the client thinks it's connected, the RST has to carry the sequence number it expects
+        TcpHeader tcpHeader = copyTcpHeader((TcpHeader) transportHeader);
+        tcpHeader.setAckNumber(session.getSendNext());
+        rstData = createRstData(ipHeader, tcpHeader, 0);
+      }
+      try {
+        session.getOutputStream().write(rstData);
+        session.getOutputStream().flush();
+      } catch (IOException ex) {
+        logger.error("Failed to write RST for failed connect: " + ex.toString());
+      }
+    }
+    sessionManager.closeSession(session);
+  }
+
   /**
    * Generic selector handling for both TCP and UDP sessions.
    *
@@ -215,19 +386,38 @@ public class VpnWriter implements Runnable {
    * @param session      the session associated with the selection key.
    */
   protected void processSelector(SelectionKey selectionKey, Session session) {
-    // tcp has PSH flag when data is ready for sending, UDP does not have this
-    if (selectionKey.isValid() && selectionKey.isWritable() && !session.isBusyWrite()
-        && session.hasDataToSend() && session.isDataForSendingReady()) {
-      session.setBusyWrite(true);
-      final SessionOutputStreamWriterWorker worker =
-              new SessionOutputStreamWriterWorker(session.getOutputStream(), session.getKey(), sessionManager);
-      workerPool.execute(worker);
-    }
-    if (selectionKey.isValid() && selectionKey.isReadable() && !session.isBusyRead()) {
-      session.setBusyRead(true);
-      final SessionOutputStreamReaderWorker worker =
-              new SessionOutputStreamReaderWorker(session.getOutputStream(), session.getKey(), sessionManager);
-      workerPool.execute(worker);
+    // interest in an operation is dropped as soon as it is handed to a worker (or turns out to be
+    // stale), otherwise select() keeps returning the same ready key while the worker is busy. The
+    // workers and the SessionHandler re-arm the key when there is more to do. The scheduler runs
+    // a session's workers one at a time, so a worker queued behind another for the same session
+    // just finds less (or nothing) to do.
+    if (selectionKey.isValid() && selectionKey.isWritable()) {
+      session.unsubscribeKey(SelectionKey.OP_WRITE);
+      // tcp has PSH flag when data is ready for sending, UDP does not have this
+      if (session.hasDataToSend() && session.isDataForSendingReady()) {
+        schedule(session, new SessionOutputStreamWriterWorker(session.getOutputStream(),
+            session.getKey(), sessionManager), SelectionKey.OP_WRITE);
+      }
+    }
+    if (selectionKey.isValid() && selectionKey.isReadable()) {
+      session.unsubscribeKey(SelectionKey.OP_READ);
+      schedule(session, new SessionOutputStreamReaderWorker(session.getOutputStream(),
+          session.getKey(), sessionManager), SelectionKey.OP_READ);
+    }
+  }
+
+  /**
+   * Hands a worker to the scheduler. If the workers are so far behind there's still no room after
+   * waiting, interest in the operation is put back so it's tried again on the next select.
+   *
+   * @param session   the session the worker is for
+   * @param worker    the worker
+   * @param operation the selection key operation the worker handles
+   */
+  private void schedule(Session session, Runnable worker, int operation) {
+    if (!scheduler.submit(session.getKey(), worker, BACKPRESSURE_TIMEOUT_MS)) {
+      logger.warn("Workers backed up, retrying " + session.getKey());
+      session.subscribeKey(operation);
     }
   }
 
@@ -0,0 +1,26 @@
+package network.grape.lib.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads, JDK 21+ version. This is packaged into META-INF/versions/21 of the lib jar and
+ * replaces the reflective version in src/main/java, see there.
+ */
+public final class VirtualThreads {
+  private VirtualThreads() {
+  }
+
+  public static boolean isAvailable() {
+    return true;
+  }
+
+  public static ThreadFactory factory(String prefix) {
+    return Thread.ofVirtual().name(prefix, 0).factory();
+  }
+
+  public static ExecutorService newExecutor() {
+    return Executors.newVirtualThreadPerTaskExecutor();
+  }
+}
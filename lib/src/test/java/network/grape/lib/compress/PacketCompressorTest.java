@@ -0,0 +1,155 @@
+package network.grape.lib.compress;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the PacketCompressor and PacketDecompressor classes.
+ */
+public class PacketCompressorTest {
+
+  /**
+   * An IPv4 TCP packet between 10.0.0.2:sourcePort and 93.184.216.34:destinationPort.
+   */
+  private static byte[] tcpPacket(int sourcePort, int destinationPort, byte[] payload,
+                                  boolean reply) {
+    ByteBuffer packet = ByteBuffer.allocate(40 + payload.length);
+    byte[] client = {10, 0, 0, 2};
+    byte[] server = {93, (byte) 184, (byte) 216, 34};
+    packet.put((byte) 0x45).put((byte) 0).putShort((short) packet.capacity());
+    packet.putInt(0).put((byte) 64).put((byte) 6).putShort((short) 0);
+    packet.put(reply ? server : client).put(reply ? client : server);
+    packet.putShort((short) (reply ? destinationPort : sourcePort));
+    packet.putShort((short) (reply ? sourcePort : destinationPort));
+    packet.putInt(1).putInt(0).put((byte) 0x50).put((byte) 0x18).putShort((short) 65535);
+    packet.putInt(0);
+    packet.put(payload);
+    return packet.array();
+  }
+
+  private static byte[] httpPayload() {
+    StringBuilder text = new StringBuilder("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n\r\n");
+    while (text.length() < 1000) {
+      text.append("<div class=\"row\">hello world</div>");
+    }
+    return text.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  @Test
+  public void roundTripTest() {
+    PacketCompressor compressor = new PacketCompressor();
+    PacketDecompressor decompressor = new PacketDecompressor();
+    byte[] packet = tcpPacket(40000, 80, httpPayload(), false);
+    byte[] frame = new byte[1500];
+    byte[] inflated = new byte[1500];
+
+    for (int i = 0; i < 10; i++) {
+      int frameLength = compressor.compress(packet, 0, packet.length, frame);
+      assertTrue(frameLength > 0 && frameLength < packet.length / 4);
+      assertTrue(PacketDecompressor.isCompressedFrame(frame, frameLength));
+      assertEquals(packet.length, decompressor.decompress(frame, frameLength, inflated));
+      assertArrayEquals(packet, Arrays.copyOf(inflated, packet.length));
+    }
+    assertTrue(compressor.getBytesOut() < compressor.getBytesIn());
+
+    // a corrupt frame is dropped
+    int frameLength = compressor.compress(packet, 0, packet.length, frame);
+    frame[frameLength / 2] ^= 0x55;
+    frame[frameLength / 2 + 1] ^= 0x55;
+    assertEquals(-1, decompressor.decompress(frame, frameLength, inflated));
+    // as is one which wouldn't fit
+    assertEquals(-1, decompressor.decompress(frame, frameLength, new byte[100]));
+  }
+
+  @Test
+  public void incompressibleFlowTest() {
+    PacketCompressor compressor = new PacketCompressor();
+    byte[] payload = new byte[1200];
+    new Random(1).nextBytes(payload);
+    byte[] packet = tcpPacket(40001, 443, payload, false);
+    byte[] frame = new byte[1500];
+
+    for (int i = 0; i < 2000; i++) {
+      assertEquals(-1, compressor.compress(packet, 0, packet.length, frame));
+    }
+    // only the samples were deflated, once at the start and again after RESAMPLE_PACKETS
+    assertEquals(2000 - 2 * PacketCompressor.SAMPLE_PACKETS, compressor.getBypassed());
+
+    // a compressible flow alongside isn't affected
+    byte[] text = tcpPacket(40002, 80, httpPayload(), false);
+    assertNotEquals(-1, compressor.compress(text, 0, text.length, frame));
+  }
+
+  @Test
+  public void flowTurnsIncompressibleTest() {
+    PacketCompressor compressor = new PacketCompressor();
+    byte[] text = tcpPacket(40003, 25, httpPayload(), false);
+    byte[] payload = new byte[1200];
+    new Random(2).nextBytes(payload);
+    byte[] random = tcpPacket(40003, 25, payload, false);
+    byte[] frame = new byte[1500];
+
+    for (int i = 0; i < PacketCompressor.SAMPLE_PACKETS; i++) {
+      compressor.compress(text, 0, text.length, frame);
+    }
+    for (int i = 0; i < PacketCompressor.MAX_MISSES; i++) {
+      compressor.compress(random, 0, random.length, frame);
+    }
+    assertEquals(0, compressor.getBypassed());
+    // switched off now, even for the packets that would compress
+    assertEquals(-1, compressor.compress(text, 0, text.length, frame));
+    assertEquals(1, compressor.getBypassed());
+  }
+
+  @Test
+  public void smallPacketTest() {
+    PacketCompressor compressor = new PacketCompressor();
+    byte[] ack = tcpPacket(40004, 80, new byte[0], false);
+    assertEquals(-1, compressor.compress(ack, 0, ack.length, new byte[1500]));
+  }
+
+  @Test
+  public void flowKeyTest() {
+    byte[] outbound = tcpPacket(40005, 80, new byte[0], false);
+    byte[] inbound = tcpPacket(40005, 80, new byte[0], true);
+    byte[] other = tcpPacket(40006, 80, new byte[0], false);
+    assertEquals(PacketCompressor.flowKey(outbound, 0, outbound.length),
+        PacketCompressor.flowKey(inbound, 0, inbound.length));
+    assertNotEquals(PacketCompressor.flowKey(outbound, 0, outbound.length),
+        PacketCompressor.flowKey(other, 0, other.length));
+    assertEquals(0, PacketCompressor.flowKey(new byte[] {0x10, 0}, 0, 2));
+  }
+
+  @Test
+  public void outputStreamTest() throws Exception {
+    ByteArrayOutputStream target = new ByteArrayOutputStream();
+    CompressingOutputStream outputStream = new CompressingOutputStream(target,
+        new PacketCompressor(), 1500);
+    byte[] ack = tcpPacket(40007, 80, new byte[0], false);
+    outputStream.write(ack, 0, ack.length);
+    assertArrayEquals(ack, target.toByteArray());
+
+    target.reset();
+    byte[] text = tcpPacket(40007, 80, httpPayload(), false);
+    outputStream.write(text, 0, text.length);
+    byte[] frame = target.toByteArray();
+    byte[] inflated = new byte[1500];
+    assertEquals(text.length, new PacketDecompressor().decompress(frame, frame.length, inflated));
+    assertArrayEquals(text, Arrays.copyOf(inflated, text.length));
+
+    // without a compressor, eg: the client didn't offer to take compressed frames, it's as is
+    target.reset();
+    outputStream.setCompressor(null);
+    outputStream.write(text, 0, text.length);
+    assertArrayEquals(text, target.toByteArray());
+  }
+}
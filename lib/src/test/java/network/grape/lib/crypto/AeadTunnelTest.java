@@ -0,0 +1,314 @@
+package network.grape.lib.crypto;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import network.grape.lib.vpn.TunnelCapabilities;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Tests for the AeadTunnel and TunnelHandshake classes.
+ */
+public class AeadTunnelTest {
+
+  private static byte[] filled(int length, int value) {
+    byte[] data = new byte[length];
+    Arrays.fill(data, (byte) value);
+    return data;
+  }
+
+  private static AeadTunnel[] pair(AeadTunnel.Algorithm algorithm)
+      throws GeneralSecurityException {
+    byte[] clientKey = filled(AeadTunnel.KEY_LEN, 1);
+    byte[] serverKey = filled(AeadTunnel.KEY_LEN, 2);
+    byte[] clientIv = filled(AeadTunnel.IV_LEN, 3);
+    byte[] serverIv = filled(AeadTunnel.IV_LEN, 4);
+    return new AeadTunnel[] {
+        new AeadTunnel(algorithm, clientKey, clientIv, serverKey, serverIv),
+        new AeadTunnel(algorithm, serverKey, serverIv, clientKey, clientIv)
+    };
+  }
+
+  @ParameterizedTest
+  @EnumSource(AeadTunnel.Algorithm.class)
+  public void roundTripTest(AeadTunnel.Algorithm algorithm) throws GeneralSecurityException {
+    AeadTunnel[] tunnels = pair(algorithm);
+    byte[] packet = {0x45, 0, 0, 20, 1, 2, 3, 4, 5, 6};
+    byte[] frame = new byte[packet.length + AeadTunnel.OVERHEAD + 2];
+    byte[] opened = new byte[frame.length];
+
+    // the packet can start part way into an array
+    byte[] offset = new byte[packet.length + 3];
+    System.arraycopy(packet, 0, offset, 3, packet.length);
+    int frameLength = tunnels[0].seal(offset, 3, packet.length, frame);
+    assertEquals(packet.length + AeadTunnel.OVERHEAD, frameLength);
+    assertTrue(AeadTunnel.isSealedFrame(frame, frameLength));
+    assertEquals(packet.length, tunnels[1].open(frame, frameLength, opened));
+    assertArrayEquals(packet, Arrays.copyOf(opened, packet.length));
+
+    // and the other way, with its own keys
+    frameLength = tunnels[1].seal(packet, 0, packet.length, frame);
+    assertEquals(-1, tunnels[1].open(frame, frameLength, opened));
+    assertEquals(packet.length, tunnels[0].open(frame, frameLength, opened));
+    assertEquals(1, tunnels[0].getSealed());
+    assertEquals(1, tunnels[0].getOpened());
+  }
+
+  @Test
+  public void tamperTest() throws GeneralSecurityException {
+    AeadTunnel[] tunnels = pair(AeadTunnel.Algorithm.AES_GCM);
+    byte[] packet = filled(100, 7);
+    byte[] frame = new byte[packet.length + AeadTunnel.OVERHEAD];
+    byte[] opened = new byte[frame.length];
+
+    int frameLength = tunnels[0].seal(packet, 0, packet.length, frame);
+    // a changed payload, tag or counter doesn't authenticate
+    for (int index : new int[] {50, frameLength - 1, 8}) {
+      byte[] tampered = frame.clone();
+      tampered[index] ^= 1;
+      assertEquals(-1, tunnels[1].open(tampered, frameLength, opened));
+    }
+    assertEquals(-1, tunnels[1].open(frame, frameLength - 1, opened));
+    assertEquals(4, tunnels[1].getRejected());
+
+    // none of those moved the replay window, so the genuine frame still opens
+    assertEquals(packet.length, tunnels[1].open(frame, frameLength, opened));
+  }
+
+  @Test
+  public void replayTest() throws GeneralSecurityException {
+    AeadTunnel[] tunnels = pair(AeadTunnel.Algorithm.AES_GCM);
+    byte[] packet = filled(40, 9);
+    byte[] first = new byte[packet.length + AeadTunnel.OVERHEAD];
+    byte[] second = new byte[first.length];
+    byte[] opened = new byte[first.length];
+    tunnels[0].seal(packet, 0, packet.length, first);
+    tunnels[0].seal(packet, 0, packet.length, second);
+
+    // out of order is fine, twice isn't
+    assertEquals(packet.length, tunnels[1].open(second, second.length, opened));
+    assertEquals(packet.length, tunnels[1].open(first, first.length, opened));
+    assertEquals(-1, tunnels[1].open(first, first.length, opened));
+    assertEquals(-1, tunnels[1].open(second, second.length, opened));
+  }
+
+  @Test
+  public void handshakeTest() throws Exception {
+    byte[] key = filled(32, 5);
+    try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+         DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      client.connect(server.getLocalSocketAddress());
+      server.connect(client.getLocalSocketAddress());
+      TunnelHandshake serverHandshake = new TunnelHandshake(key);
+
+      CompletableFuture<AeadTunnel> accepted = CompletableFuture.supplyAsync(() -> {
+        try {
+          byte[] data = new byte[256];
+          DatagramPacket hello = new DatagramPacket(data, data.length);
+          server.receive(hello);
+          assertTrue(TunnelHandshake.isHello(data, hello.getLength()));
+          return serverHandshake.accept(data, hello.getLength(), server);
+        } catch (IOException ex) {
+          throw new IllegalStateException(ex);
+        }
+      });
+      AeadTunnel clientTunnel = new TunnelHandshake(key).connect(client,
+          AeadTunnel.Algorithm.AES_GCM);
+      AeadTunnel serverTunnel = accepted.get(5, TimeUnit.SECONDS);
+      assertNotNull(clientTunnel);
+      assertNotNull(serverTunnel);
+
+      byte[] packet = filled(64, 3);
+      byte[] frame = new byte[packet.length + AeadTunnel.OVERHEAD];
+      byte[] opened = new byte[frame.length];
+      int frameLength = clientTunnel.seal(packet, 0, packet.length, frame);
+      assertEquals(packet.length, serverTunnel.open(frame, frameLength, opened));
+      frameLength = serverTunnel.seal(packet, 0, packet.length, frame);
+      assertEquals(packet.length, clientTunnel.open(frame, frameLength, opened));
+    }
+  }
+
+  @Test
+  public void handshakeWrongKeyTest() throws Exception {
+    try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+         DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      client.connect(server.getLocalSocketAddress());
+      server.connect(client.getLocalSocketAddress());
+      TunnelHandshake clientHandshake = new TunnelHandshake(filled(32, 1));
+      clientHandshake.setTimeout(50);
+      clientHandshake.setAttempts(1);
+      // nobody answers, so the client gives up
+      assertNull(clientHandshake.connect(client, AeadTunnel.Algorithm.AES_GCM));
+
+      // and the hello it sent doesn't authenticate under another key
+      byte[] data = new byte[256];
+      DatagramPacket hello = new DatagramPacket(data, data.length);
+      server.receive(hello);
+      assertTrue(TunnelHandshake.isHello(data, hello.getLength()));
+      assertNull(new TunnelHandshake(filled(32, 2)).accept(data, hello.getLength(), server));
+      assertNotNull(new TunnelHandshake(filled(32, 1)).accept(data, hello.getLength(), server));
+      assertFalse(TunnelHandshake.isHello(data, hello.getLength() - 1));
+    }
+  }
+
+  @Test
+  public void handshakeRepeatedHelloTest() throws Exception {
+    byte[] key = filled(32, 7);
+    try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+         DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+         DatagramSocket other = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      client.connect(server.getLocalSocketAddress());
+      other.connect(server.getLocalSocketAddress());
+      TunnelHandshake serverHandshake = new TunnelHandshake(key);
+      byte[] data = new byte[256];
+      DatagramPacket hello = new DatagramPacket(data, data.length);
+
+      // another hello, whose reply mustn't be taken by the client
+      TunnelHandshake otherHandshake = new TunnelHandshake(key);
+      otherHandshake.setTimeout(50);
+      otherHandshake.setAttempts(1);
+      assertNull(otherHandshake.connect(other, AeadTunnel.Algorithm.AES_GCM));
+      server.receive(hello);
+      byte[] otherHello = Arrays.copyOf(data, hello.getLength());
+
+      TunnelHandshake clientHandshake = new TunnelHandshake(key);
+      clientHandshake.setTimeout(2000);
+      clientHandshake.setAttempts(1);
+      CompletableFuture<AeadTunnel> connected = CompletableFuture.supplyAsync(() -> {
+        try {
+          return clientHandshake.connect(client, AeadTunnel.Algorithm.AES_GCM);
+        } catch (IOException | GeneralSecurityException ex) {
+          throw new IllegalStateException(ex);
+        }
+      });
+      server.receive(hello);
+      byte[] clientHello = Arrays.copyOf(data, hello.getLength());
+      assertNotNull(serverHandshake.accept(otherHello, otherHello.length, server,
+          client.getLocalSocketAddress()));
+      AeadTunnel serverTunnel = serverHandshake.accept(clientHello, clientHello.length, server,
+          client.getLocalSocketAddress());
+      // the same hello again gets the same keys
+      assertSame(serverTunnel, serverHandshake.accept(clientHello, clientHello.length, server,
+          client.getLocalSocketAddress()));
+
+      AeadTunnel clientTunnel = connected.get(5, TimeUnit.SECONDS);
+      assertNotNull(clientTunnel);
+      byte[] packet = filled(64, 3);
+      byte[] frame = new byte[packet.length + AeadTunnel.OVERHEAD];
+      byte[] opened = new byte[frame.length];
+      int frameLength = clientTunnel.seal(packet, 0, packet.length, frame);
+      assertEquals(packet.length, serverTunnel.open(frame, frameLength, opened));
+    }
+  }
+
+  /**
+   * Sends a hello from a client whose clock reads the given time, which nobody answers, and
+   * returns the hello as the proxy would receive it.
+   */
+  private static byte[] captureHello(byte[] key, long time) throws Exception {
+    try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+         DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      client.connect(server.getLocalSocketAddress());
+      TunnelHandshake clientHandshake = new TunnelHandshake(key, () -> time);
+      clientHandshake.setTimeout(50);
+      clientHandshake.setAttempts(1);
+      assertNull(clientHandshake.connect(client, AeadTunnel.Algorithm.AES_GCM));
+      byte[] data = new byte[256];
+      DatagramPacket hello = new DatagramPacket(data, data.length);
+      server.receive(hello);
+      return Arrays.copyOf(data, hello.getLength());
+    }
+  }
+
+  @Test
+  public void handshakeStaleHelloTest() throws Exception {
+    byte[] key = filled(32, 9);
+    long now = System.currentTimeMillis();
+    byte[] stale = captureHello(key, now - 2 * TunnelHandshake.MAX_CLOCK_SKEW_MILLIS);
+    byte[] early = captureHello(key, now + 2 * TunnelHandshake.MAX_CLOCK_SKEW_MILLIS);
+    byte[] fresh = captureHello(key, now - TunnelHandshake.MAX_CLOCK_SKEW_MILLIS / 2);
+    try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      TunnelHandshake serverHandshake = new TunnelHandshake(key, () -> now);
+      assertNull(serverHandshake.accept(stale, stale.length, server,
+          server.getLocalSocketAddress()));
+      assertNull(serverHandshake.accept(early, early.length, server,
+          server.getLocalSocketAddress()));
+      assertNotNull(serverHandshake.accept(fresh, fresh.length, server,
+          server.getLocalSocketAddress()));
+    }
+  }
+
+  @Test
+  public void handshakeReplayedHelloTest() throws Exception {
+    byte[] key = filled(32, 11);
+    long start = System.currentTimeMillis();
+    long[] now = {start};
+    byte[] first = captureHello(key, start);
+    byte[] second = captureHello(key, start);
+    try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      TunnelHandshake serverHandshake = new TunnelHandshake(key, () -> now[0]);
+      AeadTunnel firstTunnel = serverHandshake.accept(first, first.length, server,
+          server.getLocalSocketAddress());
+      AeadTunnel secondTunnel = serverHandshake.accept(second, second.length, server,
+          server.getLocalSocketAddress());
+      assertNotNull(firstTunnel);
+      assertNotNull(secondTunnel);
+
+      // replaying the first hello after the second doesn't agree new keys
+      assertSame(firstTunnel, serverHandshake.accept(first, first.length, server,
+          server.getLocalSocketAddress()));
+
+      // and once it's forgotten, it's too old to be taken at all
+      now[0] = start + 3 * TunnelHandshake.MAX_CLOCK_SKEW_MILLIS;
+      assertNull(serverHandshake.accept(first, first.length, server,
+          server.getLocalSocketAddress()));
+    }
+  }
+
+  @Test
+  public void handshakeCapabilitiesTest() throws Exception {
+    byte[] key = filled(32, 13);
+    for (int supported : new int[] {TunnelCapabilities.COMPRESSION, 0}) {
+      try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+           DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+        client.connect(server.getLocalSocketAddress());
+        server.connect(client.getLocalSocketAddress());
+        TunnelHandshake serverHandshake = new TunnelHandshake(key);
+        serverHandshake.setCapabilities(supported);
+
+        CompletableFuture<Integer> offered = CompletableFuture.supplyAsync(() -> {
+          try {
+            byte[] data = new byte[256];
+            DatagramPacket hello = new DatagramPacket(data, data.length);
+            server.receive(hello);
+            assertNotNull(serverHandshake.accept(data, hello.getLength(), server));
+            return TunnelHandshake.getCapabilities(data);
+          } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+          }
+        });
+        TunnelHandshake clientHandshake = new TunnelHandshake(key);
+        clientHandshake.setCapabilities(TunnelCapabilities.COMPRESSION);
+        assertNotNull(clientHandshake.connect(client, AeadTunnel.Algorithm.AES_GCM));
+        assertEquals(TunnelCapabilities.COMPRESSION, offered.get(5, TimeUnit.SECONDS));
+        // only what both ends can do is turned on
+        assertEquals(supported, clientHandshake.getAgreedCapabilities());
+      }
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package network.grape.lib.crypto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the ReplayWindow class.
+ */
+public class ReplayWindowTest {
+
+  private static boolean accept(ReplayWindow window, long counter) {
+    if (!window.check(counter)) {
+      return false;
+    }
+    window.update(counter);
+    return true;
+  }
+
+  @Test
+  public void inOrderTest() {
+    ReplayWindow window = new ReplayWindow();
+    assertFalse(window.check(0));
+    for (long i = 1; i <= 5000; i++) {
+      assertTrue(accept(window, i));
+      assertFalse(accept(window, i));
+    }
+    assertEquals(5000, window.getTop());
+  }
+
+  @Test
+  public void reorderTest() {
+    ReplayWindow window = new ReplayWindow();
+    assertTrue(accept(window, 10));
+    // late packets are accepted once
+    assertTrue(accept(window, 3));
+    assertFalse(accept(window, 3));
+    assertTrue(accept(window, 9));
+    assertFalse(accept(window, 10));
+
+    // only checking doesn't mark the counter, a frame which didn't authenticate is forgotten
+    assertTrue(window.check(5));
+    assertTrue(accept(window, 5));
+  }
+
+  @Test
+  public void windowEdgeTest() {
+    ReplayWindow window = new ReplayWindow();
+    long top = 100_000;
+    assertTrue(accept(window, top));
+    assertTrue(accept(window, top - ReplayWindow.SIZE + 1));
+    assertFalse(accept(window, top - ReplayWindow.SIZE));
+
+    // a jump bigger than the ring clears everything that was seen before
+    long next = top + 10 * ReplayWindow.SIZE;
+    assertTrue(accept(window, next));
+    assertTrue(accept(window, next - 1));
+    assertFalse(accept(window, top));
+  }
+}
@@ -0,0 +1,132 @@
+package network.grape.lib.dns;
+
+import static network.grape.lib.dns.DnsTestCommon.answer;
+import static network.grape.lib.dns.DnsTestCommon.getFirstTtl;
+import static network.grape.lib.dns.DnsTestCommon.query;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the dns message helpers and the dns cache.
+ */
+public class DnsCacheTest {
+  private static final byte[] ADDRESS = {93, (byte) 184, (byte) 216, 34};
+
+  /**
+   * A cache with a clock the test controls.
+   */
+  private static class TestCache extends DnsCache {
+    private long now = 1000000;
+
+    private TestCache(int maxEntries) {
+      super(maxEntries);
+    }
+
+    @Override
+    protected long now() {
+      return now;
+    }
+  }
+
+  @Test
+  public void questionKeyTest() {
+    byte[] query = query(1, "Example.COM");
+    assertEquals("example.com./1/1", DnsMessage.getQuestion(query, query.length));
+    assertEquals("example.com./1/1/0", DnsMessage.getQuestionKey(query, query.length));
+    // the question in an answer is the same, even with the record pointing back at it
+    byte[] answer = answer(query, DnsMessage.RCODE_NOERROR, 300, ADDRESS);
+    assertEquals("example.com./1/1", DnsMessage.getQuestion(answer, answer.length));
+    assertFalse(DnsMessage.isResponse(query));
+    assertTrue(DnsMessage.isResponse(answer));
+
+    // truncated in the middle of the question
+    assertNull(DnsMessage.getQuestionKey(query, query.length - 3));
+    // pointer loop
+    byte[] loop = query.clone();
+    loop[12] = (byte) 0xC0;
+    loop[13] = 12;
+    assertNull(DnsMessage.getQuestion(loop, loop.length));
+  }
+
+  @Test
+  public void ttlTest() {
+    byte[] answer = answer(query(1, "example.com"), DnsMessage.RCODE_NOERROR, 300, ADDRESS);
+    assertEquals(300, DnsMessage.getMinTtl(answer, answer.length));
+    DnsMessage.decrementTtls(answer, 100);
+    assertEquals(200, getFirstTtl(answer));
+    DnsMessage.decrementTtls(answer, 1000);
+    assertEquals(0, getFirstTtl(answer));
+
+    byte[] query = query(1, "example.com");
+    assertEquals(-1, DnsMessage.getMinTtl(query, query.length));
+  }
+
+  @Test
+  public void hitAndExpiryTest() {
+    TestCache cache = new TestCache(10);
+    byte[] query = query(1, "example.com");
+    String key = DnsMessage.getQuestionKey(query, query.length);
+    assertNull(cache.get(key, 1));
+    byte[] answer = answer(query, DnsMessage.RCODE_NOERROR, 60, ADDRESS);
+    assertTrue(cache.put(key, answer, answer.length));
+
+    // handed out under the new query id, with the time it spent in the cache taken off the ttl
+    cache.now += 15500;
+    byte[] cached = cache.get(key, 0x4242);
+    assertNotNull(cached);
+    assertEquals(0x4242, DnsMessage.getId(cached));
+    assertEquals(45, getFirstTtl(cached));
+
+    // the cached copy isn't changed by whoever it is handed out to
+    cached[20] = 0;
+    assertNotEquals(0, cache.get(key, 1)[20]);
+
+    cache.now += 45000;
+    assertNull(cache.get(key, 1));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void uncacheableTest() {
+    DnsCache cache = new DnsCache(10);
+    byte[] query = query(1, "example.com");
+    String key = DnsMessage.getQuestionKey(query, query.length);
+
+    byte[] servfail = answer(query, DnsMessage.RCODE_SERVFAIL, 60, ADDRESS);
+    assertFalse(cache.put(key, servfail, servfail.length));
+    byte[] zeroTtl = answer(query, DnsMessage.RCODE_NOERROR, 0, ADDRESS);
+    assertFalse(cache.put(key, zeroTtl, zeroTtl.length));
+    byte[] truncated = answer(query, DnsMessage.RCODE_NOERROR, 60, ADDRESS);
+    truncated[2] |= 0x02;
+    assertFalse(cache.put(key, truncated, truncated.length));
+    assertFalse(cache.put(key, query, query.length));
+    assertEquals(0, cache.size());
+
+    byte[] nxdomain = answer(query, DnsMessage.RCODE_NXDOMAIN, 60, ADDRESS);
+    assertTrue(cache.put(key, nxdomain, nxdomain.length));
+  }
+
+  @Test
+  public void evictionTest() {
+    DnsCache cache = new DnsCache(2);
+    String[] keys = new String[3];
+    for (int i = 0; i < keys.length; i++) {
+      byte[] query = query(1, "host" + i + ".example.com");
+      keys[i] = DnsMessage.getQuestionKey(query, query.length);
+      byte[] answer = answer(query, DnsMessage.RCODE_NOERROR, 60, ADDRESS);
+      cache.put(keys[i], answer, answer.length);
+      // keep the first one recently used
+      cache.get(keys[0], 1);
+    }
+    assertEquals(2, cache.size());
+    assertNotNull(cache.get(keys[0], 1));
+    assertNull(cache.get(keys[1], 1));
+    assertNotNull(cache.get(keys[2], 1));
+  }
+}
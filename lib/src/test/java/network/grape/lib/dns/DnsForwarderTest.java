@@ -0,0 +1,215 @@
+package network.grape.lib.dns;
+
+import static network.grape.lib.dns.DnsTestCommon.answer;
+import static network.grape.lib.dns.DnsTestCommon.query;
+import static network.grape.lib.transport.TransportHeader.UDP_PROTOCOL;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import network.grape.lib.PacketHeaderException;
+import network.grape.lib.network.ip.Ip4Header;
+import network.grape.lib.network.ip.IpPacketFactory;
+import network.grape.lib.session.SessionHandler;
+import network.grape.lib.session.SessionManager;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.udp.UdpHeader;
+import network.grape.lib.transport.udp.UdpPacketFactory;
+import network.grape.lib.vpn.SocketProtector;
+import network.grape.lib.vpn.VpnWriter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Tests for the dns forwarder against a stand-in resolver on loopback.
+ */
+public class DnsForwarderTest {
+  private static final byte[] ADDRESS = {93, (byte) 184, (byte) 216, 34};
+  private InetAddress loopback;
+  private final List<byte[]> toClient = Collections.synchronizedList(new ArrayList<>());
+  private final OutputStream outputStream = new OutputStream() {
+    @Override
+    public void write(int b) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void write(byte[] data) {
+      toClient.add(data);
+    }
+  };
+  private Selector selector;
+  private SessionManager sessionManager;
+  private SessionHandler sessionHandler;
+  private DnsForwarder forwarder;
+  private DatagramSocket resolver;
+  private Thread resolverThread;
+  private final AtomicInteger queries = new AtomicInteger();
+  // the resolver holds its answers until this is released
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  /**
+   * Set up a handler with a dns forwarder pointed at a stand-in resolver which answers every
+   * A query with the same address.
+   */
+  @BeforeEach
+  public void init() throws IOException {
+    loopback = InetAddress.getByAddress(new byte[] {127, 0, 0, 1});
+    resolver = new DatagramSocket(0, loopback);
+    resolverThread = new Thread(() -> {
+      byte[] buffer = new byte[512];
+      while (!resolver.isClosed()) {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+          resolver.receive(packet);
+          queries.incrementAndGet();
+          release.await(5, TimeUnit.SECONDS);
+          byte[] query = new byte[packet.getLength()];
+          System.arraycopy(buffer, 0, query, 0, query.length);
+          byte[] answer = answer(query, DnsMessage.RCODE_NOERROR, 300, ADDRESS);
+          resolver.send(new DatagramPacket(answer, answer.length, packet.getSocketAddress()));
+        } catch (IOException | InterruptedException ex) {
+          return;
+        }
+      }
+    });
+    resolverThread.start();
+
+    selector = Selector.open();
+    sessionManager = new SessionManager(new ConcurrentHashMap<>(), selector);
+    VpnWriter vpnWriter = mock(VpnWriter.class);
+    doReturn(new Object()).when(vpnWriter).getSyncSelector();
+    doReturn(new Object()).when(vpnWriter).getSyncSelector2();
+    sessionHandler = new SessionHandler(sessionManager, mock(SocketProtector.class), vpnWriter,
+        new ArrayList<>());
+    forwarder = new DnsForwarder(mock(SocketProtector.class), 2, 2000, new DnsCache());
+    forwarder.setUpstream(new InetSocketAddress(loopback, resolver.getLocalPort()));
+    sessionHandler.setDnsForwarder(forwarder);
+  }
+
+  @AfterEach
+  public void cleanup() throws IOException, InterruptedException {
+    forwarder.shutdown();
+    resolver.close();
+    resolverThread.join();
+    selector.close();
+  }
+
+  @Timeout(20)
+  @Test
+  public void missThenHitTest() throws IOException, PacketHeaderException,
+      InterruptedException {
+    release.countDown();
+    sendFromClient(5000, query(0x1111, "example.com"));
+    waitForReplies(1);
+    assertReply(toClient.get(0), 5000, 0x1111, 300);
+    assertEquals(1, queries.get());
+    assertEquals(1, forwarder.getMisses().get());
+
+    // the second lookup, from another client socket, never makes it to the resolver
+    sendFromClient(5001, query(0x2222, "example.com"));
+    waitForReplies(2);
+    assertReply(toClient.get(1), 5001, 0x2222, 300);
+    assertEquals(1, queries.get());
+    assertEquals(1, forwarder.getHits().get());
+
+    // none of it needed a udp session
+    assertNull(sessionManager.getSession(loopback, 5000, loopback, DnsForwarder.DNS_PORT,
+        TransportHeader.UDP_PROTOCOL));
+  }
+
+  @Timeout(20)
+  @Test
+  public void coalesceTest() throws IOException, PacketHeaderException, InterruptedException {
+    sendFromClient(5000, query(1, "example.com"));
+    sendFromClient(5001, query(2, "example.com"));
+    sendFromClient(5002, query(3, "EXAMPLE.com"));
+    sendFromClient(5003, query(4, "example.org"));
+    release.countDown();
+    waitForReplies(4);
+
+    // one upstream query per distinct question
+    assertEquals(2, queries.get());
+    assertEquals(2, forwarder.getCoalesced().get());
+    List<Integer> ids = new ArrayList<>();
+    for (byte[] reply : toClient) {
+      ByteBuffer buffer = ByteBuffer.wrap(reply);
+      Ip4Header.parseBuffer(buffer);
+      UdpHeader udpHeader = UdpHeader.parseBuffer(buffer);
+      byte[] dns = new byte[buffer.remaining()];
+      buffer.get(dns);
+      // each client gets the answer under its own id
+      assertEquals(udpHeader.getDestinationPort() - 4999, DnsMessage.getId(dns));
+      ids.add(DnsMessage.getId(dns));
+    }
+    Collections.sort(ids);
+    assertEquals(List.of(1, 2, 3, 4), ids);
+  }
+
+  @Test
+  public void notAQueryTest() throws PacketHeaderException, UnknownHostException {
+    // garbage to port 53 is left for the normal udp path
+    byte[] garbage = new byte[] {1, 2, 3};
+    byte[] udpPacket = UdpPacketFactory.encapsulate(loopback, loopback, 5000,
+        DnsForwarder.DNS_PORT, garbage);
+    ByteBuffer packet = ByteBuffer.wrap(
+        IpPacketFactory.encapsulate(loopback, loopback, UDP_PROTOCOL, udpPacket));
+    Ip4Header ipHeader = Ip4Header.parseBuffer(packet);
+    UdpHeader udpHeader = UdpHeader.parseBuffer(packet);
+    int position = packet.position();
+    assertFalse(forwarder.handleQuery(ipHeader, udpHeader, packet, outputStream));
+    assertEquals(position, packet.position());
+    byte[] remaining = new byte[packet.remaining()];
+    packet.get(remaining);
+    assertArrayEquals(garbage, remaining);
+  }
+
+  private void sendFromClient(int sourcePort, byte[] query)
+      throws PacketHeaderException, IOException {
+    byte[] udpPacket = UdpPacketFactory.encapsulate(loopback, loopback, sourcePort,
+        DnsForwarder.DNS_PORT, query);
+    byte[] ipPacket = IpPacketFactory.encapsulate(loopback, loopback, UDP_PROTOCOL, udpPacket);
+    sessionHandler.handlePacket(ByteBuffer.wrap(ipPacket), outputStream);
+  }
+
+  private void waitForReplies(int count) throws InterruptedException {
+    while (toClient.size() < count) {
+      Thread.sleep(10);
+    }
+  }
+
+  private void assertReply(byte[] packet, int clientPort, int id, long ttl)
+      throws PacketHeaderException, UnknownHostException {
+    ByteBuffer buffer = ByteBuffer.wrap(packet);
+    Ip4Header ipHeader = Ip4Header.parseBuffer(buffer);
+    UdpHeader udpHeader = UdpHeader.parseBuffer(buffer);
+    assertEquals(loopback, ipHeader.getSourceAddress());
+    assertEquals(DnsForwarder.DNS_PORT, udpHeader.getSourcePort());
+    assertEquals(clientPort, udpHeader.getDestinationPort());
+    byte[] dns = new byte[buffer.remaining()];
+    buffer.get(dns);
+    assertEquals(id, DnsMessage.getId(dns));
+    assertEquals(ttl, DnsTestCommon.getFirstTtl(dns));
+  }
+}
@@ -0,0 +1,82 @@
+package network.grape.lib.dns;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Builds DNS messages for the dns tests.
+ */
+public class DnsTestCommon {
+  public static final int TYPE_A = 1;
+  public static final int CLASS_IN = 1;
+
+  /**
+   * Builds a recursive query for a single A record.
+   *
+   * @param id   the query id
+   * @param name the name to look up, ie: example.com
+   * @return the query
+   */
+  public static byte[] query(int id, String name) {
+    ByteBuffer buffer = ByteBuffer.allocate(512);
+    buffer.putShort((short) id);
+    // RD
+    buffer.putShort((short) 0x0100);
+    buffer.putShort((short) 1);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) 0);
+    buffer.put(encodeName(name));
+    buffer.putShort((short) TYPE_A);
+    buffer.putShort((short) CLASS_IN);
+    return toArray(buffer);
+  }
+
+  /**
+   * Builds an answer to the query with a single A record, which points back at the question name.
+   *
+   * @param query   the query being answered
+   * @param rcode   the response code
+   * @param ttl     the ttl of the record
+   * @param address the address in the record
+   * @return the answer
+   */
+  public static byte[] answer(byte[] query, int rcode, long ttl, byte[] address) {
+    ByteBuffer buffer = ByteBuffer.allocate(512);
+    buffer.put(query);
+    // QR, RD, RA
+    buffer.putShort(2, (short) (0x8180 | rcode));
+    buffer.putShort(6, (short) 1);
+    buffer.putShort((short) 0xC00C);
+    buffer.putShort((short) TYPE_A);
+    buffer.putShort((short) CLASS_IN);
+    buffer.putInt((int) ttl);
+    buffer.putShort((short) address.length);
+    buffer.put(address);
+    return toArray(buffer);
+  }
+
+  private static byte[] encodeName(String name) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (String label : name.split("\\.")) {
+      out.write(label.length());
+      out.writeBytes(label.getBytes());
+    }
+    out.write(0);
+    return out.toByteArray();
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] data = new byte[buffer.position()];
+    System.arraycopy(buffer.array(), 0, data, 0, data.length);
+    return data;
+  }
+
+  /**
+   * Reads the ttl of the first answer record from a message built by answer().
+   */
+  public static long getFirstTtl(byte[] message) {
+    int offset = message.length - 4 - 2 - 4;
+    return ByteBuffer.wrap(message).getInt(offset) & 0xFFFFFFFFL;
+  }
+}
@@ -0,0 +1,113 @@
+package network.grape.lib.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public class MetricsRegistryTest {
+
+  @Test
+  public void counterTest() throws InterruptedException {
+    MetricsRegistry registry = new MetricsRegistry();
+    Counter counter = registry.counter("test_total", "A test counter");
+    assertSame(counter, registry.counter("test_total", "A test counter"));
+
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      Thread thread = new Thread(() -> {
+        for (int j = 0; j < 10000; j++) {
+          counter.increment();
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    counter.add(5);
+    assertEquals(40005, counter.get());
+  }
+
+  @Test
+  public void histogramTest() {
+    MetricsRegistry registry = new MetricsRegistry();
+    Histogram histogram = registry.histogram("test_seconds", "A test histogram",
+        new long[] {100, 1000});
+    histogram.observe(50);
+    histogram.observe(100);
+    histogram.observe(500);
+    histogram.observe(5000);
+
+    assertEquals(4, histogram.getCount());
+    assertEquals(2, histogram.getCumulativeCount(0));
+    assertEquals(3, histogram.getCumulativeCount(1));
+    assertEquals(4, histogram.getCumulativeCount(2));
+    assertEquals(5650, histogram.getSumNanos());
+
+    assertThrows(IllegalArgumentException.class,
+        () -> registry.histogram("bad_seconds", "Out of order", new long[] {1000, 100}));
+  }
+
+  @Test
+  public void gaugeTest() {
+    MetricsRegistry registry = new MetricsRegistry();
+    AtomicLong first = new AtomicLong(3);
+    AtomicLong second = new AtomicLong(4);
+    registry.gauge("test_depth", "A test gauge", first::get);
+    Gauge gauge = registry.gauge("test_depth", "A test gauge", second::get);
+    assertEquals(7, gauge.get());
+    first.set(10);
+    assertEquals(14, gauge.get());
+  }
+
+  @Test
+  public void typeConflictTest() {
+    MetricsRegistry registry = new MetricsRegistry();
+    registry.counter("test_total", "A test counter");
+    assertThrows(IllegalArgumentException.class,
+        () -> registry.histogram("test_total", "Not a counter"));
+  }
+
+  @Test
+  public void scrapeTest() {
+    MetricsRegistry registry = new MetricsRegistry();
+    registry.counter("b_total", "Counts b").add(2);
+    registry.gauge("a_depth", "Depth of a", () -> 7);
+    registry.histogram("c_seconds", "Times c", new long[] {TimeUnit.MILLISECONDS.toNanos(1)})
+        .observe(TimeUnit.MICROSECONDS.toNanos(500));
+
+    String text = registry.scrape();
+    String expected = "# HELP a_depth Depth of a\n"
+        + "# TYPE a_depth gauge\n"
+        + "a_depth 7\n"
+        + "# HELP b_total Counts b\n"
+        + "# TYPE b_total counter\n"
+        + "b_total 2\n"
+        + "# HELP c_seconds Times c\n"
+        + "# TYPE c_seconds histogram\n"
+        + "c_seconds_bucket{le=\"0.001\"} 1\n"
+        + "c_seconds_bucket{le=\"+Inf\"} 1\n"
+        + "c_seconds_sum 5.0E-4\n"
+        + "c_seconds_count 1\n";
+    assertEquals(expected, text);
+  }
+
+  @Test
+  public void pipelineMetricsTest() {
+    MetricsRegistry registry = new MetricsRegistry();
+    PipelineMetrics first = new PipelineMetrics(registry);
+    PipelineMetrics second = new PipelineMetrics(registry);
+    // shards sharing a registry share the metrics
+    assertSame(first.getPacketsHandled(), second.getPacketsHandled());
+    first.getHandleLatency().observe(1000);
+    assertTrue(registry.scrape().contains("grape_packet_handle_seconds_count 1\n"));
+  }
+}
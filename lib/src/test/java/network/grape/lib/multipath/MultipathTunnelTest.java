@@ -0,0 +1,174 @@
+package network.grape.lib.multipath;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import network.grape.lib.crypto.AeadTunnel;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the MultipathTunnel, its client and the path schedulers, with paths over different
+ * loopback addresses.
+ */
+public class MultipathTunnelTest {
+
+  private static List<TunnelPath> paths(DatagramSocket socket, int count) throws Exception {
+    List<TunnelPath> paths = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      paths.add(new TunnelPath(i, socket, socket.getLocalSocketAddress()));
+    }
+    return paths;
+  }
+
+  @Test
+  public void schedulerTest() throws Exception {
+    try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      long now = System.nanoTime();
+      List<TunnelPath> paths = paths(socket, 2);
+      paths.get(0).updateRtt(50_000_000);
+      paths.get(1).updateRtt(10_000_000);
+
+      PathScheduler lowest = PathScheduler.create(PathScheduler.Type.LOWEST_RTT);
+      assertEquals(1, lowest.select(paths, 1000, now));
+      // unless the quick one has gone quiet
+      long later = now + 2 * TunnelPath.DEAD_NANOS;
+      paths.get(0).heard(null, later);
+      assertEquals(0, lowest.select(paths, 1000, later));
+
+      paths.get(0).setWeight(3);
+      PathScheduler roundRobin = PathScheduler.create(PathScheduler.Type.WEIGHTED_ROUND_ROBIN);
+      int[] picks = new int[2];
+      for (int i = 0; i < 400; i++) {
+        picks[roundRobin.select(paths, 1000, now)]++;
+      }
+      assertEquals(300, picks[0]);
+      assertEquals(100, picks[1]);
+
+      PathScheduler redundant = PathScheduler.create(PathScheduler.Type.REDUNDANT);
+      assertEquals(PathScheduler.ALL_PATHS, redundant.select(paths, 60, now));
+      assertEquals(1, redundant.select(paths, 1000, now));
+    }
+  }
+
+  @Test
+  public void loopbackPathsTest() throws Exception {
+    InetAddress proxyAddress = InetAddress.getByName("127.0.0.1");
+    List<InetAddress> locals = Arrays.asList(InetAddress.getByName("127.0.0.1"),
+        InetAddress.getByName("127.0.0.2"));
+    try (DatagramSocket proxy = new DatagramSocket(0, proxyAddress);
+         MultipathClient client = new MultipathClient(locals, proxy.getLocalSocketAddress(),
+             null, PathScheduler.create(PathScheduler.Type.WEIGHTED_ROUND_ROBIN), 1500)) {
+      proxy.setSoTimeout(5000);
+      MultipathTunnel clientTunnel = client.getTunnel();
+      assertEquals(2, clientTunnel.getPaths().size());
+      for (int i = 0; i < 10; i++) {
+        clientTunnel.write(new byte[] {(byte) i, 1, 2, 3});
+      }
+
+      // the proxy end learns both paths, and the packets come out in order
+      MultipathTunnel proxyTunnel = null;
+      Set<String> sources = new HashSet<>();
+      byte[] data = new byte[2000];
+      byte[] packet = new byte[1500];
+      List<Integer> delivered = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        DatagramPacket datagram = new DatagramPacket(data, data.length);
+        proxy.receive(datagram);
+        assertTrue(MultipathTunnel.isMultipathFrame(data, datagram.getLength()));
+        if (proxyTunnel == null) {
+          proxyTunnel = new MultipathTunnel(MultipathTunnel.getClientId(data),
+              PathScheduler.create(PathScheduler.Type.LOWEST_RTT), 1500);
+        }
+        assertEquals(clientTunnel.getClientId(), MultipathTunnel.getClientId(data));
+        sources.add(datagram.getAddress().getHostAddress());
+        TunnelPath path = proxyTunnel.pathFor(MultipathTunnel.getPathId(data), proxy,
+            datagram.getSocketAddress());
+        long now = System.nanoTime();
+        int length = proxyTunnel.receive(data, datagram.getLength(), path,
+            datagram.getSocketAddress(), now, packet);
+        while (length >= 0) {
+          assertEquals(4, length);
+          delivered.add((int) packet[0]);
+          length = proxyTunnel.poll(packet, now);
+        }
+      }
+      assertEquals(2, sources.size());
+      assertEquals(2, proxyTunnel.getPaths().size());
+      assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), delivered);
+
+      // and the replies get back to the client over them
+      proxyTunnel.write(new byte[] {9, 8, 7});
+      proxyTunnel.write(new byte[] {6, 5});
+      assertEquals(3, client.read(packet));
+      assertArrayEquals(new byte[] {9, 8, 7}, Arrays.copyOf(packet, 3));
+      assertEquals(2, client.read(packet));
+      assertArrayEquals(new byte[] {6, 5}, Arrays.copyOf(packet, 2));
+    }
+  }
+
+  @Test
+  public void pingTest() throws Exception {
+    List<InetAddress> locals = Arrays.asList(InetAddress.getByName("127.0.0.1"),
+        InetAddress.getByName("127.0.0.2"));
+    try (DatagramSocket proxy = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+         MultipathClient client = new MultipathClient(locals, proxy.getLocalSocketAddress(),
+             null, PathScheduler.create(PathScheduler.Type.REDUNDANT), 1500)) {
+      proxy.setSoTimeout(5000);
+      MultipathTunnel clientTunnel = client.getTunnel();
+      clientTunnel.sendPings(System.nanoTime());
+
+      MultipathTunnel proxyTunnel = new MultipathTunnel(clientTunnel.getClientId(),
+          PathScheduler.create(PathScheduler.Type.REDUNDANT), 1500);
+      byte[] data = new byte[100];
+      for (int i = 0; i < 2; i++) {
+        DatagramPacket datagram = new DatagramPacket(data, data.length);
+        proxy.receive(datagram);
+        assertTrue(MultipathTunnel.isPing(data, datagram.getLength()));
+        TunnelPath path = proxyTunnel.pathFor(MultipathTunnel.getPathId(data), proxy,
+            datagram.getSocketAddress());
+        proxyTunnel.handlePing(data, datagram.getLength(), path, datagram.getSocketAddress(),
+            System.nanoTime());
+      }
+      // a small packet goes on both paths, and the client takes the pongs on its way to it
+      proxyTunnel.write(new byte[] {1});
+      byte[] packet = new byte[1500];
+      assertEquals(1, client.read(packet));
+      // at least the pong on the path the packet was read from has been taken by now
+      assertTrue(clientTunnel.getPaths().stream().anyMatch(path -> path.getRttNanos() > 0));
+      // a pong and the packet on each
+      assertEquals(2, proxyTunnel.getPaths().get(0).getPacketsSent());
+      assertEquals(2, proxyTunnel.getPaths().get(1).getPacketsSent());
+    }
+  }
+
+  @Test
+  public void frameSizeTest() throws Exception {
+    try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      MultipathTunnel tunnel = new MultipathTunnel(1,
+          PathScheduler.create(PathScheduler.Type.LOWEST_RTT), 100);
+      TunnelPath path = paths(socket, 1).get(0);
+      tunnel.addPath(path);
+      // the largest packet once it's sealed still fits
+      tunnel.write(new byte[100 + AeadTunnel.OVERHEAD]);
+      assertEquals(1, path.getPacketsSent());
+      assertEquals(0, tunnel.getDropped());
+      // anything bigger is dropped, rather than thrown on the writer thread
+      tunnel.write(new byte[101 + AeadTunnel.OVERHEAD]);
+      assertEquals(1, path.getPacketsSent());
+      assertEquals(1, tunnel.getDropped());
+
+      long later = path.getLastHeard() + TunnelPath.DEAD_NANOS;
+      path.heard(null, later);
+      assertEquals(later, tunnel.getLastHeard());
+    }
+  }
+}
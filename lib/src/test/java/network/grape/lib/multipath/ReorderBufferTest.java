@@ -0,0 +1,108 @@
+package network.grape.lib.multipath;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the ReorderBuffer class.
+ */
+public class ReorderBufferTest {
+  private static final long DELAY = 1000;
+
+  private static void offer(ReorderBuffer buffer, int seq, long now) {
+    buffer.offer(seq, new byte[] {(byte) seq}, 0, 1, now);
+  }
+
+  private static int next(ReorderBuffer buffer, long now) {
+    byte[] packet = new byte[1];
+    return buffer.poll(packet, now) < 0 ? -1 : packet[0];
+  }
+
+  @Test
+  public void reorderTest() {
+    ReorderBuffer buffer = new ReorderBuffer(8, DELAY, 16);
+    assertTrue(buffer.isNext(1));
+    offer(buffer, 3, 0);
+    offer(buffer, 2, 0);
+    // 1 hasn't arrived, and hasn't been waited for long enough
+    assertEquals(-1, next(buffer, 10));
+    assertTrue(buffer.hasWaiting());
+    offer(buffer, 1, 20);
+    assertEquals(1, next(buffer, 20));
+    assertEquals(2, next(buffer, 20));
+    assertEquals(3, next(buffer, 20));
+    assertEquals(-1, next(buffer, 20));
+    assertFalse(buffer.hasWaiting());
+
+    // copies of delivered or waiting packets are dropped
+    offer(buffer, 2, 30);
+    offer(buffer, 5, 30);
+    offer(buffer, 5, 30);
+    assertEquals(2, buffer.getDuplicates());
+    offer(buffer, 4, 30);
+    assertEquals(4, next(buffer, 30));
+    assertEquals(5, next(buffer, 30));
+  }
+
+  @Test
+  public void lossTest() {
+    ReorderBuffer buffer = new ReorderBuffer(8, DELAY, 16);
+    offer(buffer, 3, 0);
+    assertEquals(-1, next(buffer, DELAY - 1));
+    // 1 and 2 are given up on
+    assertEquals(3, next(buffer, DELAY));
+    assertEquals(2, buffer.getSkipped());
+    offer(buffer, 1, DELAY);
+    assertEquals(-1, next(buffer, DELAY));
+    assertTrue(buffer.isNext(4));
+  }
+
+  @Test
+  public void overflowTest() {
+    ReorderBuffer buffer = new ReorderBuffer(8, DELAY, 16);
+    offer(buffer, 2, 0);
+    // too far ahead to fit, so the missing ones are given up on straight away
+    offer(buffer, 20, 0);
+    assertEquals(2, next(buffer, 0));
+    assertEquals(-1, next(buffer, 0));
+    offer(buffer, 13, 0);
+    assertEquals(13, next(buffer, 0));
+    assertEquals(-1, next(buffer, 0));
+    // the parked packet waits for the ones before it like any other
+    assertEquals(20, next(buffer, 2 * DELAY));
+  }
+
+  @Test
+  public void farAheadTest() {
+    ReorderBuffer buffer = new ReorderBuffer(8, DELAY, 16);
+    // a forged sequence number far ahead is dropped, rather than giving up on everything before it
+    offer(buffer, Integer.MAX_VALUE, 0);
+    assertEquals(1, buffer.getRejected());
+    assertFalse(buffer.hasWaiting());
+    assertTrue(buffer.isNext(1));
+    offer(buffer, 2, 0);
+    offer(buffer, 1, 0);
+    assertEquals(1, next(buffer, 0));
+    assertEquals(2, next(buffer, 0));
+    assertEquals(0, buffer.getSkipped());
+  }
+
+  @Test
+  public void resyncTest() {
+    ReorderBuffer buffer = new ReorderBuffer(8, DELAY, 16);
+    offer(buffer, 3, 0);
+    // after a long enough outage, a run of packets with nothing in between starts it again
+    for (int seq = 100; seq < 107; seq++) {
+      offer(buffer, seq, 0);
+    }
+    assertEquals(7, buffer.getRejected());
+    offer(buffer, 107, 0);
+    assertEquals(107, next(buffer, 0));
+    assertEquals(-1, next(buffer, 0));
+    assertFalse(buffer.hasWaiting());
+    assertTrue(buffer.isNext(108));
+  }
+}
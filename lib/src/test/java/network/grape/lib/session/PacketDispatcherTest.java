@@ -0,0 +1,147 @@
+package network.grape.lib.session;
+
+import static network.grape.lib.network.ip.IpPacketFactory.copyIp4Header;
+import static network.grape.lib.network.ip.IpTestCommon.testIp4Header;
+import static network.grape.lib.transport.tcp.TcpPacketFactory.copyTcpHeader;
+import static network.grape.lib.transport.tcp.TcpTest.testTcpHeader;
+import static network.grape.lib.transport.udp.UdpTest.testUdpHeader;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import network.grape.lib.network.ip.Ip4Header;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.tcp.TcpHeader;
+import network.grape.lib.transport.udp.UdpHeader;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the PacketDispatcher class.
+ */
+public class PacketDispatcherTest {
+
+  static ByteBuffer tcpPacket(int sourcePort, long sequenceNumber) throws UnknownHostException {
+    Ip4Header ip4Header = copyIp4Header(testIp4Header());
+    ip4Header.setProtocol(TransportHeader.TCP_PROTOCOL);
+    TcpHeader tcpHeader = copyTcpHeader(testTcpHeader());
+    tcpHeader.setSourcePort(sourcePort);
+    tcpHeader.setSequenceNumber(sequenceNumber);
+    return packet(ip4Header, tcpHeader.toByteArray());
+  }
+
+  static ByteBuffer udpPacket(String destination) throws UnknownHostException {
+    Ip4Header ip4Header = copyIp4Header(testIp4Header());
+    ip4Header.setProtocol(TransportHeader.UDP_PROTOCOL);
+    ip4Header.setDestinationAddress((Inet4Address) InetAddress.getByName(destination));
+    UdpHeader udpHeader = testUdpHeader();
+    return packet(ip4Header, udpHeader.toByteArray());
+  }
+
+  static ByteBuffer packet(Ip4Header ip4Header, byte[] transport) {
+    byte[] ip = ip4Header.toByteArray();
+    ByteBuffer packet = ByteBuffer.allocate(ip.length + transport.length);
+    packet.put(ip);
+    packet.put(transport);
+    packet.flip();
+    return packet;
+  }
+
+  @Test
+  public void flowHashTest() throws UnknownHostException {
+    // the same flow always hashes the same, wherever the packet starts in the buffer
+    ByteBuffer packet = tcpPacket(1000, 1);
+    ByteBuffer offset = ByteBuffer.allocate(packet.remaining() + 10);
+    offset.position(10);
+    offset.put(packet.duplicate());
+    offset.position(10);
+    assertEquals(PacketDispatcher.flowHash(packet), PacketDispatcher.flowHash(offset));
+    assertEquals(10, offset.position());
+    assertEquals(PacketDispatcher.flowHash(packet), PacketDispatcher.flowHash(tcpPacket(1000, 2)));
+    assertNotEquals(PacketDispatcher.flowHash(packet),
+        PacketDispatcher.flowHash(tcpPacket(1001, 1)));
+
+    // udp from the same client socket stays together whatever the destination
+    assertEquals(PacketDispatcher.flowHash(udpPacket("8.8.8.8")),
+        PacketDispatcher.flowHash(udpPacket("1.1.1.1")));
+
+    // not an ip packet
+    assertEquals(0, PacketDispatcher.flowHash(ByteBuffer.allocate(0)));
+    assertEquals(0, PacketDispatcher.flowHash(ByteBuffer.wrap(new byte[] {0x10, 0, 0})));
+  }
+
+  @Test
+  public void dispatchTest() throws Exception {
+    SessionHandler handler = mock(SessionHandler.class);
+    final int flows = 8;
+    final int packetsPerFlow = 200;
+    Map<Integer, List<Long>> handled = new ConcurrentHashMap<>();
+    Map<Integer, String> threads = new ConcurrentHashMap<>();
+    CountDownLatch latch = new CountDownLatch(flows * packetsPerFlow);
+    doAnswer(invocation -> {
+      ByteBuffer packet = invocation.getArgument(0);
+      Ip4Header.parseBuffer(packet);
+      TcpHeader tcpHeader = TcpHeader.parseBuffer(packet);
+      handled.computeIfAbsent(tcpHeader.getSourcePort(),
+          port -> Collections.synchronizedList(new ArrayList<>()))
+          .add(tcpHeader.getSequenceNumber());
+      // a flow is only ever handled on one thread
+      String thread = Thread.currentThread().getName();
+      assertEquals(thread, threads.computeIfAbsent(tcpHeader.getSourcePort(), port -> thread));
+      latch.countDown();
+      return null;
+    }).when(handler).handlePacket(any(), any());
+
+    PacketDispatcher dispatcher = new PacketDispatcher(handler, 4, 4096);
+    dispatcher.start();
+    OutputStream outputStream = mock(OutputStream.class);
+    ByteBuffer buffer = ByteBuffer.allocate(100);
+    for (int i = 0; i < packetsPerFlow; i++) {
+      for (int flow = 0; flow < flows; flow++) {
+        // the same buffer is reused for every packet, the way the tunnel readers do
+        buffer.clear();
+        buffer.put(tcpPacket(2000 + flow, i));
+        buffer.flip();
+        assertTrue(dispatcher.dispatch(buffer, outputStream));
+      }
+    }
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    dispatcher.shutdown();
+
+    // each flow's packets were handled in the order they arrived
+    for (int flow = 0; flow < flows; flow++) {
+      List<Long> sequenceNumbers = handled.get(2000 + flow);
+      assertEquals(packetsPerFlow, sequenceNumbers.size());
+      for (int i = 0; i < packetsPerFlow; i++) {
+        assertEquals(i, sequenceNumbers.get(i));
+      }
+    }
+    assertEquals(0, dispatcher.getDropped());
+  }
+
+  @Test
+  public void dropWhenFullTest() throws UnknownHostException {
+    // not started, so nothing drains the queue
+    PacketDispatcher dispatcher = new PacketDispatcher(mock(SessionHandler.class), 1, 2);
+    OutputStream outputStream = mock(OutputStream.class);
+    assertTrue(dispatcher.dispatch(tcpPacket(1000, 1), outputStream));
+    assertTrue(dispatcher.dispatch(tcpPacket(1000, 2), outputStream));
+    assertFalse(dispatcher.dispatch(tcpPacket(1000, 3), outputStream));
+    assertEquals(1, dispatcher.getDropped());
+  }
+}
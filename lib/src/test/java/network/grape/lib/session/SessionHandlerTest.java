@@ -7,15 +7,23 @@ import static network.grape.lib.network.ip.IpTestCommon.testIp6Header;
 import static network.grape.lib.transport.tcp.TcpPacketFactory.copyTcpHeader;
 import static network.grape.lib.transport.tcp.TcpTest.testTcpHeader;
 import static network.grape.lib.transport.udp.UdpTest.testUdpHeader;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyShort;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -28,6 +36,7 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
@@ -36,14 +45,20 @@ import network.grape.lib.PacketHeaderException;
 import network.grape.lib.network.ip.Ip4Header;
 import network.grape.lib.network.ip.Ip6Header;
 import network.grape.lib.network.ip.IpHeader;
+import network.grape.lib.network.ip.IpPacketFactory;
 import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.icmp.IcmpEchoProxy;
+import network.grape.lib.transport.icmp.IcmpHeader;
+import network.grape.lib.transport.tcp.SynCookies;
 import network.grape.lib.transport.tcp.TcpHeader;
 import network.grape.lib.transport.udp.UdpHeader;
+import network.grape.lib.util.Constants;
 import network.grape.lib.vpn.SocketProtector;
 import network.grape.lib.vpn.VpnWriter;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 
 /**
  * Tests for the SessionHandler.
@@ -68,6 +83,7 @@ public class SessionHandlerTest {
         outputStream = mock(OutputStream.class);
         vpnWriter = mock(VpnWriter.class);
         when(sessionManager.getSelector()).thenReturn(selector);
+        when(sessionManager.tryHalfOpen(anyInt())).thenReturn(true);
     }
 
     @Test
@@ -136,6 +152,8 @@ public class SessionHandlerTest {
 
         when(ipHeader.getDestinationAddress()).thenReturn(Inet4Address.getLocalHost());
         when(ipHeader.getSourceAddress()).thenReturn(Inet4Address.getLocalHost());
+        when(ipHeader.toByteArray()).thenReturn(testIp4Header().toByteArray());
+        when(udpHeader.toByteArray()).thenReturn(testUdpHeader().toByteArray());
 
         // session not found
         when(vpnWriter.getSyncSelector()).thenReturn(new Object());
@@ -165,7 +183,10 @@ public class SessionHandlerTest {
         DatagramChannel channelMock = mock(DatagramChannel.class);
         doReturn(channelMock).when(sessionHandler).prepareDatagramChannel();
         doThrow(IOException.class).when(channelMock).connect(any());
+        clearInvocations(outputStream);
         sessionHandler.handleUdpPacket(buffer, ipHeader, udpHeader, outputStream);
+        // the client is told the destination can't be reached
+        verify(outputStream, times(1)).write(any(byte[].class));
 
         // exception on prepare datagram channel
         when(vpnWriter.getSyncSelector()).thenReturn(new Object());
@@ -254,7 +275,7 @@ public class SessionHandlerTest {
         when(tcpHeader.isRst()).thenReturn(false);
 
         // ack, session ! null
-        Session session = mock(Session.class);
+        TcpSession session = mock(TcpSession.class);
         when(sessionManager.getSession(ipHeader.getSourceAddress(), 0, ipHeader.getDestinationAddress(), 0, TransportHeader.TCP_PROTOCOL)).thenReturn(session);
         sessionHandler.handleTcpPacket(payload, ipHeader, tcpHeader, outputStream);
 
@@ -336,13 +357,80 @@ public class SessionHandlerTest {
         doNothing().when(protector).protect((Socket) any());
         doReturn(new Object()).when(vpnWriter).getSyncSelector();
         doReturn(new Object()).when(vpnWriter).getSyncSelector2();
-        Session session = mock(Session.class);
+        TcpSession session = mock(TcpSession.class);
 
         //ipv4, session already exists
-        doReturn(session).when(sessionManager).getSessionByKey(anyString());
+        doReturn(session).when(sessionManager).getSession(any(), anyInt(), any(), anyInt(), anyShort());
         Ip4Header ip4Header = copyIp4Header(testIp4Header());
         tcpHeader.setSequenceNumber(1);
         sessionHandler.replySynAck(ip4Header, tcpHeader, outputStream);
+        verify(sessionManager, never()).tryHalfOpen(anyInt());
+        verify(sessionHandler, never()).initAndConnectSocket(any(), any(), anyInt());
+    }
+
+    @Test
+    public void replySynAckHalfOpenCapTest() throws IOException {
+        TcpHeader tcpHeader = copyTcpHeader(testTcpHeader());
+        SessionHandler sessionHandler = spy(new SessionHandler(sessionManager, protector, vpnWriter, new ArrayList<>()));
+        doReturn(false).when(sessionManager).tryHalfOpen(anyInt());
+
+        // too many connects in progress, the SYN is dropped before anything is allocated for it
+        sessionHandler.replySynAck(copyIp4Header(testIp4Header()), tcpHeader, outputStream);
+        verify(sessionHandler, never()).initAndConnectSocket(any(), any(), anyInt());
+        verify(outputStream, never()).write(any());
+    }
+
+    @Test
+    public void synCookieHandshakeTest() throws IOException, PacketHeaderException {
+        SessionHandler sessionHandler = spy(new SessionHandler(sessionManager, protector, vpnWriter, new ArrayList<>()));
+        sessionHandler.setSynCookies(new SynCookies());
+        doReturn(new Object()).when(vpnWriter).getSyncSelector();
+        doReturn(new Object()).when(vpnWriter).getSyncSelector2();
+        doReturn(true).when(sessionManager).putSession(any());
+        SocketChannel socketChannel = mock(SocketChannel.class);
+        doReturn(socketChannel).when(sessionHandler).initAndConnectSocket(any(), any(), anyInt());
+        Ip4Header ip4Header = copyIp4Header(testIp4Header());
+        TcpHeader syn = copyTcpHeader(testTcpHeader());
+        syn.setSequenceNumber(1000);
+
+        // the SYN-ACK goes out without a session or a socket
+        sessionHandler.replySynAck(ip4Header, syn, outputStream);
+        ArgumentCaptor<byte[]> captor = ArgumentCaptor.forClass(byte[].class);
+        verify(outputStream, times(1)).write(captor.capture());
+        verify(sessionHandler, never()).initAndConnectSocket(any(), any(), anyInt());
+        verify(sessionManager, never()).putSession(any());
+        ByteBuffer synAckBuffer = ByteBuffer.wrap(captor.getValue());
+        Ip4Header.parseBuffer(synAckBuffer);
+        TcpHeader synAck = TcpHeader.parseBuffer(synAckBuffer);
+        assertTrue(synAck.isSyn() && synAck.isAck());
+        assertEquals(1001, synAck.getAckNumber());
+
+        // an ACK which doesn't carry the cookie is ignored
+        TcpHeader ack = copyTcpHeader(testTcpHeader());
+        ack.setSyn(false);
+        ack.setAck(true);
+        ack.setSequenceNumber(1001);
+        ack.setAckNumber(synAck.getSequenceNumber() + 0x10000);
+        assertNull(sessionHandler.acceptSynCookie(ip4Header, ack, outputStream));
+
+        // the final ACK creates the session, already past the handshake
+        ack.setAckNumber(synAck.getSequenceNumber() + 1);
+        TcpSession session = sessionHandler.acceptSynCookie(ip4Header, ack, outputStream);
+        assertEquals(synAck.getSequenceNumber() + 1, session.getSendNext());
+        assertEquals(1001, session.getRecSequence());
+        assertTrue(session.getMaxSegmentSize() > 0);
+        verify(sessionManager, times(1)).putSession(session);
+        assertTrue(session.getConnectTimer() != null);
+
+        // no room for it, the client already thinks it's connected so it's reset
+        clearInvocations(outputStream);
+        doReturn(false).when(sessionManager).tryHalfOpen(anyInt());
+        assertNull(sessionHandler.acceptSynCookie(ip4Header, ack, outputStream));
+        verify(outputStream, times(1)).write(captor.capture());
+        ByteBuffer rstBuffer = ByteBuffer.wrap(captor.getValue());
+        Ip4Header.parseBuffer(rstBuffer);
+        assertTrue(TcpHeader.parseBuffer(rstBuffer).isRst());
+        sessionHandler.shutdown();
     }
 
     @Test
@@ -353,7 +441,7 @@ public class SessionHandlerTest {
         doNothing().when(protector).protect((Socket) any());
         doReturn(new Object()).when(vpnWriter).getSyncSelector();
         doReturn(new Object()).when(vpnWriter).getSyncSelector2();
-        Session session = mock(Session.class);
+        TcpSession session = mock(TcpSession.class);
 
         //seq # < 0, session != exist
         tcpHeader.setSequenceNumber(-1);
@@ -365,6 +453,170 @@ public class SessionHandlerTest {
         sessionHandler.replySynAck(ip4Header, tcpHeader, outputStream);
     }
 
+    @Test
+    public void updateClientWindowTest() throws UnknownHostException {
+        SessionHandler sessionHandler = spy(new SessionHandler(sessionManager, protector, vpnWriter, new ArrayList<>()));
+        TcpSession session = spy(new TcpSession(Inet4Address.getLocalHost(), 1234,
+                Inet4Address.getLocalHost(), 80, outputStream));
+        session.setSendWindowSizeAndScale(10, 2);
+        session.setSendUnack(1000);
+        session.setSendNext(1020);
+        assertTrue(session.isClientWindowFull());
+
+        // not an ack, nothing should change
+        TcpHeader tcpHeader = copyTcpHeader(testTcpHeader());
+        tcpHeader.setAckNumber(1020);
+        tcpHeader.setWindowSize(100);
+        sessionHandler.updateClientWindow(tcpHeader, session);
+        assertTrue(session.isClientWindowFull());
+        verify(session, never()).subscribeKey(SelectionKey.OP_READ);
+
+        // ack of part of the data opens the window back up, reading should resume
+        tcpHeader.setAck(true);
+        tcpHeader.setAckNumber(1010);
+        tcpHeader.setWindowSize(10);
+        sessionHandler.updateClientWindow(tcpHeader, session);
+        assertEquals(1010, session.getSendUnack());
+        assertEquals(10, session.getClientWindowAvailable());
+        verify(session, times(1)).subscribeKey(SelectionKey.OP_READ);
+
+        // client closes its window, reading should stay paused
+        tcpHeader.setAckNumber(1020);
+        tcpHeader.setWindowSize(0);
+        sessionHandler.updateClientWindow(tcpHeader, session);
+        assertTrue(session.isClientWindowFull());
+        verify(session, times(1)).subscribeKey(SelectionKey.OP_READ);
+    }
+
+    @Test
+    public void clampMaxSegmentSizeTest() throws UnknownHostException {
+        SessionHandler sessionHandler = new SessionHandler(sessionManager, protector, vpnWriter, new ArrayList<>());
+        Ip4Header ip4Header = copyIp4Header(testIp4Header());
+        Ip6Header ip6Header = copyIp6Header(testIp6Header());
+
+        // no tunnel, the client's mss fits as is
+        assertEquals(1460, sessionHandler.clampMaxSegmentSize(ip4Header, 1460));
+        assertEquals(1440, sessionHandler.clampMaxSegmentSize(ip6Header, 1440));
+
+        // tunnelled over udp, the outer headers come out of the segment
+        sessionHandler.setTunnelOverhead(Constants.TUNNEL_OVERHEAD_UDP_IP4);
+        assertEquals(1432, sessionHandler.clampMaxSegmentSize(ip4Header, 1460));
+        assertEquals(1412, sessionHandler.clampMaxSegmentSize(ip6Header, 1440));
+
+        // a smaller client mss is left alone, a missing one falls back to the protocol default
+        assertEquals(1000, sessionHandler.clampMaxSegmentSize(ip4Header, 1000));
+        assertEquals(Constants.DEFAULT_MSS_IP4, sessionHandler.clampMaxSegmentSize(ip4Header, -1));
+        assertEquals(Constants.DEFAULT_MSS_IP6, sessionHandler.clampMaxSegmentSize(ip6Header, -1));
+
+        // the probed path mtu is smaller than ethernet, but never clamp below the minimum
+        sessionHandler.setTunnelMtu(1400);
+        assertEquals(1332, sessionHandler.clampMaxSegmentSize(ip4Header, 1460));
+        sessionHandler.setTunnelMtu(500);
+        assertEquals(Constants.DEFAULT_MSS_IP4, sessionHandler.clampMaxSegmentSize(ip4Header, 1460));
+    }
+
+    @Test
+    public void handleIcmpPacketTest() throws PacketHeaderException, IOException {
+        SessionHandler sessionHandler = new SessionHandler(sessionManager, protector, vpnWriter, new ArrayList<>());
+        Ip4Header ip4Header = copyIp4Header(testIp4Header());
+        byte[] echo = new IcmpHeader(IcmpHeader.ECHO_REQUEST, (short) 0, 0, 0x12340001L).toByteArray();
+        byte[] packet = IpPacketFactory.encapsulate(ip4Header.getSourceAddress(),
+                ip4Header.getDestinationAddress(), TransportHeader.ICMP_PROTOCOL, echo);
+
+        // no echo proxy, so ping is dropped rather than treated as an unsupported protocol
+        sessionHandler.handlePacket(ByteBuffer.wrap(packet), outputStream);
+        verify(outputStream, never()).write(any(byte[].class));
+
+        // emulated, answered straight away
+        IcmpEchoProxy echoProxy = new IcmpEchoProxy();
+        echoProxy.setEmulate(true);
+        sessionHandler.setIcmpEchoProxy(echoProxy);
+        sessionHandler.handlePacket(ByteBuffer.wrap(packet), outputStream);
+        ArgumentCaptor<byte[]> captor = ArgumentCaptor.forClass(byte[].class);
+        verify(outputStream, times(1)).write(captor.capture());
+        ByteBuffer reply = ByteBuffer.wrap(captor.getValue());
+        Ip4Header replyIpHeader = Ip4Header.parseBuffer(reply);
+        IcmpHeader replyIcmpHeader = IcmpHeader.parseBuffer(reply);
+        assertEquals(ip4Header.getDestinationAddress(), replyIpHeader.getSourceAddress());
+        assertEquals(IcmpHeader.ECHO_REPLY, replyIcmpHeader.getType());
+        assertEquals(0x1234, replyIcmpHeader.getIdentifier());
+        assertEquals(1, replyIcmpHeader.getSequenceNumber());
+
+        // anything other than an echo request is dropped
+        byte[] unreachable = new IcmpHeader(IcmpHeader.DESTINATION_UNREACHABLE, (short) 3, 0, 0).toByteArray();
+        packet = IpPacketFactory.encapsulate(ip4Header.getSourceAddress(),
+                ip4Header.getDestinationAddress(), TransportHeader.ICMP_PROTOCOL, unreachable);
+        sessionHandler.handlePacket(ByteBuffer.wrap(packet), outputStream);
+        verify(outputStream, times(1)).write(any(byte[].class));
+        echoProxy.shutdown();
+    }
+
+    @Test
+    public void replySynAckUnreachableTest() throws PacketHeaderException, IOException {
+        TcpHeader tcpHeader = copyTcpHeader(testTcpHeader());
+        tcpHeader.setSyn(true);
+        SessionHandler sessionHandler = spy(new SessionHandler(sessionManager, protector, vpnWriter, new ArrayList<>()));
+        doReturn(null).when(sessionManager).getSessionByKey(anyString());
+        doReturn(null).when(sessionHandler).initAndConnectSocket(any(), any(), anyInt());
+        Ip4Header ip4Header = copyIp4Header(testIp4Header());
+
+        // the connect failed, so the client is told the host is unreachable rather than left to
+        // retransmit its SYN
+        sessionHandler.replySynAck(ip4Header, tcpHeader, outputStream);
+        ArgumentCaptor<byte[]> captor = ArgumentCaptor.forClass(byte[].class);
+        verify(outputStream, times(1)).write(captor.capture());
+        ByteBuffer error = ByteBuffer.wrap(captor.getValue());
+        Ip4Header errorIpHeader = Ip4Header.parseBuffer(error);
+        IcmpHeader errorIcmpHeader = IcmpHeader.parseBuffer(error);
+        assertEquals(TransportHeader.ICMP_PROTOCOL, errorIpHeader.getProtocol());
+        assertEquals(ip4Header.getSourceAddress(), errorIpHeader.getDestinationAddress());
+        assertEquals(IcmpHeader.DESTINATION_UNREACHABLE, errorIcmpHeader.getType());
+        assertEquals(IcmpHeader.HOST_UNREACHABLE, errorIcmpHeader.getCode());
+
+        // the quoted packet is the SYN
+        Ip4Header quotedIpHeader = Ip4Header.parseBuffer(error);
+        TcpHeader quotedTcpHeader = TcpHeader.parseBuffer(error);
+        assertEquals(ip4Header.getDestinationAddress(), quotedIpHeader.getDestinationAddress());
+        assertEquals(tcpHeader.getSourcePort(), quotedTcpHeader.getSourcePort());
+    }
+
+    @Test
+    public void replySynAckDeferredTest() throws IOException {
+        TcpHeader tcpHeader = copyTcpHeader(testTcpHeader());
+        SessionHandler sessionHandler = spy(new SessionHandler(sessionManager, protector, vpnWriter, new ArrayList<>()));
+        sessionHandler.setDeferSynAck(true);
+        sessionHandler.setConnectTimeout(50);
+        doReturn(new Object()).when(vpnWriter).getSyncSelector();
+        doReturn(new Object()).when(vpnWriter).getSyncSelector2();
+        doReturn(true).when(sessionManager).putSession(any());
+        SocketChannel socketChannel = mock(SocketChannel.class);
+        doReturn(socketChannel).when(sessionHandler).initAndConnectSocket(any(), any(), anyInt());
+        Ip4Header ip4Header = copyIp4Header(testIp4Header());
+
+        // the connect is still in progress, so the SYN-ACK is held back
+        sessionHandler.replySynAck(ip4Header, tcpHeader, outputStream);
+        verify(outputStream, never()).write(any());
+        ArgumentCaptor<TcpSession> captor = ArgumentCaptor.forClass(TcpSession.class);
+        verify(sessionManager, times(1)).putSession(captor.capture());
+        TcpSession session = captor.getValue();
+        assertEquals(tcpHeader, session.getLastTransportHeader());
+
+        // and the connect is failed if it doesn't complete in time
+        verify(vpnWriter, timeout(1000).times(1)).connectFailed(session, "timed out");
+
+        // connected straight away, the SYN-ACK goes out as usual and there's nothing to time out
+        clearInvocations(sessionManager, vpnWriter);
+        doAnswer(invocation -> {
+            ((Session) invocation.getArgument(0)).setConnected(true);
+            return socketChannel;
+        }).when(sessionHandler).initAndConnectSocket(any(), any(), anyInt());
+        sessionHandler.replySynAck(ip4Header, tcpHeader, outputStream);
+        verify(outputStream, times(1)).write(any());
+        verify(sessionManager, times(1)).putSession(captor.capture());
+        assertNull(captor.getValue().getConnectTimer());
+        sessionHandler.shutdown();
+    }
+
     // todo: assert on the session handler that the results we are getting back are actually valid
     // ie:) look at what is written into the stream and ensure:
     // - the syn ack has the correct ack #, the right flags are set, the checksum is correct, etc.
@@ -1,7 +1,9 @@
 package network.grape.lib.session;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -103,4 +105,16 @@ public class SessionManagerTest {
     Session session = mock(Session.class);
     sessionManager.keepAlive(session);
   }
+
+  @Test
+  public void halfOpenTest() {
+    assertTrue(sessionManager.tryHalfOpen(2));
+    assertTrue(sessionManager.tryHalfOpen(2));
+    assertFalse(sessionManager.tryHalfOpen(2));
+    assertEquals(2, sessionManager.getHalfOpenCount());
+
+    // room again once a connect completes
+    sessionManager.halfOpenSettled();
+    assertTrue(sessionManager.tryHalfOpen(2));
+  }
 }
@@ -1,27 +1,47 @@
 package network.grape.lib.session;
 
 import static network.grape.lib.network.ip.IpTestCommon.testIp4Header;
+import static network.grape.lib.transport.tcp.TcpPacketFactory.copyTcpHeader;
+import static network.grape.lib.transport.tcp.TcpTest.testTcpHeader;
 import static network.grape.lib.transport.udp.UdpTest.testUdpHeader;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import network.grape.lib.PacketHeaderException;
+import network.grape.lib.network.ip.Ip4Header;
 import network.grape.lib.network.ip.IpHeader;
 import network.grape.lib.session.Session;
 import network.grape.lib.session.SessionManager;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.tcp.TcpHeader;
 import network.grape.lib.transport.udp.UdpHeader;
+import network.grape.lib.transport.udp.UdpResponseTemplate;
+import network.grape.lib.util.UdpOutputStream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 /**
@@ -46,13 +66,19 @@ public class SessionOutputStreamReaderWorkerTest {
         Mockito.spy(new SessionOutputStreamReaderWorker(fileOutputStream, sessionKey, sessionManager));
   }
 
+  // a captor for a batch of packets, the class of a generic type can only be the raw one
+  @SuppressWarnings("unchecked")
+  private static ArgumentCaptor<List<byte[]>> packetsCaptor() {
+    return ArgumentCaptor.forClass(List.class);
+  }
+
   @Test
   public void runTest() {
     // null session
     socketDataReaderWorker.run();
 
     // found session, null channel
-    Session session = mock(Session.class);
+    TcpSession session = mock(TcpSession.class);
     doReturn(session).when(sessionManager).getSessionByKey(any());
     socketDataReaderWorker.run();
 
@@ -62,12 +88,14 @@ public class SessionOutputStreamReaderWorkerTest {
     socketDataReaderWorker.run();
 
     // found session, DatagramChannel
+    UdpSession udpSession = mock(UdpSession.class);
+    doReturn(udpSession).when(sessionManager).getSessionByKey(any());
     DatagramChannel datagramChannel = mock(DatagramChannel.class);
-    doReturn(datagramChannel).when(session).getChannel();
+    doReturn(datagramChannel).when(udpSession).getChannel();
     socketDataReaderWorker.run();
 
     // found session, Aborting
-    doReturn(true).when(session).isAbortingConnection();
+    doReturn(true).when(udpSession).isAbortingConnection();
     doNothing().when(socketDataReaderWorker).abortSession(any());
     socketDataReaderWorker.run();
   }
@@ -75,7 +103,7 @@ public class SessionOutputStreamReaderWorkerTest {
   @Test
   public void readUdpTest() throws IOException {
     DatagramChannel channel = mock(DatagramChannel.class);
-    Session session = mock(Session.class);
+    UdpSession session = mock(UdpSession.class);
     doReturn(channel).when(session).getChannel();
 
     // read with no data in the channel
@@ -83,17 +111,14 @@ public class SessionOutputStreamReaderWorkerTest {
 
     // read with data in the channel
     IpHeader lastIpHeader = testIp4Header();
-    doReturn(lastIpHeader).when(session).getLastIpHeader();
     UdpHeader lastUdpHeader = testUdpHeader();
-    doReturn(lastUdpHeader).when(session).getLastTransportHeader();
+    doReturn(new UdpResponseTemplate(lastIpHeader.getSourceAddress(),
+        lastUdpHeader.getSourcePort(), lastIpHeader.getDestinationAddress(),
+        lastUdpHeader.getDestinationPort())).when(session).getResponseTemplate();
     doReturn(10).doReturn(0).when(channel).read((ByteBuffer) any());
     socketDataReaderWorker.readUdp(session);
 
     // read, but fail constructing new packet
-    lastIpHeader = testIp4Header();
-    doReturn(lastIpHeader).when(session).getLastIpHeader();
-    lastUdpHeader = testUdpHeader();
-    doReturn(lastUdpHeader).when(session).getLastTransportHeader();
     doReturn(10).doReturn(0).when(channel).read((ByteBuffer) any());
     doReturn(false).when(socketDataReaderWorker).verifyPacketData(any());
     socketDataReaderWorker.readUdp(session);
@@ -111,6 +136,120 @@ public class SessionOutputStreamReaderWorkerTest {
     socketDataReaderWorker.readUdp(session);
   }
 
+  @Test
+  public void readTcpBatchTest() throws IOException, PacketHeaderException {
+    SocketChannel channel = mock(SocketChannel.class);
+    TcpSession session = spy(new TcpSession(InetAddress.getLocalHost(), 1234,
+        InetAddress.getLocalHost(), 80, fileOutputStream));
+    doReturn(channel).when(session).getChannel();
+    session.setLastIpHeader(testIp4Header());
+    session.setLastTransportHeader(testTcpHeader());
+    session.setMaxSegmentSize(1000);
+    session.setSendWindowSizeAndScale(65535, 1);
+
+    // one read of 2500 bytes turns into three segments with a single flush
+    doAnswer(invocation -> {
+      ByteBuffer buffer = invocation.getArgument(0);
+      buffer.put(new byte[2500]);
+      return 2500;
+    }).doReturn(0).when(channel).read((ByteBuffer) any());
+    socketDataReaderWorker.readTcp(session);
+    verify(fileOutputStream, times(3)).write(any(byte[].class));
+    verify(fileOutputStream, times(1)).flush();
+    assertEquals(2500, session.getBytesInFlight());
+
+    // a stream which can take the whole batch gets it in one call
+    UdpOutputStream udpOutputStream = mock(UdpOutputStream.class);
+    SessionOutputStreamReaderWorker batchWorker =
+        new SessionOutputStreamReaderWorker(udpOutputStream, sessionKey, sessionManager);
+    byte[] data = new byte[1500];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    doAnswer(invocation -> {
+      ByteBuffer buffer = invocation.getArgument(0);
+      buffer.put(data);
+      return 1500;
+    }).doReturn(0).when(channel).read((ByteBuffer) any());
+    batchWorker.readTcp(session);
+    ArgumentCaptor<List<byte[]>> captor = packetsCaptor();
+    verify(udpOutputStream, times(1)).writePackets(captor.capture());
+    assertEquals(2, captor.getValue().size());
+    verify(udpOutputStream, never()).flush();
+
+    // the data is split at the mss, in order, and only the segment which empties the read is
+    // pushed
+    ByteArrayOutputStream payloads = new ByteArrayOutputStream();
+    boolean[] psh = new boolean[2];
+    for (int i = 0; i < 2; i++) {
+      ByteBuffer packet = ByteBuffer.wrap(captor.getValue().get(i));
+      Ip4Header.parseBuffer(packet);
+      psh[i] = TcpHeader.parseBuffer(packet).isPsh();
+      payloads.write(packet.array(), packet.position(), packet.remaining());
+    }
+    assertArrayEquals(data, payloads.toByteArray());
+    assertFalse(psh[0]);
+    assertTrue(psh[1]);
+  }
+
+  @Test
+  public void readTcpSequenceWrapTest() throws IOException, PacketHeaderException {
+    SocketChannel channel = mock(SocketChannel.class);
+    TcpSession session = spy(new TcpSession(InetAddress.getLocalHost(), 1234,
+        InetAddress.getLocalHost(), 80, fileOutputStream));
+    doReturn(channel).when(session).getChannel();
+    session.setLastIpHeader(testIp4Header());
+    session.setLastTransportHeader(testTcpHeader());
+    session.setMaxSegmentSize(1000);
+    session.setSendWindowSizeAndScale(65535, 1);
+    // an initial sequence number just short of the wrap
+    session.setSendUnack(0xFFFFFF00L);
+    session.setSendNext(0xFFFFFF00L);
+
+    doAnswer(invocation -> {
+      ByteBuffer buffer = invocation.getArgument(0);
+      buffer.put(new byte[2500]);
+      return 2500;
+    }).doReturn(0).when(channel).read((ByteBuffer) any());
+    socketDataReaderWorker.readTcp(session);
+    ArgumentCaptor<byte[]> captor = ArgumentCaptor.forClass(byte[].class);
+    verify(fileOutputStream, times(3)).write(captor.capture());
+
+    // the segments carry the sequence numbers on either side of the wrap
+    long[] expected = {0xFFFFFF00L, (0xFFFFFF00L + 1000) & 0xFFFFFFFFL,
+        (0xFFFFFF00L + 2000) & 0xFFFFFFFFL};
+    for (int i = 0; i < 3; i++) {
+      ByteBuffer packet = ByteBuffer.wrap(captor.getAllValues().get(i));
+      Ip4Header.parseBuffer(packet);
+      assertEquals(expected[i], TcpHeader.parseBuffer(packet).getSequenceNumber());
+    }
+    assertEquals((0xFFFFFF00L + 2500) & 0xFFFFFFFFL, session.getSendNext());
+    assertEquals(2500, session.getBytesInFlight());
+
+    // the client's wrapped ack moves sendUnack on, and frees the window
+    SessionHandler handler = new SessionHandler(sessionManager, null, null, new ArrayList<>());
+    TcpHeader ack = copyTcpHeader(testTcpHeader());
+    ack.setAck(true);
+    ack.setWindowSize(65535);
+    ack.setAckNumber((0xFFFFFF00L + 2000) & 0xFFFFFFFFL);
+    handler.acceptAck(ack, session);
+    assertTrue(session.isAcked());
+    assertEquals((0xFFFFFF00L + 2000) & 0xFFFFFFFFL, session.getSendUnack());
+    assertEquals(500, session.getBytesInFlight());
+
+    // an ack for data which hasn't been sent is ignored
+    ack.setAckNumber((0xFFFFFF00L + 3000) & 0xFFFFFFFFL);
+    handler.acceptAck(ack, session);
+    assertFalse(session.isAcked());
+    assertEquals(500, session.getBytesInFlight());
+
+    // and so is an old one from before the wrap
+    ack.setAckNumber(0xFFFFFF10L);
+    handler.acceptAck(ack, session);
+    assertFalse(session.isAcked());
+    assertEquals(500, session.getBytesInFlight());
+  }
+
   @Test
   public void testVerifyBadPacket() {
     assertFalse(socketDataReaderWorker.verifyPacketData(new byte[0]));
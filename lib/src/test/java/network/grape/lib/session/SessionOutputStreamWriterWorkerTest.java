@@ -1,22 +1,37 @@
 package network.grape.lib.session;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.PortUnreachableException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SocketChannel;
+import network.grape.lib.PacketHeaderException;
+import network.grape.lib.network.ip.Ip4Header;
+import network.grape.lib.network.ip.IpTestCommon;
 import network.grape.lib.session.Session;
 import network.grape.lib.session.SessionManager;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.icmp.IcmpHeader;
+import network.grape.lib.transport.udp.UdpTest;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Spy;
 
 /**
@@ -47,7 +62,7 @@ public class SessionOutputStreamWriterWorkerTest {
     socketDataWriterWorker.run();
 
     // found session, null channel
-    Session session = mock(Session.class);
+    TcpSession session = mock(TcpSession.class);
     doReturn(session).when(sessionManager).getSessionByKey(any());
     socketDataWriterWorker.run();
 
@@ -71,7 +86,7 @@ public class SessionOutputStreamWriterWorkerTest {
   }
 
   @Test
-  public void writeUdpTest() throws IOException {
+  public void writeUdpTest() throws IOException, PacketHeaderException {
     // no data to write
     Session session = mock(Session.class);
     socketDataWriterWorker.writeUdp(session);
@@ -80,8 +95,16 @@ public class SessionOutputStreamWriterWorkerTest {
     doReturn(true).when(session).hasDataToSend();
     DatagramChannel datagramChannel = mock(DatagramChannel.class);
     doReturn(datagramChannel).when(session).getChannel();
-    doReturn(new byte[0]).when(session).getSendingData();
+    doReturn(ByteBuffer.allocate(10)).doReturn(null).when(session).peekSendingBuffer();
+    doReturn(10).when(datagramChannel).write((ByteBuffer) any());
+    socketDataWriterWorker.writeUdp(session);
+    verify(session, times(1)).consumeSendingData(10);
+
+    // socket buffer full, nothing should be consumed
+    doReturn(ByteBuffer.allocate(10)).when(session).peekSendingBuffer();
+    doReturn(0).when(datagramChannel).write((ByteBuffer) any());
     socketDataWriterWorker.writeUdp(session);
+    verify(session, times(1)).consumeSendingData(anyLong());
 
     // data to write, not yet connected on write
     doThrow(NotYetConnectedException.class).when(datagramChannel).write((ByteBuffer) any());
@@ -90,5 +113,52 @@ public class SessionOutputStreamWriterWorkerTest {
     // data to write, IO exception on write
     doThrow(IOException.class).when(datagramChannel).write((ByteBuffer) any());
     socketDataWriterWorker.writeUdp(session);
+
+    // the remote end refused it, the client gets a port unreachable straight away
+    doReturn(IpTestCommon.testIp4Header()).when(session).getLastIpHeader();
+    doReturn(UdpTest.testUdpHeader()).when(session).getLastTransportHeader();
+    doThrow(PortUnreachableException.class).when(datagramChannel).write((ByteBuffer) any());
+    socketDataWriterWorker.writeUdp(session);
+    ArgumentCaptor<byte[]> captor = ArgumentCaptor.forClass(byte[].class);
+    verify(fileOutputStream, times(1)).write(captor.capture());
+    ByteBuffer error = ByteBuffer.wrap(captor.getValue());
+    Ip4Header.parseBuffer(error);
+    IcmpHeader icmpHeader = IcmpHeader.parseBuffer(error);
+    assertEquals(IcmpHeader.DESTINATION_UNREACHABLE, icmpHeader.getType());
+    assertEquals(IcmpHeader.PORT_UNREACHABLE, icmpHeader.getCode());
+  }
+
+  @Test
+  public void writeTcpPartialTest() throws IOException {
+    TcpSession session = new TcpSession(InetAddress.getLoopbackAddress(), 9999,
+        InetAddress.getLoopbackAddress(), 80, fileOutputStream);
+    session.appendOutboundData(ByteBuffer.wrap(new byte[100]));
+    session.appendOutboundData(ByteBuffer.wrap(new byte[50]));
+    SocketChannel socketChannel = mock(SocketChannel.class);
+    session.setChannel(socketChannel);
+
+    // the socket only takes part of the first slice, then its send buffer is full
+    doAnswer(invocation -> {
+      ByteBuffer[] buffers = invocation.getArgument(0);
+      buffers[0].position(buffers[0].position() + 60);
+      return 60L;
+    }).doReturn(0L).when(socketChannel).write(any(ByteBuffer[].class));
+    socketDataWriterWorker.writeTcp(session);
+    assertEquals(90, session.getSendingDataSize());
+    assertEquals(2, session.getSendingBuffers().length);
+
+    // next time its writable everything goes out
+    doAnswer(invocation -> {
+      ByteBuffer[] buffers = invocation.getArgument(0);
+      long total = 0;
+      for (ByteBuffer buffer : buffers) {
+        total += buffer.remaining();
+        buffer.position(buffer.limit());
+      }
+      return total;
+    }).when(socketChannel).write(any(ByteBuffer[].class));
+    socketDataWriterWorker.writeTcp(session);
+    assertEquals(0, session.getSendingDataSize());
+    assertFalse(session.hasDataToSend());
   }
 }
@@ -8,12 +8,20 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
 
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.concurrent.ThreadPoolExecutor;
 
+import network.grape.lib.network.ip.Ip4Header;
+import network.grape.lib.network.ip.Ip6Header;
+import network.grape.lib.network.ip.IpHeader;
 import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.udp.UdpHeader;
 import network.grape.lib.util.Constants;
 
 import org.junit.jupiter.api.BeforeEach;
@@ -34,8 +42,7 @@ public class SessionTest {
   @Test
   public void appendDataGetDataTest() throws UnknownHostException {
     Session session =
-        new Session(InetAddress.getLocalHost(), 9999, InetAddress.getLocalHost(), 8888,
-            TransportHeader.UDP_PROTOCOL, outputStream);
+        new UdpSession(InetAddress.getLocalHost(), 9999, InetAddress.getLocalHost(), 8888, outputStream);
 
     byte[] rawdata = testIp4Header().toByteArray();
     ByteBuffer buffer = ByteBuffer.allocate(rawdata.length);
@@ -52,30 +59,133 @@ public class SessionTest {
 
   @Test
   public void recieveDataTest() throws UnknownHostException {
-    Session session = new Session(InetAddress.getLocalHost(), 9999,
-        InetAddress.getLocalHost(), 8888, TransportHeader.TCP_PROTOCOL, outputStream);
+    TcpSession session = new TcpSession(InetAddress.getLocalHost(), 9999,
+        InetAddress.getLocalHost(), 8888, outputStream);
 
     session.setSendWindowSizeAndScale(1, 1);
     assertFalse(session.isClientWindowFull());
-    assertFalse(session.hasReceivedData());
 
-    session.addReceivedData("test".getBytes());
-    assertTrue(session.hasReceivedData());
-
-
-    session.trackAmountSentSinceLastAck(10);
+    // one byte in flight fills a window of one
+    session.setSendUnack(100);
+    session.setSendNext(101);
+    assertEquals(1, session.getBytesInFlight());
     assertTrue(session.isClientWindowFull());
-    session.decreaseAmountSentSinceLastAck(1);
-    session.decreaseAmountSentSinceLastAck(10);
+    session.setSendUnack(101);
+    assertFalse(session.isClientWindowFull());
+
+    // zero window means the client doesn't want anything right now
     session.setSendWindowSizeAndScale(0, 1);
-    session.trackAmountSentSinceLastAck(Constants.MAX_RECEIVE_BUFFER_SIZE + 2);
     assertTrue(session.isClientWindowFull());
 
-    byte[] recv = session.getReceivedData("test".getBytes().length);
-    assertArrayEquals("test".getBytes(), recv);
+    // scaled window, in flight across the 32-bit sequence wrap
+    session.setSendWindowSizeAndScale(10, 4);
+    session.setSendUnack(0xFFFFFFF0L);
+    session.setSendNext(0x100000010L);
+    assertEquals(32, session.getBytesInFlight());
+    assertEquals(8, session.getClientWindowAvailable());
+    assertFalse(session.isClientWindowFull());
+  }
+
+  @Test
+  public void udpSessionHeadersTest() throws UnknownHostException {
+    InetAddress client = InetAddress.getByName("10.0.0.2");
+    InetAddress destination = InetAddress.getByName("8.8.8.8");
+    UdpSession session = new UdpSession(client, 5000, destination, 53, outputStream);
+    assertEquals(TransportHeader.UDP_PROTOCOL, session.getProtocol());
+    assertFalse(session.isClientWindowFull());
 
-    session.addReceivedData("blah".getBytes());
-    recv = session.getReceivedData(2);
-    assertArrayEquals("bl".getBytes(), recv);
+    // the headers for replies come from the session itself, the client's way around
+    IpHeader ipHeader = session.getLastIpHeader();
+    assertTrue(ipHeader instanceof Ip4Header);
+    assertEquals(client, ipHeader.getSourceAddress());
+    assertEquals(destination, ipHeader.getDestinationAddress());
+    assertEquals(TransportHeader.UDP_PROTOCOL, ipHeader.getProtocol());
+    UdpHeader udpHeader = (UdpHeader) session.getLastTransportHeader();
+    assertEquals(5000, udpHeader.getSourcePort());
+    assertEquals(53, udpHeader.getDestinationPort());
+
+    InetAddress client6 = InetAddress.getByName("fd00::2");
+    InetAddress destination6 = InetAddress.getByName("2001:4860:4860::8888");
+    session = new UdpSession(client6, 5000, destination6, 53, outputStream);
+    assertTrue(session.getLastIpHeader() instanceof Ip6Header);
+  }
+
+  @Test
+  public void subscribeUnsubscribeKeyTest() throws IOException {
+    Session session = new UdpSession(InetAddress.getLocalHost(), 9999,
+        InetAddress.getLocalHost(), 8888, outputStream);
+
+    // no key yet, should be a no-op
+    session.subscribeKey(SelectionKey.OP_WRITE);
+    session.unsubscribeKey(SelectionKey.OP_WRITE);
+
+    Selector selector = Selector.open();
+    DatagramChannel channel = DatagramChannel.open();
+    channel.configureBlocking(false);
+    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+    session.setSelectionKey(key);
+
+    session.subscribeKey(SelectionKey.OP_WRITE);
+    assertEquals(SelectionKey.OP_READ | SelectionKey.OP_WRITE, key.interestOps());
+    session.unsubscribeKey(SelectionKey.OP_WRITE);
+    assertEquals(SelectionKey.OP_READ, key.interestOps());
+    session.unsubscribeKey(SelectionKey.OP_READ);
+    assertEquals(0, key.interestOps());
+
+    // cancelled keys should be ignored
+    key.cancel();
+    session.subscribeKey(SelectionKey.OP_READ);
+    session.unsubscribeKey(SelectionKey.OP_READ);
+
+    channel.close();
+    selector.close();
+  }
+
+  @Test
+  public void outboundQueueTest() throws UnknownHostException {
+    TcpSession session = new TcpSession(InetAddress.getLocalHost(), 9999,
+        InetAddress.getLocalHost(), 8888, outputStream);
+
+    session.appendOutboundData(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+    session.appendOutboundData(ByteBuffer.wrap(new byte[] {4, 5}));
+    assertEquals(5, session.getSendingDataSize());
+
+    // partial write of the first slice
+    ByteBuffer[] buffers = session.getSendingBuffers();
+    assertEquals(2, buffers.length);
+    buffers[0].get();
+    buffers[0].get();
+    session.consumeSendingData(2);
+    assertEquals(3, session.getSendingDataSize());
+    assertEquals(2, session.getSendingBuffers().length);
+
+    // finish the first slice, it should get dropped from the queue
+    session.peekSendingBuffer().get();
+    session.consumeSendingData(1);
+    assertEquals(1, session.getSendingBuffers().length);
+    assertArrayEquals(new byte[] {4, 5}, session.getSendingData());
+    assertFalse(session.hasDataToSend());
+    assertEquals(null, session.peekSendingBuffer());
+  }
+
+  @Test
+  public void advertiseReceiveWindowTest() throws UnknownHostException {
+    TcpSession session = new TcpSession(InetAddress.getLocalHost(), 9999,
+        InetAddress.getLocalHost(), 8888, outputStream);
+    assertEquals(Constants.MAX_RECEIVE_BUFFER_SIZE, session.advertiseReceiveWindow());
+    assertFalse(session.isReceiveWindowUpdateNeeded());
+
+    // the window shrinks as the outbound queue grows
+    session.appendOutboundData(ByteBuffer.wrap(new byte[Constants.MAX_RECEIVE_BUFFER_SIZE - 100]));
+    assertEquals(100, session.advertiseReceiveWindow());
+    session.setReceiveWindowScale(2);
+    assertEquals(25, session.advertiseReceiveWindow());
+    assertFalse(session.isReceiveWindowUpdateNeeded());
+
+    // once drained the client should be told about it
+    session.getSendingData();
+    assertTrue(session.isReceiveWindowUpdateNeeded());
+    assertEquals(Constants.MAX_RECEIVE_BUFFER_SIZE >> 2, session.advertiseReceiveWindow());
+    assertFalse(session.isReceiveWindowUpdateNeeded());
   }
 }
@@ -0,0 +1,184 @@
+package network.grape.lib.session;
+
+import static network.grape.lib.transport.TransportHeader.UDP_PROTOCOL;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import network.grape.lib.PacketHeaderException;
+import network.grape.lib.network.ip.Ip4Header;
+import network.grape.lib.network.ip.IpPacketFactory;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.udp.UdpHeader;
+import network.grape.lib.transport.udp.UdpPacketFactory;
+import network.grape.lib.vpn.SocketProtector;
+import network.grape.lib.vpn.VpnWriter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Tests for UDP flows sharing a channel per client socket.
+ */
+public class UdpNatBindingTest {
+  private InetAddress loopback;
+  private final List<byte[]> toClient = Collections.synchronizedList(new ArrayList<>());
+  private final OutputStream outputStream = new OutputStream() {
+    @Override
+    public void write(int b) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void write(byte[] data) {
+      toClient.add(data);
+    }
+  };
+  private Selector selector;
+  private SessionManager sessionManager;
+  private SessionHandler sessionHandler;
+  private DatagramSocket server1;
+  private DatagramSocket server2;
+
+  /**
+   * Set up a handler in nat mode, and two servers on loopback for the client to talk to.
+   */
+  @BeforeEach
+  public void init() throws IOException {
+    // no host name, so it matches the addresses parsed out of the packets in the session keys
+    loopback = InetAddress.getByAddress(new byte[] {127, 0, 0, 1});
+    selector = Selector.open();
+    sessionManager = new SessionManager(new ConcurrentHashMap<>(), selector);
+    VpnWriter vpnWriter = mock(VpnWriter.class);
+    doReturn(new Object()).when(vpnWriter).getSyncSelector();
+    doReturn(new Object()).when(vpnWriter).getSyncSelector2();
+    sessionHandler = new SessionHandler(sessionManager, mock(SocketProtector.class), vpnWriter,
+        new ArrayList<>());
+    sessionHandler.setUdpNatEnabled(true);
+    server1 = new DatagramSocket(0, loopback);
+    server2 = new DatagramSocket(0, loopback);
+    server1.setSoTimeout(5000);
+    server2.setSoTimeout(5000);
+  }
+
+  @AfterEach
+  public void cleanup() throws IOException {
+    server1.close();
+    server2.close();
+    selector.close();
+  }
+
+  @Timeout(20)
+  @Test
+  public void sharedChannelTest() throws IOException, PacketHeaderException,
+      InterruptedException {
+    // one client socket talking to two servers
+    sendFromClient(5000, server1.getLocalPort(), "one");
+    sendFromClient(5000, server2.getLocalPort(), "two");
+    // and another client socket, which gets a channel of its own
+    sendFromClient(5001, server1.getLocalPort(), "three");
+
+    Session session1 = sessionManager.getSession(loopback, 5000, loopback,
+        server1.getLocalPort(), TransportHeader.UDP_PROTOCOL);
+    Session session2 = sessionManager.getSession(loopback, 5000, loopback,
+        server2.getLocalPort(), TransportHeader.UDP_PROTOCOL);
+    Session session3 = sessionManager.getSession(loopback, 5001, loopback,
+        server1.getLocalPort(), TransportHeader.UDP_PROTOCOL);
+    UdpNatBinding binding = sessionManager.getUdpNatBinding(loopback, 5000);
+    assertNotNull(binding);
+    assertSame(binding, session1.getUdpNatBinding());
+    assertSame(binding, session2.getUdpNatBinding());
+    assertSame(session1.getChannel(), session2.getChannel());
+    assertSame(session1.getSelectionKey(), session2.getSelectionKey());
+    assertFalse(session1.getChannel() == session3.getChannel());
+    assertEquals(2, binding.getSessions().size());
+
+    // both flows go out of the same local port
+    new SessionOutputStreamWriterWorker(outputStream, session1.getKey(), sessionManager).run();
+    new SessionOutputStreamWriterWorker(outputStream, session2.getKey(), sessionManager).run();
+    DatagramPacket received1 = receive(server1, "one");
+    DatagramPacket received2 = receive(server2, "two");
+    assertEquals(received1.getPort(), received2.getPort());
+
+    // replies are sorted back into the right session, anyone else is dropped
+    server2.send(new DatagramPacket("two-reply".getBytes(), 9, received2.getSocketAddress()));
+    server1.send(new DatagramPacket("one-reply".getBytes(), 9, received1.getSocketAddress()));
+    try (DatagramSocket stranger = new DatagramSocket(0, loopback)) {
+      stranger.send(new DatagramPacket("nope".getBytes(), 4, received1.getSocketAddress()));
+    }
+    UdpNatReaderWorker readerWorker = new UdpNatReaderWorker(binding);
+    for (int i = 0; i < 100 && toClient.size() < 2; i++) {
+      Thread.sleep(10);
+      readerWorker.run();
+    }
+    Thread.sleep(50);
+    readerWorker.run();
+    assertEquals(2, toClient.size());
+    assertReply(toClient.get(0), server2.getLocalPort(), "two-reply");
+    assertReply(toClient.get(1), server1.getLocalPort(), "one-reply");
+
+    // the channel stays open until the last flow using it is closed
+    sessionManager.closeSession(session1);
+    assertTrue(binding.getChannel().isOpen());
+    assertNotNull(sessionManager.getUdpNatBinding(loopback, 5000));
+    sessionManager.closeSession(session2);
+    assertFalse(binding.getChannel().isOpen());
+    assertNull(sessionManager.getUdpNatBinding(loopback, 5000));
+  }
+
+  private void sendFromClient(int sourcePort, int destinationPort, String data)
+      throws PacketHeaderException, IOException {
+    byte[] udpPacket = UdpPacketFactory.encapsulate(loopback, loopback, sourcePort,
+        destinationPort, data.getBytes());
+    byte[] ipPacket = IpPacketFactory.encapsulate(loopback, loopback, UDP_PROTOCOL, udpPacket);
+    sessionHandler.handlePacket(ByteBuffer.wrap(ipPacket), outputStream);
+  }
+
+  private DatagramPacket receive(DatagramSocket server, String expected) throws IOException {
+    DatagramPacket packet = new DatagramPacket(new byte[100], 100);
+    server.receive(packet);
+    assertEquals(expected, new String(packet.getData(), 0, packet.getLength()));
+    return packet;
+  }
+
+  private void assertReply(byte[] packet, int sourcePort, String expected)
+      throws PacketHeaderException, IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(packet);
+    Ip4Header ipHeader = Ip4Header.parseBuffer(buffer);
+    UdpHeader udpHeader = UdpHeader.parseBuffer(buffer);
+    assertEquals(loopback, ipHeader.getSourceAddress());
+    assertEquals(sourcePort, udpHeader.getSourcePort());
+    assertEquals(5000, udpHeader.getDestinationPort());
+    assertEquals(expected, new String(packet, buffer.position(), buffer.remaining()));
+  }
+
+  @Test
+  public void sessionLookupTest() throws IOException {
+    UdpNatBinding binding = new UdpNatBinding(loopback, 5000, null);
+    Session session = new UdpSession(loopback, 5000, loopback, 53,
+        outputStream);
+    binding.addSession(session);
+    assertSame(session, binding.getSession(new InetSocketAddress(loopback, 53)));
+    assertNull(binding.getSession(new InetSocketAddress(loopback, 54)));
+    assertTrue(binding.removeSession(session));
+    assertNull(binding.getSession(new InetSocketAddress(loopback, 53)));
+  }
+}
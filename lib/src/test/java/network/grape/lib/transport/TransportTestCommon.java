@@ -0,0 +1,39 @@
+package network.grape.lib.transport;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import network.grape.lib.util.PacketUtil;
+
+/**
+ * Checks shared by the tests of the response templates.
+ */
+public class TransportTestCommon {
+
+  /**
+   * Checks the transport checksum of a packet made from a template is right, by working it out
+   * over the whole segment with its pseudo header.
+   *
+   * @param packet         the packet made from the template
+   * @param ipHeaderLength the length of the ip header at the start of the packet
+   * @param source         the source address of the packet
+   * @param destination    the destination address of the packet
+   * @param protocol       the transport protocol
+   */
+  public static void assertTransportChecksum(byte[] packet, int ipHeaderLength, InetAddress source,
+                                             InetAddress destination, byte protocol) {
+    int length = packet.length - ipHeaderLength;
+    byte[] sourceAddress = source.getAddress();
+    byte[] destinationAddress = destination.getAddress();
+    // laid out like the ip6 pseudo header, which sums the same as the ip4 one
+    ByteBuffer pseudoHeader = ByteBuffer.allocate(sourceAddress.length * 2 + 8 + length);
+    pseudoHeader.put(sourceAddress);
+    pseudoHeader.put(destinationAddress);
+    pseudoHeader.putInt(length);
+    pseudoHeader.putInt(protocol);
+    pseudoHeader.put(packet, ipHeaderLength, length);
+    byte[] buffer = pseudoHeader.array();
+    assertArrayEquals(new byte[] {0, 0}, PacketUtil.calculateChecksum(buffer, 0, buffer.length));
+  }
+}
@@ -0,0 +1,116 @@
+package network.grape.lib.transport.icmp;
+
+import static network.grape.lib.network.ip.IpTestCommon.testIp4Header;
+import static network.grape.lib.network.ip.IpTestCommon.testIp6Header;
+import static network.grape.lib.transport.icmp.IcmpTest.testIcmpHeader;
+import static network.grape.lib.transport.udp.UdpTest.testUdpHeader;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import network.grape.lib.PacketHeaderException;
+import network.grape.lib.network.ip.Ip4Header;
+import network.grape.lib.network.ip.Ip6Header;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.udp.UdpHeader;
+import network.grape.lib.util.PacketUtil;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the IcmpPacketFactory class.
+ */
+public class IcmpFactoryTest {
+
+  @Test
+  public void echoReplyIp4() throws UnknownHostException, PacketHeaderException {
+    Ip4Header ip4Header = testIp4Header();
+    byte[] data = "ping".getBytes();
+
+    byte[] reply = IcmpPacketFactory.createEchoReplyData(ip4Header, testIcmpHeader(), data);
+
+    ByteBuffer buffer = ByteBuffer.wrap(reply);
+    Ip4Header replyIpHeader = Ip4Header.parseBuffer(buffer);
+    int icmpStart = buffer.position();
+    IcmpHeader replyIcmpHeader = IcmpHeader.parseBuffer(buffer);
+    assertEquals(ip4Header.getSourceAddress(), replyIpHeader.getDestinationAddress());
+    assertEquals(ip4Header.getDestinationAddress(), replyIpHeader.getSourceAddress());
+    assertEquals(TransportHeader.ICMP_PROTOCOL, replyIpHeader.getProtocol());
+    assertEquals(reply.length, replyIpHeader.getLength());
+    assertEquals(IcmpHeader.ECHO_REPLY, replyIcmpHeader.getType());
+    assertEquals(0xBEEF, replyIcmpHeader.getIdentifier());
+    assertEquals(7, replyIcmpHeader.getSequenceNumber());
+    byte[] replyData = new byte[buffer.remaining()];
+    buffer.get(replyData);
+    assertArrayEquals(data, replyData);
+
+    // a correct checksum sums to zero over the whole message
+    byte[] icmpData = new byte[reply.length - icmpStart];
+    System.arraycopy(reply, icmpStart, icmpData, 0, icmpData.length);
+    assertArrayEquals(new byte[2], PacketUtil.calculateChecksum(icmpData, 0, icmpData.length));
+  }
+
+  @Test
+  public void echoReplyIp6() throws UnknownHostException, PacketHeaderException {
+    Ip6Header ip6Header = testIp6Header();
+    byte[] data = "ping6".getBytes();
+
+    byte[] reply = IcmpPacketFactory.createEchoReplyData(ip6Header, testIcmpHeader(), data);
+
+    ByteBuffer buffer = ByteBuffer.wrap(reply);
+    Ip6Header replyIpHeader = Ip6Header.parseBuffer(buffer);
+    IcmpHeader replyIcmpHeader = IcmpHeader.parseBuffer(buffer);
+    assertEquals(ip6Header.getSourceAddress(), replyIpHeader.getDestinationAddress());
+    assertEquals(TransportHeader.ICMP6_PROTOCOL, replyIpHeader.getProtocol());
+    assertEquals(IcmpHeader.ECHO_REPLY_V6, replyIcmpHeader.getType());
+
+    // ICMPv6 checksums cover the pseudo header too
+    int icmpLength = reply.length - 40;
+    ByteBuffer pseudoHeader = ByteBuffer.allocate(40 + icmpLength);
+    pseudoHeader.put(replyIpHeader.getSourceAddress().getAddress());
+    pseudoHeader.put(replyIpHeader.getDestinationAddress().getAddress());
+    pseudoHeader.putInt(icmpLength);
+    pseudoHeader.putInt(TransportHeader.ICMP6_PROTOCOL);
+    pseudoHeader.put(reply, 40, icmpLength);
+    byte[] pseudoHeaderData = pseudoHeader.array();
+    assertArrayEquals(new byte[2],
+        PacketUtil.calculateChecksum(pseudoHeaderData, 0, pseudoHeaderData.length));
+  }
+
+  @Test
+  public void portUnreachableIp4() throws UnknownHostException, PacketHeaderException {
+    Ip4Header ip4Header = testIp4Header();
+    UdpHeader udpHeader = testUdpHeader();
+
+    byte[] error = IcmpPacketFactory.createUnreachableData(ip4Header, udpHeader, true);
+
+    ByteBuffer buffer = ByteBuffer.wrap(error);
+    Ip4Header errorIpHeader = Ip4Header.parseBuffer(buffer);
+    IcmpHeader errorIcmpHeader = IcmpHeader.parseBuffer(buffer);
+    assertEquals(ip4Header.getDestinationAddress(), errorIpHeader.getSourceAddress());
+    assertEquals(IcmpHeader.DESTINATION_UNREACHABLE, errorIcmpHeader.getType());
+    assertEquals(IcmpHeader.PORT_UNREACHABLE, errorIcmpHeader.getCode());
+
+    // the offending packet is quoted so the client can match it to the socket
+    Ip4Header quotedIpHeader = Ip4Header.parseBuffer(buffer);
+    UdpHeader quotedUdpHeader = UdpHeader.parseBuffer(buffer);
+    assertEquals(ip4Header.getSourceAddress(), quotedIpHeader.getSourceAddress());
+    assertEquals(udpHeader, quotedUdpHeader);
+    assertEquals(0, buffer.remaining());
+  }
+
+  @Test
+  public void hostUnreachableIp6() throws UnknownHostException, PacketHeaderException {
+    Ip6Header ip6Header = testIp6Header();
+
+    byte[] error = IcmpPacketFactory.createUnreachableData(ip6Header, testUdpHeader(), false);
+
+    ByteBuffer buffer = ByteBuffer.wrap(error);
+    Ip6Header errorIpHeader = Ip6Header.parseBuffer(buffer);
+    IcmpHeader errorIcmpHeader = IcmpHeader.parseBuffer(buffer);
+    assertEquals(ip6Header.getDestinationAddress(), errorIpHeader.getSourceAddress());
+    assertEquals(IcmpHeader.DESTINATION_UNREACHABLE_V6, errorIcmpHeader.getType());
+    assertEquals(IcmpHeader.ADDRESS_UNREACHABLE_V6, errorIcmpHeader.getCode());
+    assertEquals(error.length - 40, errorIpHeader.getPayloadLength());
+  }
+}
@@ -0,0 +1,78 @@
+package network.grape.lib.transport.icmp;
+
+import static network.grape.lib.network.ip.IpTestCommon.testIp4Header;
+import static network.grape.lib.network.ip.IpTestCommon.testIp6Header;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import network.grape.lib.PacketHeaderException;
+import network.grape.lib.network.ip.Ip4Header;
+import network.grape.lib.network.ip.Ip6Header;
+import network.grape.lib.network.ip.IpPacketFactory;
+import network.grape.lib.transport.TransportHeader;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test the IcmpHeader class.
+ */
+public class IcmpTest {
+
+  public static IcmpHeader testIcmpHeader() {
+    return new IcmpHeader(IcmpHeader.ECHO_REQUEST, (short) 0, 0x1234, 0xBEEF0007L);
+  }
+
+  @Test
+  public void serialDeserialize() throws PacketHeaderException {
+    IcmpHeader icmpHeader = testIcmpHeader();
+    byte[] buf = icmpHeader.toByteArray();
+    ByteBuffer buffer = ByteBuffer.allocate(buf.length);
+    buffer.put(buf);
+    buffer.rewind();
+
+    IcmpHeader icmpHeader1 = IcmpHeader.parseBuffer(buffer);
+
+    assertEquals(icmpHeader, icmpHeader1);
+  }
+
+  @Test
+  public void underflow() {
+    ByteBuffer buf = ByteBuffer.allocate(4);
+    assertThrows(PacketHeaderException.class, () -> {
+      IcmpHeader.parseBuffer(buf);
+    });
+  }
+
+  @Test
+  public void echoFieldsTest() {
+    IcmpHeader icmpHeader = testIcmpHeader();
+    assertTrue(icmpHeader.isEchoRequest());
+    assertEquals(0xBEEF, icmpHeader.getIdentifier());
+    assertEquals(7, icmpHeader.getSequenceNumber());
+    // the identifier stands in for the port
+    assertEquals(0xBEEF, icmpHeader.getSourcePort());
+    assertEquals(0xBEEF, icmpHeader.getDestinationPort());
+    assertEquals(TransportHeader.ICMP_HEADER_LEN, icmpHeader.getHeaderLength());
+
+    assertFalse(new IcmpHeader(IcmpHeader.ECHO_REPLY, (short) 0, 0, 0).isEchoRequest());
+    assertTrue(new IcmpHeader(IcmpHeader.ECHO_REQUEST_V6, (short) 0, 0, 0).isEchoRequest());
+  }
+
+  @Test
+  public void isIcmpTest() throws UnknownHostException {
+    Ip4Header ip4Header = IpPacketFactory.copyIp4Header(testIp4Header());
+    ip4Header.setProtocol(TransportHeader.ICMP_PROTOCOL);
+    assertTrue(IcmpHeader.isIcmp(ip4Header));
+    ip4Header.setProtocol(TransportHeader.ICMP6_PROTOCOL);
+    assertFalse(IcmpHeader.isIcmp(ip4Header));
+
+    Ip6Header ip6Header = IpPacketFactory.copyIp6Header(testIp6Header());
+    ip6Header.setProtocol(TransportHeader.ICMP6_PROTOCOL);
+    assertTrue(IcmpHeader.isIcmp(ip6Header));
+    ip6Header.setProtocol(TransportHeader.ICMP_PROTOCOL);
+    assertFalse(IcmpHeader.isIcmp(ip6Header));
+  }
+}
@@ -0,0 +1,103 @@
+package network.grape.lib.transport.tcp;
+
+import static network.grape.lib.network.ip.IpPacketFactory.copyIp4Header;
+import static network.grape.lib.network.ip.IpTestCommon.testIp4Header;
+import static network.grape.lib.network.ip.IpTestCommon.testIp6Header;
+import static network.grape.lib.transport.tcp.TcpPacketFactory.copyTcpHeader;
+import static network.grape.lib.transport.tcp.TcpTest.testTcpHeader;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.UnknownHostException;
+import network.grape.lib.network.ip.Ip4Header;
+import network.grape.lib.network.ip.IpHeader;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the SynCookies class.
+ */
+public class SynCookiesTest {
+
+  static class TestCookies extends SynCookies {
+    long time = 1000000000L;
+
+    @Override
+    protected long now() {
+      return time;
+    }
+  }
+
+  /**
+   * The final ACK of the handshake the client would send for a SYN-ACK with the cookie.
+   */
+  static TcpHeader finalAck(TcpHeader syn, long cookie) {
+    TcpHeader ack = copyTcpHeader(syn);
+    ack.setSyn(false);
+    ack.setAck(true);
+    ack.setSequenceNumber(syn.getSequenceNumber() + 1);
+    ack.setAckNumber((cookie + 1) & 0xFFFFFFFFL);
+    return ack;
+  }
+
+  @Test
+  public void roundTrip() throws UnknownHostException {
+    TestCookies cookies = new TestCookies();
+    Ip4Header ip4Header = copyIp4Header(testIp4Header());
+    TcpHeader syn = copyTcpHeader(testTcpHeader());
+    syn.setSequenceNumber(0xFFFFFFFFL);
+
+    long cookie = cookies.createCookie(ip4Header, syn, 1300, 7);
+    int data = cookies.checkCookie(ip4Header, finalAck(syn, cookie));
+    assertEquals(1300, SynCookies.getMaxSegmentSize(data));
+    assertEquals(7, SynCookies.getWindowScale(data));
+
+    // no window scale option, and an mss in between the table entries
+    IpHeader ip6Header = testIp6Header();
+    cookie = cookies.createCookie(ip6Header, syn, 1250, -1);
+    data = cookies.checkCookie(ip6Header, finalAck(syn, cookie));
+    assertEquals(1220, SynCookies.getMaxSegmentSize(data));
+    assertEquals(-1, SynCookies.getWindowScale(data));
+  }
+
+  @Test
+  public void invalidCookie() throws UnknownHostException {
+    TestCookies cookies = new TestCookies();
+    Ip4Header ip4Header = copyIp4Header(testIp4Header());
+    TcpHeader syn = copyTcpHeader(testTcpHeader());
+    long cookie = cookies.createCookie(ip4Header, syn, 1440, 2);
+
+    // an ack which isn't one of ours (it has to be well off, a small difference only changes the
+    // data in the low bits)
+    assertEquals(-1, cookies.checkCookie(ip4Header, finalAck(syn, cookie + 0x10000)));
+
+    // from a different port
+    TcpHeader ack = finalAck(syn, cookie);
+    ack.setSourcePort(ack.getSourcePort() + 1);
+    assertEquals(-1, cookies.checkCookie(ip4Header, ack));
+
+    // a cookie from some other proxy's key
+    assertEquals(-1, new TestCookies().checkCookie(ip4Header, finalAck(syn, cookie)));
+  }
+
+  @Test
+  public void expiry() throws UnknownHostException {
+    TestCookies cookies = new TestCookies();
+    Ip4Header ip4Header = copyIp4Header(testIp4Header());
+    TcpHeader syn = copyTcpHeader(testTcpHeader());
+    long cookie = cookies.createCookie(ip4Header, syn, 536, 0);
+
+    cookies.time += 60 * 1000;
+    int data = cookies.checkCookie(ip4Header, finalAck(syn, cookie));
+    assertEquals(536, SynCookies.getMaxSegmentSize(data));
+    assertEquals(0, SynCookies.getWindowScale(data));
+
+    cookies.time += SynCookies.MAX_AGE * 60 * 1000;
+    assertEquals(-1, cookies.checkCookie(ip4Header, finalAck(syn, cookie)));
+  }
+
+  @Test
+  public void tableMaxSegmentSize() {
+    assertEquals(536, SynCookies.tableMaxSegmentSize(100));
+    assertEquals(536, SynCookies.tableMaxSegmentSize(1219));
+    assertEquals(1440, SynCookies.tableMaxSegmentSize(1460));
+  }
+}
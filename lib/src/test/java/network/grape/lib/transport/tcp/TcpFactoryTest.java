@@ -63,6 +63,13 @@ public class TcpFactoryTest {
     assertEquals(tcpHeader1.getAckNumber(), tcpHeader.getAckNumber() + 1);
     assertEquals(ip4Header.getSourceAddress(), ip4Header1.getDestinationAddress());
     assertEquals(ip4Header.getDestinationAddress(), ip4Header1.getSourceAddress());
+    assertEquals(tcpHeader.getWindowSize(), tcpHeader1.getWindowSize());
+
+    // explicitly advertised window
+    response = TcpPacketFactory.createResponseAckData(ip4Header, tcpHeader, tcpHeader.getAckNumber()+1, 77);
+    buffer = ByteBuffer.wrap(response);
+    Ip4Header.parseBuffer(buffer);
+    assertEquals(77, TcpHeader.parseBuffer(buffer).getWindowSize());
 
     Ip6Header ip6Header = copyIp6Header(testIp6Header());
     response = TcpPacketFactory.createResponseAckData(ip6Header, tcpHeader, tcpHeader.getAckNumber()+1);
@@ -98,6 +105,8 @@ public class TcpFactoryTest {
     Ip4Header ip4Header1 = Ip4Header.parseBuffer(buffer);
     TcpHeader tcpHeader1 = TcpHeader.parseBuffer(buffer);
     assertTrue(tcpHeader1.isRst());
+    // resetting a segment without an ack (ie: a SYN) has to ack it
+    assertTrue(tcpHeader1.isAck());
     assertEquals(tcpHeader1.getAckNumber(), tcpHeader.getSequenceNumber() + 5);
     assertEquals(ip4Header.getSourceAddress(), ip4Header1.getDestinationAddress());
     assertEquals(ip4Header.getDestinationAddress(), ip4Header1.getSourceAddress());
@@ -114,6 +123,7 @@ public class TcpFactoryTest {
     ip4Header1 = Ip4Header.parseBuffer(buffer);
     tcpHeader1 = TcpHeader.parseBuffer(buffer);
     assertEquals(tcpHeader1.getSequenceNumber(), tcpHeader.getAckNumber());
+    assertFalse(tcpHeader1.isAck());
   }
 
   @Test public void createFinData() throws UnknownHostException, PacketHeaderException {
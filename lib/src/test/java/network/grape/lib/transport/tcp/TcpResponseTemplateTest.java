@@ -0,0 +1,124 @@
+package network.grape.lib.transport.tcp;
+
+import static network.grape.lib.network.ip.IpTestCommon.testIp4Header;
+import static network.grape.lib.network.ip.IpTestCommon.testIp6Header;
+import static network.grape.lib.transport.TransportTestCommon.assertTransportChecksum;
+import static network.grape.lib.transport.tcp.TcpPacketFactory.copyTcpHeader;
+import static network.grape.lib.transport.tcp.TcpTest.testTcpHeader;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import network.grape.lib.PacketHeaderException;
+import network.grape.lib.network.ip.Ip4Header;
+import network.grape.lib.network.ip.Ip6Header;
+import network.grape.lib.network.ip.IpHeader;
+import network.grape.lib.network.ip.IpPacketFactory;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.util.PacketUtil;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test the TcpResponseTemplate class.
+ */
+public class TcpResponseTemplateTest {
+
+  private static TcpResponseTemplate template(IpHeader ipHeader, TcpHeader tcpHeader) {
+    return new TcpResponseTemplate(ipHeader.getSourceAddress(), tcpHeader.getSourcePort(),
+        ipHeader.getDestinationAddress(), tcpHeader.getDestinationPort());
+  }
+
+  @Test public void sameSegmentAsPacketFactory() throws UnknownHostException {
+    // odd length, so the last word of the checksum is padded
+    byte[] payload = "hello from the other side".getBytes();
+    for (IpHeader ipHeader : new IpHeader[] {testIp4Header(), testIp6Header()}) {
+      TcpHeader tcpHeader = testTcpHeader();
+      byte[] expected = TcpPacketFactory.createResponsePacketData(
+          IpPacketFactory.copyIpHeader(ipHeader), copyTcpHeader(tcpHeader), payload, true, 1234,
+          0xFFFFFFF0L, 0, 0, 4096);
+      byte[] packet = template(ipHeader, tcpHeader).createPacket(0xFFFFFFF0L, 1234, true, 4096,
+          payload);
+
+      int ipHeaderLength = ipHeader.getHeaderLength();
+      assertEquals(expected.length, packet.length);
+      assertArrayEquals(Arrays.copyOfRange(expected, ipHeaderLength, expected.length),
+          Arrays.copyOfRange(packet, ipHeaderLength, packet.length));
+      assertTransportChecksum(packet, ipHeaderLength, ipHeader.getDestinationAddress(),
+          ipHeader.getSourceAddress(), TransportHeader.TCP_PROTOCOL);
+    }
+  }
+
+  @Test public void ip4Ack() throws UnknownHostException, PacketHeaderException {
+    Ip4Header ip4Header = testIp4Header();
+    TcpHeader tcpHeader = testTcpHeader();
+    TcpResponseTemplate template = template(ip4Header, tcpHeader);
+    byte[] packet = template.createPacket(100, 200, false, 77, null);
+
+    // the ip header checksum sums to zero when it's right
+    assertArrayEquals(new byte[] {0, 0}, PacketUtil.calculateChecksum(packet, 0, 20));
+    ByteBuffer buffer = ByteBuffer.wrap(packet);
+    Ip4Header ip = Ip4Header.parseBuffer(buffer);
+    TcpHeader tcp = TcpHeader.parseBuffer(buffer);
+    assertEquals(ip4Header.getSourceAddress(), ip.getDestinationAddress());
+    assertEquals(ip4Header.getDestinationAddress(), ip.getSourceAddress());
+    assertEquals(TransportHeader.TCP_PROTOCOL, ip.getProtocol());
+    assertEquals(packet.length, ip.getLength());
+    assertEquals(tcpHeader.getSourcePort(), tcp.getDestinationPort());
+    assertEquals(tcpHeader.getDestinationPort(), tcp.getSourcePort());
+    assertEquals(100, tcp.getSequenceNumber());
+    assertEquals(200, tcp.getAckNumber());
+    assertEquals(77, tcp.getWindowSize());
+    assertTrue(tcp.isAck());
+    assertFalse(tcp.isPsh());
+    assertFalse(tcp.isSyn());
+    assertEquals(TransportHeader.TCP_HEADER_LEN_NO_OPTIONS, tcp.getHeaderLength());
+    assertTransportChecksum(packet, 20, ip.getSourceAddress(), ip.getDestinationAddress(),
+        TransportHeader.TCP_PROTOCOL);
+
+    // the next packet gets its own id, and a checksum to go with it
+    byte[] next = template.createPacket(100, 200, false, 77, null);
+    assertFalse(Arrays.equals(Arrays.copyOfRange(packet, 4, 6), Arrays.copyOfRange(next, 4, 6)));
+    assertArrayEquals(new byte[] {0, 0}, PacketUtil.calculateChecksum(next, 0, 20));
+  }
+
+  @Test public void ip6PayloadSlice() throws UnknownHostException, PacketHeaderException {
+    Ip6Header ip6Header = testIp6Header();
+    TcpHeader tcpHeader = testTcpHeader();
+    byte[] data = "xxpayloadxx".getBytes();
+    byte[] packet = template(ip6Header, tcpHeader).createPacket(1, 2, true, 3, data, 2, 7);
+
+    ByteBuffer buffer = ByteBuffer.wrap(packet);
+    Ip6Header ip = Ip6Header.parseBuffer(buffer);
+    TcpHeader tcp = TcpHeader.parseBuffer(buffer);
+    assertEquals(TransportHeader.TCP_HEADER_LEN_NO_OPTIONS + 7, ip.getPayloadLength());
+    assertTrue(tcp.isPsh());
+    byte[] payload = new byte[buffer.remaining()];
+    buffer.get(payload);
+    assertArrayEquals("payload".getBytes(), payload);
+    assertTransportChecksum(packet, 40, ip.getSourceAddress(), ip.getDestinationAddress(),
+        TransportHeader.TCP_PROTOCOL);
+  }
+
+  @Test public void payloadFromBuffer() throws UnknownHostException {
+    Ip4Header ip4Header = testIp4Header();
+    TcpHeader tcpHeader = testTcpHeader();
+    TcpResponseTemplate template = template(ip4Header, tcpHeader);
+    byte[] data = "xxpayloadxx".getBytes();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+    buffer.put(data);
+    buffer.position(2);
+
+    byte[] packet = template.createPacket(1, 2, true, 3, buffer, 7);
+    byte[] expected = template.createPacket(1, 2, true, 3, data, 2, 7);
+    // the ip ids differ, everything after the ip header is the same
+    assertArrayEquals(Arrays.copyOfRange(expected, 20, expected.length),
+        Arrays.copyOfRange(packet, 20, packet.length));
+    assertEquals(9, buffer.position());
+    assertTransportChecksum(packet, 20, ip4Header.getDestinationAddress(),
+        ip4Header.getSourceAddress(), TransportHeader.TCP_PROTOCOL);
+  }
+}
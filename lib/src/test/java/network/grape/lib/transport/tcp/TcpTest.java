@@ -1,6 +1,7 @@
 package network.grape.lib.transport.tcp;
 
 import static network.grape.lib.transport.tcp.TcpPacketFactory.copyTcpHeader;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -8,11 +9,9 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import network.grape.lib.PacketHeaderException;
 import network.grape.lib.util.PacketUtil;
 
-import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
 /**
@@ -21,7 +20,7 @@ import org.junit.jupiter.api.Test;
 public class TcpTest {
   public static TcpHeader testTcpHeader() {
     return new TcpHeader(34645, 443, 1, 0,
-        (short) 5, 2, 1024, 0, 0, new ArrayList<>());
+        (short) 5, 2, 1024, 0, 0);
   }
 
   @Test
@@ -161,98 +160,107 @@ public class TcpTest {
     assertFalse(tcpHeader.isFin());
   }
 
-  @Disabled
   @Test
   public void optionTest() throws PacketHeaderException {
-    ArrayList<TcpOption> options = new ArrayList<>();
     TcpHeader tcpHeader = copyTcpHeader(testTcpHeader());
+    tcpHeader.setMaxSegmentSize(1000);
+    tcpHeader.setWindowScale(10);
+    tcpHeader.setSackPermitted(true);
+    tcpHeader.setTimestampSender(123);
+    tcpHeader.setTimestampReplyTo(456);
+    tcpHeader.setTimestamps(true);
+    tcpHeader.setSackBlocks(new int[] {1, 2});
+    // an option we don't parse (echo) is passed through as is
+    tcpHeader.setOtherOptions(new byte[] {6, 6, 1, 2, 3, 4});
+    // 20 + mss 4 + sack permitted and timestamps 12 + window scale 4 + sack 12 + echo 6, padded to
+    // the most a header can hold
+    assertEquals(60, tcpHeader.getHeaderLength());
 
-    TcpOption mss = TcpOption.MSS;
-    mss.value.putShort((short) 1000);
-    System.out.println("MSS SIZE: " + mss.size);
-    options.add(mss);
-
-    TcpOption windowScale = TcpOption.WINDOW_SCALE;
-    windowScale.value.put((byte) 10);
-    options.add(windowScale);
-
-    TcpOption sackPermitted = TcpOption.SACK_PERMITTED;
-    options.add(sackPermitted);
+    byte[] buf = tcpHeader.toByteArray();
+    TcpHeader tcpHeader1 = TcpHeader.parseBuffer(ByteBuffer.wrap(buf));
+    assertEquals(tcpHeader, tcpHeader1);
 
-    TcpOption sack = TcpOption.SACK;
-    sack.size = 4;
-    sack.value = ByteBuffer.allocate(sack.size - 2);
-    options.add(sack);
+    tcpHeader1.retainHandshakeOptions();
+    assertEquals(1000, tcpHeader1.getMaxSegmentSize());
+    assertEquals(10, tcpHeader1.getWindowScale());
+    assertFalse(tcpHeader1.isSackPermitted());
+    assertFalse(tcpHeader1.isTimestamps());
+    assertEquals(28, tcpHeader1.getHeaderLength());
+
+    tcpHeader1.clearOptions();
+    assertEquals(-1, tcpHeader1.getMaxSegmentSize());
+    assertEquals(-1, tcpHeader1.getWindowScale());
+    assertEquals(20, tcpHeader1.getHeaderLength());
+  }
 
-    TcpOption echo = TcpOption.ECHO;
-    System.out.println("ECHO SIZE: " + echo.size);
-    options.add(echo);
+  @Test
+  public void parseSynOptionsTest() throws PacketHeaderException {
+    // mss 1460, sackOK, TS val 1 ecr 0, nop, wscale 7: what linux sends in a SYN
+    byte[] options = {2, 4, 0x05, (byte) 0xb4, 4, 2, 8, 10, 0, 0, 0, 1, 0, 0, 0, 0, 1, 3, 3, 7};
+    TcpHeader syn = new TcpHeader(34645, 443, 1, 0, (short) 10, 2, 1024, 0, 0);
+    ByteBuffer buffer = ByteBuffer.allocate(40);
+    buffer.put(syn.toByteArray(), 0, 20);
+    buffer.put(options);
+    byte[] wire = buffer.array();
+
+    TcpHeader tcpHeader = TcpHeader.parseBuffer(ByteBuffer.wrap(wire));
+    assertEquals(1460, tcpHeader.getMaxSegmentSize());
+    assertEquals(7, tcpHeader.getWindowScale());
+    assertTrue(tcpHeader.isSackPermitted());
+    assertTrue(tcpHeader.isTimestamps());
+    assertEquals(1, tcpHeader.getTimestampSender());
+    assertEquals(0, tcpHeader.getTimestampReplyTo());
+    assertEquals(40, tcpHeader.getHeaderLength());
+    // written back out the same way
+    assertArrayEquals(wire, tcpHeader.toByteArray());
+
+    // each header keeps its own values, nothing is shared between them
+    byte[] otherWire = wire.clone();
+    otherWire[23] = (byte) 0x78;
+    TcpHeader other = TcpHeader.parseBuffer(ByteBuffer.wrap(otherWire));
+    assertEquals(1400, other.getMaxSegmentSize());
+    assertEquals(1460, tcpHeader.getMaxSegmentSize());
+  }
 
-    TcpOption echoReply = TcpOption.ECHO_REPLY;
-    options.add(echoReply);
+  @Test
+  public void badOptionTest() throws PacketHeaderException {
+    TcpHeader syn = new TcpHeader(34645, 443, 1, 0, (short) 7, 2, 1024, 0, 0);
+    ByteBuffer buffer = ByteBuffer.allocate(28);
+    buffer.put(syn.toByteArray(), 0, 20);
+    // an mss of the wrong length is passed through, then a zero length stops the parsing
+    buffer.put(new byte[] {2, 3, 5, 3, 0, 1, 1, 1});
+    buffer.rewind();
 
-//    TcpOption timestamps = TcpOption.TIMESTAMPS;
-//    options.add(timestamps);
+    TcpHeader tcpHeader = TcpHeader.parseBuffer(buffer);
+    assertEquals(28, buffer.position());
+    assertEquals(-1, tcpHeader.getMaxSegmentSize());
+    assertArrayEquals(new byte[] {2, 3, 5}, tcpHeader.getOtherOptions());
+    assertEquals(-1, tcpHeader.getWindowScale());
+  }
 
-    TcpOption nop = TcpOption.NOP;
-    options.add(nop);
+  @Test
+  public void maxSegmentSizeTest() throws PacketHeaderException {
+    TcpHeader tcpHeader = copyTcpHeader(testTcpHeader());
+    assertEquals(-1, tcpHeader.getMaxSegmentSize());
 
-    TcpOption eol = TcpOption.END_OF_OPTION_LIST;
-    options.add(eol);
+    // adding the option grows the header by a word, and leaves the header it was copied from alone
+    tcpHeader.setMaxSegmentSize(1460);
+    assertEquals(1460, tcpHeader.getMaxSegmentSize());
+    assertEquals(24, tcpHeader.getHeaderLength());
+    assertEquals(-1, testTcpHeader().getMaxSegmentSize());
 
-    tcpHeader.setOptions(options);
+    // replacing it doesn't
+    tcpHeader.setMaxSegmentSize(1400);
+    assertEquals(1400, tcpHeader.getMaxSegmentSize());
+    assertEquals(24, tcpHeader.getHeaderLength());
 
     byte[] buf = tcpHeader.toByteArray();
     ByteBuffer buffer = ByteBuffer.allocate(buf.length);
     buffer.put(buf);
     buffer.rewind();
     TcpHeader tcpHeader1 = TcpHeader.parseBuffer(buffer);
-
-    assertEquals(tcpHeader, tcpHeader1);
-
-    // bad options, note - this has to happen after the good ones because otherwise setting the size
-    // and value will change the enum for the remaining tests. should probably find a better way
-    // to do this type of test because it is jaaannnkky
-    System.out.println("------------------------ BAD OPTIONS ---------------");
-    tcpHeader = copyTcpHeader(testTcpHeader());
-    options.clear();
-
-    mss = TcpOption.MSS;
-    mss.value = ByteBuffer.allocate(10);
-    mss.value.putShort((short) 1000);
-    mss.size = 12;
-    options.add(mss);
-
-    windowScale = TcpOption.WINDOW_SCALE;
-    windowScale.value = ByteBuffer.allocate(10);
-    windowScale.value.put((byte) 10);
-    windowScale.size = 12;
-    options.add(windowScale);
-
-    sackPermitted = TcpOption.SACK_PERMITTED;
-    sackPermitted.value = ByteBuffer.allocate(8);
-    sackPermitted.size = 10;
-    options.add(sackPermitted);
-
-//    TcpOption sack = TcpOption.SACK;
-//    sack.size = 2;
-//    sack.value = ByteBuffer.allocate(0);
-//    options.add(sack);
-
-    nop = TcpOption.NOP;
-    options.add(nop);
-
-    eol = TcpOption.END_OF_OPTION_LIST;
-    options.add(eol);
-
-    tcpHeader.setOptions(options);
-    System.out.println("OFFSETTTTTT: " + tcpHeader.getOffset());
-
-    buf = tcpHeader.toByteArray();
-    buffer = ByteBuffer.allocate(buf.length);
-    buffer.put(buf);
-    buffer.rewind();
-    tcpHeader1 = TcpHeader.parseBuffer(buffer);
+    assertEquals(1400, tcpHeader1.getMaxSegmentSize());
+    assertEquals(24, tcpHeader1.getHeaderLength());
   }
 
   @Test public void swapSrcDestTest() {
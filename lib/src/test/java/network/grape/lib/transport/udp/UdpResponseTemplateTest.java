@@ -0,0 +1,73 @@
+package network.grape.lib.transport.udp;
+
+import static network.grape.lib.network.ip.IpTestCommon.testIp4Header;
+import static network.grape.lib.network.ip.IpTestCommon.testIp6Header;
+import static network.grape.lib.transport.TransportTestCommon.assertTransportChecksum;
+import static network.grape.lib.transport.udp.UdpTest.testUdpHeader;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import network.grape.lib.PacketHeaderException;
+import network.grape.lib.network.ip.Ip4Header;
+import network.grape.lib.network.ip.Ip6Header;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.util.PacketUtil;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test the UdpResponseTemplate class.
+ */
+public class UdpResponseTemplateTest {
+
+  @Test public void ip4SameAsPacketFactory() throws UnknownHostException, PacketHeaderException {
+    Ip4Header ip4Header = testIp4Header();
+    UdpHeader udpHeader = testUdpHeader();
+    UdpResponseTemplate template = new UdpResponseTemplate(ip4Header.getSourceAddress(),
+        udpHeader.getSourcePort(), ip4Header.getDestinationAddress(),
+        udpHeader.getDestinationPort());
+    byte[] payload = "an odd length reply".getBytes();
+    byte[] expected = UdpPacketFactory.createResponsePacket(ip4Header, udpHeader, payload);
+    byte[] packet = template.createPacket(payload, 0, payload.length);
+
+    assertEquals(expected.length, packet.length);
+    assertArrayEquals(Arrays.copyOfRange(expected, 20, expected.length),
+        Arrays.copyOfRange(packet, 20, packet.length));
+    assertArrayEquals(new byte[] {0, 0}, PacketUtil.calculateChecksum(packet, 0, 20));
+
+    ByteBuffer buffer = ByteBuffer.wrap(packet);
+    Ip4Header ip = Ip4Header.parseBuffer(buffer);
+    UdpHeader udp = UdpHeader.parseBuffer(buffer);
+    assertEquals(ip4Header.getSourceAddress(), ip.getDestinationAddress());
+    assertEquals(ip4Header.getDestinationAddress(), ip.getSourceAddress());
+    assertEquals(TransportHeader.UDP_PROTOCOL, ip.getProtocol());
+    assertEquals(packet.length, ip.getLength());
+    assertEquals(udpHeader.getSourcePort(), udp.getDestinationPort());
+    assertEquals(udpHeader.getDestinationPort(), udp.getSourcePort());
+    assertEquals(TransportHeader.UDP_HEADER_LEN + payload.length, udp.getLength());
+  }
+
+  @Test public void ip6() throws UnknownHostException, PacketHeaderException {
+    Ip6Header ip6Header = testIp6Header();
+    UdpHeader udpHeader = testUdpHeader();
+    UdpResponseTemplate template = new UdpResponseTemplate(ip6Header.getSourceAddress(),
+        udpHeader.getSourcePort(), ip6Header.getDestinationAddress(),
+        udpHeader.getDestinationPort());
+    byte[] data = "..reply..".getBytes();
+    byte[] packet = template.createPacket(data, 2, 5);
+
+    ByteBuffer buffer = ByteBuffer.wrap(packet);
+    Ip6Header ip = Ip6Header.parseBuffer(buffer);
+    UdpHeader udp = UdpHeader.parseBuffer(buffer);
+    assertEquals(ip6Header.getSourceAddress(), ip.getDestinationAddress());
+    assertEquals(TransportHeader.UDP_HEADER_LEN + 5, ip.getPayloadLength());
+    assertEquals(TransportHeader.UDP_HEADER_LEN + 5, udp.getLength());
+    byte[] payload = new byte[buffer.remaining()];
+    buffer.get(payload);
+    assertArrayEquals("reply".getBytes(), payload);
+    assertTransportChecksum(packet, 40, ip.getSourceAddress(), ip.getDestinationAddress(),
+        TransportHeader.UDP_PROTOCOL);
+  }
+}
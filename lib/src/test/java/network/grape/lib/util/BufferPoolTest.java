@@ -0,0 +1,47 @@
+package network.grape.lib.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the BufferPool class.
+ */
+public class BufferPoolTest {
+
+  @Test
+  public void reuseTest() {
+    BufferPool pool = new BufferPool(128, 1);
+    ByteBuffer first = pool.acquire();
+    assertTrue(first.isDirect());
+    assertEquals(128, first.capacity());
+    assertEquals(1, pool.getAllocated());
+
+    // a released buffer comes back cleared
+    first.put(new byte[10]).flip();
+    pool.release(first);
+    assertEquals(1, pool.getPooled());
+    ByteBuffer again = pool.acquire();
+    assertSame(first, again);
+    assertEquals(0, again.position());
+    assertEquals(128, again.limit());
+    assertEquals(1, pool.getAllocated());
+
+    // more than the limit are made when needed, but only the limit are kept
+    ByteBuffer second = pool.acquire();
+    assertNotSame(again, second);
+    assertEquals(2, pool.getAllocated());
+    pool.release(again);
+    pool.release(second);
+    assertEquals(1, pool.getPooled());
+
+    // buffers which aren't the pool's size aren't kept
+    pool.acquire();
+    pool.release(ByteBuffer.allocateDirect(64));
+    assertEquals(0, pool.getPooled());
+  }
+}
@@ -0,0 +1,79 @@
+package network.grape.lib.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the MpscQueue class.
+ */
+public class MpscQueueTest {
+
+  @Test
+  public void offerPollTest() {
+    MpscQueue<Integer> queue = new MpscQueue<>(3);
+    assertEquals(4, queue.capacity());
+    assertTrue(queue.isEmpty());
+    assertNull(queue.poll());
+
+    for (int i = 0; i < 4; i++) {
+      assertTrue(queue.offer(i));
+    }
+    assertFalse(queue.offer(4));
+    assertEquals(4, queue.size());
+
+    // comes back out in order, and the freed slots can be used again
+    assertEquals(0, queue.poll());
+    assertTrue(queue.offer(4));
+    for (int i = 1; i <= 4; i++) {
+      assertEquals(i, queue.poll());
+    }
+    assertTrue(queue.isEmpty());
+
+    assertThrows(IllegalArgumentException.class, () -> new MpscQueue<Integer>(0));
+  }
+
+  @Test
+  public void producersConsumerTest() throws InterruptedException {
+    MpscQueue<Integer> queue = new MpscQueue<>(16);
+    final int producers = 4;
+    final int count = 50000;
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < count; i++) {
+          while (!queue.offer(producer * count + i)) {
+            Thread.yield();
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+
+    // everything arrives exactly once, and in order for each producer
+    int[] next = new int[producers];
+    for (int received = 0; received < producers * count; ) {
+      Integer value = queue.poll();
+      if (value == null) {
+        Thread.yield();
+        continue;
+      }
+      int producer = value / count;
+      assertEquals(next[producer], value % count);
+      next[producer]++;
+      received++;
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(queue.isEmpty());
+  }
+}
@@ -0,0 +1,161 @@
+package network.grape.lib.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the PacketEgress class.
+ */
+public class PacketEgressTest {
+
+  /**
+   * Records each packet it's handed, and each batch.
+   */
+  private static class RecordingTarget extends OutputStream implements PacketBatchWriter {
+    private final List<byte[]> packets = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void write(int b) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void writePackets(List<byte[]> batch) {
+      packets.addAll(batch);
+      batchSizes.add(batch.size());
+    }
+  }
+
+  private static void waitFor(PacketEgress egress, long count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (egress.getWritten() + egress.getDropped() < count
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void writersTest() throws InterruptedException {
+    RecordingTarget target = new RecordingTarget();
+    final int writers = 4;
+    final int count = 2000;
+    // big enough that nothing is dropped however far the writers get ahead
+    PacketEgress egress = new PacketEgress(target, writers * count);
+    egress.start();
+
+    List<Thread> threads = new ArrayList<>();
+    for (int w = 0; w < writers; w++) {
+      final int writer = w;
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < count; i++) {
+          // the packet boundaries have to survive, so the length encodes the writer
+          byte[] packet = new byte[writer + 1];
+          packet[0] = (byte) i;
+          egress.write(packet);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    waitFor(egress, writers * count);
+    egress.shutdown();
+
+    assertEquals(0, egress.getDropped());
+    assertEquals(writers * count, egress.getWritten());
+    assertEquals(0, egress.getDepth());
+    int[] next = new int[writers];
+    for (byte[] packet : target.packets) {
+      int writer = packet.length - 1;
+      assertEquals((byte) next[writer], packet[0]);
+      next[writer]++;
+    }
+    for (int w = 0; w < writers; w++) {
+      assertEquals(count, next[w]);
+    }
+    for (int size : target.batchSizes) {
+      assertTrue(size <= PacketEgress.MAX_BATCH);
+    }
+    assertEquals(target.batchSizes.size(), egress.getBatches());
+  }
+
+  @Test
+  public void plainStreamTest() throws InterruptedException {
+    List<byte[]> flushed = Collections.synchronizedList(new ArrayList<>());
+    OutputStream target = new ByteArrayOutputStream() {
+      @Override
+      public void flush() {
+        flushed.add(toByteArray());
+        reset();
+      }
+    };
+    PacketEgress egress = new PacketEgress(target);
+    egress.start();
+
+    egress.write(new byte[] {1, 2, 3});
+    egress.write(new byte[] {9, 4, 5, 9}, 1, 2);
+    egress.writePackets(List.of(new byte[] {6}, new byte[] {7, 8}));
+    egress.flush();
+    waitFor(egress, 4);
+    egress.shutdown();
+
+    // one flush per packet, so a stream which sends on flush keeps the boundaries
+    assertEquals(4, flushed.size());
+    assertArrayEquals(new byte[] {1, 2, 3}, flushed.get(0));
+    assertArrayEquals(new byte[] {4, 5}, flushed.get(1));
+    assertArrayEquals(new byte[] {6}, flushed.get(2));
+    assertArrayEquals(new byte[] {7, 8}, flushed.get(3));
+  }
+
+  @Test
+  public void dropWhenFullTest() throws InterruptedException {
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    OutputStream target = new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+
+      @Override
+      public void flush() throws IOException {
+        blocked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException ex) {
+          throw new IOException(ex);
+        }
+      }
+    };
+    PacketEgress egress = new PacketEgress(target, 4);
+    egress.start();
+
+    // the writer thread takes the first packet and gets stuck on it
+    egress.write(new byte[] {0});
+    assertTrue(blocked.await(5, TimeUnit.SECONDS));
+    for (int i = 1; i <= 6; i++) {
+      egress.write(new byte[] {(byte) i});
+    }
+    assertEquals(4, egress.getDepth());
+    assertEquals(2, egress.getDropped());
+
+    release.countDown();
+    waitFor(egress, 7);
+    egress.shutdown();
+    assertEquals(5, egress.getWritten());
+    assertEquals(0, egress.getDepth());
+  }
+}
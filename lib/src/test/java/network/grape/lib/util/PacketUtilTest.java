@@ -57,6 +57,21 @@ public class PacketUtilTest extends PacketUtil {
     assertArrayEquals(actualCheckSum2, checksum);
   }
 
+  @Test public void partialSumTest() {
+    byte[] buffer = {0x45, 0x00, 0x00, 0x73, 0x00, 0x00, 0x40, 0x00, 0x40, 0x11, 0x00, 0x00,
+        (byte) 0xc0, (byte) 0xa8, 0x00, 0x01, (byte) 0xc0, (byte) 0xa8, 0x00, (byte) 0xc7};
+    // summed in two parts it comes out the same as all at once
+    long sum = sumWords(buffer, 0, 12) + sumWords(buffer, 12, 8);
+    assertEquals(0xb861, finishChecksum(sum));
+
+    // odd lengths are padded with a zero
+    byte[] odd = {0x66, 0x60, 0x55, 0x55, (byte) 0x8F};
+    assertEquals(0x6660 + 0x5555 + 0x8F00, sumWords(odd, 0, odd.length));
+    byte[] checksum = calculateChecksum(odd, 0, odd.length);
+    assertEquals(((checksum[0] & 0xFF) << 8) | (checksum[1] & 0xFF),
+        finishChecksum(sumWords(odd, 0, odd.length)));
+  }
+
   @Test
   public void ip4_udp_CheckSumTest() throws IOException, PacketHeaderException {
     InputStream is = getClass().getClassLoader().getResourceAsStream("ip4_udp.txt");
@@ -0,0 +1,66 @@
+package network.grape.lib.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the SpscQueue class.
+ */
+public class SpscQueueTest {
+
+  @Test
+  public void offerPollTest() {
+    SpscQueue<Integer> queue = new SpscQueue<>(3);
+    assertEquals(4, queue.capacity());
+    assertTrue(queue.isEmpty());
+    assertNull(queue.poll());
+
+    for (int i = 0; i < 4; i++) {
+      assertTrue(queue.offer(i));
+    }
+    assertFalse(queue.offer(4));
+    assertEquals(4, queue.size());
+
+    // comes back out in order, and the freed slots can be used again
+    assertEquals(0, queue.poll());
+    assertTrue(queue.offer(4));
+    for (int i = 1; i <= 4; i++) {
+      assertEquals(i, queue.poll());
+    }
+    assertTrue(queue.isEmpty());
+
+    assertThrows(IllegalArgumentException.class, () -> new SpscQueue<Integer>(0));
+  }
+
+  @Test
+  public void producerConsumerTest() throws InterruptedException {
+    SpscQueue<Integer> queue = new SpscQueue<>(16);
+    final int count = 100000;
+    Thread producer = new Thread(() -> {
+      for (int i = 0; i < count; i++) {
+        while (!queue.offer(i)) {
+          Thread.yield();
+        }
+      }
+    });
+    producer.start();
+
+    // everything arrives exactly once and in order, even with the queue full most of the time
+    for (int expected = 0; expected < count; ) {
+      Integer value = queue.poll();
+      if (value == null) {
+        Thread.yield();
+        continue;
+      }
+      assertEquals(expected, value);
+      expected++;
+    }
+    producer.join();
+    assertTrue(queue.isEmpty());
+  }
+}
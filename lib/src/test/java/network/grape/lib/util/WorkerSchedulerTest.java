@@ -0,0 +1,201 @@
+package network.grape.lib.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import network.grape.lib.metrics.PipelineTracer;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the WorkerScheduler class.
+ */
+public class WorkerSchedulerTest {
+
+  private static void waitForCompleted(WorkerScheduler scheduler, long count)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (scheduler.getCompleted() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    assertEquals(count, scheduler.getCompleted());
+  }
+
+  private void serialPerKey(WorkerScheduler.Type type) throws InterruptedException {
+    WorkerScheduler scheduler = WorkerScheduler.create(type, 4, 10000);
+    final int keys = 8;
+    final int tasks = 500;
+    AtomicInteger[] running = new AtomicInteger[keys];
+    List<List<Integer>> order = new ArrayList<>();
+    for (int k = 0; k < keys; k++) {
+      running[k] = new AtomicInteger();
+      order.add(Collections.synchronizedList(new ArrayList<>()));
+    }
+    AtomicInteger overlaps = new AtomicInteger();
+    for (int i = 0; i < tasks; i++) {
+      for (int k = 0; k < keys; k++) {
+        final int key = k;
+        final int sequence = i;
+        assertTrue(scheduler.trySubmit("session" + key, () -> {
+          if (running[key].incrementAndGet() != 1) {
+            overlaps.incrementAndGet();
+          }
+          order.get(key).add(sequence);
+          running[key].decrementAndGet();
+        }));
+      }
+    }
+    waitForCompleted(scheduler, keys * tasks);
+    scheduler.shutdown();
+
+    // never two tasks of a key at once, and each key's tasks in the order they were submitted
+    assertEquals(0, overlaps.get());
+    for (int k = 0; k < keys; k++) {
+      assertEquals(tasks, order.get(k).size());
+      for (int i = 0; i < tasks; i++) {
+        assertEquals(i, order.get(k).get(i));
+      }
+    }
+    assertEquals(0, scheduler.getQueueDepth());
+    assertEquals(0, scheduler.getInFlight());
+  }
+
+  @Test
+  public void serialPerKeyFixedTest() throws InterruptedException {
+    serialPerKey(WorkerScheduler.Type.FIXED);
+  }
+
+  @Test
+  public void serialPerKeyForkJoinTest() throws InterruptedException {
+    serialPerKey(WorkerScheduler.Type.FORK_JOIN);
+  }
+
+  @Test
+  public void virtualTest() throws InterruptedException {
+    if (VirtualThreads.isAvailable()) {
+      serialPerKey(WorkerScheduler.Type.VIRTUAL);
+    } else {
+      assertThrows(UnsupportedOperationException.class,
+          () -> WorkerScheduler.create(WorkerScheduler.Type.VIRTUAL, 1, 1));
+    }
+  }
+
+  @Test
+  public void backpressureTest() throws InterruptedException {
+    WorkerScheduler scheduler = WorkerScheduler.create(WorkerScheduler.Type.FIXED, 1, 2);
+    CountDownLatch release = new CountDownLatch(1);
+    Runnable blocked = () -> {
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    };
+    assertTrue(scheduler.trySubmit(null, blocked));
+    assertTrue(scheduler.trySubmit("key", blocked));
+    assertEquals(2, scheduler.getInFlight());
+
+    // full, refused straight away or after waiting
+    assertFalse(scheduler.trySubmit("key", () -> { }));
+    long start = System.nanoTime();
+    assertFalse(scheduler.submit("key", () -> { }, 50));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(2, scheduler.getRejected());
+
+    // room is made while waiting
+    new Thread(() -> {
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException ex) {
+        return;
+      }
+      release.countDown();
+    }).start();
+    assertTrue(scheduler.submit("key", () -> { }, 5000));
+    waitForCompleted(scheduler, 3);
+
+    scheduler.shutdown();
+    assertFalse(scheduler.trySubmit("key", () -> { }));
+  }
+
+  @Test
+  public void metricsTest() throws InterruptedException {
+    WorkerScheduler scheduler = WorkerScheduler.create(WorkerScheduler.Type.FIXED, 1, 10);
+    CountDownLatch release = new CountDownLatch(1);
+    scheduler.trySubmit(null, () -> {
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    for (int i = 0; i < 3; i++) {
+      scheduler.trySubmit("key" + i, () -> { });
+    }
+    Thread.sleep(20);
+    // the one thread is stuck on the first task, the rest wait behind it
+    assertEquals(3, scheduler.getQueueDepth());
+    assertEquals(4, scheduler.getInFlight());
+
+    release.countDown();
+    waitForCompleted(scheduler, 4);
+    assertEquals(0, scheduler.getQueueDepth());
+    assertTrue(scheduler.getMaxQueueLatencyNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+    assertTrue(scheduler.getAverageQueueLatencyNanos() > 0);
+    assertTrue(scheduler.getAverageQueueLatencyNanos() <= scheduler.getMaxQueueLatencyNanos());
+
+    // one failing task doesn't stop the ones after it on the same key
+    scheduler.trySubmit("key", () -> {
+      throw new IllegalStateException("test");
+    });
+    scheduler.trySubmit("key", () -> { });
+    waitForCompleted(scheduler, 6);
+    scheduler.shutdown();
+  }
+
+  @Test
+  public void tracerTest() throws InterruptedException {
+    WorkerScheduler scheduler = WorkerScheduler.create(WorkerScheduler.Type.FIXED, 1, 16);
+    PipelineTracer tracer = mock(PipelineTracer.class);
+    scheduler.setTracer(tracer);
+
+    // nothing is traced while nothing is recording
+    scheduler.trySubmit("idle", () -> { });
+    waitForCompleted(scheduler, 1);
+    verify(tracer, never()).workerQueued(any(), anyInt());
+
+    when(tracer.isActive()).thenReturn(true);
+    scheduler.trySubmit("traced", () -> { });
+    waitForCompleted(scheduler, 2);
+    verify(tracer).workerQueued(eq("traced"), anyInt());
+    verify(tracer, timeout(1000)).workerRun(eq("traced"), anyLong(), anyLong());
+    verify(tracer, never()).workerRun(eq("idle"), anyLong(), anyLong());
+    scheduler.shutdown();
+  }
+
+  @Test
+  public void parseTypeTest() {
+    assertEquals(WorkerScheduler.Type.FIXED, WorkerScheduler.parseType("fixed"));
+    assertEquals(WorkerScheduler.Type.FORK_JOIN, WorkerScheduler.parseType("fork-join"));
+    assertEquals(WorkerScheduler.Type.VIRTUAL, WorkerScheduler.parseType(" Virtual "));
+    assertThrows(IllegalArgumentException.class, () -> WorkerScheduler.parseType("cached"));
+    assertThrows(IllegalArgumentException.class,
+        () -> new WorkerScheduler(null, 0));
+  }
+}
@@ -0,0 +1,214 @@
+package network.grape.lib.vpn;
+
+import static network.grape.lib.transport.TransportHeader.TCP_PROTOCOL;
+import static network.grape.lib.transport.TransportHeader.UDP_PROTOCOL;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import network.grape.lib.network.ip.Ip4Header;
+import network.grape.lib.network.ip.IpPacketFactory;
+import network.grape.lib.session.Session;
+import network.grape.lib.session.SessionHandler;
+import network.grape.lib.session.SessionManager;
+import network.grape.lib.transport.tcp.TcpHeader;
+import network.grape.lib.transport.tcp.TcpPacketFactory;
+import network.grape.lib.transport.udp.UdpHeader;
+import network.grape.lib.transport.udp.UdpPacketFactory;
+import network.grape.lib.util.WorkerScheduler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs sessions end to end through a SessionHandler with the FlowThreadEngine, against real
+ * sockets on localhost. Platform threads are used so it runs on any JDK.
+ */
+public class FlowThreadEngineTest {
+  private static final InetAddress CLIENT = addressOf("10.0.0.2");
+  private static final InetAddress LOCALHOST = addressOf("127.0.0.1");
+
+  private SessionManager sessionManager;
+  private FlowThreadEngine engine;
+  private SessionHandler handler;
+  private PacketCollector tunnel;
+
+  private static InetAddress addressOf(String address) {
+    try {
+      return InetAddress.getByName(address);
+    } catch (Exception ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  @BeforeEach
+  public void before() throws Exception {
+    sessionManager = new SessionManager(new ConcurrentHashMap<>(), Selector.open());
+    VpnWriter vpnWriter = new VpnWriter(sessionManager, mock(WorkerScheduler.class));
+    engine = new FlowThreadEngine(sessionManager, vpnWriter, runnable -> {
+      Thread thread = new Thread(runnable, "flow-test");
+      thread.setDaemon(true);
+      return thread;
+    });
+    handler = new SessionHandler(sessionManager, mock(SocketProtector.class), vpnWriter,
+        new ArrayList<>());
+    handler.setEngine(engine);
+    tunnel = new PacketCollector();
+  }
+
+  @AfterEach
+  public void after() {
+    handler.shutdown();
+    engine.shutdown();
+  }
+
+  @Test
+  public void udpEchoTest() throws Exception {
+    DatagramChannel server = DatagramChannel.open();
+    server.bind(new InetSocketAddress(LOCALHOST, 0));
+    int serverPort = ((InetSocketAddress) server.getLocalAddress()).getPort();
+    Thread echo = new Thread(() -> {
+      ByteBuffer buffer = ByteBuffer.allocate(1500);
+      try {
+        while (true) {
+          buffer.clear();
+          SocketAddress from = server.receive(buffer);
+          buffer.flip();
+          server.send(buffer, from);
+        }
+      } catch (Exception ex) {
+        // closed at the end of the test
+      }
+    });
+    echo.setDaemon(true);
+    echo.start();
+
+    try {
+      for (int i = 0; i < 3; i++) {
+        byte[] payload = ("hello " + i).getBytes();
+        byte[] udp = UdpPacketFactory.encapsulate(CLIENT, LOCALHOST, 5000, serverPort, payload);
+        byte[] packet = IpPacketFactory.encapsulate(CLIENT, LOCALHOST, UDP_PROTOCOL, udp);
+        handler.handlePacket(ByteBuffer.wrap(packet), tunnel);
+
+        byte[] reply = tunnel.packets.poll(5, TimeUnit.SECONDS);
+        assertNotNull(reply);
+        ByteBuffer buffer = ByteBuffer.wrap(reply);
+        Ip4Header ip = Ip4Header.parseBuffer(buffer);
+        UdpHeader udpHeader = UdpHeader.parseBuffer(buffer);
+        assertEquals(LOCALHOST, ip.getSourceAddress());
+        assertEquals(CLIENT, ip.getDestinationAddress());
+        assertEquals(serverPort, udpHeader.getSourcePort());
+        assertEquals(5000, udpHeader.getDestinationPort());
+        byte[] echoed = Arrays.copyOfRange(reply, buffer.position(), reply.length);
+        assertArrayEquals(payload, echoed);
+      }
+      // the one session kept its threads, a reader and a writer
+      assertNotNull(sessionManager.getSession(CLIENT, 5000, LOCALHOST, serverPort, UDP_PROTOCOL));
+      assertEquals(2, engine.getThreadCount());
+
+      // closing the session lets its threads finish
+      Session session = sessionManager.getSession(CLIENT, 5000, LOCALHOST, serverPort,
+          UDP_PROTOCOL);
+      sessionManager.closeSession(session);
+      waitForThreads(0);
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void tcpConnectTest() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, LOCALHOST);
+    handler.setDeferSynAck(true);
+    try {
+      handler.handlePacket(ByteBuffer.wrap(syn(server.getLocalPort())), tunnel);
+      Socket accepted = server.accept();
+
+      // the SYN-ACK was held back until the flow thread finished the connect
+      TcpHeader synAck = readTcp(tunnel.packets.poll(5, TimeUnit.SECONDS));
+      assertTrue(synAck.isSyn() && synAck.isAck());
+      assertEquals(1001, synAck.getAckNumber());
+      Session session = sessionManager.getSession(CLIENT, 5001, LOCALHOST,
+          server.getLocalPort(), TCP_PROTOCOL);
+      assertTrue(session.isConnected());
+
+      sessionManager.closeSession(session);
+      accepted.close();
+      waitForThreads(0);
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void tcpRefusedTest() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, LOCALHOST);
+    int port = server.getLocalPort();
+    server.close();
+    handler.setDeferSynAck(true);
+
+    handler.handlePacket(ByteBuffer.wrap(syn(port)), tunnel);
+
+    // nothing listening, so the client is reset instead of getting the SYN-ACK
+    TcpHeader rst = readTcp(tunnel.packets.poll(5, TimeUnit.SECONDS));
+    assertTrue(rst.isRst());
+    waitForThreads(0);
+    assertNull(sessionManager.getSession(CLIENT, 5001, LOCALHOST, port, TCP_PROTOCOL));
+    assertEquals(0, sessionManager.getHalfOpenCount());
+  }
+
+  private static byte[] syn(int port) {
+    byte[] tcp = TcpPacketFactory.createSynPacket(CLIENT, LOCALHOST, 5001, port, 1000);
+    return IpPacketFactory.encapsulate(CLIENT, LOCALHOST, TCP_PROTOCOL, tcp);
+  }
+
+  private static TcpHeader readTcp(byte[] packet) throws Exception {
+    assertNotNull(packet);
+    ByteBuffer buffer = ByteBuffer.wrap(packet);
+    Ip4Header.parseBuffer(buffer);
+    return TcpHeader.parseBuffer(buffer);
+  }
+
+  private void waitForThreads(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (engine.getThreadCount() != count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(count, engine.getThreadCount());
+  }
+
+  /**
+   * Stands in for the tunnel, each write is one packet.
+   */
+  private static class PacketCollector extends OutputStream {
+    private final BlockingQueue<byte[]> packets = new LinkedBlockingQueue<>();
+
+    @Override
+    public void write(int b) {
+      packets.add(new byte[] {(byte) b});
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) {
+      packets.add(Arrays.copyOfRange(data, offset, offset + length));
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package network.grape.lib.vpn;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Tests for the path MTU probe.
+ */
+public class MtuProbeTest {
+
+  @Test
+  public void controlFrameTest() {
+    byte[] probe = MtuProbe.createFrame(MtuProbe.PROBE, 7, 100);
+    assertEquals(100, probe.length);
+    assertTrue(MtuProbe.isControlFrame(probe, probe.length));
+    assertFalse(MtuProbe.isControlFrame(probe, 2));
+    assertEquals(-1, MtuProbe.getReportedSize(probe, probe.length));
+
+    byte[] reply = MtuProbe.createProbeReply(probe, probe.length);
+    assertEquals(probe.length, reply.length);
+    assertEquals(MtuProbe.PROBE_REPLY, reply[1]);
+    assertNull(MtuProbe.createProbeReply(reply, reply.length));
+
+    byte[] report = MtuProbe.createFrame(MtuProbe.MTU_REPORT, 1400, 0);
+    assertEquals(1400, MtuProbe.getReportedSize(report, report.length));
+
+    // the first nibble of an ip packet is its version, so never 0
+    byte[] ip4 = new byte[] {0x45, 0, 0, 20, 0, 0};
+    assertFalse(MtuProbe.isControlFrame(ip4, ip4.length));
+  }
+
+  @Timeout(30)
+  @Test
+  public void discoverTest() throws IOException, InterruptedException {
+    final int pathLimit = 1200;
+    DatagramSocket proxy = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    client.connect(proxy.getLocalSocketAddress());
+
+    // stands in for the proxy, but drops anything bigger than the path allows
+    AtomicInteger reported = new AtomicInteger(-1);
+    Thread responder = new Thread(() -> {
+      byte[] buffer = new byte[2048];
+      while (!proxy.isClosed()) {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+          proxy.receive(packet);
+          if (packet.getLength() > pathLimit) {
+            continue;
+          }
+          byte[] reply = MtuProbe.createProbeReply(buffer, packet.getLength());
+          if (reply != null) {
+            proxy.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+          } else {
+            reported.set(MtuProbe.getReportedSize(buffer, packet.getLength()));
+          }
+        } catch (IOException ex) {
+          return;
+        }
+      }
+    });
+    responder.start();
+
+    MtuProbe mtuProbe = new MtuProbe(client);
+    mtuProbe.setTimeout(100);
+    assertEquals(pathLimit, mtuProbe.discover());
+
+    // the proxy learns the result from the report
+    for (int i = 0; i < 50 && reported.get() < 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(pathLimit, reported.get());
+
+    // the probe puts the socket back the way it found it
+    assertEquals(0, client.getSoTimeout());
+
+    proxy.close();
+    responder.join();
+
+    // nobody answering at all
+    assertEquals(MtuProbe.MIN_PROBE_SIZE, mtuProbe.discover());
+    client.close();
+  }
+
+  @Test
+  public void probeReplyIsTheSameSizeTest() {
+    byte[] probe = MtuProbe.createFrame(MtuProbe.PROBE, 3, 1000);
+    byte[] reply = MtuProbe.createProbeReply(probe, probe.length);
+    probe[1] = MtuProbe.PROBE_REPLY;
+    assertArrayEquals(probe, reply);
+  }
+
+  @Timeout(30)
+  @Test
+  public void onlyFirstAttemptCountsTest() throws IOException, InterruptedException {
+    final int pathLimit = 1200;
+    DatagramSocket proxy = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    client.connect(proxy.getLocalSocketAddress());
+
+    // loses the first copy of every probe, as a path which fragments the resends would
+    Thread responder = new Thread(() -> {
+      byte[] buffer = new byte[2048];
+      Set<Integer> seen = new HashSet<>();
+      while (!proxy.isClosed()) {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+          proxy.receive(packet);
+          byte[] reply = MtuProbe.createProbeReply(buffer, packet.getLength());
+          if (reply == null || packet.getLength() > pathLimit
+              || seen.add(ByteBuffer.wrap(buffer).getInt(2))) {
+            continue;
+          }
+          proxy.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+        } catch (IOException ex) {
+          return;
+        }
+      }
+    });
+    responder.start();
+
+    // without don't fragment a resent probe proves nothing, so it stays at the minimum
+    MtuProbe mtuProbe = new MtuProbe(client);
+    mtuProbe.setTimeout(50);
+    mtuProbe.setDontFragment((socket, enabled) -> false);
+    assertEquals(MtuProbe.MIN_PROBE_SIZE, mtuProbe.discover());
+
+    // with it, the resends count, and it's turned off again afterwards
+    List<Boolean> calls = new ArrayList<>();
+    mtuProbe.setDontFragment((socket, enabled) -> {
+      calls.add(enabled);
+      return true;
+    });
+    assertEquals(pathLimit, mtuProbe.discover());
+    assertEquals(List.of(true, false), calls);
+
+    proxy.close();
+    responder.join();
+    client.close();
+  }
+}
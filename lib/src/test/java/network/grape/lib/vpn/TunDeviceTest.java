@@ -0,0 +1,103 @@
+package network.grape.lib.vpn;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test the TUN device implementations.
+ */
+public class TunDeviceTest {
+
+  private static byte[] remaining(ByteBuffer buffer) {
+    byte[] data = new byte[buffer.remaining()];
+    buffer.get(data);
+    return data;
+  }
+
+  @Test public void memoryBatchTest() throws IOException, InterruptedException {
+    MemoryTunDevice device = new MemoryTunDevice();
+    ByteBuffer[] packets = {ByteBuffer.allocate(4), ByteBuffer.allocate(4)};
+
+    // nothing waiting, the read gives up after a while
+    assertEquals(0, device.read(packets));
+
+    device.inject(new byte[] {1, 2, 3});
+    device.inject(new byte[] {4, 5, 6, 7, 8});
+    device.inject(new byte[] {9});
+    // as many as there are buffers in one read, too long packets are truncated
+    assertEquals(2, device.read(packets));
+    assertArrayEquals(new byte[] {1, 2, 3}, remaining(packets[0]));
+    assertArrayEquals(new byte[] {4, 5, 6, 7}, remaining(packets[1]));
+    assertEquals(1, device.getTruncated());
+    assertEquals(1, device.read(packets));
+    assertArrayEquals(new byte[] {9}, remaining(packets[0]));
+
+    device.write(ByteBuffer.wrap(new byte[] {0, 1, 2, 3}, 1, 2));
+    assertArrayEquals(new byte[] {1, 2}, device.poll(1, TimeUnit.SECONDS));
+    assertNull(device.poll(1, TimeUnit.MILLISECONDS));
+
+    device.close();
+    assertEquals(-1, device.read(packets));
+    assertThrows(IOException.class, () -> device.write(ByteBuffer.allocate(1)));
+  }
+
+  @Test public void memoryCloseTest() throws IOException {
+    MemoryTunDevice device = new MemoryTunDevice();
+    ByteBuffer[] packets = {ByteBuffer.allocate(4), ByteBuffer.allocate(4)};
+    device.inject(new byte[] {1, 2});
+    device.close();
+    // the packet which came before the close isn't lost, the close comes on the next read
+    assertEquals(1, device.read(packets));
+    assertArrayEquals(new byte[] {1, 2}, remaining(packets[0]));
+    assertEquals(-1, device.read(packets));
+  }
+
+  @Test public void nonBlockingChannelTest() throws IOException {
+    Pipe toDevice = Pipe.open();
+    Pipe fromDevice = Pipe.open();
+    toDevice.source().configureBlocking(false);
+    FileChannelTunDevice device = new FileChannelTunDevice(toDevice.source(), fromDevice.sink(),
+        false);
+    ByteBuffer[] packets = {ByteBuffer.allocateDirect(16), ByteBuffer.allocateDirect(16)};
+
+    assertEquals(0, device.read(packets));
+    toDevice.sink().write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+    assertEquals(1, device.read(packets));
+    assertArrayEquals(new byte[] {1, 2, 3}, remaining(packets[0]));
+    assertEquals(0, device.read(packets));
+
+    device.asOutputStream().write(new byte[] {4, 5, 6}, 1, 2);
+    ByteBuffer written = ByteBuffer.allocate(16);
+    fromDevice.source().read(written);
+    written.flip();
+    assertArrayEquals(new byte[] {5, 6}, remaining(written));
+
+    toDevice.sink().close();
+    assertEquals(-1, device.read(packets));
+    device.close();
+  }
+
+  @Test public void blockingChannelTest() throws IOException {
+    Pipe toDevice = Pipe.open();
+    Pipe fromDevice = Pipe.open();
+    FileChannelTunDevice device = new FileChannelTunDevice(toDevice.source(), fromDevice.sink(),
+        true);
+    ByteBuffer[] packets = {ByteBuffer.allocateDirect(16), ByteBuffer.allocateDirect(16)};
+
+    toDevice.sink().write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+    assertEquals(1, device.read(packets));
+    assertArrayEquals(new byte[] {1, 2, 3}, remaining(packets[0]));
+
+    toDevice.sink().close();
+    assertEquals(-1, device.read(packets));
+    device.close();
+  }
+}
@@ -0,0 +1,65 @@
+package network.grape.lib.vpn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Tests for agreeing the capabilities of a plaintext tunnel.
+ */
+public class TunnelCapabilitiesTest {
+
+  @Timeout(10)
+  @Test
+  public void offerTest() throws IOException, InterruptedException {
+    try (DatagramSocket proxy = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+         DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      client.connect(proxy.getLocalSocketAddress());
+
+      // stands in for a proxy which can compress, but nothing else
+      AtomicInteger offered = new AtomicInteger(-1);
+      Thread responder = new Thread(() -> {
+        byte[] buffer = new byte[64];
+        DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+        try {
+          proxy.receive(request);
+          assertTrue(TunnelCapabilities.isOffer(buffer, request.getLength()));
+          offered.set(TunnelCapabilities.getOffered(buffer));
+          byte[] reply = TunnelCapabilities.createReply(
+              offered.get() & TunnelCapabilities.COMPRESSION);
+          proxy.send(new DatagramPacket(reply, reply.length, request.getSocketAddress()));
+        } catch (IOException ex) {
+          // the test fails on the result
+        }
+      });
+      responder.start();
+
+      int agreed = new TunnelCapabilities(client).offer(TunnelCapabilities.COMPRESSION | 0x80);
+      responder.join();
+      assertEquals(TunnelCapabilities.COMPRESSION | 0x80, offered.get());
+      assertEquals(TunnelCapabilities.COMPRESSION, agreed);
+    }
+  }
+
+  @Test
+  public void noReplyTest() throws IOException {
+    try (DatagramSocket proxy = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+         DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+      client.connect(proxy.getLocalSocketAddress());
+      TunnelCapabilities capabilities = new TunnelCapabilities(client);
+      capabilities.setTimeout(50);
+      capabilities.setAttempts(2);
+      // a proxy which doesn't know the frame turns nothing on
+      assertEquals(0, capabilities.offer(TunnelCapabilities.COMPRESSION));
+      assertEquals(0, client.getSoTimeout());
+    }
+  }
+}
@@ -1,13 +1,19 @@
 package network.grape.lib.vpn;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -15,10 +21,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 import network.grape.lib.PacketHeaderException;
 import network.grape.lib.session.SessionHandler;
 
-import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
 /**
@@ -30,19 +36,22 @@ public class VpnReaderTest {
     InputStream inputStream = mock(InputStream.class);
     OutputStream outputStream = mock(OutputStream.class);
     SessionHandler sessionHandler = mock(SessionHandler.class);
-    ByteBuffer packet = mock(ByteBuffer.class);
+    ByteBuffer packet = ByteBuffer.allocate(100);
     SocketProtector socketProtector = mock(SocketProtector.class);
     VpnReader vpnReader = spy(new VpnReader(inputStream, outputStream, sessionHandler, packet, socketProtector));
     doReturn(true).doReturn(false).when(vpnReader).isRunning();
 
     // read length = 0
     vpnReader.run();
+    verify(sessionHandler, never()).handlePacket(any(), any());
 
     // read length > 0
     doReturn(true).doReturn(false).when(vpnReader).isRunning();
-    doReturn(10).when(inputStream).read(any());
+    doReturn(10).when(inputStream).read(any(), anyInt(), anyInt());
     doNothing().when(sessionHandler).handlePacket(packet, outputStream);
     vpnReader.run();
+    verify(sessionHandler).handlePacket(packet, outputStream);
+    assertEquals(10, packet.limit());
 
     // read length > 0, packetheader exception
     doReturn(true).doReturn(false).when(vpnReader).isRunning();
@@ -50,11 +59,42 @@ public class VpnReaderTest {
     vpnReader.run();
 
     // IO Ex
-    doThrow(IOException.class).when(inputStream).read(any());
+    doThrow(IOException.class).when(inputStream).read(any(), anyInt(), anyInt());
     doReturn(true).doReturn(false).when(vpnReader).isRunning();
     vpnReader.run();
   }
 
+  @Test public void tunDeviceBatchTest() throws Exception {
+    MemoryTunDevice device = new MemoryTunDevice();
+    SessionHandler sessionHandler = mock(SessionHandler.class);
+    ByteBuffer[] packets = {ByteBuffer.allocate(100), ByteBuffer.allocate(100),
+        ByteBuffer.allocate(100)};
+    VpnReader vpnReader = new VpnReader(device, sessionHandler, packets,
+        mock(SocketProtector.class));
+
+    // the reply goes back out through the device
+    doAnswer(invocation -> {
+      ByteBuffer packet = invocation.getArgument(0);
+      OutputStream outputStream = invocation.getArgument(1);
+      outputStream.write(packet.array(), 0, packet.limit());
+      return null;
+    }).when(sessionHandler).handlePacket(any(), any());
+    for (int i = 1; i <= 5; i++) {
+      device.inject(new byte[] {(byte) i, (byte) i});
+    }
+
+    Thread thread = new Thread(vpnReader);
+    thread.start();
+    for (int i = 1; i <= 5; i++) {
+      assertArrayEquals(new byte[] {(byte) i, (byte) i}, device.poll(5, TimeUnit.SECONDS));
+    }
+    // closing the device stops the reader
+    device.close();
+    thread.join(5000);
+    assertFalse(thread.isAlive());
+    assertFalse(vpnReader.isRunning());
+  }
+
   @Test public void shutDownTest() {
     FileInputStream fileInputStream = mock(FileInputStream.class);
     FileOutputStream fileOutputStream = mock(FileOutputStream.class);
@@ -1,6 +1,15 @@
 package network.grape.lib.vpn;
 
+import static network.grape.lib.network.ip.IpPacketFactory.copyIp4Header;
+import static network.grape.lib.network.ip.IpTestCommon.testIp4Header;
+import static network.grape.lib.transport.tcp.TcpPacketFactory.copyTcpHeader;
+import static network.grape.lib.transport.tcp.TcpTest.testTcpHeader;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
@@ -13,8 +22,11 @@ import static org.mockito.Mockito.when;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
@@ -24,12 +36,20 @@ import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.ThreadPoolExecutor;
+import network.grape.lib.PacketHeaderException;
+import network.grape.lib.network.ip.Ip4Header;
 import network.grape.lib.session.Session;
 import network.grape.lib.session.SessionManager;
+import network.grape.lib.session.TcpSession;
+import network.grape.lib.session.SessionOutputStreamReaderWorker;
+import network.grape.lib.session.SessionOutputStreamWriterWorker;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.tcp.TcpHeader;
+import network.grape.lib.util.WorkerScheduler;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 /**
@@ -37,7 +57,7 @@ import org.mockito.Mockito;
  */
 public class VpnWriterTest {
 
-  ThreadPoolExecutor workerPool;
+  WorkerScheduler scheduler;
   SessionManager sessionManager;
 
   /**
@@ -45,7 +65,7 @@ public class VpnWriterTest {
    */
   @BeforeEach
   public void before() {
-    workerPool = mock(ThreadPoolExecutor.class);
+    scheduler = mock(WorkerScheduler.class);
     sessionManager = mock(SessionManager.class);
   }
 
@@ -70,7 +90,7 @@ public class VpnWriterTest {
 
   @Test
   public void invalidUdpSelector() {
-    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, workerPool));
+    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
     SelectionKey selectionKey = mock(SelectionKey.class);
     when(selectionKey.isValid()).thenReturn(false);
     vpnWriter.processUdpSelectionKey(selectionKey);
@@ -78,7 +98,7 @@ public class VpnWriterTest {
 
   @Test
   public void invalidTcpSelector() throws IOException {
-    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, workerPool));
+    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
     SelectionKey selectionKey = mock(SelectionKey.class);
     when(selectionKey.isValid()).thenReturn(false);
     vpnWriter.processTcpSelectionKey(selectionKey);
@@ -86,7 +106,7 @@ public class VpnWriterTest {
 
   @Test
   public void nullTcpChannel() throws IOException {
-    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, workerPool));
+    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
     SelectionKey selectionKey = mock(SelectionKey.class);
     when(selectionKey.isValid()).thenReturn(true);
     when(selectionKey.channel()).thenReturn(null);
@@ -96,13 +116,13 @@ public class VpnWriterTest {
   @Test
   public void udpSessionNotFound() throws IOException {
     SelectionKey selectionKey = prepSelectionKey(false);
-    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, workerPool));
+    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
     vpnWriter.processUdpSelectionKey(selectionKey);
   }
 
   @Test
   public void tcpSessionNotFound() throws IOException {
-    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, workerPool));
+    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
     SelectionKey selectionKey = mock(SelectionKey.class);
     when(selectionKey.isValid()).thenReturn(true);
     SocketChannel channel = mock(SocketChannel.class);
@@ -113,12 +133,12 @@ public class VpnWriterTest {
 
   @Test
   public void TcpSessionNotConnectedKeyConnectable() throws IOException {
-    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, workerPool));
+    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
     SelectionKey selectionKey = mock(SelectionKey.class);
     when(selectionKey.isValid()).thenReturn(true);
     SocketChannel channel = mock(SocketChannel.class);
     when(selectionKey.channel()).thenReturn(channel);
-    Session session = mock(Session.class);
+    TcpSession session = mock(TcpSession.class);
     when(sessionManager.getSessionByChannel(channel)).thenReturn(session);
     when(selectionKey.isConnectable()).thenReturn(true);
     doReturn(true).when(channel).connect(any());
@@ -158,7 +178,7 @@ public class VpnWriterTest {
 
   @Test
   public void UdpSessionNotConnectedKeyConnectable() throws IOException {
-    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, workerPool));
+    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
     Session session = mock(Session.class);
 
     //io exception on connect
@@ -188,7 +208,7 @@ public class VpnWriterTest {
 
   @Test
   public void UdpSessionNotConnectedKeyNotConnectable() throws IOException {
-    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, workerPool));
+    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
     Session session = mock(Session.class);
     when(sessionManager.getSessionByChannel(any())).thenReturn(session);
     SelectionKey selectionKey = prepSelectionKey(true);
@@ -201,7 +221,7 @@ public class VpnWriterTest {
 
   @Test
   public void UdpSessionConnected() throws IOException {
-    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, workerPool));
+    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
     Session session = mock(Session.class);
     when(sessionManager.getSessionByChannel(any())).thenReturn(session);
     SelectionKey selectionKey = prepSelectionKey(false);
@@ -215,66 +235,58 @@ public class VpnWriterTest {
   @Test
   public void testProcessSelector() {
     Session session = mock(Session.class);
+    when(session.getKey()).thenReturn("key");
     SelectionKey selectionKey = mock(SelectionKey.class);
-    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, workerPool));
+    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
+    when(scheduler.submit(any(), any(), anyLong())).thenReturn(true);
 
     when(selectionKey.isValid()).thenReturn(false);
     vpnWriter.processSelector(selectionKey, session);
-    verify(session, never()).setBusyWrite(true);
-    verify(session, never()).setBusyRead(true);
+    verify(scheduler, never()).submit(any(), any(), anyLong());
 
     when(selectionKey.isValid()).thenReturn(true);
     when(selectionKey.isWritable()).thenReturn(false);
     when(selectionKey.isReadable()).thenReturn(false);
     vpnWriter.processSelector(selectionKey, session);
-    verify(session, never()).setBusyWrite(true);
-    verify(session, never()).setBusyRead(true);
-
-    when(selectionKey.isValid()).thenReturn(true);
-    when(selectionKey.isWritable()).thenReturn(true);
-    when(selectionKey.isReadable()).thenReturn(true);
-    when(session.isBusyWrite()).thenReturn(true);
-    when(session.isBusyRead()).thenReturn(true);
-    vpnWriter.processSelector(selectionKey, session);
-    verify(session, never()).setBusyWrite(true);
-    verify(session, never()).setBusyRead(true);
+    verify(scheduler, never()).submit(any(), any(), anyLong());
 
-    when(selectionKey.isValid()).thenReturn(true);
+    // nothing to write, but always a read, and interest is dropped so the selector doesn't spin
     when(selectionKey.isWritable()).thenReturn(true);
     when(selectionKey.isReadable()).thenReturn(true);
-    when(session.isBusyWrite()).thenReturn(false);
-    when(session.isBusyRead()).thenReturn(false);
     when(session.hasDataToSend()).thenReturn(false);
     when(session.isDataForSendingReady()).thenReturn(false);
-    doNothing().when(workerPool).execute(any());
     vpnWriter.processSelector(selectionKey, session);
-    verify(session, never()).setBusyWrite(true);
-    verify(session, Mockito.times(1)).setBusyRead(true);
+    verify(scheduler, never()).submit(any(), any(SessionOutputStreamWriterWorker.class),
+        anyLong());
+    verify(scheduler, times(1)).submit(eq("key"), any(SessionOutputStreamReaderWorker.class),
+        anyLong());
+    verify(session, times(1)).unsubscribeKey(SelectionKey.OP_WRITE);
+    verify(session, times(1)).unsubscribeKey(SelectionKey.OP_READ);
 
-    when(selectionKey.isValid()).thenReturn(true);
-    when(selectionKey.isWritable()).thenReturn(true);
     when(selectionKey.isReadable()).thenReturn(false);
-    when(session.isBusyWrite()).thenReturn(false);
     when(session.hasDataToSend()).thenReturn(true);
     when(session.isDataForSendingReady()).thenReturn(false);
     vpnWriter.processSelector(selectionKey, session);
-    verify(session, never()).setBusyWrite(true);
+    verify(scheduler, never()).submit(any(), any(SessionOutputStreamWriterWorker.class),
+        anyLong());
 
-    when(selectionKey.isValid()).thenReturn(true);
-    when(selectionKey.isWritable()).thenReturn(true);
-    when(selectionKey.isReadable()).thenReturn(false);
-    when(session.isBusyWrite()).thenReturn(false);
-    when(session.hasDataToSend()).thenReturn(true);
     when(session.isDataForSendingReady()).thenReturn(true);
     vpnWriter.processSelector(selectionKey, session);
-    verify(session, Mockito.times(1)).setBusyWrite(true);
+    verify(scheduler, times(1)).submit(eq("key"), any(SessionOutputStreamWriterWorker.class),
+        anyLong());
+    verify(session, never()).subscribeKey(SelectionKey.OP_WRITE);
+
+    // workers backed up, interest is put back so it's retried on the next select
+    when(scheduler.submit(any(), any(), anyLong())).thenReturn(false);
+    vpnWriter.processSelector(selectionKey, session);
+    verify(session, times(1)).subscribeKey(SelectionKey.OP_WRITE);
   }
 
   @Test
   public void runTest() throws InterruptedException, IOException {
 
     // base case, nothing back from the selector
-    VpnWriter vpnWriter = spy(new VpnWriter( sessionManager, workerPool));
+    VpnWriter vpnWriter = spy(new VpnWriter( sessionManager, scheduler));
     Selector selector = mock(Selector.class);
     when(sessionManager.getSelector()).thenReturn(selector);
     when(vpnWriter.isRunning()).thenReturn(true).thenReturn(false);
@@ -283,7 +295,7 @@ public class VpnWriterTest {
     t.join();
 
     // exception on select
-    vpnWriter = spy(new VpnWriter(sessionManager, workerPool));
+    vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
     selector = mock(Selector.class);
     when(selector.select()).thenThrow(IOException.class);
     when(sessionManager.getSelector()).thenReturn(selector);
@@ -293,7 +305,7 @@ public class VpnWriterTest {
     t.join();
 
     // exception on select + interrupt in handler
-    vpnWriter = spy(new VpnWriter(sessionManager, workerPool));
+    vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
     selector = mock(Selector.class);
     when(selector.select()).thenThrow(IOException.class);
     when(sessionManager.getSelector()).thenReturn(selector);
@@ -325,7 +337,7 @@ public class VpnWriterTest {
     when(serverSocketKey.channel()).thenReturn(serverSocketChannel);
     selectionKeySet.add(serverSocketKey);
 
-    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, workerPool));
+    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
     doNothing().when(vpnWriter).processUdpSelectionKey(any());
 
     Selector selector = mock(Selector.class);
@@ -341,7 +353,7 @@ public class VpnWriterTest {
 
   @Test public void runTestNotRunning() throws InterruptedException {
     // base case, nothing back from the selector
-    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, workerPool));
+    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
     Selector selector = mock(Selector.class);
     when(sessionManager.getSelector()).thenReturn(selector);
     when(vpnWriter.isRunning()).thenReturn(true).thenReturn(false);
@@ -359,7 +371,7 @@ public class VpnWriterTest {
     when(udpKey.channel()).thenReturn(udpChannel);
     selectionKeySet.add(udpKey);
 
-    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, workerPool));
+    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
     doNothing().when(vpnWriter).processUdpSelectionKey(any());
 
     Selector selector = mock(Selector.class);
@@ -374,4 +386,99 @@ public class VpnWriterTest {
     vpnWriter.shutdown();
     t.join();
   }
+
+  TcpSession prepConnectingSession(OutputStream outputStream) throws IOException {
+    Ip4Header ip4Header = copyIp4Header(testIp4Header());
+    TcpHeader syn = copyTcpHeader(testTcpHeader());
+    syn.setSequenceNumber(1000);
+    TcpSession session = new TcpSession(ip4Header.getSourceAddress(), syn.getSourcePort(),
+        ip4Header.getDestinationAddress(), syn.getDestinationPort(),
+        outputStream);
+    session.setLastIpHeader(ip4Header);
+    session.setLastTransportHeader(syn);
+    return session;
+  }
+
+  TcpHeader captureRst(OutputStream outputStream) throws IOException, PacketHeaderException {
+    ArgumentCaptor<byte[]> captor = ArgumentCaptor.forClass(byte[].class);
+    verify(outputStream, times(1)).write(captor.capture());
+    ByteBuffer buffer = ByteBuffer.wrap(captor.getValue());
+    Ip4Header.parseBuffer(buffer);
+    TcpHeader tcpHeader = TcpHeader.parseBuffer(buffer);
+    assertTrue(tcpHeader.isRst());
+    return tcpHeader;
+  }
+
+  @Test
+  public void connectFailedBeforeSynAck() throws IOException, PacketHeaderException {
+    VpnWriter vpnWriter = new VpnWriter(sessionManager, scheduler);
+    OutputStream outputStream = mock(OutputStream.class);
+    TcpSession session = prepConnectingSession(outputStream);
+    session.setPendingSynAck(new byte[1]);
+
+    // the SYN is refused with an RST-ACK, as a closed port would
+    vpnWriter.connectFailed(session, "refused");
+    TcpHeader rst = captureRst(outputStream);
+    assertTrue(rst.isAck());
+    assertEquals(1001, rst.getAckNumber());
+    assertEquals(session.getSourcePort(), rst.getDestinationPort());
+    verify(sessionManager, times(1)).closeSession(session);
+
+    // the timeout firing afterwards doesn't do anything more
+    vpnWriter.connectFailed(session, "timed out");
+    verify(outputStream, times(1)).write(any());
+    verify(sessionManager, times(1)).closeSession(session);
+  }
+
+  @Test
+  public void connectFailedAfterSynAck() throws IOException, PacketHeaderException {
+    VpnWriter vpnWriter = new VpnWriter(sessionManager, scheduler);
+    OutputStream outputStream = mock(OutputStream.class);
+    TcpSession session = prepConnectingSession(outputStream);
+    session.setSendNext(5001);
+
+    // the client already has a SYN-ACK, so the RST has to be in its window
+    vpnWriter.connectFailed(session, "refused");
+    TcpHeader rst = captureRst(outputStream);
+    assertFalse(rst.isAck());
+    assertEquals(5001, rst.getSequenceNumber());
+    verify(sessionManager, times(1)).closeSession(session);
+  }
+
+  @Test
+  public void connectSucceeded() throws IOException {
+    VpnWriter vpnWriter = new VpnWriter(sessionManager, scheduler);
+    OutputStream outputStream = mock(OutputStream.class);
+    TcpSession session = prepConnectingSession(outputStream);
+    byte[] synAck = new byte[] {1, 2, 3};
+    session.setPendingSynAck(synAck);
+
+    vpnWriter.connectSucceeded(session);
+    verify(outputStream, times(1)).write(synAck);
+
+    // once connected, a late timeout mustn't tear the session down
+    vpnWriter.connectSucceeded(session);
+    vpnWriter.connectFailed(session, "timed out");
+    verify(outputStream, times(1)).write(any());
+    verify(sessionManager, never()).closeSession(any());
+  }
+
+  @Test
+  public void finishConnectFails() throws IOException {
+    VpnWriter vpnWriter = spy(new VpnWriter(sessionManager, scheduler));
+    SelectionKey selectionKey = mock(SelectionKey.class);
+    when(selectionKey.isValid()).thenReturn(true);
+    when(selectionKey.isConnectable()).thenReturn(true);
+    SocketChannel channel = mock(SocketChannel.class);
+    when(selectionKey.channel()).thenReturn(channel);
+    Session session = prepConnectingSession(mock(OutputStream.class));
+    when(sessionManager.getSessionByChannel(channel)).thenReturn(session);
+    doReturn(true).when(channel).isConnectionPending();
+    doThrow(new ConnectException("Connection refused")).when(channel).finishConnect();
+
+    vpnWriter.processTcpSelectionKey(selectionKey);
+    verify(vpnWriter, times(1)).connectFailed(any(), any());
+    verify(sessionManager, times(1)).closeSession(session);
+    assertFalse(session.isConnected());
+  }
 }
@@ -0,0 +1,312 @@
+package network.grape.proxy;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import network.grape.lib.PacketHeaderException;
+import network.grape.lib.metrics.PipelineTracer;
+import network.grape.lib.network.ip.Ip4Header;
+import network.grape.lib.network.ip.Ip6Header;
+import network.grape.lib.network.ip.IpHeader;
+import network.grape.lib.session.Session;
+import network.grape.lib.session.TcpSession;
+import network.grape.lib.session.UdpNatBinding;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.tcp.TcpHeader;
+import network.grape.lib.transport.udp.UdpHeader;
+
+import static network.grape.lib.network.ip.IpHeader.IP4_VERSION;
+
+/**
+ * Turns the stages of the packet pipeline into JDK Flight Recorder events, under Grape/Pipeline
+ * in JMC. The events are disabled by default, so even a recording doesn't include them unless
+ * they're turned on, eg:
+ *
+ * <pre>
+ * -XX:StartFlightRecording:network.grape.PacketHandled#enabled=true,...
+ * </pre>
+ *
+ * <p>or with a .jfc settings file. Until a recording is running {@link #isActive()} is false and
+ * the pipeline doesn't time anything. Each event is committed when its stage is over, with how
+ * long the stage took in its duration field, so the stage started that long before the event's
+ * start time.</p>
+ */
+public class JfrPipelineTracer implements PipelineTracer {
+    private volatile boolean active;
+
+    /**
+     * Construct a tracer which follows the recordings starting and stopping.
+     */
+    public JfrPipelineTracer() {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                updateActive();
+            }
+
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                updateActive();
+            }
+        });
+    }
+
+    private void updateActive() {
+        boolean running = false;
+        if (FlightRecorder.isInitialized()) {
+            for (Recording recording : FlightRecorder.getFlightRecorder().getRecordings()) {
+                if (recording.getState() == RecordingState.RUNNING) {
+                    running = true;
+                    break;
+                }
+            }
+        }
+        active = running;
+    }
+
+    @Override
+    public boolean isActive() {
+        return active;
+    }
+
+    @Override
+    public void packetHandled(ByteBuffer packet, long durationNanos) {
+        PacketHandledEvent event = new PacketHandledEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.sessionKey = sessionKey(packet);
+        event.size = packet.limit();
+        event.handleTime = durationNanos;
+        event.commit();
+    }
+
+    @Override
+    public void sessionCreated(Session session) {
+        SessionCreatedEvent event = new SessionCreatedEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.sessionKey = session.getKey();
+        event.protocol = session.getProtocol();
+        event.commit();
+    }
+
+    @Override
+    public void connectCompleted(TcpSession session, boolean succeeded, long durationNanos) {
+        ConnectCompletedEvent event = new ConnectCompletedEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.sessionKey = session.getKey();
+        event.succeeded = succeeded;
+        event.connectTime = durationNanos;
+        event.commit();
+    }
+
+    @Override
+    public void selectorWakeup(int keys, long durationNanos) {
+        SelectorWakeupEvent event = new SelectorWakeupEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.readyKeys = keys;
+        event.dispatchTime = durationNanos;
+        event.commit();
+    }
+
+    @Override
+    public void workerQueued(Object key, int queueDepth) {
+        WorkerQueuedEvent event = new WorkerQueuedEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.sessionKey = describe(key);
+        event.queueDepth = queueDepth;
+        event.commit();
+    }
+
+    @Override
+    public void workerRun(Object key, long waitedNanos, long durationNanos) {
+        WorkerRunEvent event = new WorkerRunEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.sessionKey = describe(key);
+        event.queueTime = waitedNanos;
+        event.runTime = durationNanos;
+        event.commit();
+    }
+
+    @Override
+    public void egressFlushed(int packets, int bytes, long durationNanos) {
+        EgressFlushedEvent event = new EgressFlushedEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.packets = packets;
+        event.size = bytes;
+        event.writeTime = durationNanos;
+        event.commit();
+    }
+
+    private static String describe(Object key) {
+        if (key instanceof UdpNatBinding) {
+            return ((UdpNatBinding) key).getKey();
+        }
+        return key != null ? key.toString() : null;
+    }
+
+    /**
+     * Works out the session key of a packet from the client, the same as {@link Session#getKey()}
+     * gives, by parsing its headers again. Only done while the event is being recorded.
+     *
+     * @param packet the packet
+     * @return the key, or null if it isn't a TCP or UDP packet that parses
+     */
+    static String sessionKey(ByteBuffer packet) {
+        ByteBuffer stream = packet.duplicate();
+        stream.rewind();
+        try {
+            if (!stream.hasRemaining()) {
+                return null;
+            }
+            IpHeader ipHeader = (stream.get(0) >> 4) == IP4_VERSION
+                    ? Ip4Header.parseBuffer(stream) : Ip6Header.parseBuffer(stream);
+            TransportHeader transportHeader;
+            if (ipHeader.getProtocol() == TransportHeader.TCP_PROTOCOL) {
+                transportHeader = TcpHeader.parseBuffer(stream);
+            } else if (ipHeader.getProtocol() == TransportHeader.UDP_PROTOCOL) {
+                transportHeader = UdpHeader.parseBuffer(stream);
+            } else {
+                return null;
+            }
+            return ipHeader.getSourceAddress().toString() + ":" + transportHeader.getSourcePort()
+                    + "," + ipHeader.getDestinationAddress().toString() + ":"
+                    + transportHeader.getDestinationPort() + "::" + ipHeader.getProtocol();
+        } catch (PacketHeaderException | IOException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    @Name("network.grape.PacketHandled")
+    @Label("Packet Handled")
+    @Description("A packet from the client through the session handler")
+    @Category({"Grape", "Pipeline"})
+    @Enabled(false)
+    @StackTrace(false)
+    static class PacketHandledEvent extends Event {
+        @Label("Session Key")
+        String sessionKey;
+        @Label("Size")
+        @DataAmount
+        int size;
+        @Label("Handle Time")
+        @Timespan
+        long handleTime;
+    }
+
+    @Name("network.grape.SessionCreated")
+    @Label("Session Created")
+    @Description("A session added for a new flow")
+    @Category({"Grape", "Pipeline"})
+    @Enabled(false)
+    @StackTrace(false)
+    static class SessionCreatedEvent extends Event {
+        @Label("Session Key")
+        String sessionKey;
+        @Label("Protocol")
+        short protocol;
+    }
+
+    @Name("network.grape.ConnectCompleted")
+    @Label("Connect Completed")
+    @Description("The connect to a TCP session's destination succeeded or failed")
+    @Category({"Grape", "Pipeline"})
+    @Enabled(false)
+    @StackTrace(false)
+    static class ConnectCompletedEvent extends Event {
+        @Label("Session Key")
+        String sessionKey;
+        @Label("Succeeded")
+        boolean succeeded;
+        @Label("Connect Time")
+        @Timespan
+        long connectTime;
+    }
+
+    @Name("network.grape.SelectorWakeup")
+    @Label("Selector Wakeup")
+    @Description("The VpnWriter selector handing its ready keys to the workers")
+    @Category({"Grape", "Pipeline"})
+    @Enabled(false)
+    @StackTrace(false)
+    static class SelectorWakeupEvent extends Event {
+        @Label("Ready Keys")
+        int readyKeys;
+        @Label("Dispatch Time")
+        @Timespan
+        long dispatchTime;
+    }
+
+    @Name("network.grape.WorkerQueued")
+    @Label("Worker Queued")
+    @Description("A reader or writer task queued for a session")
+    @Category({"Grape", "Pipeline"})
+    @Enabled(false)
+    @StackTrace(false)
+    static class WorkerQueuedEvent extends Event {
+        @Label("Session Key")
+        String sessionKey;
+        @Label("Queue Depth")
+        int queueDepth;
+    }
+
+    @Name("network.grape.WorkerRun")
+    @Label("Worker Run")
+    @Description("A reader or writer task run for a session")
+    @Category({"Grape", "Pipeline"})
+    @Enabled(false)
+    @StackTrace(false)
+    static class WorkerRunEvent extends Event {
+        @Label("Session Key")
+        String sessionKey;
+        @Label("Queue Time")
+        @Timespan
+        long queueTime;
+        @Label("Run Time")
+        @Timespan
+        long runTime;
+    }
+
+    @Name("network.grape.EgressFlushed")
+    @Label("Egress Flushed")
+    @Description("A batch of packets written back to the client")
+    @Category({"Grape", "Pipeline"})
+    @Enabled(false)
+    @StackTrace(false)
+    static class EgressFlushedEvent extends Event {
+        @Label("Packets")
+        int packets;
+        @Label("Size")
+        @DataAmount
+        int size;
+        @Label("Write Time")
+        @Timespan
+        long writeTime;
+    }
+}
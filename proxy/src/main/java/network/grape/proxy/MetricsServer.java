@@ -0,0 +1,74 @@
+package network.grape.proxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+import network.grape.lib.metrics.MetricsRegistry;
+
+/**
+ * Serves a {@link MetricsRegistry} for Prometheus to scrape, on /metrics. Uses the http server
+ * which comes with the JDK, on a thread of its own, so it needs nothing extra and stays out of
+ * the way of the packet threads.
+ */
+public class MetricsServer {
+    public static final String PATH = "/metrics";
+    private final Logger logger = LoggerFactory.getLogger(MetricsServer.class);
+    private final MetricsRegistry registry;
+    private final HttpServer server;
+
+    /**
+     * Construct a server for the registry, bound but not started.
+     *
+     * @param registry the metrics to serve
+     * @param port the port to listen on, 0 for any
+     * @throws IOException if the port can't be bound
+     */
+    public MetricsServer(MetricsRegistry registry, int port) throws IOException {
+        this.registry = registry;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Serving metrics on port {}{}", getPort(), PATH);
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", MetricsRegistry.CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -4,72 +4,254 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import network.grape.lib.PacketHeaderException;
+import network.grape.lib.compress.CompressingOutputStream;
+import network.grape.lib.compress.PacketCompressor;
+import network.grape.lib.compress.PacketDecompressor;
+import network.grape.lib.crypto.AeadTunnel;
+import network.grape.lib.crypto.SealingOutputStream;
+import network.grape.lib.crypto.TunnelHandshake;
+import network.grape.lib.dns.DnsForwarder;
+import network.grape.lib.metrics.MetricsRegistry;
+import network.grape.lib.metrics.PipelineMetrics;
+import network.grape.lib.metrics.PipelineTracer;
+import network.grape.lib.multipath.MultipathTunnel;
+import network.grape.lib.multipath.PathScheduler;
+import network.grape.lib.multipath.TunnelPath;
+import network.grape.lib.session.PacketDispatcher;
 import network.grape.lib.session.Session;
 import network.grape.lib.session.SessionHandler;
 import network.grape.lib.session.SessionManager;
+import network.grape.lib.session.SessionOutputStreamReaderWorker;
+import network.grape.lib.transport.icmp.IcmpEchoProxy;
+import network.grape.lib.transport.tcp.SynCookies;
 import network.grape.lib.util.BufferUtil;
+import network.grape.lib.util.PacketBatchWriter;
+import network.grape.lib.util.PacketDumper;
+import network.grape.lib.util.PacketEgress;
 import network.grape.lib.util.UdpOutputStream;
+import network.grape.lib.util.WorkerScheduler;
+import network.grape.lib.vpn.FlowThreadEngine;
+import network.grape.lib.vpn.MtuProbe;
 import network.grape.lib.vpn.ProtectSocket;
 import network.grape.lib.vpn.SocketProtector;
+import network.grape.lib.vpn.TunnelCapabilities;
 import network.grape.lib.vpn.VpnWriter;
 
 import static network.grape.lib.util.Constants.MAX_RECEIVE_BUFFER_SIZE;
+import static network.grape.lib.util.Constants.TUNNEL_OVERHEAD_UDP_IP4;
+import static network.grape.lib.util.Constants.TUNNEL_OVERHEAD_UDP_IP6;
 
 public class ProxyMain implements ProtectSocket {
     public static final int DEFAULT_PORT = 19999;
     private final Logger logger;
     private DatagramSocket socket;
     private final SessionHandler handler;
+    // spreads packets over several handler threads, null to handle them on the receive thread
+    private final PacketDispatcher dispatcher;
+    // the one writer back to the client, created once the socket connects
+    private volatile PacketEgress egress;
+    private final WorkerScheduler scheduler;
+    private final SessionManager sessionManager;
+    private final VpnWriter vpnWriter;
+    // turns the pipeline stages into flight recorder events, null if there's no flight recorder
+    private final PipelineTracer tracer;
     private Thread vpnWriterThread;
     private volatile boolean running;
+    // agrees tunnel keys with the client, null if the tunnel isn't encrypted
+    private final TunnelHandshake handshake;
+    // the tunnel the client's frames are opened with and the replies are sealed with
+    private AeadTunnel tunnel;
+    // agreed by the latest hellos, oldest first, with the capabilities each agreed, but not used
+    // until a frame opens with one
+    private final Map<AeadTunnel, Integer> pendingTunnels = new LinkedHashMap<>();
+    // the most agreed tunnels waiting for a frame, the oldest is dropped to make room
+    private static final int MAX_PENDING_TUNNELS = 4;
+    private SealingOutputStream sealingStream;
+    // compress the flows which compress on the way back to the client, null not to
+    private final PacketCompressor compressor;
+    private final PacketDecompressor decompressor;
+    // the optional features offered to clients, and those the client agreed to use
+    private final int capabilities;
+    private boolean clientCompresses;
+    // has the compressor taken away while the client can't take compressed frames
+    private CompressingOutputStream compressingStream;
+    // sealed frames are opened into here, the dispatcher copies the packets out of it
+    private final byte[] plain = new byte[MAX_RECEIVE_BUFFER_SIZE];
+    private final byte[] inflated = new byte[MAX_RECEIVE_BUFFER_SIZE];
+    // sealed multipath frames are copied out to here to be opened
+    private final byte[] sealed = new byte[MAX_RECEIVE_BUFFER_SIZE];
+    // spreads the packets for each client over its paths, null for a single path
+    private final PathScheduler.Type multipathScheduler;
+    private final Map<Integer, MultipathTunnel> multipathTunnels = new HashMap<>();
+    // replies go back on the paths of the client heard from last, null for a single path
+    private final LatestClientEgress multipathEgress;
+    private static final int MULTIPATH_TICK_MILLIS = 10;
+    // the most clients with multipath tunnels, frames from any more are dropped
+    private static final int MAX_MULTIPATH_CLIENTS = 16;
+    // a client which hasn't been heard from on any path for this long has gone, eg: restarted
+    private static final long MULTIPATH_CLIENT_EXPIRY_NANOS = TimeUnit.SECONDS.toNanos(30);
 
     public ProxyMain() throws IOException {
+        this(openSocket(DEFAULT_PORT, false), 1);
+    }
+
+    /**
+     * Construct a proxy which serves the clients on one socket, with sessions of its own. With
+     * more than one shard, the threads each one starts are cut down to match.
+     *
+     * @param socket the bound tunnel socket
+     * @param shards how many proxies are sharing the port, and the machine
+     */
+    public ProxyMain(DatagramSocket socket, int shards) throws IOException {
         logger = LoggerFactory.getLogger(ProxyMain.class);
-        socket = new DatagramSocket(DEFAULT_PORT);
-        socket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        this.socket = socket;
         Map<String, Session> sessionTable = new ConcurrentHashMap<>();
         Selector selector = Selector.open();
-        final BlockingQueue<Runnable> taskQueue = new LinkedBlockingQueue<>();
-        SessionManager sessionManager = new SessionManager(sessionTable, selector);
-        ThreadPoolExecutor executor = new ThreadPoolExecutor(10, 100, 10, TimeUnit.SECONDS, taskQueue);
-        VpnWriter vpnWriter = new VpnWriter(sessionManager, executor);
+        sessionManager = new SessionManager(sessionTable, selector);
+        // -Dnetwork.grape.packetDump=<file> dumps the packets the workers build, for debugging
+        String packetDump = System.getProperty("network.grape.packetDump");
+        if (packetDump != null) {
+            sessionManager.setPacketDumper(
+                    new PacketDumper(packetDump, PacketDumper.OutputFormat.ASCII_HEXDUMP));
+        }
+        // -Dnetwork.grape.workerScheduler=fixed|fork_join|virtual (virtual needs JDK 21+)
+        WorkerScheduler.Type schedulerType = WorkerScheduler.parseType(
+                System.getProperty("network.grape.workerScheduler", "fixed"));
+        int workerThreads = Integer.getInteger("network.grape.workerThreads",
+                Math.max(1, Math.max(10, 2 * Runtime.getRuntime().availableProcessors()) / shards));
+        scheduler = WorkerScheduler.create(schedulerType, workerThreads,
+                Integer.getInteger("network.grape.workerQueue", WorkerScheduler.DEFAULT_CAPACITY));
+        vpnWriter = new VpnWriter(sessionManager, scheduler);
         vpnWriterThread = new Thread(vpnWriter);
         List<InetAddress> filters = new ArrayList<>();
         handler = new SessionHandler(sessionManager, new SocketProtector(this), vpnWriter, filters);
+        handler.setUdpNatEnabled(true);
+        handler.setDeferSynAck(true);
+        if (Boolean.getBoolean("network.grape.synCookies")) {
+            handler.setSynCookies(new SynCookies());
+        }
+        if (!Boolean.getBoolean("network.grape.disableDnsCache")) {
+            handler.setDnsForwarder(new DnsForwarder(new SocketProtector(this)));
+        }
+        handler.setIcmpEchoProxy(new IcmpEchoProxy());
+        // -Dnetwork.grape.engine=flow gives each flow threads of its own (virtual on JDK 21+)
+        // instead of the selector and worker pool
+        if ("flow".equals(System.getProperty("network.grape.engine"))) {
+            handler.setEngine(new FlowThreadEngine(sessionManager, vpnWriter));
+        }
+        int handlerThreads = Integer.getInteger("network.grape.handlerThreads",
+                Runtime.getRuntime().availableProcessors() / shards);
+        dispatcher = handlerThreads > 1 ? new PacketDispatcher(handler, handlerThreads) : null;
+        // -Dnetwork.grape.tunnelKey=<base64 key shared with the client, built into the app with
+        // -PgrapeTunnelKey> encrypts the tunnel, and then anything which isn't sealed with the
+        // agreed keys is dropped
+        String tunnelKey = System.getProperty("network.grape.tunnelKey");
+        handshake = tunnelKey != null ? new TunnelHandshake(Base64.getDecoder().decode(tunnelKey))
+                : null;
+        // -Dnetwork.grape.compression=true compresses plaintext flows both ways, for the clients
+        // which offer to take compressed frames, in their hello or capabilities
+        if (Boolean.getBoolean("network.grape.compression")) {
+            compressor = new PacketCompressor();
+            decompressor = new PacketDecompressor();
+            capabilities = TunnelCapabilities.COMPRESSION;
+        } else {
+            compressor = null;
+            decompressor = null;
+            capabilities = 0;
+        }
+        if (handshake != null) {
+            handshake.setCapabilities(capabilities);
+        }
+        // -Dnetwork.grape.multipath=lowest-rtt|weighted-round-robin|redundant accepts a client's
+        // packets over several paths, and spreads the replies over them the same way
+        String multipath = System.getProperty("network.grape.multipath");
+        multipathScheduler = multipath != null ? PathScheduler.parseType(multipath) : null;
+        multipathEgress = multipathScheduler != null ? new LatestClientEgress() : null;
+        // the events are disabled until a recording turns them on, -Dnetwork.grape.jfr=false
+        // leaves the tracer out altogether
+        tracer = Boolean.parseBoolean(System.getProperty("network.grape.jfr", "true"))
+                ? createTracer() : null;
+        handler.setTracer(tracer);
+        vpnWriter.setTracer(tracer);
+        scheduler.setTracer(tracer);
+    }
+
+    private PipelineTracer createTracer() {
+        try {
+            return new JfrPipelineTracer();
+        } catch (LinkageError ex) {
+            // a runtime without the jdk.jfr module
+            logger.info("No flight recorder, pipeline events are off: " + ex.toString());
+            return null;
+        }
     }
 
     public void service() throws IOException {
         // assume that each packet from the grape app is <= MAX_RECEIVE_BUFFER_SIZE
-        vpnWriterThread.start();
+        if (handler.getEngine() == null) {
+            vpnWriterThread.start();
+        }
+        if (dispatcher != null) {
+            dispatcher.start();
+        }
         byte[] buffer = new byte[MAX_RECEIVE_BUFFER_SIZE];
+        // multipath frames are unwrapped into here, in order
+        byte[] unwrapped = new byte[MAX_RECEIVE_BUFFER_SIZE];
+        if (multipathScheduler != null) {
+            // wake up now and then to ping the paths and give up on missing packets
+            socket.setSoTimeout(MULTIPATH_TICK_MILLIS);
+        }
+        boolean clientSeen = false;
         running = true;
         while (running) {
             DatagramPacket request = new DatagramPacket(buffer, MAX_RECEIVE_BUFFER_SIZE);
             try {
                 socket.receive(request);
-                if (!socket.isConnected()) {
+                if (!clientSeen) {
+                    clientSeen = true;
                     protectSocket(socket);
-                    socket.connect(request.getAddress(), request.getPort());
+                    if (multipathScheduler == null) {
+                        socket.connect(request.getAddress(), request.getPort());
+                    }
+                    // everything sent back to the client is wrapped in another ip + udp header
+                    int overhead = request.getAddress() instanceof Inet6Address
+                            ? TUNNEL_OVERHEAD_UDP_IP6 : TUNNEL_OVERHEAD_UDP_IP4;
+                    if (handshake != null) {
+                        overhead += AeadTunnel.OVERHEAD;
+                    }
+                    if (multipathScheduler != null) {
+                        overhead += MultipathTunnel.HEADER_LEN;
+                    }
+                    handler.setTunnelOverhead(overhead);
                 }
+            } catch (SocketTimeoutException ex) {
+                serviceMultipath(System.nanoTime(), unwrapped);
+                continue;
             } catch(IOException ex) {
                 // todo: validate this is is true
                 logger.error("Error receiving from main socket, likely shutting down: "
@@ -78,33 +260,458 @@ public class ProxyMain implements ProtectSocket {
             }
 
             int length = request.getLength();
-            System.out.println("Got Data." + length + " bytes from: " +
-                    request.getSocketAddress().toString());
+            logger.debug("Got {} bytes from: {}", length, request.getSocketAddress());
+
+            if (multipathScheduler != null) {
+                long now = System.nanoTime();
+                if (MultipathTunnel.isPing(buffer, length)) {
+                    handlePing(buffer, length, request.getSocketAddress(), now);
+                } else if (MultipathTunnel.isMultipathFrame(buffer, length)) {
+                    handleMultipathFrame(buffer, length, request.getSocketAddress(), now,
+                            unwrapped);
+                } else if (MtuProbe.isControlFrame(buffer, length)) {
+                    handleControlFrame(buffer, length, request.getSocketAddress());
+                } else {
+                    logger.warn("Dropped {} bytes which weren't on a path", length);
+                }
+                serviceMultipath(now, unwrapped);
+                continue;
+            }
+
+            if (MtuProbe.isControlFrame(buffer, length)) {
+                handleControlFrame(buffer, length, request.getSocketAddress());
+                continue;
+            }
+            handleTunnelData(buffer, length, false);
+        }
+    }
+
+    /**
+     * Opens, decompresses and hands on a packet from the client, as the stages are turned on.
+     *
+     * @param opened whether the frame has already been opened, as multipath frames are
+     */
+    private void handleTunnelData(byte[] data, int length, boolean opened) {
+        ByteBuffer packet;
+        if (handshake != null && !opened) {
+            length = openFrame(data, length, plain);
+            if (length < 0) {
+                return;
+            }
+            packet = ByteBuffer.wrap(plain, 0, length);
+        } else {
+            packet = ByteBuffer.wrap(data, 0, length);
+        }
+        if (clientCompresses
+                && PacketDecompressor.isCompressedFrame(packet.array(), length)) {
+            length = decompressor.decompress(packet.array(), length, inflated);
+            if (length < 0) {
+                return;
+            }
+            packet = ByteBuffer.wrap(inflated, 0, length);
+        }
+        if (egress == null) {
+            // the socket is connected to the one client by now (or its paths are known), so all
+            // replies go one way
+            OutputStream target = multipathEgress;
+            if (handshake != null) {
+                sealingStream = target != null
+                        ? new SealingOutputStream(target, tunnel, MAX_RECEIVE_BUFFER_SIZE)
+                        : new SealingOutputStream(socket, tunnel, MAX_RECEIVE_BUFFER_SIZE);
+                target = sealingStream;
+            } else if (target == null) {
+                try {
+                    target = new UdpOutputStream(socket);
+                } catch (SocketException ex) {
+                    logger.error("Error creating the output stream: " + ex.toString());
+                    return;
+                }
+            }
+            if (compressor != null) {
+                compressingStream = new CompressingOutputStream(target,
+                        clientCompresses ? compressor : null, MAX_RECEIVE_BUFFER_SIZE);
+                target = compressingStream;
+            }
+            egress = new PacketEgress(target);
+            egress.setTracer(tracer);
+            egress.start();
+        }
+        PacketEgress outputStream = egress;
+        if (dispatcher != null) {
+            if (!dispatcher.dispatch(packet, outputStream)) {
+                logger.warn("Handler thread is backed up, dropped packet");
+            }
+            return;
+        }
+        try {
+            handler.handlePacket(packet, outputStream);
+        } catch (PacketHeaderException | UnknownHostException ex) {
+            logger.error("Error handling a udp outputstream session: " + ex.toString());
+        }
+    }
+
+    /**
+     * Unwraps a frame from one of a client's paths, learning the path if it's new, and hands on
+     * whichever packets are now in order. If the tunnel is encrypted the frame is opened first, so
+     * only the client can add a path or move one to a new address.
+     */
+    private void handleMultipathFrame(byte[] data, int length, SocketAddress from, long now,
+                                      byte[] unwrapped) {
+        if (handshake != null) {
+            // the sealed frame is opened out of the way, and the packet put back behind the header
+            int sealedLength = length - MultipathTunnel.HEADER_LEN;
+            System.arraycopy(data, MultipathTunnel.HEADER_LEN, sealed, 0, sealedLength);
+            int packetLength = openFrame(sealed, sealedLength, plain);
+            if (packetLength < 0) {
+                return;
+            }
+            System.arraycopy(plain, 0, data, MultipathTunnel.HEADER_LEN, packetLength);
+            length = MultipathTunnel.HEADER_LEN + packetLength;
+        }
+        MultipathTunnel multipath = multipathTunnel(MultipathTunnel.getClientId(data));
+        if (multipath == null) {
+            return;
+        }
+        TunnelPath path = multipath.pathFor(MultipathTunnel.getPathId(data), socket, from);
+        int packetLength = multipath.receive(data, length, path, from, now, unwrapped);
+        multipathEgress.follow(multipath);
+        if (packetLength >= 0) {
+            handleTunnelData(unwrapped, packetLength, true);
+        }
+        while ((packetLength = multipath.poll(unwrapped, now)) >= 0) {
+            handleTunnelData(unwrapped, packetLength, true);
+        }
+    }
+
+    /**
+     * Answers a ping on one of a client's paths. Pings aren't sealed, so if the tunnel is
+     * encrypted they're only answered on a path already learnt from a frame which opened, from
+     * the address it was learnt at.
+     */
+    private void handlePing(byte[] data, int length, SocketAddress from, long now) {
+        int clientId = MultipathTunnel.getClientId(data);
+        TunnelPath path;
+        MultipathTunnel multipath;
+        if (handshake != null) {
+            multipath = multipathTunnels.get(clientId);
+            path = multipath != null ? multipath.getPath(MultipathTunnel.getPathId(data)) : null;
+            if (path == null || !from.equals(path.getRemote())) {
+                logger.debug("Dropped a ping from {} which wasn't on a known path", from);
+                return;
+            }
+        } else {
+            multipath = multipathTunnel(clientId);
+            if (multipath == null) {
+                return;
+            }
+            path = multipath.pathFor(MultipathTunnel.getPathId(data), socket, from);
+        }
+        try {
+            multipath.handlePing(data, length, path, from, now);
+        } catch (IOException ex) {
+            logger.error("Error answering a path ping: " + ex.toString());
+        }
+    }
+
+    /**
+     * Pings each client's paths when due, and hands on the packets which have waited long enough
+     * for the ones missing before them. Forgets the clients which haven't been heard from for a
+     * while.
+     */
+    private void serviceMultipath(long now, byte[] unwrapped) {
+        Iterator<MultipathTunnel> tunnels = multipathTunnels.values().iterator();
+        while (tunnels.hasNext()) {
+            MultipathTunnel multipath = tunnels.next();
+            if (now - multipath.getLastHeard() > MULTIPATH_CLIENT_EXPIRY_NANOS) {
+                logger.info("Client {} hasn't been heard from on any path, forgetting it",
+                        Integer.toHexString(multipath.getClientId()));
+                tunnels.remove();
+                multipathEgress.forget(multipath);
+                continue;
+            }
+            multipath.sendPings(now);
+            int packetLength;
+            while ((packetLength = multipath.poll(unwrapped, now)) >= 0) {
+                handleTunnelData(unwrapped, packetLength, true);
+            }
+        }
+    }
+
+    /**
+     * The multipath tunnel for a client, made when its first frame arrives. Replies go back over
+     * the paths of whichever client was heard from last, since there is one egress.
+     *
+     * @return the tunnel, or null if there are too many clients to make another
+     */
+    private MultipathTunnel multipathTunnel(int clientId) {
+        MultipathTunnel multipath = multipathTunnels.get(clientId);
+        if (multipath == null) {
+            if (multipathTunnels.size() >= MAX_MULTIPATH_CLIENTS) {
+                logger.warn("Dropped a frame from client {}, there are already {} clients",
+                        Integer.toHexString(clientId), multipathTunnels.size());
+                return null;
+            }
+            multipath = new MultipathTunnel(clientId, PathScheduler.create(multipathScheduler),
+                    MAX_RECEIVE_BUFFER_SIZE);
+            multipathTunnels.put(clientId, multipath);
+        }
+        return multipath;
+    }
 
-            ByteBuffer packet = ByteBuffer.wrap(request.getData());
-            packet.limit(length);
+    /**
+     * Opens a frame from the client with the current tunnel, or with one the clients agreed since,
+     * which then takes over. A replayed hello can't replace the tunnel in use, since its keys
+     * never open a frame, and it doesn't push out the tunnel a genuine hello agreed either.
+     *
+     * @return the length of the packet, or -1 if the frame was dropped
+     */
+    private int openFrame(byte[] frame, int length, byte[] packet) {
+        if (!AeadTunnel.isSealedFrame(frame, length)) {
+            logger.warn("Dropped {} bytes which weren't sealed", length);
+            return -1;
+        }
+        int packetLength = tunnel != null ? tunnel.open(frame, length, packet) : -1;
+        if (packetLength >= 0) {
+            return packetLength;
+        }
+        for (Map.Entry<AeadTunnel, Integer> pending : pendingTunnels.entrySet()) {
+            AeadTunnel candidate = pending.getKey();
+            packetLength = candidate.open(frame, length, packet);
+            if (packetLength >= 0) {
+                tunnel = candidate;
+                useCapabilities(pending.getValue());
+                pendingTunnels.clear();
+                if (sealingStream != null) {
+                    sealingStream.setTunnel(tunnel);
+                }
+                logger.info("Switched to the tunnel keys from a later hello");
+                return packetLength;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Turns the optional features on or off, as agreed with the client.
+     */
+    private void useCapabilities(int agreed) {
+        clientCompresses = (agreed & TunnelCapabilities.COMPRESSION) != 0;
+        if (compressingStream != null) {
+            compressingStream.setCompressor(clientCompresses ? compressor : null);
+        }
+        logger.info("Client agreed capabilities {}", agreed);
+    }
+
+    /**
+     * Echoes path MTU probes back to the client, and applies the result once the client reports
+     * the largest probe which made the round trip. Answers the client's hello if the tunnel is
+     * encrypted, or its capabilities if it isn't.
+     */
+    private void handleControlFrame(byte[] data, int length, SocketAddress from) {
+        if (handshake != null && TunnelHandshake.isHello(data, length)) {
+            try {
+                AeadTunnel agreed = handshake.accept(data, length, socket, from);
+                // a repeated hello gets the tunnel it agreed the first time, maybe in use by now
+                if (agreed != null && agreed != tunnel) {
+                    pendingTunnels.remove(agreed);
+                    pendingTunnels.put(agreed,
+                            TunnelHandshake.getCapabilities(data) & capabilities);
+                    if (pendingTunnels.size() > MAX_PENDING_TUNNELS) {
+                        pendingTunnels.remove(pendingTunnels.keySet().iterator().next());
+                    }
+                }
+            } catch (IOException ex) {
+                logger.error("Error replying to hello: " + ex.toString());
+            }
+            return;
+        }
+        if (TunnelCapabilities.isOffer(data, length)) {
+            // an encrypted tunnel only agrees them in the hello, where they can't be tampered with
+            if (handshake != null) {
+                logger.warn("Dropped capabilities which weren't in a hello");
+                return;
+            }
+            int agreed = TunnelCapabilities.getOffered(data) & capabilities;
             try {
-                UdpOutputStream outputStream = new UdpOutputStream(socket);
-                handler.handlePacket(packet, outputStream);
-            } catch (PacketHeaderException | UnknownHostException ex) {
-                logger.error("Error handling a udp outputstream session: " + ex.toString());
+                byte[] reply = TunnelCapabilities.createReply(agreed);
+                socket.send(new DatagramPacket(reply, reply.length, from));
+            } catch (IOException ex) {
+                logger.error("Error replying to capabilities: " + ex.toString());
             }
+            useCapabilities(agreed);
+            return;
+        }
+        byte[] reply = MtuProbe.createProbeReply(data, length);
+        if (reply != null) {
+            try {
+                socket.send(new DatagramPacket(reply, reply.length, from));
+            } catch (IOException ex) {
+                logger.error("Error replying to MTU probe: " + ex.toString());
+            }
+            return;
+        }
+        int size = MtuProbe.getReportedSize(data, length);
+        if (size > 0) {
+            logger.info("Client reported tunnel packets up to {} bytes get through", size);
+            // the probes weren't sealed or sent on a path, so those overheads come out of the
+            // packets
+            int frameOverhead = handshake != null ? AeadTunnel.OVERHEAD : 0;
+            if (multipathScheduler != null) {
+                frameOverhead += MultipathTunnel.HEADER_LEN;
+            }
+            handler.setTunnelMtu(size + handler.getTunnelOverhead() - frameOverhead);
         }
     }
 
     public void shutdown() {
         running = false;
         socket.close();
+        if (handler.getDnsForwarder() != null) {
+            handler.getDnsForwarder().shutdown();
+        }
+        handler.getIcmpEchoProxy().shutdown();
+        handler.shutdown();
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+        if (egress != null) {
+            egress.shutdown();
+        }
+        scheduler.shutdown();
+        if (handler.getEngine() != null) {
+            handler.getEngine().shutdown();
+        }
+    }
+
+    /**
+     * Records this proxy's metrics in the registry: the handler, selector and workers count and
+     * time what they do, and the session table and queues are read as gauges when it's scraped.
+     * Proxies sharing a registry add up into the same metrics.
+     *
+     * @param registry the registry to record in
+     */
+    public void enableMetrics(MetricsRegistry registry) {
+        PipelineMetrics metrics = new PipelineMetrics(registry);
+        handler.setMetrics(metrics);
+        vpnWriter.setMetrics(metrics);
+        scheduler.setMetrics(metrics);
+        registry.gauge("grape_sessions", "Sessions open", sessionManager::getSessionCount);
+        registry.gauge("grape_sessions_half_open", "TCP sessions still connecting",
+                sessionManager::getHalfOpenCount);
+        registry.gauge("grape_worker_queue_depth", "Worker tasks waiting to start",
+                scheduler::getQueueDepth);
+        registry.gauge("grape_worker_in_flight", "Worker tasks waiting or running",
+                scheduler::getInFlight);
+        registry.gauge("grape_egress_queue_depth", "Packets waiting to go to the client", () -> {
+            PacketEgress current = egress;
+            return current != null ? current.getDepth() : 0;
+        });
+        registry.gauge("grape_egress_dropped", "Packets dropped with the egress queue full", () -> {
+            PacketEgress current = egress;
+            return current != null ? current.getDropped() : 0;
+        });
+    }
+
+    /**
+     * Opens the tunnel socket.
+     *
+     * @param port the port to listen on
+     * @param reusePort whether other sockets can listen on the same port, with the kernel
+     *                  spreading the clients between them
+     * @return the bound socket
+     * @throws IOException if the socket can't be bound, or SO_REUSEPORT isn't supported
+     */
+    static DatagramSocket openSocket(int port, boolean reusePort) throws IOException {
+        DatagramSocket socket = new DatagramSocket(null);
+        try {
+            socket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (reusePort) {
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            socket.bind(new InetSocketAddress(port));
+        } catch (IOException | UnsupportedOperationException ex) {
+            socket.close();
+            throw ex;
+        }
+        return socket;
+    }
+
+    /**
+     * Opens a socket per shard on the same port with SO_REUSEPORT, each with a proxy of its own.
+     * The kernel hashes each client's address to one of the sockets, so every client stays on the
+     * one shard, and the shards' receive loops run on different cores instead of one loop taking
+     * every packet. Like a single proxy, each shard serves one client, the first one it hears
+     * from.
+     *
+     * @param port the port to listen on
+     * @param shards how many sockets to open
+     * @return the proxies, one per socket
+     * @throws IOException if the sockets can't be bound, or SO_REUSEPORT isn't supported
+     */
+    public static List<ProxyMain> createShards(int port, int shards) throws IOException {
+        List<DatagramSocket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < shards; i++) {
+                sockets.add(openSocket(port, true));
+            }
+        } catch (IOException | UnsupportedOperationException ex) {
+            sockets.forEach(DatagramSocket::close);
+            throw ex;
+        }
+        List<ProxyMain> proxies = new ArrayList<>();
+        for (DatagramSocket socket : sockets) {
+            proxies.add(new ProxyMain(socket, shards));
+        }
+        return proxies;
     }
 
     public static void main(String[] args) {
+        // -Dnetwork.grape.metricsPort=<port> serves prometheus metrics on /metrics on that port
+        Integer metricsPort = Integer.getInteger("network.grape.metricsPort");
+        // -Dnetwork.grape.receiveShards=<k> opens k sockets on the port, each read by its own
+        // thread. A multipath client's paths would hash to different shards, so not with that.
+        int shards = Integer.getInteger("network.grape.receiveShards", 1);
+        if (shards > 1 && System.getProperty("network.grape.multipath") != null) {
+            LoggerFactory.getLogger(ProxyMain.class).warn(
+                    "Receive shards don't work with multipath, using one socket");
+            shards = 1;
+        }
         try {
-            ProxyMain proxyMain = new ProxyMain();
-            proxyMain.service();
+            List<ProxyMain> proxies = shards <= 1 ? List.of(new ProxyMain())
+                    : createShards(DEFAULT_PORT, shards);
+            if (metricsPort != null) {
+                MetricsRegistry registry = new MetricsRegistry();
+                registry.gauge("grape_receive_buffers_pooled", "TCP receive buffers free for reuse",
+                        SessionOutputStreamReaderWorker.getTcpReceiveBuffers()::getPooled);
+                proxies.forEach(proxyMain -> proxyMain.enableMetrics(registry));
+                new MetricsServer(registry, metricsPort).start();
+            }
+            if (proxies.size() == 1) {
+                proxies.get(0).service();
+                return;
+            }
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < proxies.size(); i++) {
+                ProxyMain proxyMain = proxies.get(i);
+                Thread thread = new Thread(() -> {
+                    try {
+                        proxyMain.service();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }, "proxy-shard-" + i);
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
         } catch (SocketException e) {
             e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -122,4 +729,50 @@ public class ProxyMain implements ProtectSocket {
     public void protectSocket(DatagramSocket socket) {
 
     }
+
+    /**
+     * Writes to the multipath tunnel of the client heard from last, so that when the app restarts
+     * with a new client id the replies follow it rather than going to the old paths. Written to
+     * from the egress thread, switched by the receive thread.
+     */
+    private static final class LatestClientEgress extends OutputStream
+            implements PacketBatchWriter {
+        private final Logger logger = LoggerFactory.getLogger(LatestClientEgress.class);
+        private volatile MultipathTunnel current;
+
+        void follow(MultipathTunnel multipath) {
+            if (current != multipath) {
+                current = multipath;
+                logger.info("Replies go to client {}",
+                        Integer.toHexString(multipath.getClientId()));
+            }
+        }
+
+        void forget(MultipathTunnel multipath) {
+            if (current == multipath) {
+                current = null;
+            }
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            write(new byte[] {(byte) value}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int off, int len) throws IOException {
+            MultipathTunnel multipath = current;
+            if (multipath != null) {
+                multipath.write(data, off, len);
+            }
+        }
+
+        @Override
+        public void writePackets(List<byte[]> packets) throws IOException {
+            MultipathTunnel multipath = current;
+            if (multipath != null) {
+                multipath.writePackets(packets);
+            }
+        }
+    }
 }
@@ -0,0 +1,75 @@
+package network.grape.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+import java.net.Inet4Address;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import network.grape.lib.network.ip.Ip4Header;
+import network.grape.lib.transport.udp.UdpHeader;
+import network.grape.lib.transport.udp.UdpPacketFactory;
+
+public class JfrPipelineTracerTest {
+
+    // a udp packet from 10.0.0.2:5000 to 10.0.0.3:53, made as the reply to one the other way
+    private static byte[] udpPacket() throws Exception {
+        Ip4Header ipHeader = new Ip4Header((short) 4, (short) 5, (short) 0, (short) 0, 31,
+                27, (short) 4, 0, (short) 64, (short) 17, 0,
+                (Inet4Address) Inet4Address.getByName("10.0.0.3"),
+                (Inet4Address) Inet4Address.getByName("10.0.0.2"), new ArrayList<>());
+        UdpHeader udpHeader = new UdpHeader(53, 5000, 11, 0);
+        return UdpPacketFactory.createResponsePacket(ipHeader, udpHeader, new byte[] {1, 2, 3});
+    }
+
+    @Test
+    public void sessionKey() throws Exception {
+        ByteBuffer packet = ByteBuffer.wrap(udpPacket());
+        packet.position(10);
+        assertEquals("/10.0.0.2:5000,/10.0.0.3:53::17", JfrPipelineTracer.sessionKey(packet));
+        // the packet is left as it was
+        assertEquals(10, packet.position());
+        assertNull(JfrPipelineTracer.sessionKey(ByteBuffer.wrap(new byte[] {0x45, 0x00})));
+    }
+
+    @Test
+    public void recordEvents() throws Exception {
+        JfrPipelineTracer tracer = new JfrPipelineTracer();
+        Path file = Files.createTempFile("grape-pipeline", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("network.grape.PacketHandled");
+            recording.enable("network.grape.WorkerRun");
+            recording.start();
+            assertTrue(tracer.isActive());
+            tracer.packetHandled(ByteBuffer.wrap(udpPacket()), 1234);
+            tracer.workerRun("session", 10, 20);
+            // not enabled in this recording
+            tracer.egressFlushed(1, 100, 5);
+            recording.stop();
+            assertFalse(tracer.isActive());
+            recording.dump(file);
+        }
+        try {
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            assertEquals(2, events.size());
+            RecordedEvent handled = events.stream()
+                    .filter(e -> e.getEventType().getName().equals("network.grape.PacketHandled"))
+                    .findFirst().orElseThrow();
+            assertEquals("/10.0.0.2:5000,/10.0.0.3:53::17", handled.getString("sessionKey"));
+            assertEquals(1234, handled.getDuration("handleTime").toNanos());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
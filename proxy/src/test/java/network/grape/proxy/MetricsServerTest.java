@@ -0,0 +1,37 @@
+package network.grape.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import network.grape.lib.metrics.MetricsRegistry;
+
+public class MetricsServerTest {
+
+    @Test
+    public void scrape() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("grape_test_total", "A test counter").add(3);
+        MetricsServer server = new MetricsServer(registry, 0);
+        server.start();
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getPort() + MetricsServer.PATH);
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(MetricsRegistry.CONTENT_TYPE, connection.getContentType());
+            try (InputStream in = connection.getInputStream()) {
+                String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                assertTrue(body.contains("grape_test_total 3\n"));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package network.grape.proxy;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
 
 import static network.grape.lib.transport.TransportHeader.TCP_PROTOCOL;
@@ -29,10 +31,15 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 import java.util.Random;
 
 import network.grape.lib.PacketHeaderException;
+import network.grape.lib.compress.PacketCompressor;
+import network.grape.lib.compress.PacketDecompressor;
+import network.grape.lib.crypto.AeadTunnel;
+import network.grape.lib.crypto.TunnelHandshake;
 import network.grape.lib.network.ip.Ip4Header;
 import network.grape.lib.network.ip.IpPacketFactory;
 import network.grape.lib.transport.tcp.TcpHeader;
@@ -40,6 +47,7 @@ import network.grape.lib.transport.tcp.TcpPacketFactory;
 import network.grape.lib.transport.udp.UdpHeader;
 import network.grape.lib.transport.udp.UdpPacketFactory;
 import network.grape.lib.vpn.SocketProtector;
+import network.grape.lib.vpn.TunnelCapabilities;
 import network.grape.lib.vpn.VpnClient;
 import network.grape.lib.vpn.VpnForwardingReader;
 import network.grape.lib.vpn.VpnForwardingWriter;
@@ -206,6 +214,147 @@ public class ProxyClientTest {
         vpnClient.shutdown();
     }
 
+    // sends a udp request via a proxy with an encrypted tunnel, after the client agrees the keys
+    // with it, and expects the echo back sealed
+    @Test public void proxyEncryptedUdpEchoTest() throws Exception {
+        byte[] key = new byte[32];
+        new Random().nextBytes(key);
+        DatagramSocket proxySocket = ProxyMain.openSocket(0, false);
+        ProxyMain encryptedProxy;
+        System.setProperty("network.grape.tunnelKey", Base64.getEncoder().encodeToString(key));
+        try {
+            encryptedProxy = new ProxyMain(proxySocket, 1);
+        } finally {
+            System.clearProperty("network.grape.tunnelKey");
+        }
+        Thread encryptedProxyThread = new Thread(() -> {
+            try {
+                encryptedProxy.service();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        encryptedProxyThread.start();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        SocketProtector protector = mock(SocketProtector.class);
+        VpnForwardingWriter vpnWriter = new VpnForwardingWriter(outputStream,
+                ByteBuffer.allocate(MAX_PACKET_LEN), 0, protector, packetDumper);
+        DatagramSocket vpnSocket = vpnWriter.getSocket();
+        vpnSocket.connect(InetAddress.getLocalHost(), proxySocket.getLocalPort());
+
+        // the keys are agreed before the reader and writer use the socket
+        TunnelHandshake handshake = new TunnelHandshake(key);
+        handshake.setAttempts(10);
+        AeadTunnel tunnel = handshake.connect(vpnSocket, AeadTunnel.Algorithm.AES_GCM);
+        assertNotNull(tunnel);
+        vpnWriter.setTunnel(tunnel);
+
+        InetAddress source = InetAddress.getLocalHost();
+        int sourcePort = new Random().nextInt(2 * Short.MAX_VALUE - 1);
+        byte[] udpPacket = UdpPacketFactory.encapsulate(source, source, sourcePort, UdpServer.DEFAULT_PORT, "test".getBytes());
+        byte[] ipPacket = IpPacketFactory.encapsulate(source, source, UDP_PROTOCOL, udpPacket);
+        VpnForwardingReader vpnReader = new VpnForwardingReader(new ByteArrayInputStream(ipPacket),
+                ByteBuffer.allocate(MAX_PACKET_LEN), vpnSocket, new ArrayList<>(), packetDumper);
+        vpnReader.setTunnel(tunnel);
+
+        VpnClient encryptedClient = new VpnClient(vpnWriter, vpnReader);
+        try {
+            encryptedClient.start();
+            for (int wait = 0; wait < 50 && outputStream.size() == 0; wait++) {
+                Thread.sleep(100);
+            }
+
+            ByteBuffer received = ByteBuffer.wrap(outputStream.toByteArray());
+            assertTrue(received.hasRemaining());
+            Ip4Header ip4Header = Ip4Header.parseBuffer(received);
+            UdpHeader udpHeader = UdpHeader.parseBuffer(received);
+            assertEquals(UDP_PROTOCOL, ip4Header.getProtocol());
+            assertEquals(sourcePort, udpHeader.getDestinationPort());
+            byte[] payload = new byte[received.remaining()];
+            received.get(payload);
+            assertEquals("test", new String(payload));
+            // both ways went through the tunnel
+            assertTrue(tunnel.getSealed() > 0);
+            assertTrue(tunnel.getOpened() > 0);
+        } finally {
+            encryptedClient.shutdown();
+            encryptedProxy.shutdown();
+            encryptedProxyThread.join(1000);
+        }
+    }
+
+    // sends a udp request which compresses via a proxy with compression turned on, after the
+    // client offers to take compressed frames, and expects the echo back through the decompressor
+    @Test public void proxyCompressedUdpEchoTest() throws Exception {
+        DatagramSocket proxySocket = ProxyMain.openSocket(0, false);
+        ProxyMain compressingProxy;
+        System.setProperty("network.grape.compression", "true");
+        try {
+            compressingProxy = new ProxyMain(proxySocket, 1);
+        } finally {
+            System.clearProperty("network.grape.compression");
+        }
+        Thread compressingProxyThread = new Thread(() -> {
+            try {
+                compressingProxy.service();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        compressingProxyThread.start();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        SocketProtector protector = mock(SocketProtector.class);
+        VpnForwardingWriter vpnWriter = new VpnForwardingWriter(outputStream,
+                ByteBuffer.allocate(MAX_PACKET_LEN), 0, protector, packetDumper);
+        DatagramSocket vpnSocket = vpnWriter.getSocket();
+        vpnSocket.connect(InetAddress.getLocalHost(), proxySocket.getLocalPort());
+
+        // the proxy only compresses for a client which offers to take compressed frames
+        TunnelCapabilities capabilities = new TunnelCapabilities(vpnSocket);
+        capabilities.setAttempts(10);
+        assertEquals(TunnelCapabilities.COMPRESSION,
+                capabilities.offer(TunnelCapabilities.COMPRESSION));
+        vpnWriter.setDecompressor(new PacketDecompressor());
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 600) {
+            text.append("<div class=\"row\">hello world</div>");
+        }
+        InetAddress source = InetAddress.getLocalHost();
+        int sourcePort = new Random().nextInt(2 * Short.MAX_VALUE - 1);
+        byte[] udpPacket = UdpPacketFactory.encapsulate(source, source, sourcePort, UdpServer.DEFAULT_PORT, text.toString().getBytes());
+        byte[] ipPacket = IpPacketFactory.encapsulate(source, source, UDP_PROTOCOL, udpPacket);
+        VpnForwardingReader vpnReader = new VpnForwardingReader(new ByteArrayInputStream(ipPacket),
+                ByteBuffer.allocate(MAX_PACKET_LEN), vpnSocket, new ArrayList<>(), packetDumper);
+        PacketCompressor compressor = new PacketCompressor();
+        vpnReader.setCompressor(compressor);
+
+        VpnClient compressingClient = new VpnClient(vpnWriter, vpnReader);
+        try {
+            compressingClient.start();
+            for (int wait = 0; wait < 50 && outputStream.size() == 0; wait++) {
+                Thread.sleep(100);
+            }
+
+            ByteBuffer received = ByteBuffer.wrap(outputStream.toByteArray());
+            assertTrue(received.hasRemaining());
+            Ip4Header.parseBuffer(received);
+            UdpHeader udpHeader = UdpHeader.parseBuffer(received);
+            assertEquals(sourcePort, udpHeader.getDestinationPort());
+            byte[] payload = new byte[received.remaining()];
+            received.get(payload);
+            assertEquals(text.toString(), new String(payload));
+            // the request went to the proxy compressed
+            assertTrue(compressor.getBytesOut() < compressor.getBytesIn());
+        } finally {
+            compressingClient.shutdown();
+            compressingProxy.shutdown();
+            compressingProxyThread.join(1000);
+        }
+    }
+
     @Test public void proxyTcpConnectTest() throws IOException, PacketHeaderException, InterruptedException {
         PipedInputStream in_to_reader = new PipedInputStream();
         final PipedOutputStream out_to_vpn = new PipedOutputStream(in_to_reader);
@@ -0,0 +1,110 @@
+package network.grape.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.List;
+
+import network.grape.lib.vpn.MtuProbe;
+
+public class ProxyShardTest {
+
+    private static void assumeReusePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(null)) {
+            assumeTrue(socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT));
+        }
+    }
+
+    @Test
+    public void reusePortSocketsShareAPort() throws IOException {
+        assumeReusePort();
+        try (DatagramSocket first = ProxyMain.openSocket(0, true);
+             DatagramSocket second = ProxyMain.openSocket(first.getLocalPort(), true)) {
+            assertEquals(first.getLocalPort(), second.getLocalPort());
+        }
+    }
+
+    @Test
+    public void createShards() throws IOException {
+        assumeReusePort();
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        List<ProxyMain> shards = ProxyMain.createShards(port, 3);
+        try {
+            assertEquals(3, shards.size());
+        } finally {
+            shards.forEach(ProxyMain::shutdown);
+        }
+    }
+
+    // sends a probe until it's echoed back, the shards may still be starting
+    private static void assertProbeAnswered(DatagramSocket client, int id) throws IOException {
+        byte[] probe = new byte[100];
+        probe[0] = MtuProbe.CONTROL_FRAME;
+        probe[1] = MtuProbe.PROBE;
+        probe[5] = (byte) id;
+        byte[] expected = MtuProbe.createProbeReply(probe, probe.length);
+        byte[] response = new byte[probe.length];
+        DatagramPacket reply = new DatagramPacket(response, response.length);
+        client.setSoTimeout(200);
+        for (int attempt = 0; attempt < 25; attempt++) {
+            client.send(new DatagramPacket(probe, probe.length));
+            try {
+                client.receive(reply);
+                assertArrayEquals(expected, response);
+                return;
+            } catch (SocketTimeoutException ex) {
+                // try again
+            }
+        }
+        throw new AssertionError("No reply to probe " + id);
+    }
+
+    @Test
+    public void shardsAnswerClients() throws Exception {
+        assumeReusePort();
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        List<ProxyMain> shards = ProxyMain.createShards(port, 3);
+        List<Thread> threads = new ArrayList<>();
+        try (DatagramSocket first = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             DatagramSocket second = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            for (ProxyMain shard : shards) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        shard.service();
+                    } catch (IOException ex) {
+                        // shut down
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            first.connect(InetAddress.getLoopbackAddress(), port);
+            second.connect(InetAddress.getLoopbackAddress(), port);
+            // each client is served by whichever shard the kernel picks for it
+            assertProbeAnswered(first, 1);
+            assertProbeAnswered(second, 2);
+            assertProbeAnswered(first, 3);
+        } finally {
+            shards.forEach(ProxyMain::shutdown);
+            for (Thread thread : threads) {
+                thread.join(5000);
+            }
+        }
+    }
+}
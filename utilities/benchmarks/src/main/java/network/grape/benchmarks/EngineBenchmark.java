@@ -0,0 +1,230 @@
+package network.grape.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import network.grape.lib.network.ip.IpPacketFactory;
+import network.grape.lib.session.Session;
+import network.grape.lib.session.SessionHandler;
+import network.grape.lib.session.SessionManager;
+import network.grape.lib.transport.TransportHeader;
+import network.grape.lib.transport.udp.UdpPacketFactory;
+import network.grape.lib.util.VirtualThreads;
+import network.grape.lib.util.WorkerScheduler;
+import network.grape.lib.vpn.FlowThreadEngine;
+import network.grape.lib.vpn.ProtectSocket;
+import network.grape.lib.vpn.SocketProtector;
+import network.grape.lib.vpn.VpnWriter;
+
+/**
+ * Compares the selector engine (the VpnWriter's selector and the worker pool) against the
+ * FlowThreadEngine (threads per flow, virtual on JDK 21+) with many concurrent flows.
+ *
+ * <p>Each flow is a UDP session from its own client address to a local echo server, opened with
+ * one datagram and kept open until the round is over, so the numbers are for that many flows
+ * being alive at once: how long it takes until every flow has its echo back through the tunnel,
+ * how many threads it took, and how much heap the flows hold.</p>
+ *
+ * <p>Usage: EngineBenchmark [selector|flow|both] [flows,flows,...], default both with
+ * 1000,10000,50000. Every flow holds a socket open, so 50k flows needs ulimit -n of over 50k.</p>
+ */
+public class EngineBenchmark {
+  private static final int CLIENT_PORT = 5000;
+  private static final long ROUND_TIMEOUT_MS = 120_000;
+
+  // nothing to protect from a vpn here, the benchmark runs without one
+  private static final ProtectSocket NO_PROTECT = new ProtectSocket() {
+    @Override
+    public void protectSocket(Socket socket) {
+    }
+
+    @Override
+    public void protectSocket(int socket) {
+    }
+
+    @Override
+    public void protectSocket(DatagramSocket socket) {
+    }
+  };
+
+  private final InetAddress localhost;
+  private final DatagramChannel echoServer;
+  private final int echoPort;
+  private final PrintStream out;
+
+  /**
+   * Construct the benchmark, starting the echo server.
+   *
+   * @param out where to report the results
+   */
+  public EngineBenchmark(PrintStream out) throws IOException {
+    this.out = out;
+    localhost = InetAddress.getByName("127.0.0.1");
+    echoServer = DatagramChannel.open();
+    echoServer.bind(new InetSocketAddress(localhost, 0));
+    echoPort = ((InetSocketAddress) echoServer.getLocalAddress()).getPort();
+    Thread echo = new Thread(this::echo, "echo-server");
+    echo.setDaemon(true);
+    echo.start();
+  }
+
+  private void echo() {
+    ByteBuffer buffer = ByteBuffer.allocate(1500);
+    try {
+      while (true) {
+        buffer.clear();
+        SocketAddress from = echoServer.receive(buffer);
+        buffer.flip();
+        echoServer.send(buffer, from);
+      }
+    } catch (IOException ex) {
+      // closed when the benchmark finishes
+    }
+  }
+
+  /**
+   * Opens the given number of flows on one of the engines and reports how it went.
+   *
+   * @param engine "selector" or "flow"
+   * @param flows  the number of concurrent flows
+   */
+  public void round(String engine, int flows) throws Exception {
+    Map<String, Session> table = new ConcurrentHashMap<>();
+    SessionManager sessionManager = new SessionManager(table, Selector.open());
+    WorkerScheduler scheduler = WorkerScheduler.create(WorkerScheduler.Type.FIXED,
+        Math.max(10, 2 * Runtime.getRuntime().availableProcessors()),
+        WorkerScheduler.DEFAULT_CAPACITY);
+    VpnWriter vpnWriter = new VpnWriter(sessionManager, scheduler);
+    SessionHandler handler = new SessionHandler(sessionManager, new SocketProtector(NO_PROTECT),
+        vpnWriter, new ArrayList<>());
+    FlowThreadEngine flowEngine = null;
+    Thread vpnWriterThread = null;
+    if ("flow".equals(engine)) {
+      flowEngine = new FlowThreadEngine(sessionManager, vpnWriter);
+      handler.setEngine(flowEngine);
+    } else {
+      vpnWriterThread = new Thread(vpnWriter, "vpn-writer");
+      vpnWriterThread.setDaemon(true);
+      vpnWriterThread.start();
+    }
+
+    CountingOutputStream tunnel = new CountingOutputStream();
+    long heapBefore = usedHeap();
+    byte[] payload = new byte[64];
+    long start = System.nanoTime();
+    for (int i = 0; i < flows; i++) {
+      // one client address per flow, 10.x.y.z from the flow number
+      InetAddress client = InetAddress.getByAddress(new byte[] {10, (byte) (i >> 16),
+          (byte) (i >> 8), (byte) i});
+      byte[] udp = UdpPacketFactory.encapsulate(client, localhost, CLIENT_PORT, echoPort, payload);
+      byte[] packet = IpPacketFactory.encapsulate(client, localhost,
+          TransportHeader.UDP_PROTOCOL, udp);
+      handler.handlePacket(ByteBuffer.wrap(packet), tunnel);
+    }
+    long sent = System.nanoTime();
+    long deadline = System.currentTimeMillis() + ROUND_TIMEOUT_MS;
+    while (tunnel.packets.get() < flows && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    long done = System.nanoTime();
+    int replies = tunnel.packets.get();
+    int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+    int flowThreads = flowEngine == null ? 0 : flowEngine.getThreadCount();
+    long heapDuring = usedHeap();
+
+    double seconds = (done - start) / 1e9;
+    out.printf("%-8s %6d flows: %6d replies in %7.3fs (open %7.3fs) %9.0f flows/s,"
+            + " %5d platform threads, %6d flow threads, %6.1f MB heap (%5.2f KB/flow)%n",
+        engine, flows, replies, seconds, (sent - start) / 1e9, replies / seconds,
+        platformThreads, flowThreads, (heapDuring - heapBefore) / 1048576.0,
+        (heapDuring - heapBefore) / 1024.0 / flows);
+
+    for (Session session : new ArrayList<>(table.values())) {
+      sessionManager.closeSession(session);
+    }
+    if (flowEngine != null) {
+      flowEngine.shutdown();
+    } else {
+      vpnWriter.shutdown();
+      sessionManager.getSelector().wakeup();
+      vpnWriterThread.join(5000);
+    }
+    scheduler.shutdown();
+    handler.shutdown();
+    sessionManager.getSelector().close();
+  }
+
+  public void shutdown() throws IOException {
+    echoServer.close();
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args [selector|flow|both] [flows,flows,...]
+   */
+  public static void main(String[] args) throws Exception {
+    System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+    String engines = args.length > 0 ? args[0] : "both";
+    String counts = args.length > 1 ? args[1] : "1000,10000,50000";
+
+    PrintStream out = System.out;
+    out.println("virtual threads available: " + VirtualThreads.isAvailable());
+    // the lib prints every packet header it parses, which would be most of the time measured
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    EngineBenchmark benchmark = new EngineBenchmark(out);
+    try {
+      for (String count : counts.split(",")) {
+        int flows = Integer.parseInt(count.trim());
+        if (!"flow".equals(engines)) {
+          benchmark.round("selector", flows);
+        }
+        if (!"selector".equals(engines)) {
+          benchmark.round("flow", flows);
+        }
+      }
+    } finally {
+      benchmark.shutdown();
+      System.setOut(out);
+    }
+  }
+
+  /**
+   * Stands in for the tunnel, counting the packets written back to the clients.
+   */
+  private static class CountingOutputStream extends OutputStream {
+    private final AtomicInteger packets = new AtomicInteger();
+
+    @Override
+    public void write(int b) {
+      packets.incrementAndGet();
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) {
+      packets.incrementAndGet();
+    }
+  }
+}
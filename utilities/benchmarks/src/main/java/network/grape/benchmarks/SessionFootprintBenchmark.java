@@ -0,0 +1,88 @@
+package network.grape.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import network.grape.lib.session.Session;
+import network.grape.lib.session.SessionManager;
+import network.grape.lib.session.TcpSession;
+import network.grape.lib.session.UdpSession;
+
+/**
+ * Measures how much heap an idle session costs, the way the SessionHandler creates them: a
+ * session per flow with its own copies of the addresses (as parsed from the client's packet), in
+ * the SessionManager's table under its key. The channel isn't counted, UDP flows share one per
+ * client socket with the UDP NAT and the kernel side of a socket isn't on the heap anyway.
+ *
+ * <p>Usage: SessionFootprintBenchmark [sessions], default 100000. The target for an idle UDP
+ * session is under 1KB.</p>
+ */
+public class SessionFootprintBenchmark {
+  private static final int UDP_TARGET_BYTES = 1024;
+
+  private static final OutputStream TUNNEL = OutputStream.nullOutputStream();
+
+  /**
+   * Creates the sessions and returns the heap they hold per session.
+   *
+   * @param sessions how many sessions to create
+   * @param tcp      TCP sessions if true, UDP otherwise
+   * @return bytes of heap per session
+   */
+  static double measure(int sessions, boolean tcp) throws Exception {
+    Map<String, Session> table = new ConcurrentHashMap<>();
+    SessionManager sessionManager = new SessionManager(table, Selector.open());
+    long before = usedHeap();
+    for (int i = 0; i < sessions; i++) {
+      // one client address per session, 10.x.y.z from the session number
+      InetAddress client = InetAddress.getByAddress(new byte[] {10, (byte) (i >> 16),
+          (byte) (i >> 8), (byte) i});
+      InetAddress destination = InetAddress.getByAddress(new byte[] {93, (byte) 184, (byte) 216,
+          34});
+      Session session = tcp
+          ? new TcpSession(client, 40000, destination, 443, TUNNEL)
+          : new UdpSession(client, 40000, destination, 53, TUNNEL);
+      sessionManager.putSession(session);
+    }
+    long after = usedHeap();
+    double perSession = (after - before) / (double) sessions;
+    if (table.size() != sessions) {
+      throw new IllegalStateException("Expected " + sessions + " sessions, got " + table.size());
+    }
+    sessionManager.getSelector().close();
+    return perSession;
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args [sessions]
+   */
+  public static void main(String[] args) throws Exception {
+    System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+    int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    PrintStream out = System.out;
+
+    // a round to warm up, so class loading and the like isn't counted
+    measure(1000, false);
+    measure(1000, true);
+
+    double udp = measure(sessions, false);
+    double tcp = measure(sessions, true);
+    out.printf("udp: %7.1f bytes per idle session (target < %d: %s)%n", udp, UDP_TARGET_BYTES,
+        udp < UDP_TARGET_BYTES ? "ok" : "MISSED");
+    out.printf("tcp: %7.1f bytes per idle session%n", tcp);
+  }
+}